@@ -28,6 +28,7 @@ import com.sun.spot.io.j2me.radiogram.*;
 import com.sun.spot.peripheral.ota.OTACommandServer;
 import com.sun.spot.util.IEEEAddress;
 import javax.microedition.io.*;
+import java.awt.GraphicsEnvironment;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
@@ -68,6 +69,9 @@ public class TempsensorHostApplication {
 
     //-----------Set up 
     private void setup() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return; // load testing on a machine without a display
+        }
         JFrame fr = new JFrame("Send Data Host App");
         JScrollPane sp = new JScrollPane(status);
         fr.add(sp);
@@ -242,8 +246,8 @@ public class TempsensorHostApplication {
     private void run() throws Exception {
         (new Thread(new updater())).start();
         parseLog();
-        RadiogramConnection rCon;
-        Radiogram dg;
+        DatagramConnection rCon;
+        Datagram dg;
                 
         columnIDs.put("time", 0);
         logger.addCSVLine("address,time,value");
@@ -256,8 +260,8 @@ public class TempsensorHostApplication {
         try {
             // Open up a server-side broadcast radiogram connection
             // to listen for sensor readings being sent by different SPOTs
-            rCon = (RadiogramConnection) Connector.open("radiogram://:" + HOST_PORT);
-            dg = (Radiogram) rCon.newDatagram(rCon.getMaximumLength());
+            rCon = LoopbackRadio.open("radiogram://:" + HOST_PORT);
+            dg = rCon.newDatagram(rCon.getMaximumLength());
         } catch (Exception e) {
             System.err.println("setUp caught " + e.getMessage());
             throw e;
@@ -324,7 +328,9 @@ public class TempsensorHostApplication {
      */
     public static void main(String[] args) throws Exception {
         // register the application's name with the OTA Command server & start OTA running
-        OTACommandServer.start("TempsensorHostApplication");
+        if (LoopbackRadio.isRadio()) {
+            OTACommandServer.start("TempsensorHostApplication");
+        }
 
         TempsensorHostApplication app = new TempsensorHostApplication();
         app.setup();
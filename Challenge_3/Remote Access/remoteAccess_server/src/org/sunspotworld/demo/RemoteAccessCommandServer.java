@@ -29,6 +29,7 @@ import com.sun.spot.peripheral.ota.OTACommandServer;
 import com.sun.spot.io.j2me.radiogram.*;
 import com.sun.spot.util.IEEEAddress;
 import javax.microedition.io.*;
+import java.awt.GraphicsEnvironment;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
@@ -61,6 +62,9 @@ public class RemoteAccessCommandServer {
 
     //-----------Set up 
     private void setup() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return; // load testing on a machine without a display
+        }
         JFrame fr = new JFrame("Send Data Host App");
         JScrollPane sp = new JScrollPane(status);
         fr.add(sp);
@@ -80,7 +84,7 @@ public class RemoteAccessCommandServer {
     //This is for receiving data and draw
     private void run() throws Exception {
         (new Thread(new ServerThread())).start();
-        RadiogramConnection rCon = null;
+        DatagramConnection rCon = null;
         Datagram dg = null;
 
 
@@ -88,7 +92,7 @@ public class RemoteAccessCommandServer {
         try {
             // Open up a broadcast connection to the host port
             // where the 'on Desktop' portion of this demo is listening
-            rCon = (RadiogramConnection) Connector.open("radiogram://broadcast:" + HOST_PORT);
+            rCon = LoopbackRadio.open("radiogram://broadcast:" + HOST_PORT);
             dg = rCon.newDatagram(50);  // only sending 12 bytes of data
         } catch (Exception e) {
             System.err.println("Caught " + e + " in connection initialization.");
@@ -141,7 +145,9 @@ public class RemoteAccessCommandServer {
      */
     public static void main(String[] args) throws Exception {
         // register the application's name with the OTA Command server & start OTA running
-        OTACommandServer.start("TempsensorHostApplication");
+        if (LoopbackRadio.isRadio()) {
+            OTACommandServer.start("TempsensorHostApplication");
+        }
 
         RemoteAccessCommandServer app = new RemoteAccessCommandServer();
         app.setup();
@@ -28,6 +28,7 @@ import com.sun.spot.io.j2me.radiogram.*;
 import com.sun.spot.peripheral.ota.OTACommandServer;
 import com.sun.spot.util.IEEEAddress;
 import javax.microedition.io.*;
+import java.awt.GraphicsEnvironment;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
@@ -69,6 +70,9 @@ public class LocalizationHostApplication {
 
     //-----------Set up 
     private void setup() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return; // load testing on a machine without a display
+        }
         JFrame fr = new JFrame("Send Data Host App");
         JScrollPane sp = new JScrollPane(status);
         fr.add(sp);
@@ -132,15 +136,15 @@ public class LocalizationHostApplication {
                     System.out.println(e);
                 }
         
-        RadiogramConnection rCon;
-        Radiogram dg;
+        DatagramConnection rCon;
+        Datagram dg;
 
         //------ This part does not need to modify. dg is the received package.---------//
         try {
             // Open up a server-side broadcast radiogram connection
             // to listen for sensor readings being sent by different SPOTs
-            rCon = (RadiogramConnection) Connector.open("radiogram://:" + HOST_PORT);
-            dg = (Radiogram) rCon.newDatagram(rCon.getMaximumLength());
+            rCon = LoopbackRadio.open("radiogram://:" + HOST_PORT);
+            dg = rCon.newDatagram(rCon.getMaximumLength());
         } catch (Exception e) {
             System.err.println("setUp caught " + e.getMessage());
             throw e;
@@ -190,7 +194,9 @@ public class LocalizationHostApplication {
      */
     public static void main(String[] args) throws Exception {
         // register the application's name with the OTA Command server & start OTA running
-        OTACommandServer.start("TempsensorHostApplication");
+        if (LoopbackRadio.isRadio()) {
+            OTACommandServer.start("TempsensorHostApplication");
+        }
 
         LocalizationHostApplication app = new LocalizationHostApplication();
         app.setup();
@@ -0,0 +1,578 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package local;
+
+import com.sun.spot.io.j2me.radiogram.Radiogram;
+import com.sun.spot.io.j2me.radiogram.RadiogramConnection;
+import com.sun.spot.util.IEEEAddress;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.microedition.io.Connector;
+import javax.microedition.io.Datagram;
+import javax.microedition.io.DatagramConnection;
+
+/**
+ * Stand-in for radiogram connections so the host apps can run, and be load
+ * tested, without SPOTs or a basestation.
+ *
+ * Open connections with LoopbackRadio.open() instead of Connector.open(). The
+ * transport is picked with -Dec544.transport:
+ *
+ * <pre>
+ * radio   (default) Connector.open(), the real radio through the basestation
+ * udp     UDP on 127.0.0.1, radiogram port p is UDP port ec544.transport.udpBase + p,
+ *         so senders and receivers can be separate processes
+ * memory  in-process queues, one per port, for a generator in the same JVM
+ * </pre>
+ *
+ * Radiogram semantics are kept where the host apps depend on them:
+ * getMaximumLength() (-Dec544.transport.maxLength, default 1260), broadcast
+ * and unicast URLs, the sender's address from getAddress() and
+ * getAddressAsLong(), and RSSI, correlation and LQI per packet. Those travel
+ * in an 11 byte header in front of the payload: source address (long), then
+ * RSSI, correlation and LQI (one byte each). As on the radio, a receiver that
+ * falls behind loses packets (full queue or socket buffer) instead of
+ * slowing the sender down. Every sender reaches the one receiver on the host
+ * for its port, broadcast or not.
+ */
+public class LoopbackRadio implements DatagramConnection {
+
+    public static final String TRANSPORT = System.getProperty("ec544.transport", "radio");
+    public static final int UDP_BASE = Integer.getInteger("ec544.transport.udpBase", 20000).intValue();
+    public static final int MAX_LENGTH = Integer.getInteger("ec544.transport.maxLength", 1260).intValue();
+    private static final int HEADER_SIZE = 11;
+    private static final int QUEUE_CAPACITY = 4096;
+    // Address this process sends from, override with -Dec544.transport.address=0014.4F01.0000.xxxx
+    private static final long LOCAL_ADDRESS = localAddress();
+    private static final ConcurrentHashMap<Integer, ArrayBlockingQueue<byte[]>> mailboxes =
+            new ConcurrentHashMap<Integer, ArrayBlockingQueue<byte[]>>();
+    private final int port;
+    private final boolean server;
+    private final DatagramSocket socket;
+    private final DatagramPacket sendPacket;
+    private final DatagramPacket receivePacket;
+    private final InetAddress loopback;
+    private final ArrayBlockingQueue<byte[]> box; // this port's mailbox, memory transport only
+    private final AtomicLong dropped = new AtomicLong(0);
+    private long timeout = 0;
+    private int socketTimeout = 0; // last passed to setSoTimeout, which boxes it, so it is only set on a change
+
+    /**
+     * A packet from the loopback transport. Implements Datagram over a plain
+     * byte array, reading and writing from the start of the payload.
+     */
+    public static class Packet implements Datagram {
+
+        private byte[] buf;
+        private int length = 0;
+        private int position = 0;
+        private long source = LOCAL_ADDRESS;
+        private String destination = null;
+        private int rssi = 0;
+        private int corr = 0;
+        private int lqi = 0;
+
+        public Packet(int size) {
+            buf = new byte[size];
+        }
+
+        Packet(byte[] buffer) {
+            buf = buffer;
+        }
+
+        public long getAddressAsLong() {
+            return source;
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        public int getCorr() {
+            return corr;
+        }
+
+        public int getLinkQuality() {
+            return lqi;
+        }
+
+        //Lets a load generator send as if from another SPOT, with the given radio quality
+        public void setSource(long address, int newRssi, int newCorr, int newLqi) {
+            source = address;
+            rssi = newRssi;
+            corr = newCorr;
+            lqi = newLqi;
+        }
+
+        //The sender of a received packet, as on a Radiogram
+        public String getAddress() {
+            return IEEEAddress.toDottedHex(source);
+        }
+
+        //Kept for the caller but not used for delivery: every packet reaches the one receiver on its port
+        public void setAddress(String addr) {
+            destination = addr;
+        }
+
+        public void setAddress(Datagram reference) {
+            destination = reference.getAddress();
+        }
+
+        public String getDestination() {
+            return destination;
+        }
+
+        public byte[] getData() {
+            return buf;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getOffset() {
+            return 0;
+        }
+
+        public void setLength(int len) {
+            if (len < 0 || len > buf.length) {
+                throw new IllegalArgumentException("Bad length " + len);
+            }
+            length = len;
+        }
+
+        public void setData(byte[] buffer, int offset, int len) {
+            buf = new byte[Math.max(len, buf.length)];
+            System.arraycopy(buffer, offset, buf, 0, len);
+            length = len;
+            position = 0;
+        }
+
+        public void reset() {
+            length = 0;
+            position = 0;
+        }
+
+        //Header and payload as sent over UDP or through a mailbox
+        private int encode(byte[] out) {
+            for (int i = 0; i < 8; i++) {
+                out[i] = (byte) (source >>> (56 - 8 * i));
+            }
+            out[8] = (byte) rssi;
+            out[9] = (byte) corr;
+            out[10] = (byte) lqi;
+            System.arraycopy(buf, 0, out, HEADER_SIZE, length);
+            return HEADER_SIZE + length;
+        }
+
+        private void decode(byte[] in, int inLength) throws IOException {
+            if (inLength < HEADER_SIZE || inLength - HEADER_SIZE > buf.length) {
+                throw new IOException("Bad loopback packet of " + inLength + " bytes");
+            }
+            long address = 0;
+            for (int i = 0; i < 8; i++) {
+                address = (address << 8) | (in[i] & 0xFF);
+            }
+            source = address;
+            rssi = in[8];
+            corr = in[9] & 0xFF;
+            lqi = in[10] & 0xFF;
+            length = inLength - HEADER_SIZE;
+            System.arraycopy(in, HEADER_SIZE, buf, 0, length);
+            position = 0;
+        }
+
+        // DataInput, reading from position up to length
+        private int next() throws EOFException {
+            if (position >= length) {
+                throw new EOFException();
+            }
+            return buf[position++] & 0xFF;
+        }
+
+        public void readFully(byte[] b) throws IOException {
+            readFully(b, 0, b.length);
+        }
+
+        public void readFully(byte[] b, int off, int len) throws IOException {
+            if (position + len > length) {
+                throw new EOFException();
+            }
+            System.arraycopy(buf, position, b, off, len);
+            position += len;
+        }
+
+        public int skipBytes(int n) {
+            int skipped = Math.max(0, Math.min(n, length - position));
+            position += skipped;
+            return skipped;
+        }
+
+        public boolean readBoolean() throws IOException {
+            return next() != 0;
+        }
+
+        public byte readByte() throws IOException {
+            return (byte) next();
+        }
+
+        public int readUnsignedByte() throws IOException {
+            return next();
+        }
+
+        public short readShort() throws IOException {
+            return (short) readUnsignedShort();
+        }
+
+        public int readUnsignedShort() throws IOException {
+            return (next() << 8) | next();
+        }
+
+        public char readChar() throws IOException {
+            return (char) readUnsignedShort();
+        }
+
+        public int readInt() throws IOException {
+            return (next() << 24) | (next() << 16) | (next() << 8) | next();
+        }
+
+        public long readLong() throws IOException {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        public float readFloat() throws IOException {
+            return Float.intBitsToFloat(readInt());
+        }
+
+        public double readDouble() throws IOException {
+            return Double.longBitsToDouble(readLong());
+        }
+
+        public String readLine() throws IOException {
+            if (position >= length) {
+                return null;
+            }
+            StringBuilder line = new StringBuilder();
+            while (position < length) {
+                char c = (char) next();
+                if (c == '\n') {
+                    break;
+                }
+                if (c != '\r') {
+                    line.append(c);
+                }
+            }
+            return line.toString();
+        }
+
+        public String readUTF() throws IOException {
+            return DataInputStream.readUTF(this);
+        }
+
+        // DataOutput, appending at position and growing length
+        private void put(int b) throws IOException {
+            if (position >= buf.length) {
+                throw new IOException("Datagram full at " + buf.length + " bytes");
+            }
+            buf[position++] = (byte) b;
+            if (position > length) {
+                length = position;
+            }
+        }
+
+        public void write(int b) throws IOException {
+            put(b);
+        }
+
+        public void write(byte[] b) throws IOException {
+            write(b, 0, b.length);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (position + len > buf.length) {
+                throw new IOException("Datagram full at " + buf.length + " bytes");
+            }
+            System.arraycopy(b, off, buf, position, len);
+            position += len;
+            if (position > length) {
+                length = position;
+            }
+        }
+
+        public void writeBoolean(boolean v) throws IOException {
+            put(v ? 1 : 0);
+        }
+
+        public void writeByte(int v) throws IOException {
+            put(v);
+        }
+
+        public void writeShort(int v) throws IOException {
+            put(v >>> 8);
+            put(v);
+        }
+
+        public void writeChar(int v) throws IOException {
+            writeShort(v);
+        }
+
+        public void writeInt(int v) throws IOException {
+            put(v >>> 24);
+            put(v >>> 16);
+            put(v >>> 8);
+            put(v);
+        }
+
+        public void writeLong(long v) throws IOException {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        public void writeFloat(float v) throws IOException {
+            writeInt(Float.floatToIntBits(v));
+        }
+
+        public void writeDouble(double v) throws IOException {
+            writeLong(Double.doubleToLongBits(v));
+        }
+
+        public void writeBytes(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                put(s.charAt(i));
+            }
+        }
+
+        public void writeChars(String s) throws IOException {
+            for (int i = 0; i < s.length(); i++) {
+                writeChar(s.charAt(i));
+            }
+        }
+
+        //Modified UTF-8 with a two byte length, the same as DataOutputStream.writeUTF
+        public void writeUTF(String s) throws IOException {
+            int utfLength = 0;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x0001 && c <= 0x007F) {
+                    utfLength++;
+                } else if (c > 0x07FF) {
+                    utfLength += 3;
+                } else {
+                    utfLength += 2;
+                }
+            }
+            if (utfLength > 65535) {
+                throw new IOException("String too long for writeUTF");
+            }
+            writeShort(utfLength);
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c >= 0x0001 && c <= 0x007F) {
+                    put(c);
+                } else if (c > 0x07FF) {
+                    put(0xE0 | ((c >> 12) & 0x0F));
+                    put(0x80 | ((c >> 6) & 0x3F));
+                    put(0x80 | (c & 0x3F));
+                } else {
+                    put(0xC0 | ((c >> 6) & 0x1F));
+                    put(0x80 | (c & 0x3F));
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens url ("radiogram://:port", "radiogram://broadcast:port" or
+     * "radiogram://address:port") on the transport chosen by ec544.transport.
+     */
+    public static DatagramConnection open(String url) throws IOException {
+        if (isRadio()) {
+            return (DatagramConnection) Connector.open(url);
+        }
+        return new LoopbackRadio(url);
+    }
+
+    public static boolean isRadio() {
+        return TRANSPORT.equals("radio");
+    }
+
+    //Sender address of a packet received from either the radio or the loopback transport
+    public static long getAddressAsLong(Datagram dg) {
+        if (dg instanceof Packet) {
+            return ((Packet) dg).getAddressAsLong();
+        }
+        return ((Radiogram) dg).getAddressAsLong();
+    }
+
+    //RSSI of a packet received from either transport
+    public static int getRssi(Datagram dg) {
+        if (dg instanceof Packet) {
+            return ((Packet) dg).getRssi();
+        }
+        return ((Radiogram) dg).getRssi();
+    }
+
+    public static void setTimeout(DatagramConnection conn, long millis) {
+        if (conn instanceof LoopbackRadio) {
+            ((LoopbackRadio) conn).setTimeout(millis);
+        } else {
+            ((RadiogramConnection) conn).setTimeout(millis);
+        }
+    }
+
+    private static long localAddress() {
+        String configured = System.getProperty("ec544.transport.address");
+        if (configured != null) {
+            return new IEEEAddress(configured).asLong();
+        }
+        return 0x00144F0100000000L | (System.nanoTime() & 0xFFFF);
+    }
+
+    private LoopbackRadio(String url) throws IOException {
+        if (!url.startsWith("radiogram://")) {
+            throw new IllegalArgumentException("Not a radiogram URL: " + url);
+        }
+        String target = url.substring("radiogram://".length());
+        int colon = target.lastIndexOf(':');
+        port = Integer.parseInt(target.substring(colon + 1));
+        server = colon == 0;
+        if (TRANSPORT.equals("udp")) {
+            loopback = InetAddress.getByName("127.0.0.1");
+            if (server) {
+                socket = new DatagramSocket(UDP_BASE + port, loopback);
+                socket.setReceiveBufferSize(4 * 1024 * 1024);
+            } else {
+                socket = new DatagramSocket();
+            }
+            sendPacket = new DatagramPacket(new byte[HEADER_SIZE + MAX_LENGTH], HEADER_SIZE + MAX_LENGTH, loopback, UDP_BASE + port);
+            receivePacket = new DatagramPacket(new byte[HEADER_SIZE + MAX_LENGTH], HEADER_SIZE + MAX_LENGTH);
+            box = null;
+        } else if (TRANSPORT.equals("memory")) {
+            loopback = null;
+            socket = null;
+            sendPacket = null;
+            receivePacket = null;
+            box = mailbox(port);
+        } else {
+            throw new IllegalArgumentException("Unknown ec544.transport " + TRANSPORT);
+        }
+    }
+
+    private static ArrayBlockingQueue<byte[]> mailbox(int port) {
+        Integer key = Integer.valueOf(port);
+        ArrayBlockingQueue<byte[]> box = mailboxes.get(key);
+        if (box == null) {
+            mailboxes.putIfAbsent(key, new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY));
+            box = mailboxes.get(key);
+        }
+        return box;
+    }
+
+    //Like RadiogramConnection.setTimeout; receive() throws InterruptedIOException when it expires. 0 waits forever.
+    public void setTimeout(long millis) {
+        timeout = millis;
+    }
+
+    //Packets this connection could not deliver because the receiver's queue was full (memory transport only)
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public int getMaximumLength() {
+        return MAX_LENGTH;
+    }
+
+    public int getNominalLength() {
+        return MAX_LENGTH;
+    }
+
+    public void send(Datagram dg) throws IOException {
+        Packet packet = (Packet) dg;
+        if (socket != null) {
+            synchronized (sendPacket) {
+                sendPacket.setLength(packet.encode(sendPacket.getData()));
+                socket.send(sendPacket);
+            }
+        } else {
+            byte[] copy = new byte[HEADER_SIZE + packet.getLength()];
+            packet.encode(copy);
+            if (!box.offer(copy)) {
+                dropped.incrementAndGet();
+            }
+        }
+    }
+
+    public void receive(Datagram dg) throws IOException {
+        if (!server) {
+            throw new IOException("Cannot receive on a client connection to port " + port);
+        }
+        Packet packet = (Packet) dg;
+        if (socket != null) {
+            synchronized (receivePacket) {
+                if (socketTimeout != (int) timeout) {
+                    socketTimeout = (int) timeout;
+                    socket.setSoTimeout(socketTimeout);
+                }
+                receivePacket.setLength(receivePacket.getData().length);
+                socket.receive(receivePacket);
+                packet.decode(receivePacket.getData(), receivePacket.getLength());
+            }
+        } else {
+            byte[] data;
+            try {
+                if (timeout > 0) {
+                    data = box.poll(timeout, TimeUnit.MILLISECONDS);
+                    if (data == null) {
+                        throw new InterruptedIOException("Receive timed out on port " + port);
+                    }
+                } else {
+                    data = box.take();
+                }
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Interrupted receiving on port " + port);
+            }
+            packet.decode(data, data.length);
+        }
+    }
+
+    public Datagram newDatagram(int size) {
+        return new Packet(Math.min(size, MAX_LENGTH));
+    }
+
+    public Datagram newDatagram(int size, String addr) throws IOException {
+        Datagram dg = newDatagram(size);
+        dg.setAddress(addr);
+        return dg;
+    }
+
+    //The packet reads and writes buf directly
+    public Datagram newDatagram(byte[] buf, int size) {
+        if (size > buf.length || size > MAX_LENGTH) {
+            throw new IllegalArgumentException("Bad datagram size " + size);
+        }
+        return new Packet(buf);
+    }
+
+    public Datagram newDatagram(byte[] buf, int size, String addr) throws IOException {
+        Datagram dg = newDatagram(buf, size);
+        dg.setAddress(addr);
+        return dg;
+    }
+
+    public void close() {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a numeric CSV file straight into primitive column arrays. The file is
+ * memory mapped and scanned as bytes through a 64 KB window (a byte[] scans
+ * faster than ByteBuffer.get), and ints and doubles are parsed in place, so a
+ * row costs no String, String[] or boxed value. csv_watcher's
+ * readLine / split(",") / parseDouble loop spent most of the load time of a
+ * multi-hour log allocating those.
+ *
+ * Each column is declared INT or DOUBLE up front. Lines whose first field
+ * starts with a letter are headers and are skipped. Any other line that does
+ * not hold exactly those columns is counted as malformed and its line number
+ * kept (the first MAX_REPORTED of them); blank lines are ignored. Fields may
+ * be padded with spaces, and lines may end in \n or \r\n.
+ *
+ * Column arrays grow as rows are added and are longer than getRowCount();
+ * only the first getRowCount() entries are data. A parser can parse several
+ * files in turn; the rows are appended.
+ *
+ * Doubles with at most 15 significant digits and a small exponent, which is
+ * every value csv_watcher and CarDataReceiver write, are computed exactly from
+ * the digits. Anything else falls back to Double.parseDouble, so the result
+ * always matches it.
+ *
+ * Copy of EC544.main.CsvColumnParser in the GUI project, without its main and
+ * the benchmark against readLine/split.
+ */
+public class CsvColumnParser {
+
+    public static final int INT = 0;
+    public static final int DOUBLE = 1;
+    //time,LF,RF,LR,RR,setTurn,setSpeed,booleans as written by CarDataReceiver and TelemetryLogConverter
+    public static final int[] SMALL_POINT = {DOUBLE, INT, INT, INT, INT, INT, INT, DOUBLE};
+    public static final int MAX_REPORTED = 20;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    // Largest mantissa that a double holds exactly
+    private static final long MAX_EXACT = 1L << 53;
+    private final int[] types;
+    private final int[][] ints;
+    private final double[][] doubles;
+    private int capacity;
+    private int rows;
+    private int headers;
+    private int malformed;
+    private final int[] malformedLines = new int[MAX_REPORTED];
+    private long endOffset;
+    // window of the file being scanned, and scan state
+    private byte[] buf = new byte[64 * 1024];
+    private int pos;
+    private int intValue;
+    private double doubleValue;
+    private char[] text = new char[32];
+
+    public CsvColumnParser(int[] types) {
+        this.types = types.clone();
+        ints = new int[types.length][];
+        doubles = new double[types.length][];
+        grow(1024);
+    }
+
+    private void grow(int newCapacity) {
+        for (int c = 0; c < types.length; c++) {
+            if (types[c] == INT) {
+                int[] column = new int[newCapacity];
+                if (ints[c] != null) {
+                    System.arraycopy(ints[c], 0, column, 0, rows);
+                }
+                ints[c] = column;
+            } else {
+                double[] column = new double[newCapacity];
+                if (doubles[c] != null) {
+                    System.arraycopy(doubles[c], 0, column, 0, rows);
+                }
+                doubles[c] = column;
+            }
+        }
+        capacity = newCapacity;
+    }
+
+    //Parses the file at path; returns the number of rows it added
+    public int parse(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to map (" + size + " bytes)");
+            }
+            // about 40 bytes per SmallPoint row
+            int expected = rows + (int) (size / 40) + 1;
+            if (expected > capacity) {
+                grow(expected);
+            }
+            return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Parses the bytes from in's position to its limit; returns the number of
+     * rows added. A last line without a newline is taken only if it is a
+     * complete row, since a live log may still be writing it.
+     */
+    public int parse(ByteBuffer in) {
+        ByteBuffer source = in.duplicate();
+        int before = rows;
+        int line = 0;
+        // bytes of in before buf[0], and bytes held in buf
+        long consumed = 0;
+        int filled = 0;
+        endOffset = 0;
+        while (true) {
+            if (filled == buf.length) {
+                // one line longer than the window
+                byte[] larger = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, larger, 0, filled);
+                buf = larger;
+            }
+            int n = Math.min(buf.length - filled, source.remaining());
+            source.get(buf, filled, n);
+            filled += n;
+            boolean last = !source.hasRemaining();
+            int start = 0;
+            while (start < filled) {
+                int newline = start;
+                while (newline < filled && buf[newline] != '\n') {
+                    newline++;
+                }
+                if (newline == filled && !last) {
+                    // the rest of this line is in the next window
+                    break;
+                }
+                line++;
+                int end = newline;
+                if (end > start && buf[end - 1] == '\r') {
+                    end--;
+                }
+                if (rows == capacity) {
+                    grow(capacity * 2);
+                }
+                if (parseRow(start, end)) {
+                    rows++;
+                } else if (newline == filled) {
+                    // unterminated and incomplete: leave it for the next read
+                    return rows - before;
+                } else if (isBlank(start, end)) {
+                    // nothing on the line
+                } else if (isHeader(start, end)) {
+                    headers++;
+                } else {
+                    if (malformed < MAX_REPORTED) {
+                        malformedLines[malformed] = line;
+                    }
+                    malformed++;
+                }
+                start = newline < filled ? newline + 1 : filled;
+                endOffset = consumed + start;
+            }
+            if (last && start == filled) {
+                return rows - before;
+            }
+            System.arraycopy(buf, start, buf, 0, filled - start);
+            consumed += start;
+            filled -= start;
+        }
+    }
+
+    private boolean parseRow(int start, int end) {
+        pos = start;
+        for (int c = 0; c < types.length; c++) {
+            if (c > 0) {
+                if (pos >= end || buf[pos] != ',') {
+                    return false;
+                }
+                pos++;
+            }
+            skipSpaces(end);
+            if (types[c] == INT) {
+                if (!parseInt(end)) {
+                    return false;
+                }
+                ints[c][rows] = intValue;
+            } else {
+                if (!parseDouble(end)) {
+                    return false;
+                }
+                doubles[c][rows] = doubleValue;
+            }
+            skipSpaces(end);
+        }
+        return pos == end;
+    }
+
+    private void skipSpaces(int end) {
+        while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t')) {
+            pos++;
+        }
+    }
+
+    private boolean isBlank(int start, int end) {
+        pos = start;
+        skipSpaces(end);
+        return pos == end;
+    }
+
+    private boolean isHeader(int start, int end) {
+        pos = start;
+        skipSpaces(end);
+        if (pos == end) {
+            return false;
+        }
+        byte b = buf[pos];
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    private static int digit(byte b) {
+        return b - '0';
+    }
+
+    private boolean parseInt(int end) {
+        int p = pos;
+        boolean negative = false;
+        if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+            negative = buf[p] == '-';
+            p++;
+        }
+        int first = p;
+        long value = 0;
+        while (p < end) {
+            int d = digit(buf[p]);
+            if (d < 0 || d > 9) {
+                break;
+            }
+            value = value * 10 + d;
+            if (value > 1L + Integer.MAX_VALUE) {
+                return false;
+            }
+            p++;
+        }
+        if (p == first) {
+            return false;
+        }
+        if (negative) {
+            value = -value;
+        }
+        if (value > Integer.MAX_VALUE) {
+            return false;
+        }
+        intValue = (int) value;
+        pos = p;
+        return true;
+    }
+
+    private boolean parseDouble(int end) {
+        int start = pos;
+        int p = pos;
+        boolean negative = false;
+        if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+            negative = buf[p] == '-';
+            p++;
+        }
+        long mantissa = 0;
+        int significant = 0;
+        int exponent = 0;
+        boolean inexact = false;
+        boolean any = false;
+        int d;
+        while (p < end && (d = digit(buf[p])) >= 0 && d <= 9) {
+            any = true;
+            if (significant < 18) {
+                mantissa = mantissa * 10 + d;
+                if (mantissa != 0) {
+                    significant++;
+                }
+            } else {
+                exponent++;
+                inexact |= d != 0;
+            }
+            p++;
+        }
+        if (p < end && buf[p] == '.') {
+            p++;
+            while (p < end && (d = digit(buf[p])) >= 0 && d <= 9) {
+                any = true;
+                if (significant < 18) {
+                    mantissa = mantissa * 10 + d;
+                    if (mantissa != 0) {
+                        significant++;
+                    }
+                    exponent--;
+                } else {
+                    inexact |= d != 0;
+                }
+                p++;
+            }
+        }
+        if (!any) {
+            return false;
+        }
+        if (p < end && (buf[p] == 'e' || buf[p] == 'E')) {
+            p++;
+            boolean negativeExponent = false;
+            if (p < end && (buf[p] == '-' || buf[p] == '+')) {
+                negativeExponent = buf[p] == '-';
+                p++;
+            }
+            int digitsStart = p;
+            int e = 0;
+            while (p < end && (d = digit(buf[p])) >= 0 && d <= 9) {
+                if (e < 100000) {
+                    e = e * 10 + d;
+                }
+                p++;
+            }
+            if (p == digitsStart) {
+                return false;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        pos = p;
+        double value;
+        if (inexact || mantissa > MAX_EXACT || exponent < -22 || exponent > 22) {
+            value = Math.abs(slowParse(start, p));
+        } else if (exponent >= 0) {
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        }
+        doubleValue = negative ? -value : value;
+        return true;
+    }
+
+    //Rare: too many digits or too large an exponent to compute exactly from the mantissa
+    private double slowParse(int start, int end) {
+        int length = end - start;
+        if (text.length < length) {
+            text = new char[length];
+        }
+        for (int i = 0; i < length; i++) {
+            text[i] = (char) buf[start + i];
+        }
+        return Double.parseDouble(new String(text, 0, length));
+    }
+
+    public int getRowCount() {
+        return rows;
+    }
+
+    public int getColumnCount() {
+        return types.length;
+    }
+
+    //Column c, which must be INT; the first getRowCount() entries are data
+    public int[] getInts(int c) {
+        return ints[c];
+    }
+
+    //Column c, which must be DOUBLE; the first getRowCount() entries are data
+    public double[] getDoubles(int c) {
+        return doubles[c];
+    }
+
+    public int getHeaderCount() {
+        return headers;
+    }
+
+    public int getMalformedCount() {
+        return malformed;
+    }
+
+    //Line numbers, within the file they came from, of the first MAX_REPORTED malformed lines
+    public int[] getMalformedLines() {
+        int[] lines = new int[Math.min(malformed, MAX_REPORTED)];
+        System.arraycopy(malformedLines, 0, lines, 0, lines.length);
+        return lines;
+    }
+
+    //Bytes of the last parsed file up to and including the last line that was taken; a tailing reader resumes here
+    public long getEndOffset() {
+        return endOffset;
+    }
+
+    //Fills sp from row of a parser made with SMALL_POINT
+    public void getPoint(int row, SmallPoint sp) {
+        sp.time = doubles[0][row];
+        sp.leftFront = ints[1][row];
+        sp.rightFront = ints[2][row];
+        sp.leftRear = ints[3][row];
+        sp.rightRear = ints[4][row];
+        sp.setTurn = ints[5][row];
+        sp.setSpeed = ints[6][row];
+        sp.setBooleans((int) doubles[7][row]);
+    }
+}
@@ -29,6 +29,7 @@ public class IRDaemon {
     double reverse_finish_time = 0;
     double corner_finish_time = 0;
     double forward_finish_time = 0;
+    private Clock clock;
     /*---------------------*/
     // Environmental coefficients
     /*---------------------*/
@@ -65,6 +66,8 @@ public class IRDaemon {
     // Control coefficients
     /*---------------------*/
     private final double STRAIGHT_TOLERANCE = 5.0; // 5.0 in IR units
+    // Volts -> cm for the IR sensors, DistanceTable.curve() unless a calibration file replaces it
+    private static DistanceTable distanceTable = DistanceTable.fromCurve();
     /*---------------------*/
     //Sampling data storage variables 
     /*---------------------*/
@@ -74,10 +77,11 @@ public class IRDaemon {
     public double readingRR;
     /*---------------------*/
     //Calculation data storage instance variables
-    public double[] recentDists = new double[SAMPLE_COUNT];
-    public double[] recentTargets = new double[SAMPLE_COUNT];
-    private double[] recentHalls = new double[SAMPLE_COUNT];
-    private double[] recentThetas = new double[SAMPLE_COUNT];
+    public RunningWindow recentDists = new RunningWindow(SAMPLE_COUNT);
+    public RunningWindow recentTargets = new RunningWindow(SAMPLE_COUNT);
+    private RunningWindow recentHalls = new RunningWindow(SAMPLE_COUNT);
+    private RunningWindow recentThetas = new RunningWindow(SAMPLE_COUNT);
+    private boolean recentDistsLeft = false; // recentDists holds left-wall (negative) distances
     private double avgTheta;
     private double avgHall = DEFAULT_HALL_SIZE;
     private double sdHall = 0.0;
@@ -112,21 +116,36 @@ public class IRDaemon {
     // Constructors         
     /*---------------------*/
     public IRDaemon() { // for calculations only
+        this(SystemClock.INSTANCE);
+    }
+
+    //clock drives the forward, reverse and corner timeouts; see Clock
+    public IRDaemon(Clock clock) {
+        this.clock = clock;
         initRecents();
     }
 
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
     /*---------------------*/
     // Pathing decisions
     /*---------------------*/
     public String pickDirection() {
-        if (forward_finish_time >= System.currentTimeMillis() && !isColliding) {
+        long now = clock.currentTimeMillis();
+        if (forward_finish_time >= now && !isColliding) {
             speedSuggest = 1300;
-        } else if (reverse_finish_time >= System.currentTimeMillis()) {
+        } else if (reverse_finish_time >= now) {
             speedSuggest = 1700;
         } else {
             if (isColliding) {
                 isColliding = false;
-                reverse_finish_time = System.currentTimeMillis() + REVERSE_TIMEOUT / 2;
+                reverse_finish_time = now + REVERSE_TIMEOUT / 2;
                 speedSuggest = 1700;
                 System.out.println("Colliding, going backwards!");
             } else {
@@ -140,7 +159,7 @@ public class IRDaemon {
 
         if (corneringLeft) {
             System.out.println("Cornering left!");
-            if (System.currentTimeMillis() >= corner_finish_time) {
+            if (now >= corner_finish_time) {
                 targetDistance = IDEAL_DISTANCE;
                 takeNextLeft = false;
                 corner_finish_time = 0;
@@ -161,7 +180,7 @@ public class IRDaemon {
 
         } else if (corneringRight) {
             System.out.println("Cornering right!");
-            if (System.currentTimeMillis() >= corner_finish_time) {
+            if (now >= corner_finish_time) {
                 targetDistance = IDEAL_DISTANCE;
                 takeNextRight = false;
                 corner_finish_time = 0;
@@ -180,9 +199,9 @@ public class IRDaemon {
             isLeftPreferred = true;
             if (L == 0) {
                 targetDistance = CORNER_DISTANCE;
-                corner_finish_time = System.currentTimeMillis() + CORNER_TIMEOUT;
-                reverse_finish_time = System.currentTimeMillis() + REVERSE_TIMEOUT;
-                forward_finish_time = System.currentTimeMillis() + FORWARD_TIMEOUT;
+                corner_finish_time = now + CORNER_TIMEOUT;
+                reverse_finish_time = now + REVERSE_TIMEOUT;
+                forward_finish_time = now + FORWARD_TIMEOUT;
                 leftCorner();
                 corneringLeft = true;
                 return "left corner";
@@ -201,9 +220,9 @@ public class IRDaemon {
             System.out.println("IR: Taking next right...");
             if (R == 0) {
                 targetDistance = CORNER_DISTANCE;
-                reverse_finish_time = System.currentTimeMillis() + REVERSE_TIMEOUT;
-                corner_finish_time = System.currentTimeMillis() + CORNER_TIMEOUT;
-                forward_finish_time = System.currentTimeMillis() + FORWARD_TIMEOUT;
+                reverse_finish_time = now + REVERSE_TIMEOUT;
+                corner_finish_time = now + CORNER_TIMEOUT;
+                forward_finish_time = now + FORWARD_TIMEOUT;
                 rightCorner();
                 corneringRight = true;
                 return "right corner";
@@ -272,27 +291,38 @@ public class IRDaemon {
 // Housekeeping 
     /*---------------------*/
     public void initRecents() {
-        for (int i = 0; i < SAMPLE_COUNT; i++) {
+        for (int i = 0; i < recentThetas.capacity(); i++) {
             storeTheta(0);
             storeTarget(0);
             storeDistance(0);
         }
-        for (int i = 0; i < recentHalls.length; i++) {
+        for (int i = 0; i < recentHalls.capacity(); i++) {
             storeHall(DEFAULT_HALL_SIZE);
         }
 
     }
 
+    //Number of samples the theta, hall, distance and target averages are taken over (SAMPLE_COUNT to start)
+    public void setWindowLength(int samples) {
+        recentThetas.resize(samples);
+        recentTargets.resize(samples);
+        recentHalls.resize(samples);
+        recentDists.resize(samples);
+        avgTheta = recentThetas.getMean();
+        avgTarget = recentTargets.getMean();
+        avgHall = recentHalls.getMean();
+        sdHall = recentHalls.getStDev();
+        avgDist = recentDists.getMean();
+        updateMiddle();
+    }
+
+    public int getWindowLength() {
+        return recentThetas.capacity();
+    }
+
     public void storeTarget(double new_theta) {
-        double[] tempTargets = recentTargets;
-        for (int i = 0; i < recentTargets.length; i++) {
-            if (i == 0) {
-                recentTargets[i] = new_theta;
-            } else {
-                recentTargets[i] = tempTargets[i - 1];
-            }
-        }
-        avgTarget = average(recentTargets);
+        recentTargets.add(new_theta);
+        avgTarget = recentTargets.getMean();
 
     }
 
@@ -315,8 +345,7 @@ public class IRDaemon {
     }
 
     private void storeTheta(double new_theta) {
-        double[] tempThetas = recentThetas;
-        double oldAvg = average(tempThetas);
+        double oldAvg = recentThetas.getMean();
         double maxTheta = oldAvg + MAX_THETA_CHANGE;
         double minTheta = oldAvg - MAX_THETA_CHANGE;
 
@@ -329,26 +358,14 @@ public class IRDaemon {
 
         }
 
-        for (int i = 0; i < recentThetas.length; i++) {
-            if (i == 0) {
-                recentThetas[i] = new_theta;
-            } else {
-                recentThetas[i] = tempThetas[i - 1];
-            }
-        }
-        avgTheta = average(recentThetas);
+        recentThetas.add(new_theta);
+        avgTheta = recentThetas.getMean();
     }
 
     private void storeHall(double new_hall) {
-        double[] tempHalls = recentHalls;
-        for (int i = 0; i < recentHalls.length; i++) {
-            if (i == 0) {
-                recentHalls[i] = new_hall;
-            } else {
-                recentHalls[i] = tempHalls[i - 1];
-            }
-        }
-        avgHall = average(recentHalls);
+        recentHalls.add(new_hall);
+        avgHall = recentHalls.getMean();
+        sdHall = recentHalls.getStDev();
         updateMiddle();
     }
 
@@ -496,12 +513,10 @@ public class IRDaemon {
     // Static Calculations
     /*---------------------*/
     public static double stDev(double[] data) {
-        double diff = 0.0;
-        double sum = 0.0;
         double sdSum = 0.0;
         double avg = average(data);
         for (int i = 0; i < data.length; i++) {
-            diff += (data[i] - avg);
+            double diff = data[i] - avg;
             sdSum += (diff * diff);
         }
         return (Math.sqrt(sdSum / data.length));
@@ -524,16 +539,14 @@ public class IRDaemon {
         return (18.67 / old_distance_value) - 0.167;
     }
 
-    //3rd-order polynomial approximation of volts -> centimeter conversion for analog IR readings
-    // Contains magic numbers, don't go changin' them willy-nilly!
+    //Volts -> centimeters for analog IR readings, through distanceTable
     public static double getDistance(double volts) {
-        double oldVal = 18.67 / (volts + 0.167); // Old method!
-        double newVal = 16.2537 * Math.pow(volts, 4)
-                - 129.893 * Math.pow(volts, 3)
-                + 382.268 * Math.pow(volts, 2)
-                - 512.611 * volts + 306.439;
-        //System.out.println("Old distance: " + oldVal + ", new distance: " + newVal);
-        return newVal; // convert to inches because we suck
+        return distanceTable.lookup(volts);
+    }
+
+    //Replaces the table getDistance uses, e.g. with one from a calibration file
+    public static void setDistanceTable(DistanceTable table) {
+        distanceTable = table;
     }
 
     private static double toDegrees(double thetaRad) {
@@ -578,34 +591,16 @@ public class IRDaemon {
         return calcTurn(set_theta, current_theta);
     }
 
+    //recentDists holds distances from one wall, negative for the left. When the
+    //car switches walls the whole window is re-expressed from the new one.
     private void storeDistance(double new_dist) {
-        double[] tempDists = recentDists;
-        if (new_dist < 0) { // new dist is a left value
-            for (int i = 0; i < recentDists.length; i++) {
-                if (i == 0) {
-                    recentDists[i] = new_dist;
-                } else {
-                    if (tempDists[i - 1] < 0) { // old dist is a left value
-                        recentDists[i] = tempDists[i - 1]; // add as next element 
-                    } else {
-                        recentDists[i] = -(avgHall - tempDists[i - 1]);
-                    }
-                }
-            }
-        } else {
-            for (int i = 0; i < recentDists.length; i++) {
-                if (i == 0) {
-                    recentDists[i] = new_dist;
-                } else {
-                    if (tempDists[i - 1] < 0) {
-                        recentDists[i] = (avgHall + tempDists[i - 1]);
-                    } else {
-                        recentDists[i] = tempDists[i - 1];
-                    }
-                }
-            }
+        boolean left = new_dist < 0;
+        if (left != recentDistsLeft) {
+            recentDists.shift(left ? -avgHall : avgHall);
+            recentDistsLeft = left;
         }
-        avgDist = average(recentDists);
+        recentDists.add(new_dist);
+        avgDist = recentDists.getMean();
     }
 
     private double calcHall(double left_distance, double right_distance) {
@@ -836,17 +831,18 @@ public class IRDaemon {
 
     }
 
-    private boolean isTooDifferent(double currentValue, double[] recentValues) {
-        double sd = stDev(recentValues);
+    private boolean isTooDifferent(double currentValue, RunningWindow recentValues) {
+        double sd = recentValues.getStDev();
+        double avg = recentValues.getMean();
         if (sd == 0) {
-            sd = average(recentValues) / 4; // in case the arrays have dummy values!
+            sd = avg / 4; // in case the arrays have dummy values!
         }
 
-        if (currentValue > (average(recentValues) + sd * 2) || currentValue < (average(recentValues) - sd * 2)) {
+        if (currentValue > (avg + sd * 2) || currentValue < (avg - sd * 2)) {
             return true;
         } else {
             return false;
         }
     }
 }
-
+
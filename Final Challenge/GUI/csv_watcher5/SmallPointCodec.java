@@ -0,0 +1,180 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The one place SmallPoint is turned into bytes and back. Copy of the codec
+ * in the car and host sources (EC544.main), without the ByteBuffer and batch
+ * frame methods. The sketch only needs the "booleans" column handling.
+ *
+ * <pre>
+ * version 2, 16 bytes:
+ *   0  TAG_V2 (0xA2)
+ *   1  flags, one bit per SmallPoint boolean (FLAG_BITS)
+ *   2  LF, RF, LR, RR in cm (one unsigned byte each, clamped to 0..255)
+ *   6  setTurn / 10, setSpeed / 10 (one unsigned byte each)
+ *   8  time, ms since epoch (double)
+ *
+ * legacy (version 1), 15 bytes, still accepted from older cars:
+ *   0  0xC0 | flags
+ *   1  LF, RF, LR, RR, setTurn / 10, setSpeed / 10 as above
+ *   7  time (double)
+ * </pre>
+ *
+ * The tag is below 0xC0 so a version 2 packet can never be taken for a
+ * legacy one. Flags use the bits the car has always sent (isColliding in
+ * bit 0); the old host decoder read them in reverse.
+ *
+ * The CSV and TelemetryLog "booleans" column is 0xC0 | flags. Columns written
+ * before this codec hold 191 - flags and are still read correctly.
+ */
+public final class SmallPointCodec {
+
+    public static final int TAG_V2 = 0xA2;
+    public static final int LEGACY_MARK = 0xC0;
+    public static final int LENGTH = 16;
+    public static final int LEGACY_LENGTH = 15;
+    // Bit for each SmallPoint boolean, indexed as in SmallPoint.getFlag
+    private static final int[] FLAG_BITS = {0x01, 0x02, 0x04, 0x08, 0x10, 0x20};
+    public static final int FLAG_COUNT = FLAG_BITS.length;
+    private static final int FLAG_MASK = 0x3F;
+
+    private SmallPointCodec() {
+    }
+
+    public static int flags(SmallPoint sp) {
+        int flags = 0;
+        for (int i = 0; i < FLAG_COUNT; i++) {
+            if (sp.getFlag(i)) {
+                flags |= FLAG_BITS[i];
+            }
+        }
+        return flags;
+    }
+
+    public static void setFlags(SmallPoint sp, int flags) {
+        for (int i = 0; i < FLAG_COUNT; i++) {
+            sp.setFlag(i, (flags & FLAG_BITS[i]) != 0);
+        }
+    }
+
+    //True if firstByte starts a SmallPoint packet of either version
+    public static boolean isSmallPoint(int firstByte) {
+        firstByte &= 0xFF;
+        return firstByte == TAG_V2 || (firstByte & LEGACY_MARK) == LEGACY_MARK;
+    }
+
+    //Value of the "booleans" column in CSV files and TelemetryLog records
+    public static int booleansColumn(SmallPoint sp) {
+        return LEGACY_MARK | flags(sp);
+    }
+
+    public static void setBooleansColumn(SmallPoint sp, int column) {
+        if (column >= LEGACY_MARK) {
+            setFlags(sp, column & FLAG_MASK);
+        } else if (column >= 128) {
+            // written through the old convertUnsignedInt, which mapped 0xC0 | flags to 191 - flags
+            setFlags(sp, (191 - column) & FLAG_MASK);
+        } else {
+            setFlags(sp, column & FLAG_MASK);
+        }
+    }
+
+    private static int toByte(int value) {
+        if (value > 255) {
+            return 255;
+        } else if (value < 0) {
+            return 0;
+        }
+        return value;
+    }
+
+    //Writes sp at buf[offset]; returns the number of bytes written (LENGTH)
+    public static int encode(SmallPoint sp, byte[] buf, int offset) {
+        buf[offset] = (byte) TAG_V2;
+        buf[offset + 1] = (byte) flags(sp);
+        buf[offset + 2] = (byte) toByte(sp.leftFront);
+        buf[offset + 3] = (byte) toByte(sp.rightFront);
+        buf[offset + 4] = (byte) toByte(sp.leftRear);
+        buf[offset + 5] = (byte) toByte(sp.rightRear);
+        buf[offset + 6] = (byte) toByte(sp.setTurn / 10);
+        buf[offset + 7] = (byte) toByte(sp.setSpeed / 10);
+        long bits = Double.doubleToLongBits(sp.time);
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + 8 + i] = (byte) bits;
+            bits >>>= 8;
+        }
+        return LENGTH;
+    }
+
+    //Same bytes as encode(sp, buf, offset), straight into a Datagram
+    public static void encode(SmallPoint sp, DataOutput out) throws IOException {
+        out.writeByte(TAG_V2);
+        out.writeByte(flags(sp));
+        out.writeByte(toByte(sp.leftFront));
+        out.writeByte(toByte(sp.rightFront));
+        out.writeByte(toByte(sp.leftRear));
+        out.writeByte(toByte(sp.rightRear));
+        out.writeByte(toByte(sp.setTurn / 10));
+        out.writeByte(toByte(sp.setSpeed / 10));
+        out.writeDouble(sp.time);
+    }
+
+    //Fills sp from length bytes at buf[offset]. Returns false if they are not a SmallPoint.
+    public static boolean decode(byte[] buf, int offset, int length, SmallPoint sp) {
+        if (length < 1) {
+            return false;
+        }
+        int first = buf[offset] & 0xFF;
+        int body;
+        if (first == TAG_V2 && length >= LENGTH) {
+            setFlags(sp, buf[offset + 1]);
+            body = offset + 2;
+        } else if ((first & LEGACY_MARK) == LEGACY_MARK && length >= LEGACY_LENGTH) {
+            setFlags(sp, first & FLAG_MASK);
+            body = offset + 1;
+        } else {
+            return false;
+        }
+        sp.leftFront = buf[body] & 0xFF;
+        sp.rightFront = buf[body + 1] & 0xFF;
+        sp.leftRear = buf[body + 2] & 0xFF;
+        sp.rightRear = buf[body + 3] & 0xFF;
+        sp.setTurn = (buf[body + 4] & 0xFF) * 10;
+        sp.setSpeed = (buf[body + 5] & 0xFF) * 10;
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (buf[body + 6 + i] & 0xFF);
+        }
+        sp.time = Double.longBitsToDouble(bits);
+        return true;
+    }
+
+    /**
+     * Reads the rest of a point whose first byte has already been read from
+     * in, as the receive loop does to tell packet types apart. Returns false
+     * if first does not start a SmallPoint; nothing more is read then.
+     */
+    public static boolean decode(int first, DataInput in, SmallPoint sp) throws IOException {
+        first &= 0xFF;
+        if (first == TAG_V2) {
+            setFlags(sp, in.readUnsignedByte());
+        } else if ((first & LEGACY_MARK) == LEGACY_MARK) {
+            setFlags(sp, first & FLAG_MASK);
+        } else {
+            return false;
+        }
+        sp.leftFront = in.readUnsignedByte();
+        sp.rightFront = in.readUnsignedByte();
+        sp.leftRear = in.readUnsignedByte();
+        sp.rightRear = in.readUnsignedByte();
+        sp.setTurn = in.readUnsignedByte() * 10;
+        sp.setSpeed = in.readUnsignedByte() * 10;
+        sp.time = in.readDouble();
+        return true;
+    }
+}
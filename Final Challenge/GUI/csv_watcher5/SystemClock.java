@@ -0,0 +1,24 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+/**
+ * Wall clock time; what the car runs on.
+ *
+ * Copy of EC544.main.SystemClock in the car sources.
+ */
+public class SystemClock implements Clock {
+
+    public static final SystemClock INSTANCE = new SystemClock();
+
+    private SystemClock() {
+    }
+
+    public long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    public void sleep(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+}
@@ -5,11 +5,16 @@ import java.io.FileWriter;
  */
 /*--Instance variables--*/
 /* Car Logic  */
-IRDaemon IR_DAEMON = new IRDaemon();
+// Replays run the controller at the recorded time of each point, not the wall clock
+ReplayClock replayClock = new ReplayClock();
+IRDaemon IR_DAEMON = new IRDaemon(replayClock);
 Car theCar;
 
 /* Data Storage Elements */
 SmallPoint sp;
+String logFile = "calibration/four_laps_4th_floor - crop.csv";
+//String logFile = "sunday-corners.csv";
+//String logFile = "../live.csv";
 BufferedReader reader;
 CommandWriter cmd;
 ArrayList<CarPoint> allPoints = new ArrayList<CarPoint>();
@@ -73,9 +78,6 @@ boolean waitForSignal = true;
 int speedSetting = 1500;
 
 void setup() {
-  reader = createReader("calibration/four_laps_4th_floor - crop.csv");
-  //reader = createReader("sunday-corners.csv");
-  //reader = createReader("../live.csv");   
   cmd = new CommandWriter("../../commands.csv");
 
   //size(600,600);
@@ -106,7 +108,7 @@ void setup() {
   f = createFont("Arial", fontSize, true);
 
   background(255);
-  checkData();
+  loadLog(logFile);
   if (allPoints.size() >0) {
     if (live == true) {
       currentPoint = allPoints.get(allPoints.size() - 1);
@@ -277,6 +279,7 @@ void draw() {
 }
 
 CarPoint processNewPoint(CarPoint oldPoint) {
+  replayClock.setTime(oldPoint.time);
   IR_DAEMON.setReads((int) oldPoint.LF, (int) oldPoint.RF, (int) oldPoint.LR, (int) oldPoint.RR);
   IR_DAEMON.pickDirection();
   return IR_DAEMON.getCarpoint((int) oldPoint.turn, (int) oldPoint.velocity, false, false, oldPoint.time);
@@ -284,6 +287,7 @@ CarPoint processNewPoint(CarPoint oldPoint) {
 
 CarPoint processNewPoint(SmallPoint sp) {
   IR_DAEMON.updateReads(IR_DAEMON.getOldVolts((double) sp.leftFront), IR_DAEMON.getOldVolts((double) sp.rightFront), IR_DAEMON.getOldVolts((double) sp.leftRear), IR_DAEMON.getOldVolts((double) sp.rightRear));
+  replayClock.follow(sp);
   IR_DAEMON.setReads(sp.leftFront, sp.rightFront, sp.leftRear, sp.rightRear);
   IR_DAEMON.pickDirection();
   return IR_DAEMON.getCarpoint((int) sp.setTurn, (int) sp.setSpeed, false, false, sp.time);
@@ -458,6 +462,37 @@ CarPoint processLineToCarpoint(String[] currentLine) {
   return cp;
 }
 
+//Loads all of path at once with CsvColumnParser, then leaves reader after the
+//last row it took so checkData picks up rows appended to a live log
+void loadLog(String path) {
+  String file = sketchPath(path);
+  if (!new File(file).exists()) {
+    file = dataPath(path);
+  }
+  CsvColumnParser parser = new CsvColumnParser(CsvColumnParser.SMALL_POINT);
+  try {
+    parser.parse(file);
+  } 
+  catch (IOException e) {
+    System.out.println("Could not load " + file + ": " + e);
+  }
+  for (int i = 0; i < parser.getRowCount(); i++) {
+    SmallPoint current = new SmallPoint(0, 0, 0, 0, 0, 0);
+    parser.getPoint(i, current);
+    allSmallPoints.add(current);
+    allPoints.add(processNewPoint(current));
+  }
+  if (parser.getMalformedCount() > 0) {
+    System.out.println("Skipped " + parser.getMalformedCount() + " malformed lines in " + path);
+  }
+  reader = createReader(file);
+  try {
+    reader.skip(parser.getEndOffset());
+  } 
+  catch (IOException e) {
+  }
+}
+
 void checkData() {
   String thisLine;
   String output;
@@ -0,0 +1,164 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * Group-commit front end for one or more CSVWriters.
+ *
+ * Lines are appended to a reusable char buffer and written to every sink in
+ * one write/flush per commit, instead of one write/flush per line per file.
+ * A batch is due once it holds flushBytes characters or its oldest line is
+ * flushMillis old, so readers of the files never see data staler than
+ * flushMillis plus one disk write. Setting either threshold to 0 commits
+ * every line, which is the old unbatched behaviour.
+ *
+ * Not thread safe; owned by the writer thread.
+ */
+public class CSVBatcher {
+
+    private static final String NEWLINE = System.getProperty("line.separator");
+    private final CSVWriter[] sinks;
+    private final int flushBytes;
+    private final long flushMillis;
+    private char[] buffer;
+    private int length = 0;
+    private int lines = 0;
+    private long firstLineTime = 0;
+    private long commits = 0;
+    private long committedLines = 0;
+
+    public CSVBatcher(CSVWriter[] sinks, int flushBytes, long flushMillis) {
+        this.sinks = sinks;
+        this.flushBytes = flushBytes;
+        this.flushMillis = flushMillis;
+        buffer = new char[Math.max(flushBytes, 256) * 2];
+    }
+
+    public void addLine(String line) {
+        if (length == 0) {
+            firstLineTime = System.currentTimeMillis();
+        }
+        append(line);
+        append(NEWLINE);
+        lines++;
+    }
+
+    /**
+     * Formats sp straight into the batch buffer in the SmallPoint.headerRow()
+     * layout, without building a String. Whole-millisecond timestamps are
+     * written as plain digits (e.g. 1386624905400), which every reader parses
+     * the same as the old 1.3866249054E12 form.
+     */
+    public void addPoint(SmallPoint sp) {
+        if (length == 0) {
+            firstLineTime = System.currentTimeMillis();
+        }
+        ensureRoom(128 + NEWLINE.length());
+        long wholeTime = (long) sp.time;
+        if (wholeTime == sp.time) {
+            appendLong(wholeTime);
+        } else {
+            append(Double.toString(sp.time));
+        }
+        buffer[length++] = ',';
+        appendLong(sp.leftFront);
+        buffer[length++] = ',';
+        appendLong(sp.rightFront);
+        buffer[length++] = ',';
+        appendLong(sp.leftRear);
+        buffer[length++] = ',';
+        appendLong(sp.rightRear);
+        buffer[length++] = ',';
+        appendLong(sp.setTurn);
+        buffer[length++] = ',';
+        appendLong(sp.setSpeed);
+        buffer[length++] = ',';
+        appendLong(SmallPointCodec.booleansColumn(sp));
+        append(NEWLINE);
+        lines++;
+    }
+
+    private void ensureRoom(int extra) {
+        int needed = length + extra;
+        if (needed > buffer.length) {
+            char[] bigger = new char[Math.max(needed, buffer.length * 2)];
+            System.arraycopy(buffer, 0, bigger, 0, length);
+            buffer = bigger;
+        }
+    }
+
+    private void append(String text) {
+        ensureRoom(text.length());
+        text.getChars(0, text.length(), buffer, length);
+        length += text.length();
+    }
+
+    private void appendLong(long value) {
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            buffer[length++] = (char) ('0' + (value % 10));
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            char swap = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = swap;
+        }
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public boolean isDue() {
+        if (length == 0) {
+            return false;
+        }
+        return length >= flushBytes || System.currentTimeMillis() - firstLineTime >= flushMillis;
+    }
+
+    //How long the writer may wait for more lines before this batch has to go out
+    public long millisUntilDue() {
+        if (length == 0) {
+            return flushMillis;
+        }
+        long due = firstLineTime + flushMillis - System.currentTimeMillis();
+        if (due < 0) {
+            return 0;
+        }
+        return due;
+    }
+
+    //Writes the pending batch to every sink, one write and flush each
+    public void commit() {
+        if (length == 0) {
+            return;
+        }
+        for (int i = 0; i < sinks.length; i++) {
+            sinks[i].writeBlock(buffer, 0, length);
+        }
+        commits++;
+        committedLines += lines;
+        length = 0;
+        lines = 0;
+    }
+
+    public String statusReport() {
+        double perCommit = 0;
+        if (commits > 0) {
+            perCommit = (double) committedLines / commits;
+        }
+        long skipped = 0;
+        for (int i = 0; i < sinks.length; i++) {
+            skipped += sinks[i].getSkippedWrites();
+        }
+        return committedLines + " lines in " + commits + " commits (" + perCommit + " lines/commit), "
+                + skipped + " writes skipped while a file was unavailable";
+    }
+}
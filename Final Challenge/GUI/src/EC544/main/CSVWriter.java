@@ -5,8 +5,10 @@
 package EC544.main;
 
 import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.*;
 import java.sql.Timestamp;
 
@@ -16,19 +18,30 @@ import java.sql.Timestamp;
  */
 public class CSVWriter {
     
-    private FileWriter dataOut;
+    private static final int RETRY_DELAY = 3 * 1000;
+    private FileOutputStream fileOut; // under dataOut; writeBlock writes to it directly
+    private Writer dataOut;
+    private byte[] blockBytes = new byte[0];
     private String filePath;
+    private long retryAt = 0;
+    private long skippedWrites = 0;
     
     public CSVWriter(String new_path)
     { try{
         dataOut = null;
         filePath = new_path;
-        dataOut = new FileWriter(filePath, true);
+        open(true);
     }catch (IOException ex){
             System.out.println("IO Exception " + ex + " in CSVWriter()!");
         }
     }
     
+    //Opens filePath, appending to it or from the start, as a FileWriter would
+    private void open(boolean append) throws IOException {
+        fileOut = new FileOutputStream(filePath, append);
+        dataOut = new OutputStreamWriter(fileOut);
+    }
+
     public void setFilePath(String new_path)
     {
         filePath = new_path;
@@ -40,11 +53,11 @@ public class CSVWriter {
     
     public void initCSV(String header){
         try{
-        dataOut = new FileWriter(filePath);
+        open(false);
         dataOut.write(header + System.getProperty("line.separator"));
         dataOut.flush();
         dataOut.close();
-        dataOut = new FileWriter(filePath, true);
+        open(true);
         }
         catch (IOException ex){
             System.out.println("IO Exception " + ex + " in initCSV!");
@@ -52,29 +65,95 @@ public class CSVWriter {
     }
 
     public void addCSVLine(String line) {
-        
-        int waitDelay = 3 * 1000;
-
+        if (!isOpen()) {
+            return;
+        }
         try {
             dataOut.write(line + System.getProperty("line.separator"));
             dataOut.flush();
         } catch (IOException ex) {
-            System.out.println("Error accessing output file:" + filePath);
-            for (int i = 0; i < 3; i++) {
-                if (dataOut == null) {
-                    try {
-                        Thread.sleep(waitDelay);
-                    } catch (InterruptedException e) {
-                        System.out.println("Oh crud, we've been intercepted!");
-                    }
-                    try {
-                        dataOut = new FileWriter(filePath, true);
-                    } catch (IOException e2) {
-                        System.out.println("Still unable to access the file. Wating " + waitDelay + "milliseconds, then trying " + (2 - i) + " more times...");
-                    }
+            failed(ex);
+        }
+    }
+
+    /**
+     * Writes a block of already-terminated lines with a single write and flush.
+     * The writer wraps every block it encodes in a new CharBuffer, so a block
+     * of plain ASCII, which every charset a host runs with encodes as itself,
+     * is copied into a reused byte array and written under it instead; the
+     * writer is flushed after every write, so nothing of it is pending.
+     */
+    public void writeBlock(char[] block, int offset, int count) {
+        if (!isOpen()) {
+            return;
+        }
+        try {
+            if (blockBytes.length < count) {
+                blockBytes = new byte[Math.max(count, blockBytes.length * 2)];
+            }
+            for (int i = 0; i < count; i++) {
+                char c = block[offset + i];
+                if (c >= 0x80) {
+                    dataOut.write(block, offset, count);
+                    dataOut.flush();
+                    return;
                 }
+                blockBytes[i] = (byte) c;
+            }
+            fileOut.write(blockBytes, 0, count);
+        } catch (IOException ex) {
+            failed(ex);
+        }
+    }
+
+    //Closes the file; a later write opens it again
+    public void close() {
+        if (dataOut == null) {
+            return;
+        }
+        try {
+            dataOut.close();
+        } catch (IOException ex) {
+            System.out.println("IO Exception " + ex + " closing " + filePath);
+        }
+        dataOut = null;
+    }
+
+    //Writes made while the file could not be opened; those lines are lost
+    public long getSkippedWrites() {
+        return skippedWrites;
+    }
+
+    //Reopens a failed file at most once every RETRY_DELAY. Never sleeps, so a missing or
+    //locked file costs the writer thread the lines written meanwhile, not its time.
+    private boolean isOpen() {
+        if (dataOut != null) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= retryAt) {
+            try {
+                open(true);
+                System.out.println("Reopened output file:" + filePath + " after " + skippedWrites + " skipped writes");
+                return true;
+            } catch (IOException ex) {
+                System.out.println("Still unable to access " + filePath + ", trying again in " + RETRY_DELAY + " milliseconds");
+                retryAt = now + RETRY_DELAY;
             }
         }
+        skippedWrites++;
+        return false;
+    }
+
+    private void failed(IOException ex) {
+        System.out.println("Error accessing output file:" + filePath + " (" + ex + ")");
+        try {
+            dataOut.close();
+        } catch (IOException closeEx) {
+        }
+        dataOut = null;
+        retryAt = System.currentTimeMillis() + RETRY_DELAY;
+        skippedWrites++;
     }
 
     public void StringsToCSVLine(ArrayList<String> newLine) {
@@ -102,7 +181,7 @@ public class CSVWriter {
         int waitDelay = 3 * 1000;
 
         try {
-            dataOut = new FileWriter(filePath);
+            open(false);
             
             for (int i = 0; i < lines.size(); i++) {
                 StringsToCSVLine(lines.get(i));
@@ -118,7 +197,7 @@ public class CSVWriter {
                         System.out.println("Oh crud, we've been intercepted!");
                     }
                     try {
-                        dataOut = new FileWriter(filePath);
+                        open(false);
                     } catch (IOException e2) {
                         System.out.println("Still unable to access the file. Wating " + waitDelay + "milliseconds, then trying " + (2 - i) + "more times...");
                     }
@@ -29,6 +29,7 @@ import com.sun.spot.peripheral.radio.RadioPacketDispatcher;
 import com.sun.spot.peripheral.ota.OTACommandServer;
 import com.sun.spot.util.IEEEAddress;
 import javax.microedition.io.*;
+import java.awt.GraphicsEnvironment;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
@@ -54,6 +55,41 @@ public class CarDataReceiver {
     private static final String OUTPUT_LOG = "log_processed.csv";
     private static final String KEY_FILE = "keys.txt";
     private static final String COMMAND_FILE = "commands.csv";
+    // Slots per car per receive port, one point each: about 50 s of telemetry at the car's 20 samples/s (longer when it
+    // sends sparse frames), far more than a writer stalled on the disk needs to catch up from.
+    private static final int RING_CAPACITY = 1024;
+    // What happens to a car's points once its ring is full: block, drop_oldest, drop_newest or sample (see OverloadPolicy).
+    // Override with -Dec544.overload; -Dec544.sampleEvery sets the 1-in-N rate for sample.
+    private static final OverloadPolicy OVERLOAD_POLICY = OverloadPolicy.fromName(System.getProperty("ec544.overload", "drop_oldest"));
+    private static final int SAMPLE_EVERY = Integer.getInteger("ec544.sampleEvery", 4).intValue();
+    // Telemetry is spread over ports HOST_PORT .. HOST_PORT + RECEIVE_PORT_COUNT - 1, one receive thread each.
+    // Must match BROADCAST_PORT_COUNT on the car. Override with -Dec544.receivePorts.
+    private static final int RECEIVE_PORT_COUNT = Integer.getInteger("ec544.receivePorts", 1).intValue();
+    // Longest a point is held back waiting for an older one from another port
+    private static final int MERGE_WINDOW_MILLIS = Integer.getInteger("ec544.mergeWindowMillis", 50).intValue();
+    private static final int STATS_INTERVAL = 30 * 1000;
+    // A jump in a car's own timestamps larger than this is reported as a gap, override with -Dec544.gapMillis
+    private static final int GAP_MILLIS = Integer.getInteger("ec544.gapMillis", 1000).intValue();
+    // How often each car takes a sample (SAMPLE_TIME in MainCarController), used to infer lost samples from cars
+    // that send every sample. Use 200 for cars that still send one point every fourth sample. Cars sending
+    // sparse frames (TelemetryPolicy) number them, and losses are counted from the numbers instead.
+    private static final int SAMPLE_PERIOD_MILLIS = Integer.getInteger("ec544.samplePeriodMillis", 50).intValue();
+    // How often each car's link statistics are snapshotted into its session log
+    private static final int LINK_SNAPSHOT_MILLIS = Integer.getInteger("ec544.linkSnapshotMillis", 10000).intValue();
+    // Session logs are split into segments of this many 16 byte records (1 MB); closed segments are gzipped
+    // in the background. Override with -Dec544.segmentRecords.
+    private static final int SEGMENT_RECORDS = Integer.getInteger("ec544.segmentRecords", 65536).intValue();
+    // Group commit thresholds for each car's live CSVs (its session log publishes its record count on the same commits), override with -Dec544.flushBytes / -Dec544.flushMillis.
+    // The live viewer sees data at most FLUSH_MILLIS (plus one disk write) late; 0 commits every line.
+    private static final int FLUSH_BYTES = Integer.getInteger("ec544.flushBytes", 4096).intValue();
+    private static final int FLUSH_MILLIS = Integer.getInteger("ec544.flushMillis", 50).intValue();
+    // Commands are also accepted as "command,value" lines on localhost:COMMAND_PORT (0 disables), override with -Dec544.commandPort.
+    private static final int COMMAND_PORT = Integer.getInteger("ec544.commandPort", 5440).intValue();
+    // Least time between two command radiograms; commands arriving in between are coalesced into the next one.
+    // Override with -Dec544.commandGapMillis.
+    private static final int COMMAND_GAP_MILLIS = Integer.getInteger("ec544.commandGapMillis", 20).intValue();
+    // Live telemetry for index.html is served on http://localhost:HTTP_PORT/ (0 disables), override with -Dec544.httpPort
+    private static final int HTTP_PORT = Integer.getInteger("ec544.httpPort", 8080).intValue();
     private java.util.Date startDate = new java.util.Date();
     private Timestamp startTime = new Timestamp(startDate.getTime());
     private JTextArea status = new JTextArea();
@@ -61,11 +97,11 @@ public class CarDataReceiver {
     private ArrayList<Datapacket> data_array = new ArrayList<Datapacket>();
     private ArrayList<ArrayList<String>> data_rows = new ArrayList<ArrayList<String>>();
     private ArrayList<String> header_names = new ArrayList<String>();
-    private String logFile_output = ("./logs/" + startTime.toString().replaceAll("[^a-zA-Z0-9]+", "") + " log.csv");
-    private CSVWriter logger = new CSVWriter(logFile_output);
+    // Session logs are binary, one per car, see TelemetryLog; convert with TelemetryLogConverter toCsv
+    private String logFile_prefix = ("./logs/" + startTime.toString().replaceAll("[^a-zA-Z0-9]+", "") + " log ");
     private CSVWriter out = new CSVWriter(OUTPUT_FILE);
     private CSVWriter commandInit = new CSVWriter(COMMAND_FILE);
-    private BufferedReader commander;
+    private CommandService commands;
     private HashMap columnIDs = new HashMap();
     private HashMap log_columnIDs = new HashMap();
     private ArrayList<String> log_header_names = new ArrayList<String>();
@@ -73,24 +109,28 @@ public class CarDataReceiver {
     private double tp = 0.0;
     private HashMap temp_scales = new HashMap();
     //private ArrayList<CarPoint> outPoints = new ArrayList<CarPoint>();
-    private ArrayList<SmallPoint> outPoints = new ArrayList<SmallPoint>();
     private Listener listen = new Listener();
-    private int channelIndex;
-    private int RECEIVE_PORT_COUNT = 1;
+    private NodeRegistry nodes;
     Datagram[] allDatagrams = new Datagram[RECEIVE_PORT_COUNT];
-    RadiogramConnection commandConn;
-    RadiogramConnection[] allConnections = new RadiogramConnection[RECEIVE_PORT_COUNT];
-    Datagram commandData;
+    DatagramConnection commandConn;
+    DatagramConnection[] allConnections = new DatagramConnection[RECEIVE_PORT_COUNT];
 
     class Listener implements IPacketQualityListener {
 
+        //Called by the radio for every packet; packets from cars without a NodeStream yet are not counted
         public void notifyPacket(long src, long dest, int rssi, int corr, int lqi, int length) {
-            //System.out.println("Packet received!: " + System.currentTimeMillis());
+            NodeStream node = nodes.find(src);
+            if (node != null) {
+                node.getLinkStats().packet(rssi, corr, lqi);
+            }
         }
     }
     //-----------Set up 
 
     private void setup() {
+        if (GraphicsEnvironment.isHeadless()) {
+            return; // load testing on a machine without a display
+        }
         JFrame fr = new JFrame("Send Data Host App");
         JScrollPane sp = new JScrollPane(status);
         fr.add(sp);
@@ -99,143 +139,44 @@ public class CarDataReceiver {
         fr.setVisible(true);
     }
 
-    private void writeLoop() {
+    //Prints per-car and command stats every STATS_INTERVAL
+    private void statsLoop() {
         while (true) {
-
-            while (outPoints.size() > 0) {
-                //System.out.println("in write loop, " + outPoints.size());
-                //System.out.println("Adding cpoint to CSV");
-                out.addCSVLine(outPoints.get(0).toString());
-                logger.addCSVLine(outPoints.get(0).toString());
-                outPoints.remove(0);
-
-            }
             try {
-                Thread.sleep(10);
-            } catch (InterruptedException e) {
-                System.out.println("Exception" + e + " in writeLoop");
-
+                Thread.sleep(STATS_INTERVAL);
+            } catch (InterruptedException ex) {
+                return;
             }
+            System.out.print("Telemetry: " + nodes.statusReport());
+            System.out.println("Commands: " + commands.statusReport());
         }
     }
 
-    private void readLoop() {
-        try {
-            commandConn = (RadiogramConnection) Connector.open("radiogram://broadcast:" + (SEND_PORT));
-        } catch (IOException ex) {
-            System.out.println("IOException in setting up commandConn!");
-        }
-        while (true) {
-            try {
-                while (commander.ready()) {
-                    String currentLine = "";
-                    System.out.println("reading new command..");
-                    commandData = commandConn.newDatagram(commandConn.getMaximumLength());
-                    commandData.reset();
-                    currentLine = commander.readLine();
-                    String[] commands = currentLine.split(",");
-                    if (commands.length > 0) {
-                        if (!commands[0].equals("command")) {
-                            commandData.writeUTF("command");
-                            System.out.println("Sending command: " + commands[0] + "," + commands[1]);
-                            for (int i = 0; i < commands.length; i++) {
-                                System.out.println("Writing " + i + ": " + commands[i]);
-                                commandData.writeUTF(commands[i]);
-                            }
-                            commandConn.send(commandData);
-                            try {
-                                Thread.sleep(200);
-                            } catch (InterruptedException ex) {
-                                ex.printStackTrace();
-                            }
-                        }
-                    }
-                }
-            } catch (Exception ex) {
-                System.out.println("Exception" + ex + " in readLoop()");
-            }
-        }
-    }
-
-    private SmallPoint toSmallPoint(Datagram dg, int booleans) {
-        SmallPoint sp = null;
-        try {
-            int LF = dg.readUnsignedByte();
-            int RF = dg.readUnsignedByte();
-            int LR = dg.readUnsignedByte();
-            int RR = dg.readUnsignedByte();
-            int setTurn = dg.readUnsignedByte();
-            int setSpeed = dg.readUnsignedByte();
-            double time = dg.readDouble();
-            sp = new SmallPoint(LF, RF, LR, RR, setTurn * 10, setSpeed * 10);
-            sp.time = time;
-            /*System.out.println("Booleans in toSmallPoint: " + booleans);
-             System.out.println("setTurn in toSmallPoint: " + setTurn + ", setTurn * 10: " + setTurn * 10);
-             System.out.println("If it was signed, setTurn would be: " + SmallPoint.toUnsignedInt(setTurn));
-             System.out.println("If it was unsigned, setTurn would be: " + SmallPoint.convertUnsignedInt(setTurn));
-             System.out.println("setSpeed in toSmallPoint: " + setSpeed + ", setSpeed * 10: " + setSpeed * 10);
-             */
-            sp.setBooleans(booleans);
-        } catch (IOException ex) {
-            System.out.println("IOexception " + ex + " in toSmallPoint!");
-        }
-
-        return sp;
-    }
-
-    private CarPoint toCarPoint(Datagram dg) {
-        CarPoint cp = new CarPoint();
-        try {
-            cp.time = dg.readFloat();
-            cp.LF = dg.readFloat();
-            cp.RF = dg.readFloat();
-            cp.LR = dg.readFloat();
-            cp.RR = dg.readFloat();
-            cp.distRight = dg.readFloat();
-            cp.distLeft = dg.readFloat();
-            cp.LT = dg.readFloat();
-            cp.RT = dg.readFloat();
-            cp.thetaRight = dg.readFloat();
-            cp.thetaLeft = dg.readFloat();
-            cp.theta = dg.readFloat();
-            cp.distance = dg.readFloat();
-            cp.turn = dg.readFloat();
-            cp.velocity = dg.readFloat();
-            cp.targetDist = dg.readFloat();
-            cp.startTurn = dg.readFloat();
-            cp.stopTurn = dg.readFloat();
-            cp.targetTheta = dg.readFloat();
-            //System.out.println("Got CP datagram:" );
-            //cp.printPoint();
-        } catch (IOException e) {
-            System.out.println(e);
-            System.out.println("IOException in toCarPoint");
-        }
-
-        return cp;
-    }
-
     //This is for receiving data and draw
     private void run() throws Exception {
-        commander = new BufferedReader(new FileReader(COMMAND_FILE));
-        RadioPacketDispatcher.getInstance().registerPacketQualityListener(listen);
         String headerLine = SmallPoint.headerRow();
         String commandHeader = "command,value";
-        logger.initCSV(headerLine);
+        new File("./logs").mkdirs();
         out.initCSV(headerLine);
         commandInit.initCSV(commandHeader);
-        new Thread() {
-            public void run() {
-                writeLoop();
-            }
-        }.start();
+        nodes = new NodeRegistry(RECEIVE_PORT_COUNT, RING_CAPACITY, OVERLOAD_POLICY, SAMPLE_EVERY, MERGE_WINDOW_MILLIS,
+                FLUSH_BYTES, FLUSH_MILLIS, GAP_MILLIS, SAMPLE_PERIOD_MILLIS, LINK_SNAPSHOT_MILLIS, out, logFile_prefix,
+                SEGMENT_RECORDS);
+        if (HTTP_PORT > 0) {
+            LiveServer live = new LiveServer(HTTP_PORT);
+            nodes.setLiveServer(live);
+            live.start();
+        }
+        if (LoopbackRadio.isRadio()) {
+            RadioPacketDispatcher.getInstance().registerPacketQualityListener(listen);
+        }
 
         //------ This part does not need to modify. dg is the received package.---------//
         try {
             for (int i = 0; i < RECEIVE_PORT_COUNT; i++) {
                 // Open up a server-side broadcast radiogram connection
                 // to listen for sensor readings being sent by different SPOTs
-                allConnections[i] = (RadiogramConnection) Connector.open("radiogram://:" + (HOST_PORT + i));
+                allConnections[i] = LoopbackRadio.open("radiogram://:" + (HOST_PORT + i));
                 allDatagrams[i] = allConnections[i].newDatagram(allConnections[i].getMaximumLength());
             }
 
@@ -244,79 +185,53 @@ public class CarDataReceiver {
             throw e;
         }
 
-        new Thread() {
+        commandConn = LoopbackRadio.open("radiogram://broadcast:" + (SEND_PORT));
+        commands = new CommandService(commandConn, COMMAND_GAP_MILLIS);
+        commands.start();
+        commands.tailFile(COMMAND_FILE);
+        if (COMMAND_PORT > 0) {
+            commands.listen(COMMAND_PORT);
+        }
+        new Thread("stats") {
             public void run() {
-                readLoop();
+                statsLoop();
             }
         }.start();
 
-        status.append("Listening on port " + HOST_PORT + "...\n");
+        status.append("Listening on ports " + HOST_PORT + " to " + (HOST_PORT + RECEIVE_PORT_COUNT - 1) + "...\n");
         //----------------------------------------------//
         // Main data collection loop
         //This part is worth attention
         //Hashtable<String, Data> Inf = new Hashtable<String, Data>();
 
         for (int j = 0; j < RECEIVE_PORT_COUNT; j++) {
-            channelIndex = j;
-            System.out.println("Channel index:" + j);
-            new Thread() {
+            final int port = j;
+            new Thread("receive-" + (HOST_PORT + port)) {
                 public void run() {
-                    System.out.println("Started receive loop: " + channelIndex);
-                    receiveLoop(allConnections[channelIndex], allDatagrams[channelIndex], channelIndex);
-
+                    receiveLoop(allConnections[port], allDatagrams[port], port);
                 }
             }.start();
-            Thread.sleep(50);
         }
 
         System.out.println("Test after receive loops");
 
     }
 
-    private void receiveLoop(RadiogramConnection rc, Datagram dg, int number) {
+    //Steady state allocates nothing (ReceiveAllocationCheck measures it): dg is this port's datagram, reset
+    //before every receive, and the PacketDecoder decodes into scratch objects the sending car's stream copies from.
+    private void receiveLoop(DatagramConnection rc, Datagram dg, int number) {
         System.out.println("Started receive loop" + number);
+        PacketDecoder decoder = new PacketDecoder(nodes);
         while (true) {
             try {
                 //System.out.println("Receive loop number: " + number);
                 //System.out.println("Repeating while loop took: " + (System.currentTimeMillis() - tp) + " milliseconds.");
                 // Read sensor sample received over the radio
-                dg = rc.newDatagram(rc.getMaximumLength());
-                double startPoint = System.currentTimeMillis();
+                dg.reset();
                 rc.receive(dg);
                 //System.out.println("Got datagram in loop: " + number);
-                double timepoint = System.currentTimeMillis();
-                String node = dg.getAddress(); // read address of the Spot that sent the datagram
-                //String firstLine = "";
-                int firstByte = 0;
-                if (dg.getLength() != 0) {
-                    //firstLine = dg.readUTF();
-                    firstByte = dg.readUnsignedByte();
-                    //System.out.println("Firstbyte: " + firstByte);
-                } else {
-                    System.out.println("Datagram length = 0!");
-                }
-
-                /*if (firstLine.equals("CarPoint")) {
-                 CarPoint cp = toCarPoint(dg);
-                 //logger.addCSVLine(cp.toString());
-
-                 outPoints.add(cp);
-
-                 }*/
-
-                if (SmallPoint.checkBooleans(firstByte)) {
-                    SmallPoint sp = toSmallPoint(dg, firstByte);
-                    outPoints.add(sp);
-                    //sp.printPoint();
-                } else {
-                    System.out.println("Received packet of unknown type!");
-                }
-
-
-                //System.out.println("Got carpoint, " + outPoints.size() + "in queue:  "+ System.currentTimeMillis());
-                //System.out.println("Receiving took: " + (System.currentTimeMillis() - tp) + " milliseconds, Processing took: " + (System.currentTimeMillis() - timepoint) + "milliseconds.");
-                //System.out.println("Datagram received at" + timepoint + ", Datagram size: " + dg.getLength());
-                tp = System.currentTimeMillis();
+                decoder.dispatch(dg, number);
+                //System.out.println("Datagram size: " + dg.getLength());
 
             } catch (Exception e) {
                 System.err.println("Caught " + e + " while reading sensor samples.");
@@ -333,7 +248,9 @@ public class CarDataReceiver {
      */
     public static void main(String[] args) throws Exception {
         // register the application's name with the OTA Command server & start OTA running
-        OTACommandServer.start("TempsensorHostApplication");
+        if (LoopbackRadio.isRadio()) {
+            OTACommandServer.start("TempsensorHostApplication");
+        }
 
         CarDataReceiver app = new CarDataReceiver();
         app.setup();
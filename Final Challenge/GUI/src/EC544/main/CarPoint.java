@@ -10,7 +10,7 @@ package EC544.main;
  */
 public class CarPoint {
 
-    public float time;
+    public double time;
     public float RF;
     public float LF;
     public float RR;
@@ -33,8 +33,13 @@ public class CarPoint {
     public CarPoint() {
     }
 
+    //Column names for toString()
+    public static String headerRow() {
+        return "time,LF,RF,LR,RR,LT,RT,distRight,distLeft,thetaRight,thetaLeft,theta,distance,turn,velocity,targetDist,startTurn,stopTurn,targetTheta";
+    }
+
     public String toString() {
-        String outputLine = time + "," + LF + "," + RF + "," + LR + "," + RR + "," + LT + "," + RT + "," + distRight + "," + distLeft
+        String outputLine = (long) time + "," + LF + "," + RF + "," + LR + "," + RR + "," + LT + "," + RT + "," + distRight + "," + distLeft
                 + "," + thetaRight + "," + thetaLeft + "," + theta + "," + distance + "," + turn + "," + velocity
                 + "," + targetDist + "," + startTurn + "," + stopTurn + "," + targetTheta;
         //System.out.println(outputLine);
@@ -0,0 +1,316 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import javax.microedition.io.Datagram;
+import javax.microedition.io.DatagramConnection;
+
+/**
+ * Collects driving commands from csv_watcher and sends them to the car.
+ *
+ * Commands come in as "command,value" lines, either appended to the command
+ * file (what csv_watcher's CommandWriter does) or written to a TCP socket on
+ * localhost. Both readers block instead of spinning. Pending commands are
+ * coalesced: a newer turn, speed or setDistance replaces one that has not
+ * been sent yet. Everything pending goes out in a single "commands"
+ * radiogram, so a burst of keypresses costs one packet. The packet's count
+ * is one byte, so a larger burst goes out in several; a command too long to
+ * fit in a radiogram on its own is dropped when it is submitted.
+ *
+ * Latency is measured per command from submit() to commandConn.send().
+ */
+public class CommandService {
+
+    private static final String[] SUPERSEDABLE = {"turn", "speed", "setDistance"};
+    private static final long TAIL_MIN_WAIT = 5;
+    private static final long TAIL_MAX_WAIT = 50;
+    private static final int MAX_BATCH = 255; // the car reads the count as an unsigned byte
+    private final DatagramConnection commandConn;
+    private final long minGapMillis;
+    private final int packetRoom; // bytes for command/value pairs after the "commands" header and the count
+    private final ArrayList<Pending> pending = new ArrayList<Pending>();
+    private final ArrayList<Pending> sending = new ArrayList<Pending>();
+    private long submitted = 0;
+    private long coalesced = 0;
+    private long rejected = 0;
+    private long sent = 0;
+    private long packets = 0;
+    private long latencyTotalNanos = 0;
+    private long latencyMaxNanos = 0;
+
+    private static class Pending {
+
+        final String command;
+        final String value;
+        final long enqueued;
+
+        Pending(String command, String value, long enqueued) {
+            this.command = command;
+            this.value = value;
+            this.enqueued = enqueued;
+        }
+    }
+
+    /**
+     * @param conn broadcast connection to the car's command port
+     * @param minGapMillis least time between two command radiograms; commands
+     * arriving inside the gap are coalesced into the next packet
+     */
+    public CommandService(DatagramConnection conn, long minGapMillis) throws IOException {
+        commandConn = conn;
+        this.minGapMillis = minGapMillis;
+        packetRoom = conn.getMaximumLength() - utfLength("commands") - 1;
+    }
+
+    public void start() {
+        new Thread("command-sender") {
+            public void run() {
+                sendLoop();
+            }
+        }.start();
+    }
+
+    public void submit(String command, String value) {
+        long now = System.nanoTime();
+        synchronized (pending) {
+            submitted++;
+            if (utfLength(command) + utfLength(value) > packetRoom) {
+                rejected++;
+                System.out.println("Dropped command " + command + ": too long for one radiogram");
+                return;
+            }
+            if (isSupersedable(command)) {
+                for (int i = 0; i < pending.size(); i++) {
+                    Pending p = pending.get(i);
+                    if (p.command.equals(command)) {
+                        // drop the stale one; the new value goes to the back so it keeps its order against e.g. stop
+                        pending.remove(i);
+                        coalesced++;
+                        break;
+                    }
+                }
+            }
+            pending.add(new Pending(command, value, now));
+            pending.notify();
+        }
+    }
+
+    //Accepts a "command,value" line; the "command,value" header and blank lines are ignored
+    public void submitLine(String line) {
+        String[] commands = line.trim().split(",");
+        if (commands.length < 2 || commands[0].equals("command")) {
+            return;
+        }
+        submit(commands[0].trim(), commands[1].trim());
+    }
+
+    private static boolean isSupersedable(String command) {
+        for (int i = 0; i < SUPERSEDABLE.length; i++) {
+            if (SUPERSEDABLE[i].equals(command)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendLoop() {
+        Datagram dg;
+        try {
+            dg = commandConn.newDatagram(commandConn.getMaximumLength());
+        } catch (IOException ex) {
+            System.out.println("IOException " + ex + " setting up command datagram!");
+            return;
+        }
+        while (true) {
+            try {
+                synchronized (pending) {
+                    while (pending.isEmpty()) {
+                        pending.wait();
+                    }
+                    sending.addAll(pending);
+                    pending.clear();
+                }
+                int next = 0;
+                while (next < sending.size()) {
+                    next = sendPacket(dg, next);
+                }
+                sending.clear();
+                Thread.sleep(minGapMillis);
+            } catch (InterruptedException ex) {
+                return;
+            } catch (IOException ex) {
+                System.out.println("IOException " + ex + " sending commands!");
+                sending.clear();
+            }
+        }
+    }
+
+    //Packs as many commands as fit, starting at index first, into one radiogram and sends it.
+    //Returns the index of the first command not sent.
+    private int sendPacket(Datagram dg, int first) throws IOException {
+        int room = packetRoom;
+        int last = first;
+        while (last < sending.size() && last - first < MAX_BATCH) {
+            Pending p = sending.get(last);
+            int size = utfLength(p.command) + utfLength(p.value);
+            if (size > room && last > first) {
+                break;
+            }
+            room -= size;
+            last++;
+        }
+        dg.reset();
+        dg.writeUTF("commands");
+        dg.writeByte(last - first);
+        for (int i = first; i < last; i++) {
+            Pending p = sending.get(i);
+            dg.writeUTF(p.command);
+            dg.writeUTF(p.value);
+        }
+        commandConn.send(dg);
+        long now = System.nanoTime();
+        synchronized (pending) {
+            packets++;
+            for (int i = first; i < last; i++) {
+                Pending p = sending.get(i);
+                long latency = now - p.enqueued;
+                latencyTotalNanos += latency;
+                latencyMaxNanos = Math.max(latencyMaxNanos, latency);
+                sent++;
+                System.out.println("Sent command: " + p.command + "," + p.value + " (" + latency / 1000 + " us after submit)");
+            }
+        }
+        return last;
+    }
+
+    //Bytes writeUTF takes for s: the length, then modified UTF-8 (1 byte for 1-0x7F, 3 above 0x7FF, else 2)
+    private static int utfLength(String s) {
+        int length = 2;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c > 0x07FF) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Tails the command file from the start (CarDataReceiver truncates it to
+     * the header on startup). Blocks between reads with
+     * a short backoff instead of spinning, and only hands over complete lines.
+     */
+    public void tailFile(final String path) {
+        new Thread("command-file-tail") {
+            public void run() {
+                tailLoop(path);
+            }
+        }.start();
+    }
+
+    private void tailLoop(String path) {
+        StringBuilder line = new StringBuilder();
+        byte[] buf = new byte[512];
+        long wait = TAIL_MIN_WAIT;
+        try {
+            RandomAccessFile file = new RandomAccessFile(path, "r");
+            long position = 0;
+            while (true) {
+                if (file.length() < position) {
+                    position = 0; // file was truncated, start over
+                    line.setLength(0);
+                }
+                file.seek(position);
+                int n = file.read(buf);
+                if (n <= 0) {
+                    Thread.sleep(wait);
+                    wait = Math.min(wait * 2, TAIL_MAX_WAIT);
+                    continue;
+                }
+                wait = TAIL_MIN_WAIT;
+                position += n;
+                for (int i = 0; i < n; i++) {
+                    char c = (char) buf[i];
+                    if (c == '\n') {
+                        submitLine(line.toString());
+                        line.setLength(0);
+                    } else if (c != '\r') {
+                        line.append(c);
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            return;
+        } catch (IOException ex) {
+            System.out.println("IOException " + ex + " tailing " + path);
+        }
+    }
+
+    /**
+     * Listens on localhost:port for clients writing "command,value" lines.
+     * Each client gets a blocking reader thread.
+     */
+    public void listen(final int port) {
+        new Thread("command-socket") {
+            public void run() {
+                try {
+                    ServerSocket server = new ServerSocket(port, 4, InetAddress.getByName("127.0.0.1"));
+                    System.out.println("Accepting commands on localhost:" + port);
+                    while (true) {
+                        final Socket client = server.accept();
+                        new Thread("command-client") {
+                            public void run() {
+                                readClient(client);
+                            }
+                        }.start();
+                    }
+                } catch (IOException ex) {
+                    System.out.println("IOException " + ex + " in command socket on port " + port);
+                }
+            }
+        }.start();
+    }
+
+    private void readClient(Socket client) {
+        try {
+            client.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            String currentLine;
+            while ((currentLine = in.readLine()) != null) {
+                submitLine(currentLine);
+            }
+        } catch (IOException ex) {
+            System.out.println("IOException " + ex + " reading command client");
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    public String statusReport() {
+        synchronized (pending) {
+            long avg = 0;
+            if (sent > 0) {
+                avg = latencyTotalNanos / sent / 1000;
+            }
+            return submitted + " submitted, " + coalesced + " coalesced, " + rejected + " too long, " + sent + " sent in " + packets
+                    + " packets, latency avg " + avg + " us, max " + latencyMaxNanos / 1000 + " us";
+        }
+    }
+}
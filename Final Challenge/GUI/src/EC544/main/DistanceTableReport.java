@@ -0,0 +1,118 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Checks a DistanceTable against the IR calibration polynomial and times it.
+ *
+ * Usage: DistanceTableReport                    the built-in table (DistanceTable.fromCurve)
+ *        DistanceTableReport calibration.csv    a table built from measured volts,cm pairs
+ *
+ * Prints the largest and mean difference from the polynomial over the whole
+ * table and over the sensors' working range, then the time per conversion
+ * for the polynomial as IRDaemon used to evaluate it (four pow calls), the
+ * same polynomial in Horner form, and the table.
+ */
+public class DistanceTableReport {
+
+    // Where the Sharp sensors on the car actually read, about 155 cm down to 16 cm
+    private static final double WORKING_MIN_VOLTS = 0.4;
+    private static final double WORKING_MAX_VOLTS = 2.8;
+    private static final int STEPS = 100000;
+
+    //IRDaemon.getDistance before DistanceTable, with Math.pow for MathUtils.pow
+    static double powCurve(double volts) {
+        return 16.2537 * Math.pow(volts, 4)
+                - 129.893 * Math.pow(volts, 3)
+                + 382.268 * Math.pow(volts, 2)
+                - 512.611 * volts + 306.439;
+    }
+
+    private static void errorReport(String label, DistanceTable table, double min, double max) {
+        double worst = 0.0;
+        double worstVolts = min;
+        double sum = 0.0;
+        for (int i = 0; i <= STEPS; i++) {
+            double volts = min + (max - min) * i / STEPS;
+            double error = Math.abs(table.lookup(volts) - powCurve(volts));
+            sum += error;
+            if (error > worst) {
+                worst = error;
+                worstVolts = volts;
+            }
+        }
+        System.out.println("  " + label + " " + min + "-" + max + " V: max error " + round(worst) + " cm at "
+                + round(worstVolts) + " V, mean " + round(sum / (STEPS + 1)) + " cm");
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10000) / 10000.0;
+    }
+
+    private static void bench(DistanceTable table) {
+        Random random = new Random(544);
+        double[] volts = new double[4096];
+        for (int i = 0; i < volts.length; i++) {
+            volts[i] = WORKING_MIN_VOLTS + random.nextDouble() * (WORKING_MAX_VOLTS - WORKING_MIN_VOLTS);
+        }
+        final int rounds = 2000;
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        double sink = 0.0;
+        for (int pass = 0; pass < 5; pass++) {
+            for (int method = 0; method < 3; method++) {
+                long start = System.nanoTime();
+                for (int r = 0; r < rounds; r++) {
+                    for (int i = 0; i < volts.length; i++) {
+                        if (method == 0) {
+                            sink += powCurve(volts[i]);
+                        } else if (method == 1) {
+                            sink += DistanceTable.curve(volts[i]);
+                        } else {
+                            sink += table.lookup(volts[i]);
+                        }
+                    }
+                }
+                best[method] = Math.min(best[method], System.nanoTime() - start);
+            }
+        }
+        double calls = (double) rounds * volts.length;
+        System.out.println("Time per conversion, host JIT, best of 5 (" + (long) calls + " calls each):");
+        System.out.println("  polynomial, pow:    " + round(best[0] / calls) + " ns");
+        System.out.println("  polynomial, Horner: " + round(best[1] / calls) + " ns");
+        System.out.println("  table lookup:       " + round(best[2] / calls) + " ns");
+        if (sink == 42.0) {
+            System.out.println();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        DistanceTable table;
+        if (args.length == 1) {
+            InputStream in = new FileInputStream(args[0]);
+            try {
+                table = DistanceTable.fromCalibration(in);
+            } finally {
+                in.close();
+            }
+            System.out.println("Table from " + args[0] + ":");
+        } else {
+            table = DistanceTable.fromCurve();
+            System.out.println("Table from DistanceTable.curve():");
+        }
+        double min = table.getMinVolts();
+        double max = table.getMaxVolts();
+        System.out.println("  " + table.getBins() + " bins over " + round(min) + "-" + round(max) + " V, "
+                + round((max - min) / table.getBins()) + " V per bin");
+        System.out.println("Difference from the polynomial:");
+        errorReport("whole table", table, min, max);
+        errorReport("working range", table, Math.max(min, WORKING_MIN_VOLTS), Math.min(max, WORKING_MAX_VOLTS));
+        bench(table);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * States, events and decisions of IRDaemon's driving state machine, and
+ * the table of transitions between the states. Squawk has no enums, so they
+ * are int constants indexing name tables, as SmallPointCodec does for flags.
+ * The car and the host carry identical copies.
+ *
+ * <pre>
+ * state           what the car does each sample
+ * FOLLOW          follows the wall it trusts more (trust/drift/preferred, or unknown)
+ * APPROACH_LEFT   takeNextLeft: keeps CLOSE_DISTANCE to the left wall until it opens
+ * APPROACH_RIGHT  takeNextRight: the same on the right
+ * CORNER_LEFT     full lock left until ControllerParams.cornerTimeout has passed
+ * CORNER_RIGHT    full lock right, the same
+ * </pre>
+ *
+ * IRDaemon.decide() turns each sample's inputs into one event (classify)
+ * and looks the next state up in TRANSITIONS[state][event]. A corner is
+ * entered when the wall on the side asked for is gone (trust 0) and left when
+ * its time is up; a command that is dropped sends an approach back to FOLLOW.
+ * In a corner the commands are ignored until it finishes, as before the
+ * table.
+ */
+public final class DriveState {
+
+    // States
+    public static final int FOLLOW = 0;
+    public static final int APPROACH_LEFT = 1;
+    public static final int APPROACH_RIGHT = 2;
+    public static final int CORNER_LEFT = 3;
+    public static final int CORNER_RIGHT = 4;
+    public static final String[] STATE_NAMES = {"follow", "approach left", "approach right", "corner left", "corner right"};
+    public static final int STATE_COUNT = 5;
+    // Events, one per sample
+    public static final int NONE = 0; // no turn asked for, or a corner still running
+    public static final int TAKE_LEFT = 1; // takeNextLeft, the left wall still there
+    public static final int TAKE_RIGHT = 2;
+    public static final int LEFT_OPEN = 3; // takeNextLeft and no left wall
+    public static final int RIGHT_OPEN = 4;
+    public static final int TIMEOUT = 5; // the corner's time is up
+    public static final String[] EVENT_NAMES = {"none", "take left", "take right", "left open", "right open", "timeout"};
+    public static final int EVENT_COUNT = 6;
+    // Decisions, what pickDirection returns by name
+    public static final int UNKNOWN = 0;
+    public static final int TRUST_LEFT = 1;
+    public static final int TRUST_RIGHT = 2;
+    public static final int DRIFT_LEFT = 3;
+    public static final int DRIFT_RIGHT = 4;
+    public static final int LEFT_PREFERRED = 5;
+    public static final int RIGHT_PREFERRED = 6;
+    public static final int TURN_LEFT = 7;
+    public static final int TURN_RIGHT = 8;
+    public static final int LEFT_CORNER = 9; // the sample a corner starts
+    public static final int RIGHT_CORNER = 10;
+    public static final int CORNERING_LEFT = 11;
+    public static final int CORNERING_RIGHT = 12;
+    public static final int LEFT_CORNER_FINISH = 13;
+    public static final int RIGHT_CORNER_FINISH = 14;
+    public static final String[] DECISION_NAMES = {"unknown", "trust left", "trust right", "drift left", "drift right",
+        "left preferred", "right preferred", "turn left", "turn right", "left corner", "right corner",
+        "cornering left", "cornering right", "left corner finish", "right corner finish"};
+    public static final int DECISION_COUNT = 15;
+    // Next state, by state and then event
+    public static final int[][] TRANSITIONS = {
+        // NONE, TAKE_LEFT, TAKE_RIGHT, LEFT_OPEN, RIGHT_OPEN, TIMEOUT
+        {FOLLOW, APPROACH_LEFT, APPROACH_RIGHT, CORNER_LEFT, CORNER_RIGHT, FOLLOW}, // FOLLOW
+        {FOLLOW, APPROACH_LEFT, APPROACH_RIGHT, CORNER_LEFT, CORNER_RIGHT, APPROACH_LEFT}, // APPROACH_LEFT
+        {FOLLOW, APPROACH_LEFT, APPROACH_RIGHT, CORNER_LEFT, CORNER_RIGHT, APPROACH_RIGHT}, // APPROACH_RIGHT
+        {CORNER_LEFT, CORNER_LEFT, CORNER_LEFT, CORNER_LEFT, CORNER_LEFT, FOLLOW}, // CORNER_LEFT
+        {CORNER_RIGHT, CORNER_RIGHT, CORNER_RIGHT, CORNER_RIGHT, CORNER_RIGHT, FOLLOW} // CORNER_RIGHT
+    };
+
+    private DriveState() {
+    }
+
+    public static boolean isCorner(int state) {
+        return state == CORNER_LEFT || state == CORNER_RIGHT;
+    }
+
+    //True for the decisions that start or finish a corner, CarPoint's startTurn and stopTurn
+    public static boolean startsTurn(int decision) {
+        return decision == LEFT_CORNER || decision == RIGHT_CORNER;
+    }
+
+    public static boolean stopsTurn(int decision) {
+        return decision == LEFT_CORNER_FINISH || decision == RIGHT_CORNER_FINISH;
+    }
+
+    /**
+     * The event for a sample in state. In a corner only the deadline counts;
+     * otherwise takeNextLeft wins over takeNextRight, and a turn's wall with
+     * trust 0 means it has opened up.
+     */
+    public static int classify(int state, boolean cornerTimeUp, boolean takeNextLeft, boolean takeNextRight,
+            int leftTrust, int rightTrust) {
+        if (isCorner(state)) {
+            return cornerTimeUp ? TIMEOUT : NONE;
+        } else if (takeNextLeft) {
+            return leftTrust == 0 ? LEFT_OPEN : TAKE_LEFT;
+        } else if (takeNextRight) {
+            return rightTrust == 0 ? RIGHT_OPEN : TAKE_RIGHT;
+        }
+        return NONE;
+    }
+}
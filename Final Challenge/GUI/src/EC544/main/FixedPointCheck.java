@@ -0,0 +1,231 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks FixedIRDaemon against IRDaemon on the recorded runs and times both.
+ *
+ * <pre>
+ * FixedPointCheck [-rounds n] dir-or-file...
+ * </pre>
+ *
+ * Every run is fed to an IRDaemon and a FixedIRDaemon side by side, the way
+ * ReplayEngine feeds one, and each sample's decision, turn and
+ * speed are compared. Per file and in total it prints how many samples
+ * differ in each, the largest turn difference, and the largest difference in
+ * the averaged theta (degrees) and wall distance (cm). Once a decision differs
+ * the two can go on differently (a corner timer started on one sample and not
+ * the other), so the first sample that differs is printed too.
+ *
+ * Then every run is replayed n times (3) through each daemon, timing
+ * setReads, updateState and decide together, and the volts -> cm path
+ * (updateReads) on readings spread over the sensors' range. The host has an
+ * FPU, so the double version's cost is far below what it is on the SPOT,
+ * where each double operation is a software routine; the figures show what
+ * the fixed-point version costs in itself and are to be repeated on the car.
+ */
+public class FixedPointCheck {
+
+    private static final int VOLT_SAMPLES = 4096;
+
+    /**
+     * Differences between the two daemons over one or more runs.
+     */
+    static class Comparison {
+
+        String name;
+        int samples;
+        int decisions;
+        int turns;
+        int speeds;
+        int maxTurnDifference;
+        double maxThetaDifference; // degrees
+        double maxDistanceDifference;
+        int firstDifference = -1;
+
+        Comparison(String name) {
+            this.name = name;
+        }
+
+        void add(Comparison other) {
+            samples += other.samples;
+            decisions += other.decisions;
+            turns += other.turns;
+            speeds += other.speeds;
+            maxTurnDifference = Math.max(maxTurnDifference, other.maxTurnDifference);
+            maxThetaDifference = Math.max(maxThetaDifference, other.maxThetaDifference);
+            maxDistanceDifference = Math.max(maxDistanceDifference, other.maxDistanceDifference);
+        }
+
+        static String headerRow() {
+            return "file,samples,decisionsDiffer,turnsDiffer,speedsDiffer,maxTurnDifference,maxThetaDifference(deg),"
+                    + "maxDistanceDifference,firstDifference";
+        }
+
+        public String toString() {
+            return name + "," + samples + "," + decisions + "," + turns + "," + speeds + "," + maxTurnDifference + ","
+                    + ReplayEngine.round(maxThetaDifference) + "," + ReplayEngine.round(maxDistanceDifference) + ","
+                    + (firstDifference < 0 ? "" : "" + firstDifference);
+        }
+    }
+
+    //One recorded sample, as ReplayEngine.replay gives it to the daemon; returns the decision
+    private static int step(IRDaemon daemon, ReplayClock clock, ReplayEngine.Run run, int i, int rising) {
+        clock.setTime(run.time[i]);
+        int driving = i > 0 ? i - 1 : 0;
+        daemon.setReads(run.LF[i], run.RF[i], run.LR[i], run.RR[i]);
+        daemon.updateState(daemon.isColliding || (rising & 1) != 0,
+                daemon.takeNextLeft || (rising & 2) != 0,
+                daemon.takeNextRight || (rising & 4) != 0, run.speed[driving], run.turn[driving]);
+        return daemon.decide();
+    }
+
+    static Comparison compare(ReplayEngine.Run run) {
+        ReplayClock doubleClock = new ReplayClock();
+        ReplayClock fixedClock = new ReplayClock();
+        IRDaemon doubles = new IRDaemon(doubleClock);
+        IRDaemon fixed = new FixedIRDaemon(fixedClock);
+        doubles.setVerbose(false);
+        fixed.setVerbose(false);
+        Comparison comparison = new Comparison(run.name);
+        int previousFlags = 0;
+        for (int i = 0; i < run.length; i++) {
+            int rising = run.flags[i] & ~previousFlags;
+            previousFlags = run.flags[i];
+            int expected = step(doubles, doubleClock, run, i, rising);
+            int actual = step(fixed, fixedClock, run, i, rising);
+            comparison.samples++;
+            boolean differs = false;
+            if (expected != actual) {
+                comparison.decisions++;
+                differs = true;
+            }
+            int turnDifference = Math.abs(doubles.turnSuggest - fixed.turnSuggest);
+            if (turnDifference != 0) {
+                comparison.turns++;
+                comparison.maxTurnDifference = Math.max(comparison.maxTurnDifference, turnDifference);
+                differs = true;
+            }
+            if (doubles.speedSuggest != fixed.speedSuggest) {
+                comparison.speeds++;
+                differs = true;
+            }
+            if (differs && comparison.firstDifference < 0) {
+                comparison.firstDifference = i;
+            }
+            comparison.maxThetaDifference = Math.max(comparison.maxThetaDifference,
+                    Math.toDegrees(Math.abs(doubles.avgTheta - fixed.avgTheta)));
+            comparison.maxDistanceDifference = Math.max(comparison.maxDistanceDifference,
+                    Math.abs(doubles.avgDist - fixed.avgDist));
+        }
+        return comparison;
+    }
+
+    //Nanoseconds to replay every run rounds times through daemons made by fixed or not
+    private static long timeRuns(List<ReplayEngine.Run> runs, boolean fixed, int rounds) {
+        long start = System.nanoTime();
+        int sink = 0;
+        for (int r = 0; r < rounds; r++) {
+            for (ReplayEngine.Run run : runs) {
+                ReplayClock clock = new ReplayClock();
+                IRDaemon daemon = fixed ? new FixedIRDaemon(clock) : new IRDaemon(clock);
+                daemon.setVerbose(false);
+                int previousFlags = 0;
+                for (int i = 0; i < run.length; i++) {
+                    int rising = run.flags[i] & ~previousFlags;
+                    previousFlags = run.flags[i];
+                    step(daemon, clock, run, i, rising);
+                    sink += daemon.turnSuggest;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.println();
+        }
+        return elapsed;
+    }
+
+    //Nanoseconds for rounds passes of updateReads over volts
+    private static long timeReads(double[] volts, boolean fixed, int rounds) {
+        IRDaemon daemon = fixed ? new FixedIRDaemon(new ReplayClock()) : new IRDaemon(new ReplayClock());
+        long start = System.nanoTime();
+        double sink = 0.0;
+        for (int r = 0; r < rounds; r++) {
+            for (int i = 0; i + 3 < volts.length; i += 4) {
+                daemon.updateReads(volts[i], volts[i + 1], volts[i + 2], volts[i + 3]);
+                sink += daemon.distanceAvgL;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42.0) {
+            System.out.println();
+        }
+        return elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int rounds = 3;
+        int first = 0;
+        if (args.length > 1 && args[0].equals("-rounds")) {
+            rounds = Math.max(1, Integer.parseInt(args[1]));
+            first = 2;
+        }
+        List<ReplayEngine.Run> runs = new ArrayList<ReplayEngine.Run>();
+        for (File file : ReplayEngine.listRuns(args, first)) {
+            ReplayEngine.Run run = ReplayEngine.load(file);
+            if (run != null) {
+                runs.add(run);
+            }
+        }
+        if (runs.isEmpty()) {
+            System.out.println("Usage: FixedPointCheck [-rounds n] dir-or-file...");
+            return;
+        }
+
+        Comparison total = new Comparison("TOTAL");
+        System.out.println(Comparison.headerRow());
+        for (ReplayEngine.Run run : runs) {
+            Comparison comparison = compare(run);
+            total.add(comparison);
+            System.out.println(comparison);
+        }
+        System.out.println(total);
+
+        int cycles = 0;
+        for (ReplayEngine.Run run : runs) {
+            cycles += run.length;
+        }
+        cycles *= rounds;
+        Random random = new Random(544);
+        double[] volts = new double[VOLT_SAMPLES];
+        for (int i = 0; i < volts.length; i++) {
+            volts[i] = 0.4 + random.nextDouble() * 2.4; // about 155 cm down to 16 cm
+        }
+        int readRounds = Math.max(1, cycles / (VOLT_SAMPLES / 4));
+        int reads = readRounds * (VOLT_SAMPLES / 4);
+        // first pass warms the JIT up
+        long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+        for (int pass = 0; pass < 3; pass++) {
+            best[0] = Math.min(best[0], timeRuns(runs, false, rounds));
+            best[1] = Math.min(best[1], timeRuns(runs, true, rounds));
+            best[2] = Math.min(best[2], timeReads(volts, false, readRounds));
+            best[3] = Math.min(best[3], timeReads(volts, true, readRounds));
+        }
+        System.out.println("Control cycles, host JIT, best of 3 (" + cycles + " cycles each):");
+        System.out.println("  IRDaemon:      " + ReplayEngine.round((double) best[0] / cycles) + " ns per cycle, "
+                + Math.round(cycles * 1e9 / best[0]) + " cycles/s");
+        System.out.println("  FixedIRDaemon: " + ReplayEngine.round((double) best[1] / cycles) + " ns per cycle, "
+                + Math.round(cycles * 1e9 / best[1]) + " cycles/s");
+        System.out.println("updateReads from volts (" + reads + " calls each):");
+        System.out.println("  IRDaemon:      " + ReplayEngine.round((double) best[2] / reads) + " ns per call");
+        System.out.println("  FixedIRDaemon: " + ReplayEngine.round((double) best[3] / reads) + " ns per call");
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Hands a car's occasional frames (diagnostics and the like, anything but
+ * telemetry points) from the receive threads to its writer thread, which
+ * decodes them and owns their files, so no receive thread waits on a disk.
+ *
+ * Frames are copied as received into one of two sets of capacity slots:
+ * receive threads fill one while the writer reads the other, and drain()
+ * swaps them. A frame that finds the slots full, or is longer than
+ * maxLength, is dropped and counted. Offering and draining allocate nothing.
+ */
+public class FrameQueue {
+
+    /**
+     * A ByteArrayInputStream that can be pointed at another array, so one
+     * DataInputStream reads every frame.
+     */
+    private static class FrameInput extends ByteArrayInputStream {
+
+        FrameInput() {
+            super(new byte[0]);
+        }
+
+        void reset(byte[] frame, int offset, int length) {
+            buf = frame;
+            pos = offset;
+            count = length;
+            mark = offset;
+        }
+    }
+    private byte[][] filling;
+    private int[] fillingLengths;
+    private int filled = 0;
+    private byte[][] draining;
+    private int[] drainingLengths;
+    private long dropped = 0;
+    private final FrameInput input = new FrameInput();
+    private final DataInputStream data = new DataInputStream(input);
+
+    public FrameQueue(int capacity, int maxLength) {
+        filling = new byte[capacity][maxLength];
+        fillingLengths = new int[capacity];
+        draining = new byte[capacity][maxLength];
+        drainingLengths = new int[capacity];
+    }
+
+    /**
+     * Called by the receive threads: copies tag and the length bytes after it
+     * from in, where the tag has already been read. Returns false if the frame
+     * was dropped; its bytes are left unread then.
+     */
+    public synchronized boolean offer(int tag, DataInput in, int length) throws IOException {
+        if (filled == filling.length || length + 1 > filling[filled].length) {
+            dropped++;
+            return false;
+        }
+        byte[] frame = filling[filled];
+        frame[0] = (byte) tag;
+        in.readFully(frame, 1, length);
+        fillingLengths[filled] = length + 1;
+        filled++;
+        return true;
+    }
+
+    //Called by the writer thread: takes every frame offered so far and returns how many there are
+    public synchronized int drain() {
+        byte[][] frames = draining;
+        int[] lengths = drainingLengths;
+        draining = filling;
+        drainingLengths = fillingLengths;
+        filling = frames;
+        fillingLengths = lengths;
+        int count = filled;
+        filled = 0;
+        return count;
+    }
+
+    //The i-th drained frame's tag
+    public int getTag(int i) {
+        return draining[i][0] & 0xFF;
+    }
+
+    //The i-th drained frame, positioned after its tag; valid until the next call
+    public DataInput read(int i) {
+        input.reset(draining[i], 1, drainingLengths[i]);
+        return data;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+}
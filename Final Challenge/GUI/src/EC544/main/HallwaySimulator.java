@@ -0,0 +1,266 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.util.Random;
+
+/**
+ * The car driving IRDaemon down a straight hallway, closed loop, for judging
+ * controller settings where a recorded run cannot: in a recording the reads
+ * do not change with the turn the controller picks.
+ *
+ * The hallway runs along x with the left wall at y = 0 and the right wall at
+ * y = width. Alcoves are stretches where one wall steps back by ALCOVE_DEPTH.
+ * The car is a bicycle model at a constant forward speed; its steering angle
+ * follows the turn servo through a first-order lag, with a turn of 1500 -
+ * TURN_MAX (1000) the full right lock and 1500 + TURN_MAX the full left lock,
+ * as IRDaemon.calcTurn drives it forward. Heading is positive turned right,
+ * the same sign as IRDaemon's theta.
+ *
+ * The four IR sensors sit SENSOR_DISTANCE apart on the car's sides and read
+ * the distance to the wall along the car's normal, plus noise, clipped to
+ * what SmallPoint carries (0-255 cm). Past MAX_RANGE a Sharp sensor reads
+ * nothing useful; the simulator then returns 255, as the car's logs show.
+ *
+ * One run() is one scenario: a start offset and heading, alcoves on either
+ * side and a noise seed, stepped every SAMPLE_MILLIS on a VirtualClock for
+ * the given time. Since the simulator knows where the car really is, it also
+ * scores the controller's own estimates of its heading and wall distance.
+ *
+ * <pre>
+ * HallwaySimulator [seconds]   the standard scenarios with and without a WallFilter
+ * </pre>
+ */
+public class HallwaySimulator {
+
+    public static final double SAMPLE_MILLIS = 50; // MainCarController.SAMPLE_TIME
+    public static final double SPEED = 120.0; // cm/s at speed 1300
+    public static final double WHEELBASE = 25.0;
+    public static final double MAX_STEER = 25.0; // degrees at full lock
+    public static final double STEER_LAG = 0.1; // s
+    public static final double SENSOR_DISTANCE = 31.0; // front to rear sensor, as IRDaemon
+    public static final double HALF_WIDTH = 8.0; // car centre to the sensors on its side
+    public static final double MAX_RANGE = 150.0;
+    public static final double NOISE = 0.03; // of the distance, one sigma
+    public static final double ALCOVE_DEPTH = 60.0;
+    public static final double ALCOVE_LENGTH = 150.0;
+    public static final double ALCOVE_SPACING = 600.0;
+    public static final double SETTLE_SECONDS = 3.0; // not scored while the averages fill and the car first steers in
+    public static final double CRASH_CLEARANCE = 10.0; // side of the car this close to a wall is a crash
+
+    /**
+     * One simulated drive. Start offset is from the left wall to the car's
+     * centre, start heading in degrees.
+     */
+    public static class Scenario {
+
+        public final double width;
+        public final double startY;
+        public final double startHeading;
+        public final boolean leftAlcoves;
+        public final boolean rightAlcoves;
+        public final double seconds;
+        public final long seed;
+
+        public Scenario(double width, double startY, double startHeading, boolean leftAlcoves, boolean rightAlcoves,
+                double seconds, long seed) {
+            this.width = width;
+            this.startY = startY;
+            this.startHeading = startHeading;
+            this.leftAlcoves = leftAlcoves;
+            this.rightAlcoves = rightAlcoves;
+            this.seconds = seconds;
+            this.seed = seed;
+        }
+    }
+
+    /**
+     * How a scenario went. The wall error is between the car's side and the
+     * target distance from whichever wall the controller was following
+     * (the sign of its averaged distance), over the scored samples. The
+     * heading and distance errors are between the controller's averaged
+     * theta and wall distance (CarPoint theta and distance) and the truth.
+     */
+    public static class Result {
+
+        public int samples;
+        public int scored;
+        public double errorSquares;
+        public double turnChangeSum;
+        public double headingErrorSquares; // radians
+        public double distanceErrorSquares;
+        public boolean crashed;
+        public double crashSeconds;
+
+        public void add(Result other) {
+            samples += other.samples;
+            scored += other.scored;
+            errorSquares += other.errorSquares;
+            turnChangeSum += other.turnChangeSum;
+            headingErrorSquares += other.headingErrorSquares;
+            distanceErrorSquares += other.distanceErrorSquares;
+            crashed |= other.crashed;
+        }
+
+        public double getRmsError() {
+            return scored == 0 ? 0.0 : Math.sqrt(errorSquares / scored);
+        }
+
+        public double getMeanTurnChange() {
+            return samples < 2 ? 0.0 : turnChangeSum / (samples - 1);
+        }
+
+        public double getRmsHeadingError() {
+            return scored == 0 ? 0.0 : Math.sqrt(headingErrorSquares / scored);
+        }
+
+        public double getRmsDistanceError() {
+            return scored == 0 ? 0.0 : Math.sqrt(distanceErrorSquares / scored);
+        }
+    }
+
+    //The scenarios ParameterSweep scores every parameter set on
+    public static Scenario[] standardScenarios(double seconds) {
+        return new Scenario[]{
+                    new Scenario(181.0, 90.0, 0.0, false, false, seconds, 1),
+                    new Scenario(181.0, 40.0, 10.0, false, false, seconds, 2),
+                    new Scenario(181.0, 130.0, -15.0, false, true, seconds, 3),
+                    new Scenario(181.0, 75.0, 5.0, true, false, seconds, 4),
+                    new Scenario(150.0, 60.0, -5.0, true, true, seconds, 5)
+                };
+    }
+
+    private static boolean inAlcove(double x) {
+        double along = x % ALCOVE_SPACING;
+        return along > ALCOVE_SPACING - ALCOVE_LENGTH;
+    }
+
+    private static double leftWall(Scenario s, double x) {
+        return s.leftAlcoves && inAlcove(x) ? -ALCOVE_DEPTH : 0.0;
+    }
+
+    private static double rightWall(Scenario s, double x) {
+        return s.rightAlcoves && inAlcove(x + ALCOVE_SPACING / 2) ? s.width + ALCOVE_DEPTH : s.width;
+    }
+
+    //Reading of a sensor at (x, y) looking across the hallway, cos the car heading's cosine
+    private static int read(double x, double y, double cos, boolean left, Scenario s, Random noise) {
+        double lateral = left ? y - leftWall(s, x) : rightWall(s, x) - y;
+        double range = lateral / cos;
+        if (range <= 0 || range > MAX_RANGE) {
+            return 255;
+        }
+        range += range * NOISE * noise.nextGaussian();
+        return SmallPoint.readToInt(range);
+    }
+
+    public static Result run(Scenario s, ControllerParams params, double target) {
+        return run(s, params, target, false);
+    }
+
+    /**
+     * Drives s with a fresh IRDaemon using params, through a WallFilter if
+     * filter is set, and target as the distance the wall error is scored
+     * against.
+     */
+    public static Result run(Scenario s, ControllerParams params, double target, boolean filter) {
+        VirtualClock clock = new VirtualClock(0);
+        IRDaemon daemon = new IRDaemon(clock, params);
+        daemon.setVerbose(false);
+        if (filter) {
+            WallFilter wallFilter = new WallFilter();
+            // the simulated car turns as its bicycle model says, not as the real one was measured to
+            wallFilter.setTurnPerCm(Math.tan(Math.toRadians(MAX_STEER)) / WHEELBASE);
+            daemon.setWallFilter(wallFilter);
+        }
+        CarPoint estimate = new CarPoint();
+        Random noise = new Random(s.seed);
+        Result result = new Result();
+        double x = 0.0;
+        double y = s.startY;
+        double heading = Math.toRadians(s.startHeading);
+        double steer = 0.0;
+        double dt = SAMPLE_MILLIS / 1000.0;
+        double maxSteer = Math.toRadians(MAX_STEER);
+        int steps = (int) (s.seconds / dt);
+        int previousTurn = 1500;
+        for (int step = 0; step < steps; step++) {
+            double sin = Math.sin(heading);
+            double cos = Math.cos(heading);
+            double half = SENSOR_DISTANCE / 2;
+            // sensor positions; the left side is toward y = 0
+            double fx = x + half * cos;
+            double rx = x - half * cos;
+            double fy = y + half * sin;
+            double ry = y - half * sin;
+            double sideX = HALF_WIDTH * sin;
+            double sideY = HALF_WIDTH * cos;
+            int LF = read(fx + sideX, fy - sideY, cos, true, s, noise);
+            int LR = read(rx + sideX, ry - sideY, cos, true, s, noise);
+            int RF = read(fx - sideX, fy + sideY, cos, false, s, noise);
+            int RR = read(rx - sideX, ry + sideY, cos, false, s, noise);
+
+            daemon.setReads(LF, RF, LR, RR);
+            daemon.updateState(false, false, false, 1300, previousTurn);
+            daemon.decide();
+            int turn = daemon.turnSuggest;
+            result.samples++;
+            if (step > 0) {
+                result.turnChangeSum += Math.abs(turn - previousTurn);
+            }
+            previousTurn = turn;
+
+            if (step * dt >= SETTLE_SECONDS) {
+                double fromWall = daemon.avgDist < 0 ? y - HALF_WIDTH : s.width - y - HALF_WIDTH;
+                double error = fromWall - target;
+                result.scored++;
+                result.errorSquares += error * error;
+                daemon.fillCarpoint(estimate, turn, 1300, false, false, clock.currentTimeMillis());
+                double headingError = estimate.theta - heading;
+                double distanceError = Math.abs(estimate.distance) - fromWall;
+                result.headingErrorSquares += headingError * headingError;
+                result.distanceErrorSquares += distanceError * distanceError;
+            }
+
+            double command = Math.max(-1.0, Math.min(1.0, (1500 - turn) / 500.0)) * maxSteer;
+            steer += (command - steer) * Math.min(1.0, dt / STEER_LAG);
+            heading += SPEED / WHEELBASE * Math.tan(steer) * dt;
+            x += SPEED * Math.cos(heading) * dt;
+            y += SPEED * Math.sin(heading) * dt;
+            clock.advance((long) SAMPLE_MILLIS);
+            if (y - HALF_WIDTH < CRASH_CLEARANCE || s.width - y - HALF_WIDTH < CRASH_CLEARANCE
+                    || Math.abs(heading) > Math.PI / 2) {
+                result.crashed = true;
+                result.crashSeconds = step * dt;
+                break;
+            }
+        }
+        return result;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    public static void main(String[] args) {
+        double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 60;
+        ControllerParams params = new ControllerParams();
+        Scenario[] scenarios = standardScenarios(seconds);
+        System.out.println("scenario,filter,wallError,headingError(deg),distanceError,meanTurnChange,crashedAt(s)");
+        for (int f = 0; f < 2; f++) {
+            Result total = new Result();
+            for (int i = 0; i < scenarios.length; i++) {
+                Result result = run(scenarios[i], params, params.idealDistance, f == 1);
+                total.add(result);
+                System.out.println((i + 1) + "," + (f == 1) + "," + round(result.getRmsError()) + ","
+                        + round(Math.toDegrees(result.getRmsHeadingError())) + "," + round(result.getRmsDistanceError())
+                        + "," + round(result.getMeanTurnChange()) + "," + (result.crashed ? "" + round(result.crashSeconds) : ""));
+            }
+            System.out.println("all," + (f == 1) + "," + round(total.getRmsError()) + ","
+                    + round(Math.toDegrees(total.getRmsHeadingError())) + "," + round(total.getRmsDistanceError()) + ","
+                    + round(total.getMeanTurnChange()) + "," + (total.crashed ? "yes" : ""));
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * Fixed-bin integer histogram. Values below min or above max land in the
+ * first or last bin. Not thread safe; LinkStats guards its histograms.
+ */
+public class Histogram {
+
+    private final int min;
+    private final int binWidth;
+    private final long[] bins;
+    private long count = 0;
+    private long sum = 0;
+
+    public Histogram(int min, int max, int binWidth) {
+        this.min = min;
+        this.binWidth = binWidth;
+        bins = new long[(max - min) / binWidth + 1];
+    }
+
+    public void add(int value) {
+        int bin = (value - min) / binWidth;
+        if (value < min) {
+            bin = 0;
+        } else if (bin >= bins.length) {
+            bin = bins.length - 1;
+        }
+        bins[bin]++;
+        count++;
+        sum += value;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        if (count == 0) {
+            return 0;
+        }
+        return (double) sum / count;
+    }
+
+    //Lower edge of the bin holding the given fraction (0..1) of all values
+    public int getPercentile(double fraction) {
+        long target = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < bins.length; i++) {
+            seen += bins[i];
+            if (seen >= target && seen > 0) {
+                return min + i * binWidth;
+            }
+        }
+        return min;
+    }
+
+    public long[] getBins() {
+        long[] copy = new long[bins.length];
+        System.arraycopy(bins, 0, copy, 0, bins.length);
+        return copy;
+    }
+
+    //Non-empty bins as "lower:count" pairs
+    public String toString() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < bins.length; i++) {
+            if (bins[i] > 0) {
+                if (out.length() > 0) {
+                    out.append(' ');
+                }
+                out.append(min + i * binWidth).append(':').append(bins[i]);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,984 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * Copy of EC544.main.IRDaemon in the car sources for ReplayEngine and
+ * ParameterSweep, with Math.atan2 for MathUtils.atan2; keep them in step.
+ * FixedIRDaemon does the same arithmetic in Q16.16 ints.
+ *
+ * @author Aaron Heuckroth
+ */
+public class IRDaemon {
+
+    /*---------------------*/
+    // Control booleans
+    /*---------------------*/
+    final boolean DYNAMIC_HALLWAY_SIZE = false;
+    final boolean ALCOVES_SUCK = false; // changed from true for 4th floor
+    final boolean DUCK_ALCOVES = false;
+    final boolean ALCOVES_SUCK_ALTERNATE = false;
+    public boolean isColliding = false;
+    public boolean takeNextLeft = false;
+    public boolean takeNextRight = false;
+    public int setSpeed;
+    public int setTurn = 1500; // the turn the car is driving with, for the WallFilter
+    int state = DriveState.FOLLOW; // of the driving state machine, see decide()
+    final double FORWARD_TIMEOUT = 1000;
+    final double REVERSE_TIMEOUT = 3000;
+    double reverse_finish_time = 0;
+    double corner_finish_time = 0;
+    double forward_finish_time = 0;
+    private Clock clock;
+    // IDEAL_DISTANCE, MAX_TURN_ANGLE, APPROACH_ANGLE, MAX_THETA_CHANGE, CORNER_TIMEOUT and CONF_1..3
+    private ControllerParams params;
+    private boolean verbose = true; // print state changes in decide
+    private TransitionLog transitionLog; // null: transitions not kept
+    private WallFilter wallFilter; // null: theta and wall distances from each sensor pair, averaged
+    private long lastFilterTime;
+    /*---------------------*/
+    // Environmental coefficients
+    /*---------------------*/
+    final double NEAR_WALL_DISTANCE = 43.0; // 
+    final double DEFAULT_HALL_SIZE = 181.0; //
+    final double CLOSE_DISTANCE = 50.0; // 
+    final double ALCOVE_DISTANCE = 110.0;
+    /*---------------------*/
+    // Car-specific coefficients 
+    /*---------------------*/
+    final int TURN_RIGHT_MAX = 1000; // 1000
+    final int TURN_LEFT_MAX = 2000; // 2000
+    final int TURN_MAX = 500; // 500
+    final double SENSOR_DISTANCE = 31.0;// 31.0
+    final double CORNER_DISTANCE = -100.0;
+    final double MAX_TURN_DISTANCE = 90.0;
+    final double MAX_TURN_FACTOR = 1.0;
+    final double MAX_DISTANCE_FACTOR = 1.0;
+    final double MAX_ANGLE_FACTOR = 1.0;
+    final double MAX_HALL_CONFIDENCE = 1.25; // if new hall distance is > 1.25 of average, beware!
+    final double MAX_CONFIDENCE_ANGLE = 35;
+    /*---------------------*/
+    // Confidence calculation coefficients
+    /*---------------------*/
+    final double CONFIDENCE_DISTANCE = 80.0;
+    final int SAMPLE_COUNT = 3; // was 3 for last functional test
+    /*---------------------*/
+    // Control coefficients
+    /*---------------------*/
+    private final double STRAIGHT_TOLERANCE = 5.0; // 5.0 in IR units
+    // Volts -> cm for the IR sensors, DistanceTable.curve() unless a calibration file replaces it
+    private static DistanceTable distanceTable = DistanceTable.fromCurve();
+    /*---------------------*/
+    //Sampling data storage variables 
+    /*---------------------*/
+    public double readingLF; // in IR units
+    public double readingRF;
+    public double readingLR;
+    public double readingRR;
+    /*---------------------*/
+    //Calculation data storage instance variables
+    public RunningWindow recentDists = new RunningWindow(SAMPLE_COUNT);
+    public RunningWindow recentTargets = new RunningWindow(SAMPLE_COUNT);
+    private RunningWindow recentHalls = new RunningWindow(SAMPLE_COUNT);
+    private RunningWindow recentThetas = new RunningWindow(SAMPLE_COUNT);
+    private int windowLength = SAMPLE_COUNT; // as set; the windows hold one sample while a wall filter runs
+    private boolean recentDistsLeft = false; // recentDists holds left-wall (negative) distances
+    protected double avgTheta;
+    private double avgHall = DEFAULT_HALL_SIZE;
+    private double sdHall = 0.0;
+    private double middleDistance = DEFAULT_HALL_SIZE / 2;
+    private boolean isLeftPreferred = true;
+    private boolean isCoasting = false;
+    private double targetDistance; // 20.0 in IR
+    protected double targetTheta = 0.0;
+    public double avgTarget;
+    public double avgDist;
+    public double thetaLeft; // angle of car in radians
+    public double thetaRight; // > 0, turned right; < 0, turned left
+    public double distanceLF; // distance left-front sensor to wall in IR units
+    public double distanceRF;
+    public double distanceLR;
+    public double distanceRR;
+    public double distanceAvgL;
+    public double distanceAvgR;
+    public double confidenceLF; // >1 implies reading is very good, <1 implies reading is less good, << 1 implies reading is bad
+    public double confidenceRF;
+    public double confidenceLR;
+    public double confidenceRR;
+    public double confidenceAvgL;
+    public double confidenceAvgR;
+    /*---------------------*/
+    // Output storage variables
+    /*---------------------*/
+    public int turnSuggest;
+    public int speedSuggest;
+
+    /*---------------------*/
+    // Constructors         
+    /*---------------------*/
+    public IRDaemon() { // for calculations only
+        this(SystemClock.INSTANCE);
+    }
+
+    //clock drives the forward, reverse and corner timeouts; see Clock
+    public IRDaemon(Clock clock) {
+        this(clock, new ControllerParams());
+    }
+
+    public IRDaemon(Clock clock, ControllerParams params) {
+        this.clock = clock;
+        this.params = params;
+        targetDistance = params.idealDistance;
+        initRecents();
+    }
+
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    //Takes effect from the next sample; params is used, not copied
+    public void setParams(ControllerParams params) {
+        this.params = params;
+    }
+
+    public ControllerParams getParams() {
+        return params;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    //Takes theta and the wall distances from filter, which replaces the averaging: the windows
+    //drop to one sample and theta is not clamped. null goes back to averaging over getWindowLength().
+    public void setWallFilter(WallFilter filter) {
+        wallFilter = filter;
+        if (filter != null) {
+            filter.reset();
+            resizeWindows(1);
+        } else {
+            resizeWindows(windowLength);
+        }
+    }
+
+    public WallFilter getWallFilter() {
+        return wallFilter;
+    }
+
+    //decide() adds each state change to log; null stops it
+    public void setTransitionLog(TransitionLog log) {
+        transitionLog = log;
+    }
+
+    public TransitionLog getTransitionLog() {
+        return transitionLog;
+    }
+
+    //The driving state, a DriveState state
+    public int getState() {
+        return state;
+    }
+
+    /*---------------------*/
+    // Pathing decisions
+    /*---------------------*/
+    //The name of decide()'s decision, as this returned before the state machine; for printing
+    public String pickDirection() {
+        return DriveState.DECISION_NAMES[decide()];
+    }
+
+    /**
+     * One sample of the driving state machine (see DriveState): sets
+     * speedSuggest and turnSuggest and returns the decision, a DriveState code.
+     * The sample's event looks the next state up in DriveState.TRANSITIONS; on
+     * a change out of a corner its exit action runs, on one into a corner its
+     * entry action, and otherwise the state's action for the sample. The
+     * forward and reverse speed timers run beside it, as before.
+     */
+    public int decide() {
+        long now = clock.currentTimeMillis();
+        if (forward_finish_time >= now && !isColliding) {
+            speedSuggest = 1300;
+        } else if (reverse_finish_time >= now) {
+            speedSuggest = 1700;
+        } else {
+            if (isColliding) {
+                isColliding = false;
+                reverse_finish_time = now + REVERSE_TIMEOUT / 2;
+                speedSuggest = 1700;
+                if (verbose) {
+                    System.out.println("Colliding, going backwards!");
+                }
+            } else {
+                speedSuggest = 1300;
+
+            }
+        }
+
+        int L = leftTrust();
+        int R = rightTrust();
+        int event = DriveState.classify(state, now >= corner_finish_time, takeNextLeft, takeNextRight, L, R);
+        if (verbose) {
+            if (state == DriveState.CORNER_LEFT) {
+                System.out.println("Cornering left!");
+            } else if (state == DriveState.CORNER_RIGHT) {
+                System.out.println("Cornering right!");
+            } else if (event == DriveState.TAKE_LEFT || event == DriveState.LEFT_OPEN) {
+                System.out.println("IR: Taking next left...");
+            } else if (event == DriveState.TAKE_RIGHT || event == DriveState.RIGHT_OPEN) {
+                System.out.println("IR: Taking next right...");
+            }
+        }
+        int next = DriveState.TRANSITIONS[state][event];
+        if (next != state) {
+            int from = state;
+            state = next;
+            if (transitionLog != null) {
+                transitionLog.add(from, next, event, now);
+            }
+            if (DriveState.isCorner(from)) {
+                return exitCorner(from);
+            } else if (DriveState.isCorner(next)) {
+                return enterCorner(next, now);
+            }
+        }
+        switch (state) {
+            case DriveState.CORNER_LEFT:
+                if (L == 1) {
+                    targetDistance = CLOSE_DISTANCE;
+                    leftTurn(targetDistance);
+                }
+                targetDistance = CORNER_DISTANCE;
+                leftCorner();
+                return DriveState.CORNERING_LEFT;
+            case DriveState.CORNER_RIGHT:
+                targetDistance = CORNER_DISTANCE;
+                rightCorner();
+                return DriveState.CORNERING_RIGHT;
+            case DriveState.APPROACH_LEFT:
+                isLeftPreferred = true;
+                targetDistance = CLOSE_DISTANCE;
+                if (L == 1) {
+                    leftDrift(targetDistance);
+                    return DriveState.DRIFT_LEFT;
+                }
+                leftTurn(targetDistance);
+                return DriveState.TURN_LEFT;
+            case DriveState.APPROACH_RIGHT:
+                isLeftPreferred = false;
+                targetDistance = CLOSE_DISTANCE;
+                if (R == 1) {
+                    rightDrift(targetDistance);
+                    return DriveState.DRIFT_RIGHT;
+                }
+                rightTurn(targetDistance);
+                return DriveState.TURN_RIGHT;
+            default:
+                return follow(L, R);
+        }
+    }
+
+    //Entry action of CORNER_LEFT or CORNER_RIGHT: full lock and the corner, reverse and forward timers
+    private int enterCorner(int corner, long now) {
+        targetDistance = CORNER_DISTANCE;
+        corner_finish_time = now + params.cornerTimeout;
+        reverse_finish_time = now + REVERSE_TIMEOUT;
+        forward_finish_time = now + FORWARD_TIMEOUT;
+        if (corner == DriveState.CORNER_LEFT) {
+            isLeftPreferred = true;
+            leftCorner();
+            return DriveState.LEFT_CORNER;
+        }
+        isLeftPreferred = false;
+        rightCorner();
+        return DriveState.RIGHT_CORNER;
+    }
+
+    //Exit action of CORNER_LEFT or CORNER_RIGHT: back to the ideal distance, the turn command spent
+    private int exitCorner(int corner) {
+        targetDistance = params.idealDistance;
+        corner_finish_time = 0;
+        if (verbose) {
+            System.out.println(corner == DriveState.CORNER_LEFT ? "Finished left corner!" : "Finished right corner!");
+        }
+        if (corner == DriveState.CORNER_LEFT) {
+            takeNextLeft = false;
+            leftTurn(targetDistance);
+            return DriveState.LEFT_CORNER_FINISH;
+        }
+        takeNextRight = false;
+        rightTurn(targetDistance);
+        return DriveState.RIGHT_CORNER_FINISH;
+    }
+
+    //FOLLOW's action: follow the wall trusted more, or the preferred one when they are even
+    private int follow(int L, int R) {
+        if (L == 0 && R == 0) {
+            return DriveState.UNKNOWN;
+        } else if (L > R) {
+            if (L == 1 && ALCOVES_SUCK) { //alcove on the right, close to right wall
+                if (DUCK_ALCOVES){
+                targetDistance = CLOSE_DISTANCE;
+                }
+                else {
+                    targetDistance = ALCOVE_DISTANCE;
+                }
+                leftDrift(targetDistance);
+                return DriveState.DRIFT_LEFT;
+            } else {
+                isLeftPreferred = true;
+                if (R == 0 && DUCK_ALCOVES) {
+                    targetDistance = CLOSE_DISTANCE;
+
+                } else {
+                    targetDistance = params.idealDistance;
+                }
+                leftTurn(targetDistance);
+                return DriveState.TRUST_LEFT;
+            }
+        } else if (R > L) {
+            //isLeftPreferred = false; // Changed for demo on 4th floor
+            if (R == 1 && ALCOVES_SUCK) {//alcove on the left, close to left wall;
+                if (DUCK_ALCOVES){
+                    targetDistance = CLOSE_DISTANCE;
+                }
+                else{
+                    targetDistance = ALCOVE_DISTANCE;
+                }
+                rightDrift(targetDistance);
+                return DriveState.DRIFT_RIGHT;
+            } else {
+                if (L == 0 && DUCK_ALCOVES) {
+                    targetDistance = CLOSE_DISTANCE;
+                } else {
+                    targetDistance = params.idealDistance;
+                }
+                rightTurn(targetDistance);
+                return DriveState.TRUST_RIGHT;
+            }
+        } else {
+            if (L >= 2 && R >= 2) {
+                if (DYNAMIC_HALLWAY_SIZE) {
+                    storeHall(calcHall(distanceAvgL, distanceAvgR));
+                }
+            }
+            if (isLeftPreferred == true) {
+                targetDistance = params.idealDistance;
+                leftTurn(targetDistance);
+                return DriveState.LEFT_PREFERRED;
+            } else {
+                targetDistance = params.idealDistance;
+                rightTurn(targetDistance);
+            }
+            return DriveState.RIGHT_PREFERRED;
+        }
+    }
+
+    /*---------------------*/
+// Housekeeping 
+    /*---------------------*/
+    public void initRecents() {
+        for (int i = 0; i < recentThetas.capacity(); i++) {
+            storeTheta(0);
+            storeTarget(0);
+            storeDistance(0);
+        }
+        for (int i = 0; i < recentHalls.capacity(); i++) {
+            storeHall(DEFAULT_HALL_SIZE);
+        }
+
+    }
+
+    //Number of samples the theta, hall, distance and target averages are taken over (SAMPLE_COUNT to start).
+    //While a wall filter runs the length is kept for when it is switched off.
+    public void setWindowLength(int samples) {
+        windowLength = Math.max(1, samples);
+        if (wallFilter == null) {
+            resizeWindows(windowLength);
+        }
+    }
+
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    private void resizeWindows(int samples) {
+        recentThetas.resize(samples);
+        recentTargets.resize(samples);
+        recentHalls.resize(samples);
+        recentDists.resize(samples);
+        avgTheta = recentThetas.getMean();
+        avgTarget = recentTargets.getMean();
+        avgHall = recentHalls.getMean();
+        sdHall = recentHalls.getStDev();
+        avgDist = recentDists.getMean();
+        updateMiddle();
+    }
+
+    public void storeTarget(double new_theta) {
+        recentTargets.add(new_theta);
+        avgTarget = recentTargets.getMean();
+
+    }
+
+    private void updateMiddle() {
+        middleDistance = avgHall;
+    }
+
+    private void updateAngles() {
+        thetaRight = calcAngle(readingRF, readingRR);
+        thetaLeft = -calcAngle(readingLF, readingLR);
+    }
+
+    private void updateDistance() {
+        distanceLF = calcDistance(readingLF, thetaLeft);
+        distanceLR = calcDistance(readingLR, thetaLeft);
+        distanceRF = calcDistance(readingRF, thetaRight);
+        distanceRR = calcDistance(readingRR, thetaRight);
+        distanceAvgL = (distanceLF + distanceLR) / 2;
+        distanceAvgR = (distanceRF + distanceRR) / 2;
+    }
+
+    private void storeTheta(double new_theta) {
+        double oldAvg = recentThetas.getMean();
+        double maxChange = degToRadians(params.maxThetaChange);
+        double maxTheta = oldAvg + maxChange;
+        double minTheta = oldAvg - maxChange;
+
+        if (wallFilter != null) {
+            // already filtered
+        } else if (new_theta >= maxTheta) {
+            new_theta = maxTheta;
+            //System.out.println("New theta too big!");
+        } else if (new_theta <= minTheta) {
+            new_theta = minTheta;
+            //System.out.println("New theta too small!");
+
+        }
+
+        recentThetas.add(new_theta);
+        avgTheta = recentThetas.getMean();
+    }
+
+    private void storeHall(double new_hall) {
+        recentHalls.add(new_hall);
+        avgHall = recentHalls.getMean();
+        sdHall = recentHalls.getStDev();
+        updateMiddle();
+    }
+
+    private void ruinLeftConfidence() {
+        confidenceAvgL = 5.0;
+        confidenceLF = 5.0;
+        confidenceLR = 5.0;
+    }
+
+    private void ruinRightConfidence() {
+        confidenceAvgR = 5.0;
+        confidenceRF = 5.0;
+        confidenceRR = 5.0;
+    }
+
+    private void updateConfidence() {
+        confidenceLF = calcConfidence(readingLF);
+        confidenceLR = calcConfidence(readingLR);
+        confidenceRF = calcConfidence(readingRF);
+        confidenceRR = calcConfidence(readingRR);
+        confidenceAvgL = (confidenceLF + confidenceLR) / 2;
+        confidenceAvgR = (confidenceRF + confidenceRR) / 2;
+        double newHallSize = calcHall(distanceAvgL, distanceAvgR);
+        //if (isTooDifferent(newHallSize, recentHalls)) {
+        //    System.out.println("Hall size change detected! Expect " + avgHall + ", saw " + newHallSize);
+        /*    if (isTooDifferent(thetaLeft, recentThetas) && !isTooDifferent(thetaRight, recentThetas)) {
+         System.out.println("ThetaLeft ("+thetaLeft+") different from avgTheta("+avgTheta+")");
+         ruinLeftConfidence();
+         }
+         else {
+         if (isTooDifferent(thetaRight, recentThetas) && !isTooDifferent(thetaLeft, recentThetas)) {
+         System.out.println("ThetaRight ("+thetaRight+") different from avgTheta("+avgTheta+")");
+
+         ruinRightConfidence();
+         }
+         }
+         */
+        if (isTooBig(thetaLeft) && !isTooBig(thetaRight) || isWayTooBig(thetaLeft)) {
+            //System.out.println("thetaLeft too big, thetaRight might be OK: " + toDegrees(thetaLeft) + " vs. " + maxConfidenceAngle);
+            ruinLeftConfidence();
+        } else if (isTooBig(thetaRight) && !isTooBig(thetaLeft) || isWayTooBig(thetaRight)) {
+            //System.out.println("ThetaRight too big, thetaLeft might be OK"  + toDegrees(thetaRight) + " vs. " + maxConfidenceAngle);
+            ruinRightConfidence();
+        }
+        //}
+    }
+
+    //With a WallFilter, replaces the per-pair angles and distances with its estimate. The
+    //control input is the turn and speed from the last updateState, what the car drove with since.
+    private void fuse() {
+        if (wallFilter == null) {
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        wallFilter.predict((now - lastFilterTime) / 1000.0, setTurn, setSpeed);
+        lastFilterTime = now;
+        wallFilter.update(readingLF, readingRF, readingLR, readingRR, confidenceLF, confidenceRF, confidenceLR, confidenceRR);
+        if (wallFilter.isInitialized()) {
+            thetaLeft = wallFilter.getHeading();
+            thetaRight = thetaLeft;
+            distanceAvgL = wallFilter.getLeftDistance();
+            distanceAvgR = wallFilter.getRightDistance();
+        }
+    }
+
+    /*---------------------*/
+    // Input
+    /*---------------------*/
+    public void updateReads(double LF_volts, double RF_volts, double LR_volts, double RR_volts) {
+        readingLF = getDistance(LF_volts);
+        readingRF = getDistance(RF_volts);
+        readingLR = getDistance(LR_volts);
+        readingRR = getDistance(RR_volts);
+
+        updateAngles();
+        updateDistance();
+        updateConfidence();
+        fuse();
+    }
+
+    //Takes it that the car is driving with the last turnSuggest
+    public void updateState(boolean collide, boolean leftTurn, boolean rightTurn, int speed) {
+        updateState(collide, leftTurn, rightTurn, speed, turnSuggest);
+    }
+
+    public void updateState(boolean collide, boolean leftTurn, boolean rightTurn, int speed, int turn) {
+        isColliding = collide;
+        takeNextLeft = leftTurn;
+        takeNextRight = rightTurn;
+        setSpeed = speed;
+        setTurn = turn;
+    }
+
+    /*---------------------*/
+    // Output
+    /*---------------------*/
+    public CarPoint getCarpoint(int turn, int setSpeed, boolean startTurn, boolean stopTurn, double time) {
+        CarPoint cp = new CarPoint();
+        fillCarpoint(cp, turn, setSpeed, startTurn, stopTurn, time);
+        return cp;
+    }
+
+    //Same as getCarpoint, but overwrites cp instead of allocating a new point
+    public void fillCarpoint(CarPoint cp, int turn, int setSpeed, boolean startTurn, boolean stopTurn, double time) {
+        cp.time = time;
+        cp.LF = (float) readingLF;
+        cp.RF = (float) readingRF;
+        cp.LR = (float) readingLR;
+        cp.RR = (float) readingRR;
+        cp.distRight = (float) distanceAvgR;
+        cp.distLeft = (float) distanceAvgL;
+        cp.LT = (float) calcTrust(confidenceLF, confidenceLR);
+        cp.RT = (float) calcTrust(confidenceRF, confidenceRR);
+        cp.thetaRight = (float) thetaRight;
+        cp.thetaLeft = (float) thetaLeft;
+        cp.theta = (float) avgTheta;
+        cp.distance = (float) avgDist; // arbitrary for simulated data
+        cp.turn = (float) turn;
+        cp.velocity = (float) setSpeed;
+        cp.targetDist = (float) targetDistance;
+        if (startTurn) {
+            cp.startTurn = 1.0f;
+        } else {
+            cp.startTurn = 0.0f;
+        }
+        if (stopTurn) {
+            cp.stopTurn = 1.0f;
+        } else {
+            cp.stopTurn = 0.0f;
+        }
+        cp.targetTheta = (float) avgTarget;
+    }
+
+    //Same as getSmallPoint, but overwrites out instead of allocating a new point.
+    //The booleans go by SmallPointCodec flag index, which the host's SmallPoint names differently.
+    public void fillSmallPoint(SmallPoint out, int turnSetting, int speedSetting, double time) {
+        out.leftFront = SmallPoint.readToInt(readingLF);
+        out.rightFront = SmallPoint.readToInt(readingRF);
+        out.leftRear = SmallPoint.readToInt(readingLR);
+        out.rightRear = SmallPoint.readToInt(readingRR);
+        out.setTurn = turnSetting;
+        out.setSpeed = speedSetting;
+        out.setFlag(0, isColliding);
+        out.setFlag(1, takeNextLeft);
+        out.setFlag(2, takeNextRight);
+        out.setFlag(3, state == DriveState.CORNER_LEFT);
+        out.setFlag(4, state == DriveState.CORNER_RIGHT);
+        out.setFlag(5, false);
+        out.time = time;
+    }
+
+    //Assumes all boolean smallPoint variables are false.
+    public SmallPoint getSmallPoint(int turnSetting, int speedSetting, double time) {
+        SmallPoint out = new SmallPoint();
+        fillSmallPoint(out, turnSetting, speedSetting, time);
+        if (!out.isASmallPoint()) {
+            System.out.println("Created an invalid SmallPoint!" + out.booleansToUnsignedInt());
+        }
+        return out;
+    }
+
+    public void report() {
+
+        System.out.println("Distance from left wall: " + -distanceAvgL + ", confidence: " + confidenceAvgL);
+
+        System.out.println("Distance from right wall: " + distanceAvgR + ", confidence: " + confidenceAvgR);
+        System.out.println("Average distance: " + avgDist);
+        //System.out.println("Average hall size:" + avgHall);
+        //System.out.println("Estimated hall size: " + calcHall(distanceAvgL, distanceAvgR));
+        System.out.println("Theta Left (deg): " + toDegrees(thetaLeft));
+        System.out.println("Theta Right (deg): " + toDegrees(thetaRight));
+        System.out.println("Theta average: " + toDegrees(avgTheta));
+        System.out.println("Calculated target theta: " + toDegrees(targetTheta));
+        //System.out.println("Calculated target turn: " + turnSuggest);
+    }
+
+    /*---------------------*/
+    // Static Calculations
+    /*---------------------*/
+    public static double stDev(double[] data) {
+        double sdSum = 0.0;
+        double avg = average(data);
+        for (int i = 0; i < data.length; i++) {
+            double diff = data[i] - avg;
+            sdSum += (diff * diff);
+        }
+        return (Math.sqrt(sdSum / data.length));
+    }
+
+    private static double average(double[] data) {
+        double sum = 0.0;
+        for (int i = 0; i < data.length; i++) {
+            sum += data[i];
+        }
+        return sum / data.length;
+    }
+
+    public static double degToRadians(double theta_deg) {
+        return theta_deg * .0174532925;
+    }
+
+    //Used to convert old distance calculations back to raw reads, from "IR" values
+    public static double getOldVolts(double old_distance_value) {
+        return (18.67 / old_distance_value) - 0.167;
+    }
+
+    //Volts -> centimeters for analog IR readings, through distanceTable
+    public static double getDistance(double volts) {
+        return distanceTable.lookup(volts);
+    }
+
+    //Replaces the table getDistance uses, e.g. with one from a calibration file
+    public static void setDistanceTable(DistanceTable table) {
+        distanceTable = table;
+    }
+
+    private static double toDegrees(double thetaRad) {
+        return thetaRad * 57.2957795;
+    }
+
+    /*---------------------*/
+    // Internal Calculations
+    /*---------------------*/
+    public double calcIdealTheta(double set_distance, double current_distance) {//29,30
+        double distanceDifference = current_distance - set_distance;//31
+        double distanceRatio = distanceDifference / MAX_TURN_DISTANCE;
+        if (distanceRatio > MAX_DISTANCE_FACTOR) {
+            distanceRatio = MAX_DISTANCE_FACTOR;
+        } else if (distanceRatio < -MAX_DISTANCE_FACTOR) {
+            distanceRatio = -MAX_DISTANCE_FACTOR;
+        }
+        double thetaMagnitude = degToRadians(params.approachAngle * distanceRatio); // convert to radians for consistency
+        targetTheta = thetaMagnitude;
+        return thetaMagnitude;
+    }
+
+    public int calcTurn(double set_theta_rad, double current_theta_rad) {
+        double thetaDiff = toDegrees(set_theta_rad) - toDegrees(current_theta_rad);
+        double thetaRatio = thetaDiff / params.maxTurnAngle;
+        if (thetaRatio > MAX_ANGLE_FACTOR) {
+            thetaRatio = MAX_ANGLE_FACTOR;
+        } else if (thetaRatio < -MAX_ANGLE_FACTOR) {
+            thetaRatio = -MAX_ANGLE_FACTOR;
+        }
+        int turn;
+        if (setSpeed <= 1500) {
+            turn = (int) (1500 - (TURN_MAX * thetaRatio));
+        } else {
+            turn = (int) (1500 + (TURN_MAX * thetaRatio));
+        }
+        return turn;
+    }
+
+    public int calcIdealTurn(double set_distance, double current_distance, double current_theta) {
+        double set_theta = calcIdealTheta(set_distance, current_distance);
+        return calcTurn(set_theta, current_theta);
+    }
+
+    //recentDists holds distances from one wall, negative for the left. When the
+    //car switches walls the whole window is re-expressed from the new one.
+    private void storeDistance(double new_dist) {
+        boolean left = new_dist < 0;
+        if (left != recentDistsLeft) {
+            recentDists.shift(left ? -avgHall : avgHall);
+            recentDistsLeft = left;
+        }
+        recentDists.add(new_dist);
+        avgDist = recentDists.getMean();
+    }
+
+    private double calcHall(double left_distance, double right_distance) {
+        return (left_distance + right_distance);
+    }
+
+    private int calcTurnFromDistance(double current_distance, double desired_distance) {
+        //System.out.println(current_distance + " away, want to be " + desired_distance);
+        int turn;
+        double distanceDifference = Math.abs(Math.abs(current_distance) - Math.abs(desired_distance));
+        //System.out.println("Distance Difference: " + distanceDifference);
+        double turnRatio = distanceDifference / MAX_TURN_DISTANCE;
+        double turnFactor = turnRatio * turnRatio; // squared, so that larger difference == exponentially larger turn
+
+        //System.out.println("Turn factor: " + turnFactor);
+        if (turnFactor > MAX_TURN_FACTOR) {
+            turnFactor = MAX_TURN_FACTOR; // max is 2.0
+            //System.out.println("Turn factor clipped to: " + turnFactor );
+        }
+        turn = 50 + (int) (450 * turnFactor); // 
+        //System.out.println("Calculated turn:" + turn);
+        return turn;
+    }
+
+    private int calcTurnFromAngle(double current_angle_rad, double desired_angle_rad) {
+        double currentAngle = Math.abs(toDegrees(current_angle_rad));
+        double desiredAngle = Math.abs(toDegrees(desired_angle_rad));
+        //System.out.println(currentAngle + " is current angle, want to be " + desiredAngle);
+
+        int turn;
+        double angleDifference = Math.abs(currentAngle - desiredAngle);
+        //       System.out.println("Angle Difference: " + angleDifference);
+
+        double turnRatio = (angleDifference / params.maxTurnAngle);
+        double turnFactor = turnRatio * turnRatio; // squared, so that larger difference == exponentially larger turn
+
+        //System.out.println("Turn factor: " + turnFactor);
+        if (turnFactor > MAX_TURN_FACTOR) {
+            turnFactor = MAX_TURN_FACTOR;
+            //              System.out.println("Turn factor clipped to: " + turnFactor );
+
+        }
+        turn = 50 + (int) (450 * turnFactor);
+        //    System.out.println("Calculated turn:" + turn);
+        //System.out.println("Calculated ideal turn of: " + turn);
+        return turn;
+    }
+
+    private int calcTrust(double confFront, double confBack) {
+        double lesser;
+        if (confFront <= confBack) {
+            lesser = confFront;
+        } else {
+            lesser = confBack;
+        }
+
+        if (lesser < params.conf3) {
+            return 3;
+        } else if (lesser < params.conf2) {
+            return 2;
+        }
+        if (lesser < params.conf1) {
+            return 1;
+        } else {
+            return 0;
+        }
+
+    }
+
+    protected int leftTrust() {
+        int trust = calcTrust(confidenceLF, confidenceLR);
+        //System.out.println("Left trust:" + trust);
+        return trust;
+
+    }
+
+    protected int rightTrust() {
+        int trust = calcTrust(confidenceRF, confidenceRR);
+        //System.out.println("Right trust:" + trust);
+        return trust;
+    }
+
+    public void leftTurn(double set_distance) {
+        //System.out.println("Turning left, set distance: " + set_distance + ", flipping to " + -set_distance);
+        set_distance = -set_distance;
+        //System.out.println("recents: " + recentDists);
+        //System.out.println("averages: " + avgDist);
+        //System.out.println("storing left value:" );
+        storeTheta(thetaLeft);
+        //System.out.println("recents: " + recentDists);
+        //System.out.println("averages: " + avgDist);
+        storeDistance(-distanceAvgL);
+        storeTarget(calcIdealTheta(set_distance, avgDist));
+        turnSuggest = calcTurn(avgTarget, avgTheta);
+    }
+
+    //Turn toward right wall (since distance will be high), but do not update theta average
+    public void rightDrift(double set_distance) {
+        //Do not store theta -- don't trust the right value!
+        storeDistance(distanceAvgR);
+        storeTarget(calcIdealTheta(set_distance, avgDist));
+        turnSuggest = calcTurn(avgTarget, avgTheta);
+    }
+
+    //Turn toward right wall (since distance will be high), but do not update theta average
+    public void leftDrift(double set_distance) {
+        set_distance = -set_distance;
+        //Do not store theta -- don't trust the right value!
+        storeDistance(distanceAvgL);
+        storeTarget(calcIdealTheta(set_distance, avgDist));
+        turnSuggest = calcTurn(avgTarget, avgTheta);
+
+    }
+
+    public void leftCorner() {
+        storeDistance(distanceAvgL);
+        if (setSpeed > 1500) {
+            turnSuggest = TURN_RIGHT_MAX;
+        } else {
+            turnSuggest = TURN_LEFT_MAX;
+        }
+
+    }
+
+    public void rightCorner() {
+        storeDistance(distanceAvgR);
+        if (setSpeed > 1500) {
+            turnSuggest = TURN_LEFT_MAX;
+        } else {
+            turnSuggest = TURN_RIGHT_MAX;
+        }
+
+    }
+
+    public void rightTurn(double set_distance) {
+        //System.out.println("Turning right, set distance: " + set_distance);
+        storeTheta(thetaRight);
+        storeDistance(distanceAvgR);
+        storeTarget(calcIdealTheta(set_distance, avgDist));
+        turnSuggest = calcTurn(avgTarget, avgTheta);
+    }
+
+    private double calcConfidence(double reading) {
+        return reading / CONFIDENCE_DISTANCE;
+    }
+
+    private double calcDistance(double reading, double theta) {
+        return Math.cos(theta) * reading;
+    }
+
+    private double calcAngle(double readingFront, double readingBack) {
+        return Math.atan2((readingBack - readingFront), SENSOR_DISTANCE);
+    }
+
+    /*---------------------*/
+    // State-checking booleans
+    /*---------------------*/
+    private boolean isCloseToWall(double distance) {
+        if ((Math.abs(distance) < NEAR_WALL_DISTANCE)) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private boolean isFarFromWall(double distance) {
+        if ((Math.abs(distance) > NEAR_WALL_DISTANCE)) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private boolean isStraight(double theta_rad) {
+        double theta = toDegrees(theta_rad);
+        if (Math.abs(theta) <= STRAIGHT_TOLERANCE) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private boolean isTurnedLeft(double theta_rad) {
+        double theta = toDegrees(theta_rad);
+        if (theta >= 0) {
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    private boolean isTurnedRight(double theta_rad) {
+        double theta = toDegrees(theta_rad);
+        if (theta <= 0) {
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    private boolean isTooBig(double theta_rad) {
+        double theta_deg = toDegrees(theta_rad);
+        if (theta_deg > MAX_CONFIDENCE_ANGLE || theta_deg < -MAX_CONFIDENCE_ANGLE) {
+            return true;
+        } else {
+            return false;
+        }
+
+    }
+
+    private boolean isWayTooBig(double theta_rad) {
+        double theta_deg = toDegrees(theta_rad);
+        if (theta_deg > MAX_CONFIDENCE_ANGLE + 15 || theta_deg < -MAX_CONFIDENCE_ANGLE - 15) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    public void setReads(int newLF, int newRF, int newLR, int newRR) {
+        readingLF = newLF;
+        readingRF = newRF;
+        readingRR = newRR;
+        readingLR = newLR;
+        updateAngles();
+        updateDistance();
+        updateConfidence();
+        fuse();
+    }
+
+    private boolean isTooDifferent(double currentValue, RunningWindow recentValues) {
+        double sd = recentValues.getStDev();
+        double avg = recentValues.getMean();
+        if (sd == 0) {
+            sd = avg / 4; // in case the arrays have dummy values!
+        }
+
+        if (currentValue > (avg + sd * 2) || currentValue < (avg - sd * 2)) {
+            return true;
+        } else {
+            return false;
+        }
+    }
+}
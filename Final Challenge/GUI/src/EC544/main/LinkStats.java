@@ -0,0 +1,208 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.IOException;
+
+/**
+ * Radio link statistics for one car.
+ *
+ * CarDataReceiver's IPacketQualityListener feeds packet() with the RSSI,
+ * correlation and LQI of every radio packet the car sends. Those go into
+ * histograms, along with the packet rate and an RFC 3550 style jitter: a
+ * running average (gain 1/16) of how far each inter-arrival time is from
+ * the smoothed inter-arrival time. Cars send a frame of samples every few
+ * hundred ms, or as soon as it fills, so packets have no fixed period of
+ * their own.
+ *
+ * The car stamps every SmallPoint, and NodeStream passes the time between
+ * consecutive points to sampleGap(). A gap of n expected sample periods
+ * means n - 1 samples never arrived; a lost frame shows up as all of its
+ * samples. A car that only sends the samples that changed (sparse frames,
+ * see SmallPointCodec) numbers its frames instead, and frameSequence()
+ * counts each missing number as one lost frame; from then on gaps between
+ * samples are not counted as losses. Low loss with a falling packet rate means
+ * the car's loop is slow. High loss with poor RSSI/LQI, or high jitter,
+ * means the radio is the limit.
+ *
+ * All methods but writeSnapshot are synchronized, and it only holds the lock
+ * while it copies; they are called from the radio thread, the car's writer
+ * thread and JMX.
+ */
+public class LinkStats implements LinkStatsMBean {
+
+    private final String address;
+    private final double expectedPeriodMillis;
+    private final Histogram rssi = new Histogram(-128, 127, 8);
+    private final Histogram lqi = new Histogram(0, 255, 16);
+    private final Histogram corr = new Histogram(0, 127, 8);
+    private long packets = 0;
+    private long lastArrival = 0;
+    private double smoothedInterArrival = 0;
+    private double jitter = 0;
+    private long points = 0;
+    private long lost = 0;
+    private boolean sparse = false; // the car sends numbered sparse frames
+    private int lastSequence = -1;
+    private long frames = 0; // sparse frames received
+    // Sums since the last snapshot
+    private int snapPackets = 0;
+    private int snapLost = 0;
+    private long snapRssi = 0;
+    private long snapLqi = 0;
+    private long snapCorr = 0;
+
+    public LinkStats(String address, double expectedPeriodMillis) {
+        this.address = address;
+        this.expectedPeriodMillis = expectedPeriodMillis;
+    }
+
+    public synchronized void packet(int packetRssi, int packetCorr, int packetLqi) {
+        long now = System.nanoTime();
+        rssi.add(packetRssi);
+        corr.add(packetCorr);
+        lqi.add(packetLqi);
+        if (lastArrival != 0) {
+            double interArrival = (now - lastArrival) / 1000000.0;
+            if (smoothedInterArrival == 0) {
+                smoothedInterArrival = interArrival;
+            }
+            jitter += (Math.abs(interArrival - smoothedInterArrival) - jitter) / 16;
+            smoothedInterArrival += (interArrival - smoothedInterArrival) / 16;
+        }
+        lastArrival = now;
+        packets++;
+        snapPackets++;
+        snapRssi += packetRssi;
+        snapLqi += packetLqi;
+        snapCorr += packetCorr;
+    }
+
+    //Time between two consecutive SmallPoints from this car, by the car's clock
+    public synchronized void sampleGap(double gapMillis) {
+        points++;
+        if (!sparse && gapMillis > expectedPeriodMillis * 1.5) {
+            long missing = Math.round(gapMillis / expectedPeriodMillis) - 1;
+            lost += missing;
+            snapLost += missing;
+        }
+    }
+
+    //Number of a sparse frame from this car, 0..255 and wrapping. A frame numbered behind the last one
+    //arrived late, through another port, and takes back one of the frames counted lost.
+    public synchronized void frameSequence(int sequence) {
+        sparse = true;
+        frames++;
+        if (lastSequence >= 0) {
+            int missing = (sequence - lastSequence - 1) & 0xFF;
+            if (missing >= 128) {
+                if (lost > 0) {
+                    lost--;
+                    snapLost = Math.max(0, snapLost - 1);
+                }
+                return;
+            }
+            lost += missing;
+            snapLost += missing;
+        }
+        lastSequence = sequence;
+    }
+
+    //Appends a TYPE_LINK record covering the time since the previous snapshot, then starts a new interval.
+    //The figures are taken under the lock and written after it, so the receive threads never wait on the disk.
+    public void writeSnapshot(SegmentedLogWriter logger) throws IOException {
+        int packetCount;
+        int lostCount;
+        int meanRssi = 0;
+        int meanLqi = 0;
+        int meanCorr = 0;
+        int jitterMillis;
+        synchronized (this) {
+            packetCount = snapPackets;
+            lostCount = snapLost;
+            if (snapPackets > 0) {
+                meanRssi = (int) (snapRssi / snapPackets);
+                meanLqi = (int) (snapLqi / snapPackets);
+                meanCorr = (int) (snapCorr / snapPackets);
+            }
+            jitterMillis = (int) Math.round(jitter);
+            snapPackets = 0;
+            snapLost = 0;
+            snapRssi = 0;
+            snapLqi = 0;
+            snapCorr = 0;
+        }
+        logger.appendLink(System.currentTimeMillis(), packetCount, lostCount, meanRssi, meanLqi, meanCorr, jitterMillis);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public synchronized long getPackets() {
+        return packets;
+    }
+
+    //Estimated from the smoothed inter-arrival time, falling off once packets stop arriving
+    public synchronized double getPacketsPerSecond() {
+        if (lastArrival == 0 || smoothedInterArrival == 0) {
+            return 0;
+        }
+        double sinceLast = (System.nanoTime() - lastArrival) / 1000000.0;
+        return 1000.0 / Math.max(smoothedInterArrival, sinceLast);
+    }
+
+    public synchronized double getMeanInterArrivalMillis() {
+        return smoothedInterArrival;
+    }
+
+    public synchronized double getJitterMillis() {
+        return jitter;
+    }
+
+    public synchronized long getLostPackets() {
+        return lost;
+    }
+
+    public synchronized double getLossRate() {
+        long received = sparse ? frames : points;
+        if (received + lost == 0) {
+            return 0;
+        }
+        return (double) lost / (received + lost);
+    }
+
+    public synchronized double getMeanRssi() {
+        return rssi.getMean();
+    }
+
+    public synchronized double getMeanLinkQuality() {
+        return lqi.getMean();
+    }
+
+    public synchronized double getMeanCorrelation() {
+        return corr.getMean();
+    }
+
+    public synchronized String getRssiHistogram() {
+        return rssi.toString();
+    }
+
+    public synchronized String getLinkQualityHistogram() {
+        return lqi.toString();
+    }
+
+    public synchronized String getCorrelationHistogram() {
+        return corr.toString();
+    }
+
+    public synchronized String statusReport() {
+        return "  link: " + packets + " packets, " + Math.round(getPacketsPerSecond() * 10) / 10.0 + " pkt/s, jitter "
+                + Math.round(jitter) + " ms, " + lost + " lost (" + Math.round(getLossRate() * 1000) / 10.0
+                + "%), RSSI mean " + Math.round(rssi.getMean()) + " p10 " + rssi.getPercentile(0.1)
+                + ", LQI mean " + Math.round(lqi.getMean()) + " p10 " + lqi.getPercentile(0.1)
+                + ", corr mean " + Math.round(corr.getMean()) + "\n";
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * JMX view of one car's LinkStats, registered as
+ * EC544:type=Link,name=&lt;address&gt; (browse it with jconsole).
+ */
+public interface LinkStatsMBean {
+
+    public String getAddress();
+
+    public long getPackets();
+
+    public double getPacketsPerSecond();
+
+    public double getMeanInterArrivalMillis();
+
+    public double getJitterMillis();
+
+    public long getLostPackets();
+
+    public double getLossRate();
+
+    public double getMeanRssi();
+
+    public double getMeanLinkQuality();
+
+    public double getMeanCorrelation();
+
+    public String getRssiHistogram();
+
+    public String getLinkQualityHistogram();
+
+    public String getCorrelationHistogram();
+
+    public String statusReport();
+}
@@ -0,0 +1,100 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * One car's live telemetry for LiveServer: a downsampled history of the whole
+ * session plus a queue per connected browser.
+ *
+ * The history holds at most HISTORY_SIZE rows. When it fills up every other
+ * row is dropped and from then on only every stride-th point is kept, with
+ * stride doubling each time, so it always spans the whole session in the
+ * same memory. A browser that connects gets the history first and then every
+ * new point, with nothing missed or repeated in between.
+ *
+ * publish() is called by the car's writer thread and never blocks: a browser
+ * that stops reading loses points from its own full queue instead of holding
+ * up the writer.
+ */
+public class LiveChannel {
+
+    public static final String HEADER = "time,LF,RF,LR,RR,setTurn,setSpeed";
+    private static final int HISTORY_SIZE = 1000;
+    private static final int CLIENT_QUEUE = 1024;
+    private final String name;
+    private final String[] history = new String[HISTORY_SIZE];
+    private int historyCount = 0;
+    private long stride = 1;
+    private long published = 0;
+    private final ArrayList<BlockingQueue<String>> clients = new ArrayList<BlockingQueue<String>>();
+    private long clientDrops = 0;
+
+    public LiveChannel(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized void publish(SmallPoint sp) {
+        boolean keep = published % stride == 0;
+        published++;
+        if (!keep && clients.isEmpty()) {
+            return;
+        }
+        String row = format(sp);
+        if (keep) {
+            if (historyCount == HISTORY_SIZE) {
+                for (int i = 0; i < HISTORY_SIZE / 2; i++) {
+                    history[i] = history[i * 2];
+                }
+                for (int i = HISTORY_SIZE / 2; i < HISTORY_SIZE; i++) {
+                    history[i] = null;
+                }
+                historyCount = HISTORY_SIZE / 2;
+                stride *= 2;
+            }
+            history[historyCount++] = row;
+        }
+        for (int i = 0; i < clients.size(); i++) {
+            if (!clients.get(i).offer(row)) {
+                clientDrops++;
+            }
+        }
+    }
+
+    private static String format(SmallPoint sp) {
+        StringBuilder row = new StringBuilder(48);
+        row.append((long) sp.time).append(',');
+        row.append(sp.leftFront).append(',').append(sp.rightFront).append(',');
+        row.append(sp.leftRear).append(',').append(sp.rightRear).append(',');
+        row.append(sp.setTurn).append(',').append(sp.setSpeed);
+        return row.toString();
+    }
+
+    //Registers a new browser; the history so far is copied into history before any live row reaches the queue
+    public synchronized BlockingQueue<String> subscribe(ArrayList<String> historyOut) {
+        for (int i = 0; i < historyCount; i++) {
+            historyOut.add(history[i]);
+        }
+        BlockingQueue<String> queue = new ArrayBlockingQueue<String>(CLIENT_QUEUE);
+        clients.add(queue);
+        return queue;
+    }
+
+    public synchronized void unsubscribe(BlockingQueue<String> queue) {
+        clients.remove(queue);
+    }
+
+    public synchronized String statusReport() {
+        return "  live: " + clients.size() + " viewers, history " + historyCount + " rows (1 in " + stride
+                + "), " + clientDrops + " rows dropped for slow viewers\n";
+    }
+}
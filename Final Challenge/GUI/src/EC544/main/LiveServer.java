@@ -0,0 +1,231 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small HTTP server that pushes live telemetry to index.html with
+ * Server-Sent Events, so the page no longer re-downloads a growing CSV file.
+ *
+ * <pre>
+ * GET /events[?car=address]  text/event-stream for one car (default: the first car seen).
+ *                            First a "history" event with the downsampled session so far,
+ *                            then one event per write-out with the new rows.
+ * GET /cars                  the addresses of the cars heard so far, one per line
+ * GET /name                  index.html, dygraph-combined.js and other files in the
+ *                            working directory
+ * </pre>
+ *
+ * Each row is "time,LF,RF,LR,RR,setTurn,setSpeed" (LiveChannel.HEADER). One
+ * thread per connection; each viewer costs the writer threads one queue
+ * offer per point and nothing else.
+ */
+public class LiveServer {
+
+    private static final long KEEPALIVE_MILLIS = 15 * 1000;
+    private final int port;
+    private final CopyOnWriteArrayList<LiveChannel> channels = new CopyOnWriteArrayList<LiveChannel>();
+
+    public LiveServer(int port) {
+        this.port = port;
+    }
+
+    //Creates the channel for a new car; NodeRegistry calls this as cars appear
+    public LiveChannel addChannel(String name) {
+        LiveChannel channel = new LiveChannel(name);
+        channels.add(channel);
+        return channel;
+    }
+
+    private LiveChannel findChannel(String name) {
+        for (LiveChannel channel : channels) {
+            if (name == null || channel.getName().equalsIgnoreCase(name)) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    public void start() {
+        new Thread("live-server") {
+            public void run() {
+                try {
+                    ServerSocket server = new ServerSocket(port);
+                    System.out.println("Live telemetry on http://localhost:" + port + "/index.html");
+                    while (true) {
+                        final Socket client = server.accept();
+                        new Thread("live-client") {
+                            public void run() {
+                                serve(client);
+                            }
+                        }.start();
+                    }
+                } catch (IOException ex) {
+                    System.out.println("IOException " + ex + " in live server on port " + port);
+                }
+            }
+        }.start();
+    }
+
+    private void serve(Socket client) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+            String request = in.readLine();
+            String line;
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                // headers are not needed
+            }
+            if (request == null) {
+                return;
+            }
+            String[] parts = request.split(" ");
+            OutputStream out = client.getOutputStream();
+            if (parts.length < 2 || !parts[0].equals("GET")) {
+                respond(out, "405 Method Not Allowed", "text/plain", "GET only\n".getBytes("US-ASCII"));
+                return;
+            }
+            String path = parts[1];
+            String query = "";
+            int question = path.indexOf('?');
+            if (question >= 0) {
+                query = path.substring(question + 1);
+                path = path.substring(0, question);
+            }
+            if (path.equals("/events")) {
+                stream(client, out, parameter(query, "car"));
+            } else if (path.equals("/cars")) {
+                StringBuilder list = new StringBuilder();
+                for (LiveChannel channel : channels) {
+                    list.append(channel.getName()).append('\n');
+                }
+                respond(out, "200 OK", "text/plain", list.toString().getBytes("US-ASCII"));
+            } else {
+                sendFile(out, path.equals("/") ? "index.html" : path.substring(1));
+            }
+        } catch (IOException ex) {
+            // viewer went away
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    private static String parameter(String query, String key) throws UnsupportedEncodingException {
+        String[] pairs = query.split("&");
+        for (int i = 0; i < pairs.length; i++) {
+            if (pairs[i].startsWith(key + "=")) {
+                return URLDecoder.decode(pairs[i].substring(key.length() + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private void stream(Socket client, OutputStream out, String car) throws IOException {
+        LiveChannel channel = findChannel(car);
+        if (channel == null) {
+            respond(out, "404 Not Found", "text/plain", "No such car yet\n".getBytes("US-ASCII"));
+            return;
+        }
+        client.setTcpNoDelay(true);
+        out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\n"
+                + "Access-Control-Allow-Origin: *\r\nConnection: keep-alive\r\n\r\nretry: 2000\n\n").getBytes("US-ASCII"));
+        ArrayList<String> rows = new ArrayList<String>();
+        BlockingQueue<String> queue = channel.subscribe(rows);
+        try {
+            StringBuilder event = new StringBuilder();
+            event.append("event: history\ndata: ").append(LiveChannel.HEADER).append('\n');
+            appendRows(event, rows);
+            send(out, event);
+            while (true) {
+                rows.clear();
+                String first = queue.poll(KEEPALIVE_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    event.append(": keepalive\n\n");
+                    out.write(event.toString().getBytes("US-ASCII"));
+                    out.flush();
+                    event.setLength(0);
+                    continue;
+                }
+                rows.add(first);
+                queue.drainTo(rows);
+                appendRows(event, rows);
+                send(out, event);
+            }
+        } catch (InterruptedException ex) {
+            // shutting down
+        } finally {
+            channel.unsubscribe(queue);
+        }
+    }
+
+    //Everything queued since the last write goes out as one event, one data line per row
+    private static void appendRows(StringBuilder event, ArrayList<String> rows) {
+        for (int i = 0; i < rows.size(); i++) {
+            event.append("data: ").append(rows.get(i)).append('\n');
+        }
+    }
+
+    private static void send(OutputStream out, StringBuilder event) throws IOException {
+        event.append('\n');
+        out.write(event.toString().getBytes("US-ASCII"));
+        out.flush();
+        event.setLength(0);
+    }
+
+    //Serves a plain file from the working directory; no subdirectories, so nothing else is reachable
+    private static void sendFile(OutputStream out, String name) throws IOException {
+        File file = new File(name);
+        if (name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.startsWith(".") || !file.isFile()) {
+            respond(out, "404 Not Found", "text/plain", "Not found\n".getBytes("US-ASCII"));
+            return;
+        }
+        byte[] body = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < body.length) {
+                int n = in.read(body, read, body.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        String type = "text/plain";
+        if (name.endsWith(".html")) {
+            type = "text/html";
+        } else if (name.endsWith(".js")) {
+            type = "application/javascript";
+        } else if (name.endsWith(".csv")) {
+            type = "text/csv";
+        }
+        respond(out, "200 OK", type, body);
+    }
+
+    private static void respond(OutputStream out, String status, String type, byte[] body) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Type: " + type + "\r\nContent-Length: " + body.length
+                + "\r\nAccess-Control-Allow-Origin: *\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+        out.write(body);
+        out.flush();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.locks.LockSupport;
+import javax.microedition.io.Datagram;
+import javax.microedition.io.DatagramConnection;
+
+/**
+ * Sends synthetic SPOT traffic through LoopbackRadio at a fixed rate, to find
+ * how many packets per second a host app can keep up with.
+ *
+ * <pre>
+ * LoadGenerator smallpoint &lt;port&gt; &lt;pkt/s&gt; &lt;seconds&gt; [sources]   CarDataReceiver telemetry
+ * LoadGenerator batch      &lt;port&gt; &lt;pkt/s&gt; &lt;seconds&gt; [sources]   the same, BATCH_POINTS samples per frame
+ * LoadGenerator temp       &lt;port&gt; &lt;pkt/s&gt; &lt;seconds&gt; [sources]   TempsensorHostApplication readings
+ * LoadGenerator rssi       &lt;port&gt; &lt;pkt/s&gt; &lt;seconds&gt; [sources]   LocalizationHostApplication beacons
+ * LoadGenerator sink       &lt;port&gt; &lt;seconds&gt;                       counts what an app sends, e.g. commands
+ * </pre>
+ *
+ * Run it with the same -Dec544.transport as the app (udp if unset). With
+ * -Dec544.transport=memory the app has to share the JVM: pass its main class
+ * as -Dec544.load.app=EC544.main.CarDataReceiver and it is started first.
+ *
+ * Packets are spread round-robin over the given number of sources
+ * (0014.4F01.0000.0001 up), each with its own increasing timestamps and a
+ * wandering RSSI. Add those addresses to keys.txt for the temperature app.
+ * The sent rate is printed every second; compare it with what the app
+ * reports to see where it starts dropping.
+ */
+public class LoadGenerator {
+
+    private static final long FIRST_SOURCE = 0x00144F0100000001L;
+    private static final long REPORT_NANOS = 1000000000L;
+    // Packets are sent in bursts of whatever is due, waking up at most this often
+    private static final long TICK_NANOS = 200 * 1000L;
+    private static final SmallPoint point = new SmallPoint();
+    private static final int BATCH_POINTS = 5;
+    private static final byte[] frame = new byte[SmallPointCodec.BATCH_HEADER + BATCH_POINTS * SmallPointCodec.BATCH_SAMPLE];
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: LoadGenerator <smallpoint|batch|temp|rssi> <port> <pkt/s> <seconds> [sources]");
+            System.out.println("       LoadGenerator sink <port> <seconds>");
+            return;
+        }
+        if (System.getProperty("ec544.transport") == null) {
+            System.setProperty("ec544.transport", "udp");
+        }
+        startApp(System.getProperty("ec544.load.app"));
+        String kind = args[0];
+        int port = Integer.parseInt(args[1]);
+        if (kind.equals("sink")) {
+            sink(port, Integer.parseInt(args[2]));
+        } else {
+            int sources = 1;
+            if (args.length > 4) {
+                sources = Integer.parseInt(args[4]);
+            }
+            generate(kind, port, Integer.parseInt(args[2]), Integer.parseInt(args[3]), sources);
+        }
+        System.exit(0);
+    }
+
+    //Starts the app under test on its own thread and gives it a moment to open its ports
+    private static void startApp(final String mainClass) throws Exception {
+        if (mainClass == null) {
+            return;
+        }
+        final Method main = Class.forName(mainClass).getMethod("main", String[].class);
+        new Thread("app") {
+            public void run() {
+                try {
+                    main.invoke(null, new Object[]{new String[0]});
+                } catch (Exception ex) {
+                    System.out.println("Exception " + ex + " running " + mainClass);
+                }
+            }
+        }.start();
+        Thread.sleep(2000);
+    }
+
+    public static void generate(String kind, int port, int rate, int seconds, int sources) throws Exception {
+        DatagramConnection conn = LoopbackRadio.open("radiogram://broadcast:" + port);
+        LoopbackRadio.Packet packet = (LoopbackRadio.Packet) conn.newDatagram(conn.getMaximumLength());
+        int[] rssi = new int[sources];
+        for (int i = 0; i < sources; i++) {
+            rssi[i] = -40 - i % 40;
+        }
+        double periodMillis = 1000.0 * sources / rate;
+        long startMillis = System.currentTimeMillis();
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        long nextReport = start + REPORT_NANOS;
+        long sent = 0;
+        long sentAtReport = 0;
+        System.out.println("Sending " + kind + " to port " + port + " over " + LoopbackRadio.TRANSPORT + " at " + rate
+                + " pkt/s from " + sources + " sources for " + seconds + " s");
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            long due = (now - start) * rate / 1000000000L;
+            while (sent < due) {
+                int source = (int) (sent % sources);
+                long sequence = sent / sources;
+                rssi[source] = Math.max(-90, Math.min(-10, rssi[source] + (int) (sent % 7) - 3));
+                packet.reset();
+                packet.setSource(FIRST_SOURCE + source, rssi[source], 100, 200 + rssi[source] / 2);
+                fill(kind, packet, startMillis + sequence * periodMillis, periodMillis, source, sequence);
+                conn.send(packet);
+                sent++;
+            }
+            if (now >= nextReport) {
+                System.out.println("Sent " + sent + " packets, " + (sent - sentAtReport) + " pkt/s");
+                sentAtReport = sent;
+                nextReport += REPORT_NANOS;
+            }
+            LockSupport.parkNanos(TICK_NANOS);
+        }
+        System.out.println("Sent " + sent + " packets in " + seconds + " s");
+        conn.close();
+    }
+
+    //Payload in the format the matching host app decodes
+    private static void fill(String kind, Datagram dg, double time, double periodMillis, int source, long sequence) throws Exception {
+        if (kind.equals("smallpoint")) {
+            // read by CarDataReceiver through SmallPointCodec
+            point.leftFront = 20 + (int) (sequence % 60);
+            point.rightFront = 20 + (int) ((sequence + 15) % 60);
+            point.leftRear = 20 + (int) ((sequence + 30) % 60);
+            point.rightRear = 20 + (int) ((sequence + 45) % 60);
+            point.setTurn = 90;
+            point.setSpeed = 110;
+            point.time = time;
+            SmallPointCodec.setFlags(point, (int) (sequence % 4));
+            SmallPointCodec.encode(point, dg);
+        } else if (kind.equals("batch")) {
+            // one frame per packet, samples spread evenly over the packet period
+            double baseTime = Math.floor(time);
+            int length = SmallPointCodec.startBatch(frame, baseTime);
+            for (int i = 0; i < BATCH_POINTS; i++) {
+                long sample = sequence * BATCH_POINTS + i;
+                point.leftFront = 20 + (int) (sample % 60);
+                point.rightFront = 20 + (int) ((sample + 15) % 60);
+                point.leftRear = 20 + (int) ((sample + 30) % 60);
+                point.rightRear = 20 + (int) ((sample + 45) % 60);
+                point.setTurn = 90;
+                point.setSpeed = 110;
+                point.time = Math.floor(baseTime + i * periodMillis / BATCH_POINTS);
+                SmallPointCodec.setFlags(point, (int) (sample % 4));
+                length = SmallPointCodec.addToBatch(frame, length, frame.length, baseTime, point);
+            }
+            dg.write(frame, 0, length);
+        } else if (kind.equals("temp")) {
+            // layout read by TempsensorHostApplication
+            dg.writeLong((long) time);
+            dg.writeDouble(20 + Math.sin(sequence / 50.0) * 5);
+        } else if (kind.equals("rssi")) {
+            // layout read by LocalizationHostApplication
+            dg.writeUTF("RSSI");
+            dg.writeUTF("beacon" + (source % 4));
+            dg.writeFloat(-40 - (float) (sequence % 30));
+        } else {
+            throw new IllegalArgumentException("Unknown packet kind " + kind);
+        }
+    }
+
+    public static void sink(int port, int seconds) throws Exception {
+        DatagramConnection conn = LoopbackRadio.open("radiogram://:" + port);
+        LoopbackRadio.setTimeout(conn, 1000);
+        Datagram dg = conn.newDatagram(conn.getMaximumLength());
+        long end = System.currentTimeMillis() + seconds * 1000L;
+        long nextReport = System.currentTimeMillis() + 1000;
+        long received = 0;
+        long receivedAtReport = 0;
+        System.out.println("Counting packets on port " + port + " for " + seconds + " s");
+        while (System.currentTimeMillis() < end) {
+            try {
+                dg.reset();
+                conn.receive(dg);
+                received++;
+            } catch (java.io.InterruptedIOException ex) {
+                // nothing this second
+            }
+            if (System.currentTimeMillis() >= nextReport) {
+                System.out.println("Received " + received + " packets, " + (received - receivedAtReport) + " pkt/s");
+                receivedAtReport = received;
+                nextReport += 1000;
+            }
+        }
+        conn.close();
+    }
+}
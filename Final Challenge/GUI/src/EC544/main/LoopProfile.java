@@ -0,0 +1,297 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * Where the car's control loop spends its time. MainCarController marks the
+ * end of each stage of a cycle with lap(); the times go into a ring buffer
+ * holding the last capacity cycles, and every capacity cycles the car sends
+ * their min, mean, max and a coarse histogram per stage in one frame, which
+ * CarDataReceiver decodes back into a LoopProfile. The car and the host carry
+ * identical copies.
+ *
+ * Stages, in loop order: SENSORS, the ADC reads; FILTER, IRDaemon.updateReads;
+ * LEDS, LEDaemon.changeColors; DECISION, updateState, decide and
+ * takeSuggestions; ACTUATION, the servos; TELEMETRY, batching and sending.
+ * PERIOD is from the start of the previous cycle to the start of this one,
+ * including the SAMPLE_TIME sleep, which is in no stage; the first cycle
+ * after a clear() has no PERIOD and is not kept. CLDC has no finer clock than
+ * currentTimeMillis, so times are whole ms: a stage under a millisecond
+ * mostly reads 0 and now and then 1, and its mean over the window is still
+ * about right.
+ *
+ * <pre>
+ *   0  TAG (0xA5)
+ *   1  STAGES, BINS (unsigned byte each)
+ *   3  cycles in the window (unsigned short)
+ *   5  time the window ended, ms since epoch (double)
+ *  13  per stage: min, max in ms, mean in 0.01 ms (unsigned short each),
+ *      then BINS cycle counts (unsigned byte each, capped at 255)
+ * </pre>
+ *
+ * Histogram bin i holds times under BIN_LIMITS[i] ms and at least the
+ * previous limit; the last bin holds the rest. Recording, summarizing and
+ * encoding allocate nothing.
+ */
+public class LoopProfile {
+
+    public static final int TAG = 0xA5;
+    public static final int SENSORS = 0;
+    public static final int FILTER = 1;
+    public static final int LEDS = 2;
+    public static final int DECISION = 3;
+    public static final int ACTUATION = 4;
+    public static final int TELEMETRY = 5;
+    public static final int PERIOD = 6;
+    public static final int STAGES = 7;
+    public static final String[] STAGE_NAMES = {"sensors", "filter", "leds", "decision", "actuation", "telemetry", "period"};
+    public static final int[] BIN_LIMITS = {1, 2, 5, 10, 20, 50, 100};
+    public static final int BINS = BIN_LIMITS.length + 1;
+    public static final int HEADER = 13;
+    public static final int STAGE_LENGTH = 6 + BINS;
+    public static final int LENGTH = HEADER + STAGES * STAGE_LENGTH;
+    private int[] times; // capacity cycles of STAGES times each
+    private int capacity;
+    private int next; // cycle slot being filled
+    private int count;
+    private long cycleStart = -1;
+    private boolean hasPeriod; // the cycle in progress had one before it
+    private long mark;
+    // Summary of the window, from summarize() or decode()
+    private int cycles;
+    private double time;
+    private final int[] min = new int[STAGES];
+    private final int[] max = new int[STAGES];
+    private final int[] meanHundredths = new int[STAGES];
+    private final int[] bins = new int[STAGES * BINS];
+
+    //A profile to record into, reporting every capacity cycles
+    public LoopProfile(int capacity) {
+        setCapacity(capacity);
+    }
+
+    //A profile to decode into
+    public LoopProfile() {
+        this(1);
+    }
+
+    //Starts a new window of capacity cycles; allocates, so not for every cycle
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        times = new int[this.capacity * STAGES];
+        next = 0;
+        count = 0;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    //Start of a cycle at now; the previous cycle's PERIOD ends here
+    public void start(long now) {
+        hasPeriod = cycleStart >= 0;
+        int slot = next * STAGES;
+        for (int stage = 0; stage < PERIOD; stage++) {
+            times[slot + stage] = 0;
+        }
+        times[slot + PERIOD] = hasPeriod ? (int) (now - cycleStart) : 0;
+        cycleStart = now;
+        mark = now;
+    }
+
+    //End of stage at now, timed from the last start, lap or skip; a stage lapped twice in a cycle adds up
+    public void lap(int stage, long now) {
+        times[next * STAGES + stage] += (int) (now - mark);
+        mark = now;
+    }
+
+    //Time up to now belongs to no stage (the sample sleep)
+    public void skip(long now) {
+        mark = now;
+    }
+
+    /**
+     * Ends the cycle. Returns true once capacity cycles have gone by since the
+     * last report; the window is then summarized and ready for encode().
+     */
+    public boolean endCycle(double now) {
+        if (!hasPeriod) {
+            return false;
+        }
+        next++;
+        if (count < capacity) {
+            count++;
+        }
+        if (next < capacity) {
+            return false;
+        }
+        next = 0;
+        summarize(now);
+        return true;
+    }
+
+    //Clears the ring and the times for the cycle in progress
+    public void clear() {
+        for (int i = 0; i < times.length; i++) {
+            times[i] = 0;
+        }
+        next = 0;
+        count = 0;
+        cycleStart = -1;
+    }
+
+    private void summarize(double now) {
+        cycles = count;
+        time = now;
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] = 0;
+        }
+        for (int stage = 0; stage < STAGES; stage++) {
+            int low = Integer.MAX_VALUE;
+            int high = 0;
+            long sum = 0;
+            for (int c = 0; c < count; c++) {
+                int t = times[c * STAGES + stage];
+                if (t < low) {
+                    low = t;
+                }
+                if (t > high) {
+                    high = t;
+                }
+                sum += t;
+                int bin = 0;
+                while (bin < BIN_LIMITS.length && t >= BIN_LIMITS[bin]) {
+                    bin++;
+                }
+                bins[stage * BINS + bin]++;
+            }
+            min[stage] = count == 0 ? 0 : low;
+            max[stage] = high;
+            meanHundredths[stage] = count == 0 ? 0 : (int) (sum * 100 / count);
+        }
+    }
+
+    private static int toShort(int value) {
+        return value > 0xFFFF ? 0xFFFF : (value < 0 ? 0 : value);
+    }
+
+    private static void putShort(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >> 8);
+        buf[offset + 1] = (byte) value;
+    }
+
+    //Writes the last summarized window at buf[offset]; returns the number of bytes written (LENGTH)
+    public int encode(byte[] buf, int offset) {
+        buf[offset] = (byte) TAG;
+        buf[offset + 1] = (byte) STAGES;
+        buf[offset + 2] = (byte) BINS;
+        putShort(buf, offset + 3, toShort(cycles));
+        long bits = Double.doubleToLongBits(time);
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + 5 + i] = (byte) bits;
+            bits >>>= 8;
+        }
+        int at = offset + HEADER;
+        for (int stage = 0; stage < STAGES; stage++) {
+            putShort(buf, at, toShort(min[stage]));
+            putShort(buf, at + 2, toShort(max[stage]));
+            putShort(buf, at + 4, toShort(meanHundredths[stage]));
+            for (int bin = 0; bin < BINS; bin++) {
+                int n = bins[stage * BINS + bin];
+                buf[at + 6 + bin] = (byte) (n > 255 ? 255 : n);
+            }
+            at += STAGE_LENGTH;
+        }
+        return LENGTH;
+    }
+
+    /**
+     * Reads the rest of a frame whose TAG has already been read from in.
+     * Stages or bins past the ones this copy knows are skipped, so a car with
+     * more of them can still be read.
+     */
+    public void decode(DataInput in) throws IOException {
+        int stages = in.readUnsignedByte();
+        int binCount = in.readUnsignedByte();
+        cycles = in.readUnsignedShort();
+        time = in.readDouble();
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] = 0;
+        }
+        for (int stage = 0; stage < stages; stage++) {
+            int low = in.readUnsignedShort();
+            int high = in.readUnsignedShort();
+            int mean = in.readUnsignedShort();
+            boolean known = stage < STAGES;
+            if (known) {
+                min[stage] = low;
+                max[stage] = high;
+                meanHundredths[stage] = mean;
+            }
+            for (int bin = 0; bin < binCount; bin++) {
+                int n = in.readUnsignedByte();
+                if (known && bin < BINS) {
+                    bins[stage * BINS + bin] = n;
+                }
+            }
+        }
+    }
+
+    public int getCycles() {
+        return cycles;
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    public int getMin(int stage) {
+        return min[stage];
+    }
+
+    public int getMax(int stage) {
+        return max[stage];
+    }
+
+    public double getMean(int stage) {
+        return meanHundredths[stage] / 100.0;
+    }
+
+    public int getBin(int stage, int bin) {
+        return bins[stage * BINS + bin];
+    }
+
+    public static String headerRow() {
+        StringBuffer out = new StringBuffer("time,stage,cycles,min,mean,max");
+        for (int bin = 0; bin < BINS; bin++) {
+            out.append(bin < BIN_LIMITS.length ? ",under" + BIN_LIMITS[bin] : ",from" + BIN_LIMITS[BINS - 2]);
+        }
+        return out.toString();
+    }
+
+    //The stage's CSV row under headerRow(), times in ms
+    public String toString(int stage) {
+        StringBuffer out = new StringBuffer();
+        out.append((long) time).append(',').append(STAGE_NAMES[stage]).append(',').append(cycles).append(',')
+                .append(min[stage]).append(',').append(getMean(stage)).append(',').append(max[stage]);
+        for (int bin = 0; bin < BINS; bin++) {
+            out.append(',').append(bins[stage * BINS + bin]);
+        }
+        return out.toString();
+    }
+
+    //One line: each stage's mean and max in ms
+    public String summary() {
+        StringBuffer out = new StringBuffer();
+        out.append(cycles).append(" cycles:");
+        for (int stage = 0; stage < STAGES; stage++) {
+            out.append(' ').append(STAGE_NAMES[stage]).append(' ').append(getMean(stage)).append('/').append(max[stage]);
+        }
+        return out.append(" ms mean/max").toString();
+    }
+}
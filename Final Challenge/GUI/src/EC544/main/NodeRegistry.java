@@ -0,0 +1,196 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import com.sun.spot.util.IEEEAddress;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+
+/**
+ * Finds the NodeStream for a sender's IEEE address, creating it (and its
+ * files and writer thread) the first time a car is heard from.
+ *
+ * Lookups run on every packet from every receive thread, so they scan a
+ * copy-on-write array of streams by address: no lock, no boxing and no
+ * garbage. A linear scan is cheaper than hashing for the few dozen cars a
+ * single host can hear. Only adding a car takes the lock.
+ *
+ * The first car seen also writes live.csv, so csv_watcher and the dygraph
+ * page keep working unchanged when only one car is running. Every car gets
+ * live_&lt;address&gt;.csv and its own session log, and its LinkStats is
+ * registered with the platform MBean server. A car whose files cannot be
+ * opened is tried again at most every RETRY_MILLIS; its packets are dropped
+ * until then.
+ */
+public class NodeRegistry {
+
+    private static final long RETRY_MILLIS = 10000;
+    private final int ports;
+    private final int ringCapacity;
+    private final OverloadPolicy policy;
+    private final int sampleEvery;
+    private final long mergeWindowMillis;
+    private final int flushBytes;
+    private final long flushMillis;
+    private final long gapMillis;
+    private final long samplePeriodMillis;
+    private final long snapshotMillis;
+    private final CSVWriter primaryLive;
+    private final String logPrefix;
+    private final int segmentRecords;
+    private LiveServer liveServer;
+    private volatile NodeStream[] nodes = new NodeStream[0];
+    // Cars whose files could not be opened, as address, time to try again; copy-on-write like nodes
+    private volatile long[] failures = new long[0];
+
+    /**
+     * @param primaryLive live.csv, handed to the first car only
+     * @param logPrefix session logs are written to logPrefix + address + ".0000" + TelemetryLog.EXTENSION and on
+     * @param segmentRecords records per session log segment
+     */
+    public NodeRegistry(int ports, int ringCapacity, OverloadPolicy policy, int sampleEvery, long mergeWindowMillis, int flushBytes, long flushMillis,
+            long gapMillis, long samplePeriodMillis, long snapshotMillis, CSVWriter primaryLive, String logPrefix,
+            int segmentRecords) {
+        this.ports = ports;
+        this.ringCapacity = ringCapacity;
+        this.policy = policy;
+        this.sampleEvery = sampleEvery;
+        this.mergeWindowMillis = mergeWindowMillis;
+        this.flushBytes = flushBytes;
+        this.flushMillis = flushMillis;
+        this.gapMillis = gapMillis;
+        this.samplePeriodMillis = samplePeriodMillis;
+        this.snapshotMillis = snapshotMillis;
+        this.primaryLive = primaryLive;
+        this.logPrefix = logPrefix;
+        this.segmentRecords = segmentRecords;
+    }
+
+    //Gives every car from now on a channel on server
+    public synchronized void setLiveServer(LiveServer server) {
+        liveServer = server;
+    }
+
+    //Returns the stream for address, or null if it could not be created (the error is printed) or is waiting to be tried again
+    public NodeStream get(long address) {
+        NodeStream node = find(address);
+        if (node != null || isWaitingToRetry(address)) {
+            return node;
+        }
+        return add(address);
+    }
+
+    private boolean isWaitingToRetry(long address) {
+        long[] current = failures;
+        for (int i = 0; i < current.length; i += 2) {
+            if (current[i] == address) {
+                return System.currentTimeMillis() < current[i + 1];
+            }
+        }
+        return false;
+    }
+
+    //Sets address's time to try again, retryAt, or forgets it with 0; the lock is held
+    private void setRetry(long address, long retryAt) {
+        long[] current = failures;
+        int at = 0;
+        while (at < current.length && current[at] != address) {
+            at += 2;
+        }
+        if (retryAt == 0 && at == current.length) {
+            return;
+        }
+        long[] updated;
+        if (retryAt == 0) {
+            updated = new long[current.length - 2];
+            System.arraycopy(current, 0, updated, 0, at);
+            System.arraycopy(current, at + 2, updated, at, current.length - at - 2);
+        } else {
+            updated = new long[Math.max(current.length, at + 2)];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[at] = address;
+            updated[at + 1] = retryAt;
+        }
+        failures = updated;
+    }
+
+    //Returns the stream for address without creating one, or null for a car not heard from yet
+    public NodeStream find(long address) {
+        NodeStream[] current = nodes;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].getAddress() == address) {
+                return current[i];
+            }
+        }
+        return null;
+    }
+
+    private synchronized NodeStream add(long address) {
+        NodeStream existing = find(address);
+        if (existing != null || isWaitingToRetry(address)) {
+            return existing;
+        }
+        NodeStream[] current = nodes;
+        String name = IEEEAddress.toDottedHex(address);
+        CSVWriter own = new CSVWriter("live_" + name + ".csv");
+        CSVWriter[] live;
+        if (current.length == 0) {
+            live = new CSVWriter[]{primaryLive, own};
+        } else {
+            live = new CSVWriter[]{own};
+        }
+        NodeStream node;
+        SegmentedLogWriter logger = null;
+        try {
+            logger = new SegmentedLogWriter(logPrefix + name, segmentRecords);
+            node = new NodeStream(address, ports, ringCapacity, policy, sampleEvery, mergeWindowMillis, live, flushBytes, flushMillis,
+                    logger, gapMillis, samplePeriodMillis, snapshotMillis);
+        } catch (IOException ex) {
+            System.out.println("IOException " + ex + " opening files for " + name + ", trying again in "
+                    + RETRY_MILLIS / 1000 + " s");
+            own.close();
+            if (logger != null) {
+                try {
+                    logger.close();
+                } catch (IOException closeEx) {
+                }
+            }
+            setRetry(address, System.currentTimeMillis() + RETRY_MILLIS);
+            return null;
+        }
+        setRetry(address, 0);
+        if (liveServer != null) {
+            node.setLiveChannel(liveServer.addChannel(name));
+        }
+        node.start();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(node.getLinkStats(),
+                    new ObjectName("EC544:type=Link,name=" + name));
+        } catch (Exception ex) {
+            System.out.println("Exception " + ex + " registering link stats for " + name);
+        }
+        NodeStream[] grown = new NodeStream[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = node;
+        nodes = grown;
+        System.out.println("New car " + name + " (" + grown.length + " total)");
+        return node;
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    public String statusReport() {
+        NodeStream[] current = nodes;
+        StringBuilder report = new StringBuilder();
+        report.append(current.length).append(" cars\n");
+        for (int i = 0; i < current.length; i++) {
+            report.append(current[i].statusReport());
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import com.sun.spot.util.IEEEAddress;
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Everything CarDataReceiver keeps for one car: a TelemetryRing per receive
+ * port, the PortMerger over them, the car's own live CSV and session log, its
+ * LinkStats, and a writer thread that drains the merger into those files and
+ * snapshots the LinkStats into the session log every snapshotMillis.
+ *
+ * Receive threads hand points to offer(). When a car's writer falls behind
+ * (slow disk, stalled file) its rings fill up and the OverloadPolicy decides
+ * what is lost. Every policy but BLOCK keeps the receive threads that all
+ * cars share from waiting on one slow stream. Dropped points are counted and
+ * the writer puts a TYPE_DROP record in the session log where they went
+ * missing. Memory per car is fixed at ports * ringCapacity points.
+ */
+public class NodeStream {
+
+    private static final int STATS_INTERVAL = 30 * 1000;
+    // Queued diagnostics, profile and transition frames, written within FRAME_MILLIS by the writer thread
+    private static final int FRAME_SLOTS = 32;
+    private static final int MAX_FRAME = Math.max(Math.max(CarPointCodec.LENGTH, LoopProfile.LENGTH), TransitionLog.MAX_LENGTH);
+    private static final long FRAME_MILLIS = 250;
+    private final long address;
+    private final String name;
+    private final TelemetryRing[] rings;
+    private final PortMerger merger;
+    private final CSVBatcher batch;
+    private final SegmentedLogWriter logger;
+    private final long gapMillis;
+    private final LinkStats link;
+    private LiveChannel live;
+    private final FrameQueue frames = new FrameQueue(FRAME_SLOTS, MAX_FRAME);
+    private final CarPoint diagnosticPoint = new CarPoint(); // writer thread only
+    private final LoopProfile profileFrame = new LoopProfile(); // writer thread only
+    private final TransitionLog transitionFrame = new TransitionLog(); // writer thread only
+    private CSVWriter diagnostics;
+    private CSVWriter profiles;
+    private volatile String loopSummary;
+    private CSVWriter transitions;
+    private long transitionsDropped;
+    private final long snapshotMillis;
+    private final OverloadPolicy policy;
+    private final int sampleEvery;
+    private final SmallPoint[] discard;
+    private final long[] offered;
+    private final AtomicLong dropped = new AtomicLong(0);
+    private long droppedLogged = 0;
+    private final long firstSeen = System.currentTimeMillis();
+    private volatile long lastSeen = firstSeen;
+    private volatile long written = 0;
+    private volatile long gaps = 0;
+    private volatile long longestGap = 0;
+    private double lastTime = -1;
+
+    /**
+     * @param live CSV sinks for this car; the first car seen also feeds live.csv
+     * @param logger session log for this car
+     * @param gapMillis a jump in car time larger than this is counted as a gap
+     * @param samplePeriodMillis how often the car takes a sample, used to count lost samples
+     * @param snapshotMillis how often LinkStats is written to the session log
+     * @param sampleEvery points kept under OverloadPolicy.SAMPLE, one in sampleEvery
+     */
+    public NodeStream(long address, int ports, int ringCapacity, OverloadPolicy policy, int sampleEvery, long mergeWindowMillis,
+            CSVWriter[] live, int flushBytes, long flushMillis, SegmentedLogWriter logger, long gapMillis,
+            long samplePeriodMillis, long snapshotMillis) throws IOException {
+        this.address = address;
+        name = IEEEAddress.toDottedHex(address);
+        rings = new TelemetryRing[ports];
+        discard = new SmallPoint[ports];
+        offered = new long[ports];
+        for (int i = 0; i < ports; i++) {
+            rings[i] = new TelemetryRing(ringCapacity, false);
+            discard[i] = new SmallPoint();
+        }
+        this.policy = policy;
+        this.sampleEvery = Math.max(1, sampleEvery);
+        merger = new PortMerger(rings, mergeWindowMillis);
+        for (int i = 0; i < live.length; i++) {
+            live[i].initCSV(SmallPoint.headerRow());
+        }
+        batch = new CSVBatcher(live, flushBytes, flushMillis);
+        this.logger = logger;
+        this.gapMillis = gapMillis;
+        link = new LinkStats(name, samplePeriodMillis);
+        this.snapshotMillis = snapshotMillis;
+    }
+
+    //Feeds channel from the writer thread; set before start()
+    public void setLiveChannel(LiveChannel channel) {
+        live = channel;
+    }
+
+    public void start() {
+        new Thread("write-" + name) {
+            public void run() {
+                writeLoop();
+            }
+        }.start();
+    }
+
+    //Called by the receive thread for port; only blocks under OverloadPolicy.BLOCK
+    public void offer(int port, SmallPoint sp) {
+        lastSeen = System.currentTimeMillis();
+        int lost = policy.offer(rings[port], sp, discard[port], offered[port]++, sampleEvery);
+        if (lost > 0) {
+            dropped.addAndGet(lost);
+        }
+    }
+
+    //Called by the receive threads with the number of each sparse telemetry frame, before its points
+    public void offerFrameSequence(int sequence) {
+        link.frameSequence(sequence);
+    }
+
+    //Called by the receive threads for the car's CarPoint, LoopProfile and TransitionLog frames, with tag
+    //already read from in and length bytes to go. CarPoints come at most once per control sample and only
+    //while diagnostics are on, a profile every few seconds, transitions after the telemetry frame they
+    //happened in. The writer thread decodes them into diag_<address>.csv, a line per stage in
+    //profile_<address>.csv with the means and maxima in statusReport, and a line per driving state change
+    //in transitions_<address>.csv; changes the car's log had no room for are only counted. A frame that
+    //finds the queue full is dropped.
+    public void offerFrame(int tag, DataInput in, int length) throws IOException {
+        lastSeen = System.currentTimeMillis();
+        frames.offer(tag, in, length);
+    }
+
+    //Drains this car's rings, merged in time order, into its files. Parks inside take()
+    //while there is nothing to write, but never past the point where the pending batch is due.
+    private void writeLoop() {
+        SmallPoint sp = new SmallPoint();
+        long nextSnapshot = System.currentTimeMillis() + snapshotMillis;
+        while (true) {
+            long wait = Math.max(0, nextSnapshot - System.currentTimeMillis());
+            if (!batch.isEmpty()) {
+                wait = Math.min(wait, batch.millisUntilDue());
+            }
+            wait = Math.min(wait, FRAME_MILLIS);
+            logDrops();
+            writeFrames();
+            if (merger.take(sp, wait)) {
+                checkGap(sp.time);
+                batch.addPoint(sp);
+                if (live != null) {
+                    live.publish(sp);
+                }
+                try {
+                    logger.append(sp);
+                } catch (IOException ex) {
+                    System.out.println("IOException " + ex + " appending to " + logger.getFilePath());
+                }
+                written++;
+            }
+            if (System.currentTimeMillis() >= nextSnapshot) {
+                try {
+                    link.writeSnapshot(logger);
+                } catch (IOException ex) {
+                    System.out.println("IOException " + ex + " appending to " + logger.getFilePath());
+                }
+                nextSnapshot += snapshotMillis;
+                logger.commit();
+            }
+            if (batch.isDue()) {
+                batch.commit();
+                logger.commit();
+            }
+        }
+    }
+
+    //Decodes the frames the receive threads queued and writes each to its file
+    private void writeFrames() {
+        int count = frames.drain();
+        for (int i = 0; i < count; i++) {
+            int tag = frames.getTag(i);
+            try {
+                DataInput in = frames.read(i);
+                if (tag == CarPointCodec.TAG && CarPointCodec.decode(tag, in, diagnosticPoint)) {
+                    if (diagnostics == null) {
+                        diagnostics = new CSVWriter("diag_" + name + ".csv");
+                        diagnostics.initCSV(CarPoint.headerRow());
+                    }
+                    diagnostics.addCSVLine(diagnosticPoint.toString());
+                } else if (tag == LoopProfile.TAG) {
+                    profileFrame.decode(in);
+                    if (profiles == null) {
+                        profiles = new CSVWriter("profile_" + name + ".csv");
+                        profiles.initCSV(LoopProfile.headerRow());
+                    }
+                    for (int stage = 0; stage < LoopProfile.STAGES; stage++) {
+                        profiles.addCSVLine(profileFrame.toString(stage));
+                    }
+                    loopSummary = profileFrame.summary();
+                } else if (tag == TransitionLog.TAG) {
+                    transitionFrame.decode(in);
+                    if (transitions == null) {
+                        transitions = new CSVWriter("transitions_" + name + ".csv");
+                        transitions.initCSV(TransitionLog.headerRow());
+                    }
+                    for (int t = 0; t < transitionFrame.size(); t++) {
+                        transitions.addCSVLine(transitionFrame.toString(t));
+                    }
+                    if (transitionFrame.getDropped() > 0) {
+                        transitionsDropped += transitionFrame.getDropped();
+                        System.out.println(name + ": " + transitionsDropped + " state transitions lost on the car so far");
+                    }
+                }
+            } catch (IOException ex) {
+                System.out.println("IOException " + ex + " reading a frame from " + name);
+            }
+        }
+    }
+
+    //Marks the place in the session log where points went missing
+    private void logDrops() {
+        long total = dropped.get();
+        if (total == droppedLogged) {
+            return;
+        }
+        try {
+            logger.appendDrop(System.currentTimeMillis(), policy.ordinal(), (int) Math.min(Integer.MAX_VALUE, total - droppedLogged));
+            droppedLogged = total;
+        } catch (IOException ex) {
+            System.out.println("IOException " + ex + " appending to " + logger.getFilePath());
+        }
+    }
+
+    private void checkGap(double time) {
+        if (lastTime >= 0) {
+            link.sampleGap(time - lastTime);
+            long gap = (long) (time - lastTime);
+            if (gap > gapMillis) {
+                gaps++;
+                longestGap = Math.max(longestGap, gap);
+                System.out.println("Gap of " + gap + " ms in telemetry from " + name);
+            }
+        }
+        lastTime = time;
+    }
+
+    public long getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LinkStats getLinkStats() {
+        return link;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    //Points taken from the rings and handed to the files so far
+    public long getWrittenCount() {
+        return written;
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getGapCount() {
+        return gaps;
+    }
+
+    public String statusReport() {
+        long now = System.currentTimeMillis();
+        return name + ": " + written + " written, " + dropped.get() + " dropped (" + policy + "), " + gaps + " gaps (longest "
+                + longestGap + " ms), last seen " + (now - lastSeen) + " ms ago\n"
+                + link.statusReport() + (live != null ? live.statusReport() : "") + merger.statusReport() + "  CSV writer: " + batch.statusReport() + "\n"
+                + (loopSummary != null ? "  Control loop: " + loopSummary + "\n" : "")
+                + (frames.getDropped() > 0 ? "  " + frames.getDropped() + " frames dropped, queue full\n" : "");
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * What a receive thread does with a point when a car's writer has fallen
+ * behind and that car's ring is full (or, for SAMPLE, half full).
+ *
+ * <pre>
+ * BLOCK        wait for room; nothing is lost, but the receive thread, and so
+ *              every car on that port, stalls with the slowest writer
+ * DROP_OLDEST  discard the oldest queued point to make room; the live view
+ *              stays current (default)
+ * DROP_NEWEST  discard the incoming point; what is queued is kept intact
+ * SAMPLE       once the ring is half full keep only every sampleEvery-th
+ *              point, thinning the stream evenly; drops the newest when full
+ * </pre>
+ */
+public enum OverloadPolicy {
+
+    BLOCK, DROP_OLDEST, DROP_NEWEST, SAMPLE;
+
+    //Accepts the names above in any case, e.g. -Dec544.overload=drop_newest
+    public static OverloadPolicy fromName(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+
+    /**
+     * Puts sp into ring under this policy. discard is scratch space owned by
+     * the calling thread, sequence counts the points this thread has offered.
+     * Returns the number of points dropped.
+     */
+    public int offer(TelemetryRing ring, SmallPoint sp, SmallPoint discard, long sequence, int sampleEvery) {
+        switch (this) {
+            case BLOCK:
+                ring.put(sp);
+                return 0;
+            case DROP_OLDEST:
+                int dropped = 0;
+                while (!ring.offer(sp)) {
+                    if (ring.poll(discard)) {
+                        dropped++;
+                    }
+                }
+                return dropped;
+            case SAMPLE:
+                if (ring.size() >= ring.capacity() / 2 && sequence % sampleEvery != 0) {
+                    return 1;
+                }
+                return ring.offer(sp) ? 0 : 1;
+            default:
+                return ring.offer(sp) ? 0 : 1;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import javax.microedition.io.Datagram;
+import java.io.IOException;
+
+/**
+ * Decodes a received datagram by its first byte and hands it to the sending
+ * car's NodeStream, as CarDataReceiver's receive loops do for every packet.
+ * Each receive thread has its own decoder: the samples are decoded into its
+ * scratch point, which the streams copy from before the next packet, and
+ * the diagnostics, profile and transition frames are queued as they are for
+ * the car's writer thread, so dispatching allocates nothing.
+ * ReceiveAllocationCheck measures that.
+ */
+public class PacketDecoder {
+
+    private final NodeRegistry nodes;
+    private final SmallPoint sp = new SmallPoint();
+
+    public PacketDecoder(NodeRegistry nodes) {
+        this.nodes = nodes;
+    }
+
+    //dg has just been received on port; reads it from the start
+    public void dispatch(Datagram dg, int port) throws IOException {
+        int firstByte = 0;
+        if (dg.getLength() != 0) {
+            firstByte = dg.readUnsignedByte();
+        } else {
+            System.out.println("Datagram length = 0!");
+        }
+
+        if (SmallPointCodec.isSmallPoint(firstByte) || firstByte == CarPointCodec.TAG || firstByte == LoopProfile.TAG
+                || firstByte == TransitionLog.TAG) {
+            NodeStream node = nodes.get(LoopbackRadio.getAddressAsLong(dg));
+            if (node != null) {
+                if (firstByte == CarPointCodec.TAG) {
+                    // full controller state, sent while the car's "diagnostics" command is on
+                    node.offerFrame(firstByte, dg, dg.getLength() - 1);
+                } else if (firstByte == LoopProfile.TAG) {
+                    // the car's control loop stage times, every few seconds
+                    node.offerFrame(firstByte, dg, dg.getLength() - 1);
+                } else if (firstByte == TransitionLog.TAG) {
+                    // the car's driving state changes, after the telemetry frame they happened in
+                    node.offerFrame(firstByte, dg, dg.getLength() - 1);
+                } else if (firstByte == SmallPointCodec.TAG_SPARSE) {
+                    // the samples the car picked to send, in a numbered frame
+                    int count = dg.readUnsignedByte();
+                    node.offerFrameSequence(dg.readUnsignedByte());
+                    double baseTime = dg.readDouble();
+                    for (int i = 0; i < count; i++) {
+                        SmallPointCodec.decodeBatchSample(dg, baseTime, sp);
+                        node.offer(port, sp);
+                    }
+                } else if (firstByte == SmallPointCodec.TAG_BATCH) {
+                    // a frame of control samples, unpacked into the same stream as single points
+                    int count = dg.readUnsignedByte();
+                    double baseTime = dg.readDouble();
+                    for (int i = 0; i < count; i++) {
+                        SmallPointCodec.decodeBatchSample(dg, baseTime, sp);
+                        node.offer(port, sp);
+                    }
+                } else if (SmallPointCodec.decode(firstByte, dg, sp)) {
+                    node.offer(port, sp);
+                }
+                if (dg instanceof LoopbackRadio.Packet) {
+                    // no packet quality listener off the radio, the packet carries its own
+                    LoopbackRadio.Packet packet = (LoopbackRadio.Packet) dg;
+                    node.getLinkStats().packet(packet.getRssi(), packet.getCorr(), packet.getLinkQuality());
+                }
+            }
+        } else {
+            System.out.println("Received packet of unknown type!");
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Searches ControllerParams for settings that hold the wall better and steer
+ * less, instead of trying them one at a time in the hallway.
+ *
+ * <pre>
+ * ParameterSweep [-sets n] [-seed s] [-threads n] [-target cm] [-seconds s] [-out file] [-filter] [dir-or-file...]
+ * </pre>
+ *
+ * The car's current settings and n - 1 random ones (uniform in RANGES, conf1
+ * &gt;= conf2 &gt;= conf3) are each scored, in parallel on a pool of threads,
+ * on:
+ *
+ * <pre>
+ * error        RMS cm between the car's side and -target from the wall it follows,
+ *              over HallwaySimulator's standard scenarios (closed loop)
+ * oscillation  mean change of the chosen turn from one sample to the next, in servo
+ *              units, over the scenarios and every recorded run given (ReplayEngine)
+ * crashes      scenarios where the car hit a wall; a set with any is not ranked
+ * </pre>
+ *
+ * The sets that did not crash are sorted into Pareto fronts on error and
+ * oscillation: front 1 holds the sets no other set beats on both, front 2 the
+ * ones only front 1 beats, and so on. All sets go to -out (sweep.csv) by front
+ * and then error; front 1 is printed, along with the current settings' scores.
+ * With -filter every run goes through a WallFilter.
+ *
+ * cornerTimeout only comes into play on recorded runs with takeNextLeft or
+ * takeNextRight commands, and then only through oscillation, since the
+ * simulator has no corners.
+ */
+public class ParameterSweep {
+
+    // min and max for each ControllerParams field, in NAMES order
+    private static final double[][] RANGES = {
+        {40.0, 110.0}, // idealDistance
+        {10.0, 45.0}, // maxTurnAngle
+        {10.0, 45.0}, // approachAngle
+        {2.0, 15.0}, // maxThetaChange
+        {3000, 9000}, // cornerTimeout
+        {1.5, 2.5}, // conf1
+        {1.0, 2.0}, // conf2
+        {0.6, 1.4} // conf3
+    };
+    private static final int PRINTED = 20;
+
+    /**
+     * A parameter set and how it scored. front is 0 for sets that crashed.
+     */
+    public static class Score {
+
+        public final int id;
+        public final ControllerParams params;
+        public double error;
+        public double oscillation;
+        public int crashes;
+        public double replayError; // ReplayEngine's RMS distance error over the recorded runs, for reference
+        public int front;
+
+        Score(int id, ControllerParams params) {
+            this.id = id;
+            this.params = params;
+        }
+
+        //True if this is no worse than other on both objectives and better on one
+        boolean dominates(Score other) {
+            return error <= other.error && oscillation <= other.oscillation
+                    && (error < other.error || oscillation < other.oscillation);
+        }
+
+        public static String headerRow() {
+            return "front,set,error,oscillation,crashes,replayError," + ControllerParams.headerRow();
+        }
+
+        public String toString() {
+            return front + "," + id + "," + ReplayEngine.round(error) + "," + ReplayEngine.round(oscillation) + ","
+                    + crashes + "," + ReplayEngine.round(replayError) + "," + params;
+        }
+    }
+
+    static ControllerParams randomParams(Random random) {
+        ControllerParams params = new ControllerParams();
+        for (int i = 0; i < ControllerParams.COUNT; i++) {
+            params.set(i, RANGES[i][0] + random.nextDouble() * (RANGES[i][1] - RANGES[i][0]));
+        }
+        // a trust level must need a better reading than the one below it
+        double[] conf = {params.conf1, params.conf2, params.conf3};
+        Arrays.sort(conf);
+        params.conf1 = conf[2];
+        params.conf2 = conf[1];
+        params.conf3 = conf[0];
+        return params;
+    }
+
+    /**
+     * Scores one set on scenarios and runs. Every call makes its own
+     * IRDaemons, so sets can be scored on any number of threads at once.
+     */
+    public static Score evaluate(int id, ControllerParams params, HallwaySimulator.Scenario[] scenarios,
+            List<ReplayEngine.Run> runs, double target, boolean filter) throws IOException {
+        Score score = new Score(id, params);
+        HallwaySimulator.Result sim = new HallwaySimulator.Result();
+        for (int i = 0; i < scenarios.length; i++) {
+            HallwaySimulator.Result result = HallwaySimulator.run(scenarios[i], params, target, filter);
+            if (result.crashed) {
+                score.crashes++;
+            }
+            sim.add(result);
+        }
+        ReplayEngine.Stats replay = new ReplayEngine.Stats("sweep");
+        for (ReplayEngine.Run run : runs) {
+            replay.add(ReplayEngine.replay(run, params, filter, null));
+        }
+        score.error = sim.getRmsError();
+        score.oscillation = (sim.turnChangeSum + replay.turnChangeSum)
+                / Math.max(1, sim.samples + replay.samples - scenarios.length - runs.size());
+        score.replayError = replay.getRmsError();
+        return score;
+    }
+
+    //Numbers the Pareto fronts of the sets that did not crash, from 1
+    static void rank(List<Score> scores) {
+        List<Score> left = new ArrayList<Score>();
+        for (Score score : scores) {
+            if (score.crashes == 0) {
+                left.add(score);
+            }
+        }
+        int front = 0;
+        while (!left.isEmpty()) {
+            front++;
+            List<Score> next = new ArrayList<Score>();
+            for (Score candidate : left) {
+                boolean dominated = false;
+                for (Score other : left) {
+                    if (other.dominates(candidate)) {
+                        dominated = true;
+                        break;
+                    }
+                }
+                if (dominated) {
+                    next.add(candidate);
+                } else {
+                    candidate.front = front;
+                }
+            }
+            left = next;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sets = 1000;
+        long seed = 544;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double target = new ControllerParams().idealDistance;
+        double seconds = 30;
+        File outFile = new File("sweep.csv");
+        boolean useFilter = false;
+        int first = 0;
+        while (first < args.length && args[first].equals("-filter")
+                || first + 1 < args.length && args[first].startsWith("-")) {
+            String option = args[first];
+            if (option.equals("-filter")) {
+                useFilter = true;
+                first++;
+                continue;
+            }
+            String value = args[first + 1];
+            if (option.equals("-sets")) {
+                sets = Math.max(1, Integer.parseInt(value));
+            } else if (option.equals("-seed")) {
+                seed = Long.parseLong(value);
+            } else if (option.equals("-threads")) {
+                threads = Math.max(1, Integer.parseInt(value));
+            } else if (option.equals("-target")) {
+                target = Double.parseDouble(value);
+            } else if (option.equals("-seconds")) {
+                seconds = Double.parseDouble(value);
+            } else if (option.equals("-out")) {
+                outFile = new File(value);
+            } else {
+                System.out.println("Usage: ParameterSweep [-sets n] [-seed s] [-threads n] [-target cm] [-seconds s] [-out file] [-filter] [dir-or-file...]");
+                return;
+            }
+            first += 2;
+        }
+
+        final List<ReplayEngine.Run> runs = new ArrayList<ReplayEngine.Run>();
+        int recorded = 0;
+        for (File file : ReplayEngine.listRuns(args, first)) {
+            ReplayEngine.Run run = ReplayEngine.load(file);
+            if (run != null) {
+                runs.add(run);
+                recorded += run.length;
+            }
+        }
+        final HallwaySimulator.Scenario[] scenarios = HallwaySimulator.standardScenarios(seconds);
+        final double goal = target;
+        final boolean filter = useFilter;
+        System.out.println("Scoring " + sets + " parameter sets on " + scenarios.length + " simulated " + seconds
+                + " s runs and " + runs.size() + " recorded runs (" + recorded + " samples), " + threads + " threads");
+
+        long start = System.nanoTime();
+        Random random = new Random(seed);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Score>> results = new ArrayList<Future<Score>>();
+        for (int i = 0; i < sets; i++) {
+            final int id = i;
+            final ControllerParams params = i == 0 ? new ControllerParams() : randomParams(random);
+            results.add(pool.submit(new Callable<Score>() {
+
+                public Score call() throws IOException {
+                    return evaluate(id, params, scenarios, runs, goal, filter);
+                }
+            }));
+        }
+        pool.shutdown();
+        List<Score> scores = new ArrayList<Score>();
+        for (Future<Score> result : results) {
+            scores.add(result.get());
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        Score current = scores.get(0);
+
+        rank(scores);
+        Collections.sort(scores, new Comparator<Score>() {
+
+            public int compare(Score a, Score b) {
+                if (a.front != b.front) {
+                    // crashed (0) last
+                    return a.front == 0 ? 1 : (b.front == 0 ? -1 : a.front - b.front);
+                }
+                return a.error < b.error ? -1 : (a.error > b.error ? 1 : a.crashes - b.crashes);
+            }
+        });
+        Writer out = new BufferedWriter(new FileWriter(outFile));
+        int crashed = 0;
+        try {
+            out.write(Score.headerRow() + "\n");
+            for (Score score : scores) {
+                out.write(score + "\n");
+                if (score.front == 0) {
+                    crashed++;
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        System.out.println("Done in " + ReplayEngine.round(elapsed) + " s, " + ReplayEngine.round(elapsed * 1000 / sets)
+                + " ms per set; " + crashed + " sets crashed");
+        System.out.println("Current settings:");
+        System.out.println(Score.headerRow());
+        System.out.println(current);
+        System.out.println("Pareto front, lowest error first:");
+        System.out.println(Score.headerRow());
+        int printed = 0;
+        for (Score score : scores) {
+            if (score.front != 1 || printed == PRINTED) {
+                break;
+            }
+            System.out.println(score);
+            printed++;
+        }
+        System.out.println("All sets in " + outFile);
+    }
+}
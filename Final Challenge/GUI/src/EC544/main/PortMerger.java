@@ -0,0 +1,141 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Merges the per-port TelemetryRings back into one stream ordered by
+ * SmallPoint.time.
+ *
+ * The car sends round-robin over several radiogram ports, so consecutive
+ * points arrive on different receive threads. The merger keeps the oldest
+ * point of each ring as that ring's head and always hands out the head with
+ * the smallest time. It only does so once every ring either has a head or has
+ * been empty for mergeWindowMillis, so one quiet port delays the stream by at
+ * most the merge window and a port that has gone silent is not waited for at
+ * all.
+ *
+ * Only the writer thread may call take().
+ */
+public class PortMerger {
+
+    private final TelemetryRing[] rings;
+    private final SmallPoint[] heads;
+    private final boolean[] hasHead;
+    private final long[] emptySince;
+    private final long mergeWindowNanos;
+    private final long[] lastPublished;
+    private long lastReport = System.currentTimeMillis();
+
+    public PortMerger(TelemetryRing[] rings, long mergeWindowMillis) {
+        this.rings = rings;
+        heads = new SmallPoint[rings.length];
+        hasHead = new boolean[rings.length];
+        emptySince = new long[rings.length];
+        lastPublished = new long[rings.length];
+        for (int i = 0; i < rings.length; i++) {
+            heads[i] = new SmallPoint();
+        }
+        mergeWindowNanos = mergeWindowMillis * 1000000L;
+    }
+
+    /**
+     * Copies the next point in time order into out, parking for up to
+     * timeoutMillis. Returns false on timeout or interrupt.
+     */
+    public boolean take(SmallPoint out, long timeoutMillis) {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (true) {
+            long now = System.nanoTime();
+            long waitingSince = fillHeads(now);
+            int oldest = oldestHead();
+            if (oldest >= 0 && now - waitingSince >= mergeWindowNanos) {
+                out.copyFrom(heads[oldest]);
+                hasHead[oldest] = false;
+                return true;
+            }
+
+            long park = deadline - now;
+            if (oldest >= 0) {
+                park = Math.min(park, waitingSince + mergeWindowNanos - now);
+            }
+            if (deadline - now <= 0 || Thread.interrupted()) {
+                return false;
+            }
+            waitForData(park);
+        }
+    }
+
+    //Polls a head from every ring that lacks one. Returns when the most recently emptied ring went empty,
+    //or a time a full merge window back if every ring has a head.
+    private long fillHeads(long now) {
+        long waitingSince = now - mergeWindowNanos;
+        for (int i = 0; i < rings.length; i++) {
+            if (!hasHead[i]) {
+                if (rings[i].poll(heads[i])) {
+                    hasHead[i] = true;
+                } else {
+                    if (emptySince[i] == 0) {
+                        emptySince[i] = now;
+                    }
+                    if (emptySince[i] > waitingSince) {
+                        waitingSince = emptySince[i];
+                    }
+                    continue;
+                }
+            }
+            emptySince[i] = 0;
+        }
+        return waitingSince;
+    }
+
+    private int oldestHead() {
+        int oldest = -1;
+        for (int i = 0; i < rings.length; i++) {
+            if (hasHead[i] && (oldest < 0 || heads[i].time < heads[oldest].time)) {
+                oldest = i;
+            }
+        }
+        return oldest;
+    }
+
+    //Parks until a producer publishes into any ring without a head, or nanos pass
+    private void waitForData(long nanos) {
+        Thread self = Thread.currentThread();
+        boolean empty = true;
+        for (int i = 0; i < rings.length; i++) {
+            if (!hasHead[i]) {
+                rings[i].setWaiter(self);
+                if (rings[i].size() > 0) {
+                    empty = false;
+                }
+            }
+        }
+        if (empty && nanos > 0) {
+            LockSupport.parkNanos(nanos);
+        }
+        for (int i = 0; i < rings.length; i++) {
+            rings[i].setWaiter(null);
+        }
+    }
+
+    //Per-port packet counts and rates since the previous report
+    public String statusReport() {
+        long now = System.currentTimeMillis();
+        double seconds = Math.max(1, now - lastReport) / 1000.0;
+        StringBuilder report = new StringBuilder();
+        for (int i = 0; i < rings.length; i++) {
+            long published = rings[i].getPublishedCount();
+            double rate = (published - lastPublished[i]) / seconds;
+            lastPublished[i] = published;
+            report.append("  port ").append(i).append(": ").append(published).append(" packets, ");
+            report.append(Math.round(rate * 10) / 10.0).append(" pkt/s, ");
+            report.append(rings[i].statusReport()).append('\n');
+        }
+        lastReport = now;
+        return report.toString();
+    }
+}
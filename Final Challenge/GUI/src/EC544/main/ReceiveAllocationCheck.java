@@ -0,0 +1,231 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import com.sun.spot.util.IEEEAddress;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Map;
+import javax.microedition.io.DatagramConnection;
+
+/**
+ * Measures what CarDataReceiver's receive path allocates per packet.
+ *
+ * <pre>
+ * ReceiveAllocationCheck [packets]
+ * </pre>
+ *
+ * Runs on the memory transport (ec544.transport is set to memory). For each
+ * frame kind the car sends (a single v2 point, a 0xA3 batch and a 0xA7 sparse
+ * batch of BATCH_POINTS samples), packets (4000, at most the transport's
+ * queue of 4096) are queued on a port and then received and handed to a
+ * PacketDecoder on this thread, exactly as receiveLoop does, so the receiver
+ * never waits on the sender. The first round of each kind warms up; the
+ * second is measured with getThreadAllocatedBytes on this thread, and on
+ * the car's writer thread once it has drained the points into the files.
+ * Both must stay under MAX_BYTES per packet or point: what is left is a few
+ * hundred bytes a round, not per packet, that the JVM allocates now and
+ * then. The writer's commits used to cost about 110 bytes each in the
+ * charset encoder, a line's worth with ec544.flushBytes=0; CSVWriter.writeBlock
+ * now writes plain ASCII blocks itself.
+ *
+ * getThreadAllocatedBytes is in com.sun.management.ThreadMXBean, which only
+ * HotSpot JVMs have, from JDK 6u25. It is looked up at run time; where it is
+ * missing the allocation columns read n/a and only the decode path is
+ * checked: every point sent must have been written. The exit status is 1 if
+ * a point is missing or an allocation figure is over MAX_BYTES.
+ *
+ * Like CarDataReceiver it writes live_&lt;address&gt;.csv and the car's session
+ * log to the working directory, plus alloc_live.csv for the first car.
+ */
+public class ReceiveAllocationCheck {
+
+    private static final int PORT = 99;
+    private static final int BATCH_POINTS = 5;
+    private static final long SOURCE = 0x00144F0100000001L;
+    private static final int SAMPLE_MILLIS = 50;
+    private static final String[] KINDS = {"v2", "batch", "sparse"};
+    private static final double MAX_BYTES = 1.0;
+    private static final long DRAIN_MILLIS = 5000;
+    private static final SmallPoint point = new SmallPoint();
+    private static final byte[] frame = new byte[SmallPointCodec.SPARSE_HEADER + BATCH_POINTS * SmallPointCodec.BATCH_SAMPLE];
+    private static double time = Math.floor(System.currentTimeMillis());
+    private static int sequence = 0;
+
+    public static void main(String[] args) throws Exception {
+        int packets = 4000;
+        if (args.length > 0) {
+            packets = Math.min(4096, Integer.parseInt(args[0]));
+        }
+        System.setProperty("ec544.transport", "memory");
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Method allocatedBytes = allocatedBytes(threads);
+        if (allocatedBytes == null) {
+            System.out.println("This JVM cannot measure allocation per thread (needs HotSpot, JDK 6u25 or later);"
+                    + " checking the decode path only");
+        }
+        DatagramConnection server = LoopbackRadio.open("radiogram://:" + PORT);
+        DatagramConnection client = LoopbackRadio.open("radiogram://broadcast:" + PORT);
+        LoopbackRadio.Packet in = (LoopbackRadio.Packet) server.newDatagram(server.getMaximumLength());
+        LoopbackRadio.Packet out = (LoopbackRadio.Packet) client.newDatagram(client.getMaximumLength());
+        NodeRegistry nodes = new NodeRegistry(1, 4096 * BATCH_POINTS, OverloadPolicy.DROP_OLDEST, 4, 50, 4096, 50, 1000, SAMPLE_MILLIS,
+                10000, new CSVWriter("alloc_live.csv"), "alloc_", 65536);
+        PacketDecoder decoder = new PacketDecoder(nodes);
+        long receiver = Thread.currentThread().getId();
+
+        // the car's stream and writer thread are created by its first packet
+        send(client, out, "v2", 1);
+        receive(server, in, decoder, 1);
+        long writer = writerThread(IEEEAddress.toDottedHex(SOURCE));
+        NodeStream node = nodes.find(SOURCE);
+        long expected = 1;
+        boolean failed = false;
+
+        System.out.println("kind      packets    points   receive B/packet   writer B/point");
+        for (int k = 0; k < KINDS.length; k++) {
+            String kind = KINDS[k];
+            int points = kind.equals("v2") ? packets : packets * BATCH_POINTS;
+            long receiveBytes = 0;
+            long writerBytes = 0;
+            long elapsed = 0;
+            for (int round = 0; round < 2; round++) {
+                send(client, out, kind, packets);
+                Thread.sleep(200); // let the writer go idle
+                long receiveBefore = allocated(allocatedBytes, threads, receiver);
+                long writerBefore = allocated(allocatedBytes, threads, writer);
+                long start = System.nanoTime();
+                receive(server, in, decoder, packets);
+                elapsed = System.nanoTime() - start;
+                receiveBytes = allocated(allocatedBytes, threads, receiver) - receiveBefore;
+                expected += points;
+                drain(node, expected); // the writer drains the ring and commits
+                writerBytes = allocated(allocatedBytes, threads, writer) - writerBefore;
+            }
+            double receivePerPacket = (double) receiveBytes / packets;
+            double writerPerPoint = (double) writerBytes / points;
+            String receiveColumn = "n/a";
+            String writerColumn = "n/a";
+            if (allocatedBytes != null) {
+                receiveColumn = format(receivePerPacket);
+                writerColumn = format(writerPerPoint);
+            }
+            System.out.println(pad(kind, 6) + pad("" + packets, 11) + pad("" + points, 10)
+                    + pad(receiveColumn, 19) + pad(writerColumn, 17)
+                    + "   (" + format(elapsed / 1000.0 / packets) + " us/packet)");
+            if (node.getWrittenCount() != expected) {
+                System.out.println("  " + kind + ": " + expected + " points sent, " + node.getWrittenCount() + " written");
+                failed = true;
+            }
+            if (receivePerPacket > MAX_BYTES || writerPerPoint > MAX_BYTES) {
+                System.out.println("  " + kind + ": over " + MAX_BYTES + " B allocated per packet or point");
+                failed = true;
+            }
+        }
+        System.out.println(nodes.statusReport());
+        System.exit(failed ? 1 : 0);
+    }
+
+    //com.sun.management.ThreadMXBean.getThreadAllocatedBytes, enabled, or null where this JVM has none
+    private static Method allocatedBytes(ThreadMXBean threads) {
+        try {
+            Class<?> hotSpot = Class.forName("com.sun.management.ThreadMXBean");
+            if (!hotSpot.isInstance(threads)
+                    || !((Boolean) hotSpot.getMethod("isThreadAllocatedMemorySupported").invoke(threads)).booleanValue()) {
+                return null;
+            }
+            hotSpot.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(threads, Boolean.TRUE);
+            return hotSpot.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    //Bytes thread id has allocated so far, 0 without allocatedBytes
+    private static long allocated(Method allocatedBytes, ThreadMXBean threads, long id) throws Exception {
+        if (allocatedBytes == null) {
+            return 0;
+        }
+        return ((Long) allocatedBytes.invoke(threads, Long.valueOf(id))).longValue();
+    }
+
+    //Waits up to DRAIN_MILLIS for node to have written expected points, then for its commit
+    private static void drain(NodeStream node, long expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + DRAIN_MILLIS;
+        while (node.getWrittenCount() < expected && System.currentTimeMillis() < end) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+    }
+
+    //Queues n packets of kind on the memory transport, from SOURCE with a sample every SAMPLE_MILLIS
+    private static void send(DatagramConnection client, LoopbackRadio.Packet out, String kind, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            out.reset();
+            out.setSource(SOURCE, -40, 100, 180);
+            if (kind.equals("v2")) {
+                nextPoint();
+                SmallPointCodec.encode(point, out);
+            } else {
+                double baseTime = time + SAMPLE_MILLIS;
+                int length;
+                if (kind.equals("batch")) {
+                    length = SmallPointCodec.startBatch(frame, baseTime);
+                } else {
+                    length = SmallPointCodec.startSparseBatch(frame, baseTime, sequence++ & 0xFF);
+                }
+                for (int j = 0; j < BATCH_POINTS; j++) {
+                    nextPoint();
+                    length = SmallPointCodec.addToBatch(frame, length, frame.length, baseTime, point);
+                }
+                out.write(frame, 0, length);
+            }
+            client.send(out);
+        }
+    }
+
+    private static void nextPoint() {
+        time += SAMPLE_MILLIS;
+        long n = (long) (time / SAMPLE_MILLIS);
+        point.leftFront = 20 + (int) (n % 60);
+        point.rightFront = 20 + (int) ((n + 15) % 60);
+        point.leftRear = 20 + (int) ((n + 30) % 60);
+        point.rightRear = 20 + (int) ((n + 45) % 60);
+        point.setTurn = 90;
+        point.setSpeed = 110;
+        point.time = time;
+        SmallPointCodec.setFlags(point, (int) (n % 4));
+    }
+
+    //Receives and dispatches n packets the way CarDataReceiver.receiveLoop does
+    private static void receive(DatagramConnection server, LoopbackRadio.Packet in, PacketDecoder decoder, int n) throws Exception {
+        for (int i = 0; i < n; i++) {
+            in.reset();
+            server.receive(in);
+            decoder.dispatch(in, 0);
+        }
+    }
+
+    private static long writerThread(String name) {
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            if (entry.getKey().getName().equals("write-" + name)) {
+                return entry.getKey().getId();
+            }
+        }
+        throw new IllegalStateException("No writer thread for " + name);
+    }
+
+    private static String format(double value) {
+        return "" + Math.round(value * 100) / 100.0;
+    }
+
+    private static String pad(String text, int width) {
+        StringBuilder out = new StringBuilder(text);
+        while (out.length() < width) {
+            out.insert(0, ' ');
+        }
+        return out.toString();
+    }
+}
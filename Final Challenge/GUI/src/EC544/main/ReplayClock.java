@@ -0,0 +1,39 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * Time taken from a recorded run: before each recorded point is fed to the
+ * controller, follow(point) sets the clock to the time the car stamped on it,
+ * so timeouts expire exactly as they did on the car. sleep() returns at once;
+ * the recording, not the controller, decides when the next sample comes.
+ */
+public class ReplayClock implements Clock {
+
+    private long now;
+
+    public ReplayClock() {
+    }
+
+    public ReplayClock(double startMillis) {
+        now = (long) startMillis;
+    }
+
+    //Sets the time to when sp was recorded
+    public void follow(SmallPoint sp) {
+        now = (long) sp.time;
+    }
+
+    public void setTime(double millis) {
+        now = (long) millis;
+    }
+
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    public void sleep(long millis) {
+    }
+}
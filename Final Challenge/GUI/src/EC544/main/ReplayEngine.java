@@ -0,0 +1,372 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the car's controller (IRDaemon) over recorded runs without
+ * csv_watcher, as fast as it computes. csv_watcher's processNewPoint does the
+ * same one point per frame inside the Processing draw loop; this goes through
+ * every CSV in the given directories, one task per file on a pool of threads
+ * (IRDaemon is stateful, so a run is never split), to check a controller
+ * change against all the old runs in seconds.
+ *
+ * <pre>
+ * ReplayEngine [-out dir] [-threads n] [-filter] dir-or-file...
+ * </pre>
+ *
+ * A file is replayed if it holds SmallPoint rows (time,LF,RF,LR,RR,setTurn,
+ * setSpeed,booleans, as CarDataReceiver and csv_watcher record them) or
+ * CarPoint rows; anything else (mammals.csv) is listed as skipped. Each
+ * recorded sample is fed to the controller as the car would have: a
+ * ReplayClock set to the sample's time, the recorded speed and turn, the
+ * takeNextLeft/takeNextRight/collision commands where the recording shows
+ * them switching on, then setReads and decide.
+ *
+ * For each file, &lt;out&gt;/&lt;name&gt;-replay.csv gets the controller's CarPoint
+ * per sample, with the turn it chose, followed by the turn the car recorded
+ * and the name of decide's decision. &lt;out&gt;/summary.csv and the console get
+ * one line per file (Stats) and a total. With -filter the controller runs
+ * with a WallFilter (IRDaemon.setWallFilter).
+ */
+public class ReplayEngine {
+
+    public static final int[] CAR_POINT = new int[19];
+    private static final int SETTLE_SAMPLES = 3; // the averages start from zeros, see IRDaemon.initRecents
+
+    static {
+        Arrays.fill(CAR_POINT, CsvColumnParser.DOUBLE);
+    }
+
+    /**
+     * One recorded run in columns, as read by load(). Reads are in cm, turn
+     * and speed in servo units; bit i of flags is SmallPoint.getFlag(i).
+     */
+    public static class Run {
+
+        public final String name;
+        public final int length;
+        public final double[] time;
+        public final int[] LF;
+        public final int[] RF;
+        public final int[] LR;
+        public final int[] RR;
+        public final int[] turn;
+        public final int[] speed;
+        public final int[] flags;
+
+        Run(String name, int length) {
+            this.name = name;
+            this.length = length;
+            time = new double[length];
+            LF = new int[length];
+            RF = new int[length];
+            LR = new int[length];
+            RR = new int[length];
+            turn = new int[length];
+            speed = new int[length];
+            flags = new int[length];
+        }
+    }
+
+    /**
+     * What the controller did over one run. Tracked samples are those where it
+     * followed a wall, i.e. not cornering and not "unknown"; the distance error
+     * is how far its averaged wall distance was from its target on those.
+     */
+    public static class Stats {
+
+        public String name;
+        public int samples;
+        public int tracked;
+        public int unknown;
+        public int corners;
+        public double errorSum; // cm
+        public double errorSquares;
+        public double turnChangeSum; // servo units between consecutive samples
+        public double recordedDifferenceSum; // |chosen - recorded turn|
+        public long nanos; // in IRDaemon
+
+        Stats(String name) {
+            this.name = name;
+        }
+
+        public void add(Stats other) {
+            samples += other.samples;
+            tracked += other.tracked;
+            unknown += other.unknown;
+            corners += other.corners;
+            errorSum += other.errorSum;
+            errorSquares += other.errorSquares;
+            turnChangeSum += other.turnChangeSum;
+            recordedDifferenceSum += other.recordedDifferenceSum;
+            nanos += other.nanos;
+        }
+
+        public double getMeanError() {
+            return tracked == 0 ? 0.0 : errorSum / tracked;
+        }
+
+        public double getRmsError() {
+            return tracked == 0 ? 0.0 : Math.sqrt(errorSquares / tracked);
+        }
+
+        //Steering oscillation: mean change of the chosen turn from one sample to the next
+        public double getMeanTurnChange() {
+            return samples < 2 ? 0.0 : turnChangeSum / (samples - 1);
+        }
+
+        public double getMeanRecordedDifference() {
+            return samples == 0 ? 0.0 : recordedDifferenceSum / samples;
+        }
+
+        public static String headerRow() {
+            return "file,samples,tracked,unknown,corners,meanError,rmsError,meanTurnChange,meanRecordedDifference,usPerSample";
+        }
+
+        public String toString() {
+            return name + "," + samples + "," + tracked + "," + unknown + "," + corners + "," + round(getMeanError())
+                    + "," + round(getRmsError()) + "," + round(getMeanTurnChange()) + ","
+                    + round(getMeanRecordedDifference()) + "," + round(samples == 0 ? 0.0 : nanos / 1000.0 / samples);
+        }
+    }
+
+    static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    /**
+     * Reads a recorded run, or returns null if file holds neither SmallPoint
+     * nor CarPoint rows.
+     */
+    public static Run load(File file) throws IOException {
+        CsvColumnParser parser = new CsvColumnParser(CsvColumnParser.SMALL_POINT);
+        int rows = parser.parse(file.getPath());
+        if (rows > 0) {
+            Run run = new Run(file.getName(), rows);
+            SmallPoint sp = new SmallPoint();
+            for (int i = 0; i < rows; i++) {
+                parser.getPoint(i, sp);
+                run.time[i] = sp.time;
+                run.LF[i] = sp.leftFront;
+                run.RF[i] = sp.rightFront;
+                run.LR[i] = sp.leftRear;
+                run.RR[i] = sp.rightRear;
+                run.turn[i] = sp.setTurn;
+                run.speed[i] = sp.setSpeed;
+                for (int f = 0; f < SmallPointCodec.FLAG_COUNT; f++) {
+                    if (sp.getFlag(f)) {
+                        run.flags[i] |= 1 << f;
+                    }
+                }
+            }
+            return run;
+        }
+        parser = new CsvColumnParser(CAR_POINT);
+        rows = parser.parse(file.getPath());
+        if (rows == 0) {
+            return null;
+        }
+        // as csv_watcher's processNewPoint(CarPoint): reads truncated to ints, no flags
+        Run run = new Run(file.getName(), rows);
+        System.arraycopy(parser.getDoubles(0), 0, run.time, 0, rows);
+        int[][] columns = {run.LF, run.RF, run.LR, run.RR, run.turn, run.speed};
+        int[] from = {1, 2, 3, 4, 13, 14};
+        for (int c = 0; c < columns.length; c++) {
+            double[] values = parser.getDoubles(from[c]);
+            for (int i = 0; i < rows; i++) {
+                columns[c][i] = (int) values[i];
+            }
+        }
+        return run;
+    }
+
+    public static Stats replay(Run run, ControllerParams params, Writer out) throws IOException {
+        return replay(run, params, false, out);
+    }
+
+    /**
+     * Feeds run through a fresh IRDaemon with params, and a WallFilter if
+     * filter is set. If out is not null it gets a header and one enriched
+     * CarPoint line per sample.
+     */
+    public static Stats replay(Run run, ControllerParams params, boolean filter, Writer out) throws IOException {
+        ReplayClock clock = new ReplayClock();
+        IRDaemon daemon = new IRDaemon(clock, params);
+        daemon.setVerbose(false);
+        if (filter) {
+            daemon.setWallFilter(new WallFilter());
+        }
+        CarPoint cp = new CarPoint();
+        Stats stats = new Stats(run.name);
+        if (out != null) {
+            out.write(CarPoint.headerRow() + ",recordedTurn,decision\n");
+        }
+        int previousFlags = 0;
+        int previousTurn = 0;
+        for (int i = 0; i < run.length; i++) {
+            long start = System.nanoTime();
+            clock.setTime(run.time[i]);
+            int rising = run.flags[i] & ~previousFlags;
+            previousFlags = run.flags[i];
+            // in MainCarController's order; a row holds the turn and speed chosen after its reads
+            int driving = i > 0 ? i - 1 : 0;
+            daemon.setReads(run.LF[i], run.RF[i], run.LR[i], run.RR[i]);
+            daemon.updateState(daemon.isColliding || (rising & 1) != 0,
+                    daemon.takeNextLeft || (rising & 2) != 0,
+                    daemon.takeNextRight || (rising & 4) != 0, run.speed[driving], run.turn[driving]);
+            int decision = daemon.decide();
+            int turn = daemon.turnSuggest;
+            stats.nanos += System.nanoTime() - start;
+
+            boolean startTurn = DriveState.startsTurn(decision);
+            boolean stopTurn = DriveState.stopsTurn(decision);
+            daemon.fillCarpoint(cp, turn, run.speed[i], startTurn, stopTurn, run.time[i]);
+            stats.samples++;
+            if (startTurn) {
+                stats.corners++;
+            }
+            if (decision == DriveState.UNKNOWN) {
+                stats.unknown++;
+            } else if (!DriveState.isCorner(daemon.getState()) && !startTurn && i >= SETTLE_SAMPLES) {
+                double error = Math.abs(Math.abs(cp.distance) - Math.abs(cp.targetDist));
+                stats.tracked++;
+                stats.errorSum += error;
+                stats.errorSquares += error * error;
+            }
+            if (i > 0) {
+                stats.turnChangeSum += Math.abs(turn - previousTurn);
+            }
+            previousTurn = turn;
+            stats.recordedDifferenceSum += Math.abs(turn - run.turn[i]);
+            if (out != null) {
+                out.write(cp.toString() + "," + run.turn[i] + "," + DriveState.DECISION_NAMES[decision] + "\n");
+            }
+        }
+        return stats;
+    }
+
+    //The CSV files in each of paths, directories not descended into
+    public static List<File> listRuns(String[] paths, int from) {
+        List<File> files = new ArrayList<File>();
+        for (int i = from; i < paths.length; i++) {
+            File path = new File(paths[i]);
+            File[] inside = path.isDirectory() ? path.listFiles() : new File[]{path};
+            if (inside == null) {
+                continue;
+            }
+            Arrays.sort(inside);
+            for (int j = 0; j < inside.length; j++) {
+                if (inside[j].isFile() && inside[j].getName().toLowerCase().endsWith(".csv")) {
+                    files.add(inside[j]);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static String replayName(File file) {
+        String name = file.getName();
+        return name.substring(0, name.length() - 4) + "-replay.csv";
+    }
+
+    public static void main(String[] args) throws Exception {
+        File outDir = new File("replay");
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean useFilter = false;
+        int first = 0;
+        while (first < args.length && args[first].startsWith("-")) {
+            if (args[first].equals("-filter")) {
+                useFilter = true;
+                first++;
+                continue;
+            }
+            if (args[first].equals("-out") && first + 1 < args.length) {
+                outDir = new File(args[first + 1]);
+            } else if (args[first].equals("-threads") && first + 1 < args.length) {
+                threads = Math.max(1, Integer.parseInt(args[first + 1]));
+            } else {
+                break;
+            }
+            first += 2;
+        }
+        List<File> files = listRuns(args, first);
+        if (files.isEmpty()) {
+            System.out.println("Usage: ReplayEngine [-out dir] [-threads n] [-filter] dir-or-file...");
+            return;
+        }
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("cannot create " + outDir);
+        }
+        final File dir = outDir;
+        final ControllerParams params = new ControllerParams();
+        final boolean filter = useFilter;
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Stats>> results = new ArrayList<Future<Stats>>();
+        for (final File file : files) {
+            results.add(pool.submit(new Callable<Stats>() {
+
+                public Stats call() throws IOException {
+                    Run run = load(file);
+                    if (run == null) {
+                        return null;
+                    }
+                    Writer out = new BufferedWriter(new FileWriter(new File(dir, replayName(file))));
+                    try {
+                        // each task its own params, so a sweep can hand out different ones
+                        return replay(run, params.copy(), filter, out);
+                    } finally {
+                        out.close();
+                    }
+                }
+            }));
+        }
+        pool.shutdown();
+
+        Stats total = new Stats("TOTAL");
+        Writer summary = new BufferedWriter(new FileWriter(new File(dir, "summary.csv")));
+        try {
+            summary.write(Stats.headerRow() + "\n");
+            System.out.println(Stats.headerRow());
+            for (int i = 0; i < files.size(); i++) {
+                Stats stats;
+                try {
+                    stats = results.get(i).get();
+                } catch (ExecutionException ex) {
+                    System.out.println(files.get(i) + ": " + ex.getCause());
+                    continue;
+                }
+                if (stats == null) {
+                    System.out.println(files.get(i) + ": not a recorded run, skipped");
+                    continue;
+                }
+                stats.name = files.get(i).getPath();
+                total.add(stats);
+                summary.write(stats + "\n");
+                System.out.println(stats);
+            }
+            summary.write(total + "\n");
+            System.out.println(total);
+        } finally {
+            summary.close();
+        }
+        System.out.println("Replayed " + total.samples + " samples in " + round((System.nanoTime() - start) / 1e6)
+                + " ms on " + threads + " threads; output in " + dir);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes one car's session log as a series of fixed-size TelemetryLog
+ * segments instead of one file that grows for the whole session.
+ *
+ * <pre>
+ * base.0000.tlog     segment being written
+ * base.0000.idx      its sidecar index, written when the segment is closed
+ * base.0000.tlog.gz  the segment once the background compressor is done with it
+ * </pre>
+ *
+ * A segment is closed after segmentRecords records (1 MB at the default
+ * 65536) and handed to a single background thread that gzips it and deletes
+ * the original, so the writer thread never waits on compression. If
+ * compression fails the plain segment is left in place; readers take either.
+ *
+ * The index is a small text file:
+ *
+ * <pre>
+ * range,first point time,last point time,records
+ * time,record          one line every INDEX_STRIDE points
+ * </pre>
+ *
+ * TelemetryLogIndex uses it to find the segment and record where a given time
+ * starts without reading the rest of the session.
+ *
+ * Same interface as TelemetryLogWriter; not thread safe, owned by the writer thread.
+ */
+public class SegmentedLogWriter {
+
+    public static final String INDEX_EXTENSION = ".idx";
+    public static final String COMPRESSED_EXTENSION = ".gz";
+    public static final int INDEX_STRIDE = 1024;
+    private static final String NEWLINE = System.getProperty("line.separator");
+    private static final ExecutorService compressor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "log-compressor");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    private final String base;
+    private final int segmentRecords;
+    private int segment = -1;
+    private TelemetryLogWriter current;
+    private final StringBuilder index = new StringBuilder();
+    private long points;
+    private double firstTime;
+    private double lastTime;
+
+    public SegmentedLogWriter(String base, int segmentRecords) throws IOException {
+        this.base = base;
+        this.segmentRecords = Math.max(INDEX_STRIDE, segmentRecords);
+        openNext();
+    }
+
+    //Segment file for number n, before compression
+    public static String segmentPath(String base, int n) {
+        String number = Integer.toString(n);
+        while (number.length() < 4) {
+            number = "0" + number;
+        }
+        return base + "." + number + TelemetryLog.EXTENSION;
+    }
+
+    //Sidecar index for a segment file, with or without the compressed extension
+    public static String indexPath(String segmentPath) {
+        String path = segmentPath;
+        if (path.endsWith(COMPRESSED_EXTENSION)) {
+            path = path.substring(0, path.length() - COMPRESSED_EXTENSION.length());
+        }
+        return path.substring(0, path.length() - TelemetryLog.EXTENSION.length()) + INDEX_EXTENSION;
+    }
+
+    private void openNext() throws IOException {
+        segment++;
+        current = new TelemetryLogWriter(segmentPath(base, segment));
+        index.setLength(0);
+        points = 0;
+    }
+
+    private void roll() throws IOException {
+        if (current.getRecordCount() < segmentRecords) {
+            return;
+        }
+        final String closed = closeSegment();
+        openNext();
+        compressor.execute(new Runnable() {
+            public void run() {
+                compress(closed);
+            }
+        });
+    }
+
+    //Closes the current segment and writes its index; returns the segment's path
+    private String closeSegment() throws IOException {
+        String path = current.getFilePath();
+        long records = current.getRecordCount();
+        current.close();
+        BufferedWriter out = new BufferedWriter(new FileWriter(indexPath(path)));
+        try {
+            if (points > 0) {
+                out.write("range," + (long) firstTime + "," + (long) lastTime + "," + records);
+            } else {
+                out.write("range,,," + records);
+            }
+            out.write(NEWLINE);
+            out.write(index.toString());
+        } finally {
+            out.close();
+        }
+        return path;
+    }
+
+    //Runs on the compressor thread. The .gz only replaces the segment once it is complete.
+    private static void compress(String path) {
+        File source = new File(path);
+        File partial = new File(path + COMPRESSED_EXTENSION + ".part");
+        File done = new File(path + COMPRESSED_EXTENSION);
+        try {
+            InputStream in = new FileInputStream(source);
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(partial), 64 * 1024);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+                out.close();
+            }
+            if (!partial.renameTo(done)) {
+                throw new IOException("could not rename " + partial);
+            }
+            if (!source.delete()) {
+                System.out.println("Could not delete " + path + " after compressing it");
+            }
+        } catch (IOException ex) {
+            System.out.println("IOException " + ex + " compressing " + path + ", leaving it uncompressed");
+            partial.delete();
+        }
+    }
+
+    public void append(SmallPoint sp) throws IOException {
+        roll();
+        if (points % INDEX_STRIDE == 0) {
+            index.append((long) sp.time).append(',').append(current.getRecordCount()).append(NEWLINE);
+        }
+        if (points == 0) {
+            firstTime = sp.time;
+            lastTime = sp.time;
+        } else {
+            firstTime = Math.min(firstTime, sp.time);
+            lastTime = Math.max(lastTime, sp.time);
+        }
+        points++;
+        current.append(sp);
+    }
+
+    public void appendLink(double time, int packets, int lost, int rssi, int lqi, int corr, int jitter) throws IOException {
+        roll();
+        current.appendLink(time, packets, lost, rssi, lqi, corr, jitter);
+    }
+
+    public void appendDrop(double time, int policy, int dropped) throws IOException {
+        roll();
+        current.appendDrop(time, policy, dropped);
+    }
+
+    public void commit() {
+        current.commit();
+    }
+
+    public String getFilePath() {
+        return current.getFilePath();
+    }
+
+    public int getSegmentCount() {
+        return segment + 1;
+    }
+
+    //Closes the last segment and writes its index; it is left uncompressed
+    public void close() throws IOException {
+        closeSegment();
+    }
+}
@@ -10,10 +10,8 @@ package EC544.main;
  */
 public class SmallPoint {
 
-    /* To transmit SmallPoints as Datagrams, send booleansToUnsignedInt() first.
-     * then send leftFront, rightFront, leftRear, rightRear as unsigned ints
-     * using toUnsignedInt(). Next, send setTurn and setSpeed using servoValueToUnsignedInt().
-     * Last, send the timestamp as a double.
+    /* To transmit SmallPoints as Datagrams, use SmallPointCodec.encode; it
+     * also decodes them and defines the CSV "booleans" column.
      */
     //RF - LR are sensor readings IN CENTIMETERS
     static int SMALLPOINT_INT_BYTES = 6;
@@ -43,6 +41,10 @@ public class SmallPoint {
         setSpeed = speed;
     }
 
+    //Empty point, used to preallocate ring slots and scratch points
+    public SmallPoint() {
+    }
+
     public SmallPoint(int LF, int RF, int LR, int RR, int turn, int speed) {
         leftFront = LF;
         rightFront = RF;
@@ -54,50 +56,69 @@ public class SmallPoint {
         setSpeed = speed;
     }
 
+    public void copyFrom(SmallPoint other) {
+        time = other.time;
+        leftFront = other.leftFront;
+        rightFront = other.rightFront;
+        leftRear = other.leftRear;
+        rightRear = other.rightRear;
+        setTurn = other.setTurn;
+        setSpeed = other.setSpeed;
+        isColliding = other.isColliding;
+        isCornering = other.isCornering;
+        isHonking = other.isHonking;
+        isParking = other.isParking;
+        isLocked = other.isLocked;
+        bool5 = other.bool5;
+    }
+
+    //True if unsigned is the first byte of a SmallPoint packet
     public static boolean checkBooleans(int unsigned) {
-        if ((unsigned / 128) > 0) {
-            if ((unsigned - 128 / 64) > 0) {
-                return true;
-            } else {
-                return false;
-            }
-        } else {
-            return false;
-        }
+        return SmallPointCodec.isSmallPoint(unsigned);
     }
 
-    public void setBooleans(int unsignedBooleans) {
-        if (unsignedBooleans / 128 > 0) {
-            unsignedBooleans -= 128;
-            //No boolean, used to identify SmallPoints
-        }
-        if (unsignedBooleans / 64 > 0) {
-            unsignedBooleans -= 64;
-            //No boolean, used to identify SmallPoints
-        }
-        if (unsignedBooleans / 32 > 0) {
-            unsignedBooleans -= 32;
-            isColliding = true;
-        }
-        if (unsignedBooleans / 16 > 0) {
-            unsignedBooleans -= 16;
-            isCornering = true;
-        }
-        if (unsignedBooleans / 8 > 0) {
-            unsignedBooleans -= 8;
-            isHonking = true;
-        }
-        if (unsignedBooleans / 4 > 0) {
-            unsignedBooleans -= 4;
-            isParking = true;
-        }
-        if (unsignedBooleans / 2 > 0) {
-            unsignedBooleans -= 2;
-            isLocked = true;
+    //Sets the booleans from a CSV "booleans" column, see SmallPointCodec.setBooleansColumn
+    public void setBooleans(int booleans) {
+        SmallPointCodec.setBooleansColumn(this, booleans);
+    }
+
+    //The booleans by SmallPointCodec flag index
+    public boolean getFlag(int index) {
+        switch (index) {
+            case 0:
+                return isColliding;
+            case 1:
+                return isCornering;
+            case 2:
+                return isHonking;
+            case 3:
+                return isParking;
+            case 4:
+                return isLocked;
+            default:
+                return bool5;
         }
-        if (unsignedBooleans / 1 > 0) {
-            unsignedBooleans -= 1;
-            bool5 = true;
+    }
+
+    public void setFlag(int index, boolean value) {
+        switch (index) {
+            case 0:
+                isColliding = value;
+                break;
+            case 1:
+                isCornering = value;
+                break;
+            case 2:
+                isHonking = value;
+                break;
+            case 3:
+                isParking = value;
+                break;
+            case 4:
+                isLocked = value;
+                break;
+            default:
+                bool5 = value;
         }
     }
     
@@ -106,20 +127,16 @@ public class SmallPoint {
     }
 
     public boolean isASmallPoint() { //checks to see if first two bits are '11'
-        int unsigned = convertUnsignedInt(booleansToUnsignedInt());
+        int unsigned = SmallPointCodec.booleansColumn(this);
         return checkBooleans(unsigned);
     }
     
+    //Undoes toUnsignedInt: a byte written as -64 reads back as 192
     public static int convertUnsignedInt(int unsigned){
-        int out;
         if (unsigned < 0){
-            out =  127 - unsigned;
+            return unsigned + 256;
         }
-        else {
-            out = unsigned;
-        }
-        //System.out.println("Converted unsigned ("+unsigned+"to signed ("+out+").");
-        return out;
+        return unsigned;
     }
 
     public static int servoValueToUnsignedInt(int setTurn) {
@@ -128,28 +145,9 @@ public class SmallPoint {
         return out;
     }
 
+    //The flags byte of a legacy SmallPoint packet, as a signed byte value
     public int booleansToUnsignedInt() {
-        int out = 0 + 128 + 64; // two bits of byte will be 1 and 1, for datagram recognition
-        if (isColliding == true) {
-            out += 1;
-        }
-        if (isCornering == true) {
-            out += 2;
-        }
-
-        if (isHonking == true) {
-            out += 4;
-        }
-        if (isParking == true) {
-            out += 8;
-        }
-        if (isLocked == true) {
-            out += 16;
-        }
-        if (bool5 == true) {
-            out += 32;
-        }
-        return toUnsignedInt(out);
+        return toUnsignedInt(SmallPointCodec.booleansColumn(this));
     }
 
     public static int readToInt(double read) {
@@ -178,11 +176,11 @@ public class SmallPoint {
     }
 
     public String toString() {
-        String outputLine = time + "," + leftFront + "," + rightFront + "," + leftRear + "," + rightRear + "," + setTurn + "," + setSpeed + "," + convertUnsignedInt(booleansToUnsignedInt());
+        String outputLine = time + "," + leftFront + "," + rightFront + "," + leftRear + "," + rightRear + "," + setTurn + "," + setSpeed + "," + SmallPointCodec.booleansColumn(this);
         return outputLine;
     }
 
     public void printPoint() {
-        System.out.println("Time: " + time + ", RF: " + rightFront + ", LF:" + leftFront + ", RR: " + rightRear + ", LR: " + leftRear + ", setTurn: " + setTurn + ", setSpeed: " + setSpeed + ", Booleans: " + convertUnsignedInt(booleansToUnsignedInt()));
+        System.out.println("Time: " + time + ", RF: " + rightFront + ", LF:" + leftFront + ", RR: " + rightRear + ", LR: " + leftRear + ", setTurn: " + setTurn + ", setSpeed: " + setSpeed + ", Booleans: " + SmallPointCodec.booleansColumn(this));
     }
 }
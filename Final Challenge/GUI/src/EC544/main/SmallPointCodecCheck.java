@@ -0,0 +1,338 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Round-trips SmallPoints through every SmallPointCodec encoding at the
+ * edges of its fields, and times encoding and decoding.
+ *
+ * <pre>
+ * SmallPointCodecCheck [points]
+ * </pre>
+ *
+ * Each reading is tried at -1, 0, 1, 127, 128, 254, 255 and 256, setTurn and
+ * setSpeed at -10, 0, 9, 10, 1270, 2550, 2559 and 2560, with all 64
+ * combinations of flags and times from 0 to Double.MAX_VALUE. Every case is
+ * written as version 2 (byte[], ByteBuffer and Datagram-style DataOutput),
+ * legacy (laid out here, the codec only reads it), a batch (0xA3) and a
+ * sparse batch (0xA7), and read back by each decode that takes it. What
+ * comes back must equal the point clamped to what the encoding holds:
+ * readings to 0..255, the servo values to tens in 0..2550, a batch sample's
+ * time to whole ms after the base time. Batches are also filled to their 255
+ * sample and 65535 ms limits, and one more must be refused; the sparse
+ * sequence number must wrap at 256. Differences are printed with the case,
+ * at most MAX_PRINTED of them.
+ *
+ * Then points (1000000) random points are encoded and decoded each way, the
+ * best of ROUNDS rounds after a warm-up pass, in ns per point.
+ */
+public class SmallPointCodecCheck {
+
+    private static final int[] READINGS = {-1, 0, 1, 127, 128, 254, 255, 256};
+    private static final int[] SERVOS = {-10, 0, 9, 10, 1270, 2550, 2559, 2560};
+    private static final double[] TIMES = {0.0, 1.0, 1386624905400.0, 1386624905400.5, Double.MAX_VALUE};
+    private static final double BASE_TIME = 1386624905400.0;
+    private static final int MAX_PRINTED = 20;
+    private static final int ROUNDS = 5;
+    private static int cases = 0;
+    private static int differences = 0;
+
+    //What a point should read back as from an encoding that holds time exactly
+    private static void clamp(SmallPoint sp, SmallPoint out) {
+        out.copyFrom(sp);
+        out.leftFront = clampByte(sp.leftFront);
+        out.rightFront = clampByte(sp.rightFront);
+        out.leftRear = clampByte(sp.leftRear);
+        out.rightRear = clampByte(sp.rightRear);
+        out.setTurn = clampByte(sp.setTurn / 10) * 10;
+        out.setSpeed = clampByte(sp.setSpeed / 10) * 10;
+    }
+
+    private static int clampByte(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static void check(String label, SmallPoint sent, SmallPoint expected, SmallPoint got, boolean decoded) {
+        cases++;
+        boolean same = decoded && got.leftFront == expected.leftFront && got.rightFront == expected.rightFront
+                && got.leftRear == expected.leftRear && got.rightRear == expected.rightRear
+                && got.setTurn == expected.setTurn && got.setSpeed == expected.setSpeed
+                && Double.doubleToLongBits(got.time) == Double.doubleToLongBits(expected.time)
+                && SmallPointCodec.flags(got) == SmallPointCodec.flags(expected);
+        if (!same) {
+            differences++;
+            if (differences <= MAX_PRINTED) {
+                System.out.println("  " + label + ": sent " + sent + ", expected " + expected
+                        + (decoded ? ", got " + got : ", not decoded"));
+            }
+        }
+    }
+
+    private static void expect(String label, boolean condition) {
+        cases++;
+        if (!condition) {
+            differences++;
+            if (differences <= MAX_PRINTED) {
+                System.out.println("  " + label);
+            }
+        }
+    }
+
+    //The version 1 layout older cars sent: 0xC0 | flags, the six bytes, the time
+    private static int encodeLegacy(SmallPoint sp, byte[] buf) {
+        ByteBuffer out = ByteBuffer.wrap(buf);
+        out.put((byte) (SmallPointCodec.LEGACY_MARK | SmallPointCodec.flags(sp)));
+        out.put((byte) clampByte(sp.leftFront));
+        out.put((byte) clampByte(sp.rightFront));
+        out.put((byte) clampByte(sp.leftRear));
+        out.put((byte) clampByte(sp.rightRear));
+        out.put((byte) clampByte(sp.setTurn / 10));
+        out.put((byte) clampByte(sp.setSpeed / 10));
+        out.putDouble(sp.time);
+        return SmallPointCodec.LEGACY_LENGTH;
+    }
+
+    private static DataInputStream input(byte[] buf, int length) {
+        return new DataInputStream(new ByteArrayInputStream(buf, 0, length));
+    }
+
+    //One point through v2 (three encoders, three decoders) and legacy (two decoders)
+    private static void roundTrip(SmallPoint sp, byte[] buf, SmallPoint expected, SmallPoint got) throws IOException {
+        clamp(sp, expected);
+        int length = SmallPointCodec.encode(sp, buf, 0);
+        check("v2 byte[]", sp, expected, got, SmallPointCodec.decode(buf, 0, length, got));
+        ByteBuffer wrapped = ByteBuffer.wrap(buf);
+        check("v2 ByteBuffer", sp, expected, got, SmallPointCodec.decode(wrapped, got));
+        expect("v2 ByteBuffer read " + wrapped.position() + " bytes", wrapped.position() == SmallPointCodec.LENGTH);
+        DataInputStream in = input(buf, length);
+        check("v2 DataInput", sp, expected, got, SmallPointCodec.decode(in.readUnsignedByte(), in, got));
+        wrapped.clear();
+        SmallPointCodec.encode(sp, wrapped);
+        check("v2 ByteBuffer encode", sp, expected, got, SmallPointCodec.decode(buf, 0, wrapped.position(), got));
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SmallPointCodec.encode(sp, new DataOutputStream(bytes));
+        byte[] written = bytes.toByteArray();
+        check("v2 DataOutput encode", sp, expected, got, SmallPointCodec.decode(written, 0, written.length, got));
+
+        length = encodeLegacy(sp, buf);
+        check("legacy byte[]", sp, expected, got, SmallPointCodec.decode(buf, 0, length, got));
+        in = input(buf, length);
+        check("legacy DataInput", sp, expected, got, SmallPointCodec.decode(in.readUnsignedByte(), in, got));
+    }
+
+    //The points sent as one batch or sparse batch frame, decoded the way CarDataReceiver does
+    private static void batchTrip(String label, SmallPoint[] points, int count, boolean sparse, int sequence, byte[] buf)
+            throws IOException {
+        int length = sparse ? SmallPointCodec.startSparseBatch(buf, BASE_TIME, sequence)
+                : SmallPointCodec.startBatch(buf, BASE_TIME);
+        for (int i = 0; i < count; i++) {
+            int grown = SmallPointCodec.addToBatch(buf, length, buf.length, BASE_TIME, points[i]);
+            expect(label + ": sample " + i + " refused", grown > 0);
+            if (grown < 0) {
+                return;
+            }
+            length = grown;
+        }
+        DataInputStream in = input(buf, length);
+        int tag = in.readUnsignedByte();
+        expect(label + ": tag " + tag, tag == (sparse ? SmallPointCodec.TAG_SPARSE : SmallPointCodec.TAG_BATCH));
+        expect(label + ": isSmallPoint", SmallPointCodec.isSmallPoint(tag));
+        int n = in.readUnsignedByte();
+        expect(label + ": count " + n + " for " + count, n == count);
+        if (sparse) {
+            int read = in.readUnsignedByte();
+            expect(label + ": sequence " + read + " for " + sequence, read == (sequence & 0xFF));
+        }
+        double baseTime = in.readDouble();
+        SmallPoint expected = new SmallPoint();
+        SmallPoint got = new SmallPoint();
+        for (int i = 0; i < n; i++) {
+            SmallPointCodec.decodeBatchSample(in, baseTime, got);
+            clamp(points[i], expected);
+            expected.time = BASE_TIME + (long) (points[i].time - BASE_TIME);
+            check(label, points[i], expected, got, true);
+        }
+        expect(label + ": " + in.available() + " bytes left over", in.available() == 0);
+    }
+
+    private static void boundaries() throws IOException {
+        byte[] buf = new byte[64];
+        SmallPoint sp = new SmallPoint();
+        SmallPoint expected = new SmallPoint();
+        SmallPoint got = new SmallPoint();
+        SmallPoint[] frame = new SmallPoint[255];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = new SmallPoint();
+        }
+        byte[] frameBuf = new byte[SmallPointCodec.SPARSE_HEADER + 256 * SmallPointCodec.BATCH_SAMPLE];
+        int inFrame = 0;
+        int frames = 0;
+        for (int r = 0; r < READINGS.length; r++) {
+            for (int s = 0; s < SERVOS.length; s++) {
+                for (int flags = 0; flags < 64; flags++) {
+                    sp.leftFront = READINGS[r];
+                    sp.rightFront = READINGS[(r + 1) % READINGS.length];
+                    sp.leftRear = READINGS[(r + 2) % READINGS.length];
+                    sp.rightRear = READINGS[(r + 3) % READINGS.length];
+                    sp.setTurn = SERVOS[s];
+                    sp.setSpeed = SERVOS[(s + flags) % SERVOS.length];
+                    SmallPointCodec.setFlags(sp, flags);
+                    for (int t = 0; t < TIMES.length; t++) {
+                        sp.time = TIMES[t];
+                        roundTrip(sp, buf, expected, got);
+                    }
+                    // batch offsets from 0 up to the 65535 ms limit, fractions dropped
+                    frame[inFrame].copyFrom(sp);
+                    frame[inFrame].time = BASE_TIME + (inFrame * 257.3) % 65536;
+                    inFrame++;
+                    if (inFrame == frame.length) {
+                        batchTrip("batch", frame, inFrame, false, 0, frameBuf);
+                        batchTrip("sparse", frame, inFrame, true, frames, frameBuf);
+                        inFrame = 0;
+                        frames++;
+                    }
+                }
+            }
+        }
+        batchTrip("batch", frame, inFrame, false, 0, frameBuf);
+
+        // the limits: 255 samples, 65535 ms, nothing before the base time, sequence mod 256
+        for (int i = 0; i < frame.length; i++) {
+            frame[i].time = BASE_TIME + (i == frame.length - 1 ? 65535 : i);
+        }
+        batchTrip("batch limits", frame, frame.length, false, 0, frameBuf);
+        batchTrip("sparse limits", frame, frame.length, true, 256, frameBuf);
+        int length = SmallPointCodec.startBatch(frameBuf, BASE_TIME);
+        for (int i = 0; i < frame.length; i++) {
+            length = SmallPointCodec.addToBatch(frameBuf, length, frameBuf.length, BASE_TIME, frame[i]);
+        }
+        expect("256th sample accepted", SmallPointCodec.addToBatch(frameBuf, length, frameBuf.length, BASE_TIME, sp) < 0);
+        length = SmallPointCodec.startBatch(frameBuf, BASE_TIME);
+        sp.time = BASE_TIME + 65536;
+        expect("65536 ms after the base accepted", SmallPointCodec.addToBatch(frameBuf, length, frameBuf.length, BASE_TIME, sp) < 0);
+        sp.time = BASE_TIME - 1;
+        expect("sample before the base accepted", SmallPointCodec.addToBatch(frameBuf, length, frameBuf.length, BASE_TIME, sp) < 0);
+        sp.time = BASE_TIME;
+        expect("sample past max accepted",
+                SmallPointCodec.addToBatch(frameBuf, length, length + SmallPointCodec.BATCH_SAMPLE - 1, BASE_TIME, sp) < 0);
+    }
+
+    private static void report(String label, long bestNanos, int points) {
+        System.out.println("  " + label + Math.round(100.0 * bestNanos / points) / 100.0 + " ns/point");
+    }
+
+    private static void bench(int points) throws IOException {
+        Random random = new Random(544);
+        SmallPoint[] source = new SmallPoint[1024];
+        for (int i = 0; i < source.length; i++) {
+            SmallPoint sp = new SmallPoint();
+            sp.leftFront = random.nextInt(256);
+            sp.rightFront = random.nextInt(256);
+            sp.leftRear = random.nextInt(256);
+            sp.rightRear = random.nextInt(256);
+            sp.setTurn = random.nextInt(256) * 10;
+            sp.setSpeed = random.nextInt(256) * 10;
+            sp.time = BASE_TIME + i * 50;
+            SmallPointCodec.setFlags(sp, random.nextInt(64));
+            source[i] = sp;
+        }
+        byte[] buf = new byte[SmallPointCodec.BATCH_HEADER + 255 * SmallPointCodec.BATCH_SAMPLE];
+        ByteBuffer wrapped = ByteBuffer.wrap(buf);
+        ByteArrayInputStream bytes = new ByteArrayInputStream(buf);
+        DataInputStream in = new DataInputStream(bytes);
+        SmallPoint got = new SmallPoint();
+        long checksum = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            long encodeBest = Long.MAX_VALUE;
+            long decodeBest = Long.MAX_VALUE;
+            long bufferBest = Long.MAX_VALUE;
+            long inputBest = Long.MAX_VALUE;
+            long batchEncodeBest = Long.MAX_VALUE;
+            long batchDecodeBest = Long.MAX_VALUE;
+            for (int r = 0; r < ROUNDS; r++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < points; i++) {
+                    checksum += SmallPointCodec.encode(source[i & 1023], buf, 0) + buf[2];
+                }
+                long t1 = System.nanoTime();
+                for (int i = 0; i < points; i++) {
+                    buf[2] = (byte) i;
+                    SmallPointCodec.decode(buf, 0, SmallPointCodec.LENGTH, got);
+                    checksum += got.leftFront;
+                }
+                long t2 = System.nanoTime();
+                for (int i = 0; i < points; i++) {
+                    wrapped.clear();
+                    SmallPointCodec.encode(source[i & 1023], wrapped);
+                    wrapped.flip();
+                    SmallPointCodec.decode(wrapped, got);
+                    checksum += got.leftFront;
+                }
+                long t3 = System.nanoTime();
+                for (int i = 0; i < points; i++) {
+                    bytes.reset();
+                    SmallPointCodec.decode(in.readUnsignedByte(), in, got);
+                    checksum += got.leftFront;
+                }
+                long t4 = System.nanoTime();
+                int length = 0;
+                for (int i = 0; i < points; i++) {
+                    if (i % 255 == 0) {
+                        length = SmallPointCodec.startBatch(buf, BASE_TIME);
+                    }
+                    length = SmallPointCodec.addToBatch(buf, length, buf.length, BASE_TIME, source[i & 1023]);
+                }
+                long t5 = System.nanoTime();
+                for (int i = 0; i < points; i++) {
+                    if (i % 255 == 0) {
+                        bytes.reset();
+                        in.skipBytes(SmallPointCodec.BATCH_HEADER);
+                    }
+                    SmallPointCodec.decodeBatchSample(in, BASE_TIME, got);
+                    checksum += got.leftFront;
+                }
+                long t6 = System.nanoTime();
+                encodeBest = Math.min(encodeBest, t1 - t0);
+                decodeBest = Math.min(decodeBest, t2 - t1);
+                bufferBest = Math.min(bufferBest, t3 - t2);
+                inputBest = Math.min(inputBest, t4 - t3);
+                batchEncodeBest = Math.min(batchEncodeBest, t5 - t4);
+                batchDecodeBest = Math.min(batchDecodeBest, t6 - t5);
+            }
+            if (pass == 0) {
+                // first pass warms up the JIT
+                continue;
+            }
+            System.out.println(points + " points, best of " + ROUNDS + " rounds (checksum " + checksum + ")");
+            report("v2 encode byte[]:          ", encodeBest, points);
+            report("v2 decode byte[]:          ", decodeBest, points);
+            report("v2 ByteBuffer round trip:  ", bufferBest, points);
+            report("v2 decode DataInput:       ", inputBest, points);
+            report("batch encode (addToBatch): ", batchEncodeBest, points);
+            report("batch decode DataInput:    ", batchDecodeBest, points);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int points = 1000000;
+        if (args.length > 0) {
+            points = Integer.parseInt(args[0]);
+        }
+        boundaries();
+        System.out.println(cases + " round trips and limits checked, " + differences + " differences");
+        bench(points);
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary session log format shared by TelemetryLogWriter, TelemetryLogReader
+ * and TelemetryLogConverter.
+ *
+ * A log is a 32 byte header followed by fixed 16 byte records, all big endian:
+ *
+ * <pre>
+ * header:  0  magic "EC5T"
+ *          4  format version (short)
+ *          6  record size (short)
+ *          8  creation time, ms since epoch (long)
+ *          16 records committed so far (long)
+ *          24 reserved
+ *
+ * record:  0  record type, 0 marks the unused tail of the file
+ *          1  booleans byte, same value as the CSV "booleans" column
+ *          2  LF, RF, LR, RR in cm (one unsigned byte each)
+ *          6  setTurn / 10, setSpeed / 10 (one unsigned byte each)
+ *          8  time, ms since epoch (double)
+ *
+ * link:    0  TYPE_LINK, a LinkStats snapshot for the interval ending at time
+ *          1  mean RSSI (signed byte)
+ *          2  mean LQI, mean correlation (one unsigned byte each)
+ *          4  packets received (unsigned short)
+ *          6  samples lost, jitter in ms (one unsigned byte each, saturating)
+ *          8  time, ms since epoch (double)
+ *
+ * drop:    0  TYPE_DROP, written when points were dropped by the OverloadPolicy
+ *          1  OverloadPolicy ordinal
+ *          4  points dropped since the previous drop record (int)
+ *          8  time the writer noticed, host ms since epoch (double)
+ * </pre>
+ *
+ * Readers skip record types they do not know. Readings and servo values
+ * that do not fit their byte are clamped to it, as SmallPointCodec clamps
+ * them on the radio.
+ *
+ * One record is about a third the size of the CSV line it replaces and can be
+ * read back without any text parsing.
+ */
+public final class TelemetryLog {
+
+    public static final byte[] MAGIC = {'E', 'C', '5', 'T'};
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 16;
+    public static final int COUNT_OFFSET = 16;
+    public static final byte TYPE_END = 0;
+    public static final byte TYPE_POINT = 1;
+    public static final byte TYPE_LINK = 2;
+    public static final byte TYPE_DROP = 3;
+    public static final String EXTENSION = ".tlog";
+
+    private TelemetryLog() {
+    }
+
+    public static void putHeader(ByteBuffer buf, long created) {
+        buf.put(MAGIC);
+        buf.putShort(VERSION);
+        buf.putShort((short) RECORD_SIZE);
+        buf.putLong(created);
+        buf.putLong(0);
+        buf.put(new byte[HEADER_SIZE - 24]);
+    }
+
+    //Throws IllegalArgumentException if buf does not start with a header this code can read
+    public static void checkHeader(ByteBuffer buf) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(i) != MAGIC[i]) {
+                throw new IllegalArgumentException("Not a telemetry log (bad magic)");
+            }
+        }
+        short version = buf.getShort(4);
+        if (version < 1 || version > VERSION) {
+            throw new IllegalArgumentException("Unsupported telemetry log version " + version);
+        }
+        if (buf.getShort(6) != RECORD_SIZE) {
+            throw new IllegalArgumentException("Unexpected record size " + buf.getShort(6));
+        }
+    }
+
+    public static void putPoint(ByteBuffer buf, SmallPoint sp) {
+        putPoint(buf, sp.time, sp.leftFront, sp.rightFront, sp.leftRear, sp.rightRear,
+                sp.setTurn, sp.setSpeed, SmallPointCodec.booleansColumn(sp));
+    }
+
+    public static void putPoint(ByteBuffer buf, double time, int LF, int RF, int LR, int RR, int turn, int speed, int booleans) {
+        buf.put(TYPE_POINT);
+        buf.put((byte) booleans);
+        buf.put((byte) SmallPointCodec.toByte(LF));
+        buf.put((byte) SmallPointCodec.toByte(RF));
+        buf.put((byte) SmallPointCodec.toByte(LR));
+        buf.put((byte) SmallPointCodec.toByte(RR));
+        buf.put((byte) SmallPointCodec.toByte(turn / 10));
+        buf.put((byte) SmallPointCodec.toByte(speed / 10));
+        buf.putDouble(time);
+    }
+
+    public static void putLink(ByteBuffer buf, double time, int packets, int lost, int rssi, int lqi, int corr, int jitter) {
+        buf.put(TYPE_LINK);
+        buf.put((byte) Math.max(-128, Math.min(127, rssi)));
+        buf.put((byte) Math.min(255, lqi));
+        buf.put((byte) Math.min(255, corr));
+        buf.putShort((short) Math.min(65535, packets));
+        buf.put((byte) Math.min(255, lost));
+        buf.put((byte) Math.min(255, jitter));
+        buf.putDouble(time);
+    }
+
+    public static void putDrop(ByteBuffer buf, double time, int policy, int dropped) {
+        buf.put(TYPE_DROP);
+        buf.put((byte) policy);
+        buf.putShort((short) 0);
+        buf.putInt(dropped);
+        buf.putDouble(time);
+    }
+
+    public static int getDropCount(ByteBuffer buf, int offset) {
+        return buf.getInt(offset + 4);
+    }
+
+    public static byte recordType(ByteBuffer buf, int offset) {
+        return buf.get(offset);
+    }
+
+    //Fills sp from the point record at offset, the same way CarDataReceiver decodes a datagram
+    public static void getPoint(ByteBuffer buf, int offset, SmallPoint sp) {
+        sp.leftFront = buf.get(offset + 2) & 0xFF;
+        sp.rightFront = buf.get(offset + 3) & 0xFF;
+        sp.leftRear = buf.get(offset + 4) & 0xFF;
+        sp.rightRear = buf.get(offset + 5) & 0xFF;
+        sp.setTurn = (buf.get(offset + 6) & 0xFF) * 10;
+        sp.setSpeed = (buf.get(offset + 7) & 0xFF) * 10;
+        sp.time = buf.getDouble(offset + 8);
+        sp.setBooleans(buf.get(offset + 1) & 0xFF);
+    }
+
+    //Appends the link record at offset as time,packets,lost,rssi,lqi,corr,jitter
+    public static void appendLinkCsv(StringBuilder line, ByteBuffer buf, int offset) {
+        line.append(buf.getDouble(offset + 8)).append(',');
+        line.append(buf.getShort(offset + 4) & 0xFFFF).append(',');
+        line.append(buf.get(offset + 6) & 0xFF).append(',');
+        line.append(buf.get(offset + 1)).append(',');
+        line.append(buf.get(offset + 2) & 0xFF).append(',');
+        line.append(buf.get(offset + 3) & 0xFF).append(',');
+        line.append(buf.get(offset + 7) & 0xFF);
+    }
+
+    //Appends the point record at offset as a line in the SmallPoint.headerRow() layout
+    public static void appendCsv(StringBuilder line, ByteBuffer buf, int offset) {
+        line.append(buf.getDouble(offset + 8)).append(',');
+        line.append(buf.get(offset + 2) & 0xFF).append(',');
+        line.append(buf.get(offset + 3) & 0xFF).append(',');
+        line.append(buf.get(offset + 4) & 0xFF).append(',');
+        line.append(buf.get(offset + 5) & 0xFF).append(',');
+        line.append((buf.get(offset + 6) & 0xFF) * 10).append(',');
+        line.append((buf.get(offset + 7) & 0xFF) * 10).append(',');
+        line.append(buf.get(offset + 1) & 0xFF);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Round-trips SmallPoints through the session log's point records, with
+ * readings and servo values inside and outside what a record holds.
+ *
+ * <pre>
+ * TelemetryLogCheck
+ * </pre>
+ *
+ * Readings are tried at -1, 0, 1, 127, 128, 254, 255, 256 and 1000, setTurn
+ * and setSpeed at -10, 0, 9, 10, 1270, 2550, 2559, 2560 and 10000, each
+ * field against the others and all 64 combinations of flags. Every point is
+ * put in a buffer with TelemetryLog.putPoint and read back with getPoint,
+ * then written to a log file with TelemetryLogWriter and read back with
+ * TelemetryLogReader. What comes back must equal the same point through
+ * SmallPointCodec, which clamps each field to its byte: a value out of
+ * range must not wrap around to another valid-looking one. Differences are
+ * printed with the case, at most MAX_PRINTED of them, and the exit status
+ * is 1 if there are any.
+ */
+public class TelemetryLogCheck {
+
+    private static final int[] READINGS = {-1, 0, 1, 127, 128, 254, 255, 256, 1000};
+    private static final int[] SERVOS = {-10, 0, 9, 10, 1270, 2550, 2559, 2560, 10000};
+    private static final double BASE_TIME = 1386624905400.0;
+    private static final int MAX_PRINTED = 20;
+    private static int cases = 0;
+    private static int differences = 0;
+
+    private static void check(String label, SmallPoint sent, SmallPoint expected, SmallPoint got) {
+        cases++;
+        boolean same = got.leftFront == expected.leftFront && got.rightFront == expected.rightFront
+                && got.leftRear == expected.leftRear && got.rightRear == expected.rightRear
+                && got.setTurn == expected.setTurn && got.setSpeed == expected.setSpeed
+                && Double.doubleToLongBits(got.time) == Double.doubleToLongBits(expected.time)
+                && SmallPointCodec.flags(got) == SmallPointCodec.flags(expected);
+        if (!same) {
+            differences++;
+            if (differences <= MAX_PRINTED) {
+                System.out.println("  " + label + ": sent " + sent + ", expected " + expected + ", got " + got);
+            }
+        }
+    }
+
+    //The n-th case: each field steps through its values at a different rate
+    private static void point(int n, SmallPoint sp) {
+        sp.leftFront = READINGS[n % READINGS.length];
+        sp.rightFront = READINGS[(n / 3) % READINGS.length];
+        sp.leftRear = READINGS[(n / 7) % READINGS.length];
+        sp.rightRear = READINGS[(n / 11) % READINGS.length];
+        sp.setTurn = SERVOS[(n / 2) % SERVOS.length];
+        sp.setSpeed = SERVOS[(n / 5) % SERVOS.length];
+        sp.time = BASE_TIME + n * 50;
+        SmallPointCodec.setFlags(sp, n % 64);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int count = READINGS.length * SERVOS.length * 64;
+        SmallPoint sp = new SmallPoint();
+        SmallPoint expected = new SmallPoint();
+        SmallPoint got = new SmallPoint();
+        byte[] wire = new byte[SmallPointCodec.LENGTH];
+        ByteBuffer record = ByteBuffer.allocate(TelemetryLog.RECORD_SIZE);
+        File file = File.createTempFile("telemetrylogcheck", TelemetryLog.EXTENSION);
+        file.deleteOnExit();
+        TelemetryLogWriter writer = new TelemetryLogWriter(file.getPath());
+        for (int n = 0; n < count; n++) {
+            point(n, sp);
+            SmallPointCodec.decode(wire, 0, SmallPointCodec.encode(sp, wire, 0), expected);
+            record.clear();
+            TelemetryLog.putPoint(record, sp);
+            TelemetryLog.getPoint(record, 0, got);
+            check("record " + n, sp, expected, got);
+            writer.append(sp);
+        }
+        writer.close();
+        TelemetryLogReader reader = new TelemetryLogReader(file.getPath());
+        int read = 0;
+        while (reader.next(got)) {
+            point(read, sp);
+            SmallPointCodec.decode(wire, 0, SmallPointCodec.encode(sp, wire, 0), expected);
+            check("log point " + read, sp, expected, got);
+            read++;
+        }
+        cases++;
+        if (read != count) {
+            differences++;
+            System.out.println("  log: " + count + " points written, " + read + " read");
+        }
+        System.out.println(cases + " round trips checked, " + differences + " differences");
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+}
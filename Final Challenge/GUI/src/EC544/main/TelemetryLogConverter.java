@@ -0,0 +1,134 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Converts between binary TelemetryLog files and the
+ * time,LF,RF,LR,RR,setTurn,setSpeed,booleans CSV that csv_watcher and the
+ * dygraph page read.
+ *
+ * Usage: TelemetryLogConverter toCsv  in.tlog out.csv
+ *        TelemetryLogConverter toTlog in.csv  out.tlog
+ *        TelemetryLogConverter links  in.tlog out.csv   (LinkStats snapshots only)
+ *
+ * in.tlog may also be a gzipped session log segment (.tlog.gz). To pull a
+ * time range out of a whole segmented session use TelemetryLogIndex. CSV
+ * files are read with CsvColumnParser.
+ */
+public class TelemetryLogConverter {
+
+    private static final String NEWLINE = System.getProperty("line.separator");
+
+    public static long toCsv(String logPath, String csvPath) throws IOException {
+        TelemetryLogReader reader = TelemetryLogReader.open(logPath);
+        BufferedWriter writer = new BufferedWriter(new FileWriter(csvPath), 64 * 1024);
+        StringBuilder line = new StringBuilder(64);
+        long count = 0;
+        try {
+            writer.write(SmallPoint.headerRow());
+            writer.write(NEWLINE);
+            byte type;
+            while ((type = reader.nextRecord()) != TelemetryLog.TYPE_END) {
+                if (type != TelemetryLog.TYPE_POINT) {
+                    continue;
+                }
+                line.setLength(0);
+                reader.appendCsv(line);
+                line.append(NEWLINE);
+                writer.append(line);
+                count++;
+            }
+        } finally {
+            writer.close();
+            reader.close();
+        }
+        return count;
+    }
+
+    public static long linksToCsv(String logPath, String csvPath) throws IOException {
+        TelemetryLogReader reader = TelemetryLogReader.open(logPath);
+        BufferedWriter writer = new BufferedWriter(new FileWriter(csvPath));
+        StringBuilder line = new StringBuilder(64);
+        long count = 0;
+        try {
+            writer.write("time,packets,lost,rssi,lqi,corr,jitter");
+            writer.write(NEWLINE);
+            byte type;
+            while ((type = reader.nextRecord()) != TelemetryLog.TYPE_END) {
+                if (type != TelemetryLog.TYPE_LINK) {
+                    continue;
+                }
+                line.setLength(0);
+                reader.appendLinkCsv(line);
+                line.append(NEWLINE);
+                writer.append(line);
+                count++;
+            }
+        } finally {
+            writer.close();
+            reader.close();
+        }
+        return count;
+    }
+
+    //Rows that do not have the eight SmallPoint columns (headers, CarPoint rows) are skipped
+    public static long toTelemetryLog(String csvPath, String logPath) throws IOException {
+        CsvColumnParser parser = new CsvColumnParser(CsvColumnParser.SMALL_POINT);
+        parser.parse(csvPath);
+        double[] time = parser.getDoubles(0);
+        int[] LF = parser.getInts(1);
+        int[] RF = parser.getInts(2);
+        int[] LR = parser.getInts(3);
+        int[] RR = parser.getInts(4);
+        int[] turn = parser.getInts(5);
+        int[] speed = parser.getInts(6);
+        double[] booleans = parser.getDoubles(7);
+        TelemetryLogWriter writer = new TelemetryLogWriter(logPath);
+        int count = parser.getRowCount();
+        try {
+            for (int i = 0; i < count; i++) {
+                writer.appendRaw(time[i], LF[i], RF[i], LR[i], RR[i], turn[i], speed[i], (int) booleans[i]);
+            }
+        } finally {
+            writer.close();
+        }
+        if (parser.getMalformedCount() > 0) {
+            int[] lines = parser.getMalformedLines();
+            StringBuilder message = new StringBuilder("Skipped " + parser.getMalformedCount()
+                    + " lines that were not SmallPoint rows in " + csvPath);
+            for (int i = 0; i < lines.length; i++) {
+                message.append(i == 0 ? " (lines " : ", ").append(lines[i]);
+            }
+            message.append(parser.getMalformedCount() > lines.length ? ", ...)" : ")");
+            System.out.println(message);
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.out.println("Usage: TelemetryLogConverter toCsv <in.tlog> <out.csv>");
+            System.out.println("       TelemetryLogConverter toTlog <in.csv> <out.tlog>");
+            System.out.println("       TelemetryLogConverter links <in.tlog> <out.csv>");
+            return;
+        }
+        long count;
+        if (args[0].equals("toCsv")) {
+            count = toCsv(args[1], args[2]);
+        } else if (args[0].equals("toTlog")) {
+            count = toTelemetryLog(args[1], args[2]);
+        } else if (args[0].equals("links")) {
+            count = linksToCsv(args[1], args[2]);
+        } else {
+            System.out.println("Unknown mode: " + args[0]);
+            return;
+        }
+        System.out.println("Converted " + count + " records from " + args[1] + " to " + args[2]);
+    }
+}
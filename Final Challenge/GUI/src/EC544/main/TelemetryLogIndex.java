@@ -0,0 +1,231 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Finds points by time in a session log written by SegmentedLogWriter, so a
+ * slice of a long run can be pulled out without reading the whole session.
+ *
+ * Usage: TelemetryLogIndex list    base
+ *        TelemetryLogIndex extract base from to out.csv
+ *
+ * base is the log name without the segment number, e.g.
+ * "logs/2013.04.20.14.05.11 log 0014.4F01.0000.0001". from and to are
+ * ms since epoch, or an offset from the start of the session such as 37m or
+ * 90s. The CSV has the same columns as TelemetryLogConverter toCsv.
+ *
+ * Each segment's range and marks come from its .idx file. The segment still
+ * being written has none yet and is scanned instead.
+ */
+public class TelemetryLogIndex {
+
+    private static final String NEWLINE = System.getProperty("line.separator");
+
+    //One segment: where it is, which point times it covers and where every INDEX_STRIDE-th point is
+    public static class Segment {
+
+        public final String path;
+        public long firstTime = Long.MAX_VALUE;
+        public long lastTime = Long.MIN_VALUE;
+        public long records;
+        private final ArrayList<long[]> marks = new ArrayList<long[]>();
+
+        Segment(String path) {
+            this.path = path;
+        }
+
+        public boolean overlaps(long from, long to) {
+            return firstTime <= to && lastTime >= from;
+        }
+
+        //Record to start reading at for points from time on
+        public long recordFor(long time) {
+            long record = 0;
+            for (int i = 0; i < marks.size(); i++) {
+                long[] mark = marks.get(i);
+                if (mark[0] > time) {
+                    break;
+                }
+                record = mark[1];
+            }
+            return record;
+        }
+    }
+
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+
+    public TelemetryLogIndex(String base) throws IOException {
+        File baseFile = new File(base);
+        File dir = baseFile.getAbsoluteFile().getParentFile();
+        String prefix = baseFile.getName() + ".";
+        String[] names = dir.list();
+        if (names == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        Arrays.sort(names);
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            String plain = name.endsWith(SegmentedLogWriter.COMPRESSED_EXTENSION)
+                    ? name.substring(0, name.length() - SegmentedLogWriter.COMPRESSED_EXTENSION.length()) : name;
+            if (!plain.endsWith(TelemetryLog.EXTENSION) || plain.length() != prefix.length() + 4 + TelemetryLog.EXTENSION.length()) {
+                continue;
+            }
+            // while a segment is being compressed both files exist for a moment; take the plain one
+            if (!plain.equals(name) && new File(dir, plain).exists()) {
+                continue;
+            }
+            segments.add(load(new File(dir, name).getPath()));
+        }
+    }
+
+    private static Segment load(String path) throws IOException {
+        Segment segment = new Segment(path);
+        File index = new File(SegmentedLogWriter.indexPath(path));
+        if (!index.exists()) {
+            scan(segment);
+            return segment;
+        }
+        BufferedReader in = new BufferedReader(new FileReader(index));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] cols = line.split(",", -1);
+                if (cols[0].equals("range")) {
+                    if (cols[1].length() > 0) {
+                        segment.firstTime = Long.parseLong(cols[1]);
+                        segment.lastTime = Long.parseLong(cols[2]);
+                    }
+                    segment.records = Long.parseLong(cols[3]);
+                } else if (cols.length == 2) {
+                    segment.marks.add(new long[]{Long.parseLong(cols[0]), Long.parseLong(cols[1])});
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return segment;
+    }
+
+    private static void scan(Segment segment) throws IOException {
+        TelemetryLogReader reader = TelemetryLogReader.open(segment.path);
+        SmallPoint sp = new SmallPoint();
+        long points = 0;
+        long record = 0;
+        try {
+            byte type;
+            while ((type = reader.nextRecord()) != TelemetryLog.TYPE_END) {
+                if (type == TelemetryLog.TYPE_POINT) {
+                    reader.getPoint(sp);
+                    if (points % SegmentedLogWriter.INDEX_STRIDE == 0) {
+                        segment.marks.add(new long[]{(long) sp.time, record});
+                    }
+                    segment.firstTime = Math.min(segment.firstTime, (long) sp.time);
+                    segment.lastTime = Math.max(segment.lastTime, (long) sp.time);
+                    points++;
+                }
+                record++;
+            }
+        } finally {
+            reader.close();
+        }
+        segment.records = record;
+    }
+
+    public ArrayList<Segment> getSegments() {
+        return segments;
+    }
+
+    //Earliest point time in the session, or Long.MAX_VALUE if there are no points
+    public long getStartTime() {
+        long start = Long.MAX_VALUE;
+        for (int i = 0; i < segments.size(); i++) {
+            start = Math.min(start, segments.get(i).firstTime);
+        }
+        return start;
+    }
+
+    //Writes the points with from <= time <= to as CSV, reading only the segments that hold them
+    public long extract(long from, long to, String csvPath) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(csvPath), 64 * 1024);
+        StringBuilder line = new StringBuilder(64);
+        SmallPoint sp = new SmallPoint();
+        long count = 0;
+        try {
+            writer.write(SmallPoint.headerRow());
+            writer.write(NEWLINE);
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                if (!segment.overlaps(from, to)) {
+                    continue;
+                }
+                TelemetryLogReader reader = TelemetryLogReader.open(segment.path);
+                try {
+                    reader.seek(segment.recordFor(from));
+                    while (reader.next(sp)) {
+                        if (sp.time < from || sp.time > to) {
+                            continue;
+                        }
+                        line.setLength(0);
+                        reader.appendCsv(line);
+                        line.append(NEWLINE);
+                        writer.append(line);
+                        count++;
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return count;
+    }
+
+    //Accepts ms since epoch, or minutes (37m) or seconds (90s) from the start of the session
+    public long parseTime(String text) {
+        if (text.endsWith("m")) {
+            return getStartTime() + (long) (Double.parseDouble(text.substring(0, text.length() - 1)) * 60 * 1000);
+        } else if (text.endsWith("s")) {
+            return getStartTime() + (long) (Double.parseDouble(text.substring(0, text.length() - 1)) * 1000);
+        }
+        return Long.parseLong(text);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("list")) {
+            TelemetryLogIndex index = new TelemetryLogIndex(args[1]);
+            long start = index.getStartTime();
+            for (int i = 0; i < index.getSegments().size(); i++) {
+                Segment segment = index.getSegments().get(i);
+                if (segment.firstTime > segment.lastTime) {
+                    System.out.println(segment.path + "  no points, " + segment.records + " records");
+                    continue;
+                }
+                System.out.println(segment.path + "  " + (segment.firstTime - start) / 1000 + " s to "
+                        + (segment.lastTime - start) / 1000 + " s, " + segment.records + " records");
+            }
+        } else if (args.length == 5 && args[0].equals("extract")) {
+            TelemetryLogIndex index = new TelemetryLogIndex(args[1]);
+            long count = index.extract(index.parseTime(args[2]), index.parseTime(args[3]), args[4]);
+            System.out.println("Extracted " + count + " points to " + args[4]);
+        } else {
+            System.out.println("Usage: TelemetryLogIndex list <base>");
+            System.out.println("       TelemetryLogIndex extract <base> <from> <to> <out.csv>");
+            System.out.println("       from/to: ms since epoch, or 37m / 90s from the start of the session");
+        }
+    }
+}
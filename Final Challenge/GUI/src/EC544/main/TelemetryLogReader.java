@@ -0,0 +1,129 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sequential reader for TelemetryLog files. The whole file is mapped read
+ * only and records are decoded in place, so replaying a session does no text
+ * parsing and no per-record allocation.
+ *
+ * Reading stops at the first TYPE_END record or the end of the file, which
+ * also covers logs whose writer died before its last commit.
+ *
+ * open() also takes segments that SegmentedLogWriter has compressed; those
+ * are inflated into memory, which is fine at segment size.
+ */
+public class TelemetryLogReader {
+
+    private final RandomAccessFile file;
+    private final ByteBuffer buf;
+    private final long created;
+    private int offset = TelemetryLog.HEADER_SIZE;
+    private int currentOffset = -1;
+
+    public TelemetryLogReader(String path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        FileChannel channel = file.getChannel();
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        TelemetryLog.checkHeader(buf);
+        created = buf.getLong(8);
+    }
+
+    //Reads a log already in memory, e.g. an inflated segment
+    public TelemetryLogReader(ByteBuffer log) throws IOException {
+        file = null;
+        buf = log;
+        TelemetryLog.checkHeader(buf);
+        created = buf.getLong(8);
+    }
+
+    //Opens a plain or gzipped (.gz) log
+    public static TelemetryLogReader open(String path) throws IOException {
+        if (!path.endsWith(SegmentedLogWriter.COMPRESSED_EXTENSION)) {
+            return new TelemetryLogReader(path);
+        }
+        InputStream in = new GZIPInputStream(new FileInputStream(path), 64 * 1024);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024 * 1024);
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return new TelemetryLogReader(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    //Moves to record number n (counting from 0), so the next nextRecord() returns it
+    public void seek(long n) {
+        offset = (int) Math.min(buf.limit(), TelemetryLog.HEADER_SIZE + n * TelemetryLog.RECORD_SIZE);
+    }
+
+    public long getCreationTime() {
+        return created;
+    }
+
+    //Advances to the next record of any type. Returns its type, or TYPE_END when the log is exhausted.
+    public byte nextRecord() {
+        if (offset >= 0 && offset + TelemetryLog.RECORD_SIZE <= buf.limit()) {
+            byte type = TelemetryLog.recordType(buf, offset);
+            if (type != TelemetryLog.TYPE_END) {
+                currentOffset = offset;
+                offset += TelemetryLog.RECORD_SIZE;
+                return type;
+            }
+        }
+        return TelemetryLog.TYPE_END;
+    }
+
+    //Fills sp with the next point record, skipping other record types. Returns false at the end of the log.
+    public boolean next(SmallPoint sp) {
+        byte type;
+        while ((type = nextRecord()) != TelemetryLog.TYPE_END) {
+            if (type == TelemetryLog.TYPE_POINT) {
+                TelemetryLog.getPoint(buf, currentOffset, sp);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Decodes the current record, which must be a point
+    public void getPoint(SmallPoint sp) {
+        TelemetryLog.getPoint(buf, currentOffset, sp);
+    }
+
+    //Appends the current point record as a CSV line
+    public void appendCsv(StringBuilder line) {
+        TelemetryLog.appendCsv(line, buf, currentOffset);
+    }
+
+    //Points dropped according to the current drop record
+    public int getDropCount() {
+        return TelemetryLog.getDropCount(buf, currentOffset);
+    }
+
+    //Appends the current link record in the TelemetryLog.appendLinkCsv layout
+    public void appendLinkCsv(StringBuilder line) {
+        TelemetryLog.appendLinkCsv(line, buf, currentOffset);
+    }
+
+    public void close() throws IOException {
+        if (file != null) {
+            file.close();
+        }
+    }
+}
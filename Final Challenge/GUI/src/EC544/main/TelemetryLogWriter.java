@@ -0,0 +1,115 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends TelemetryLog records to a file through memory-mapped windows.
+ *
+ * The file grows one mapped window at a time (64 KB at first, doubling up to
+ * 1 MB), so appending a record is a plain memory write. commit() publishes the
+ * record count in the header. The unused tail of the last window stays zeroed,
+ * which readers see as TYPE_END; close() trims it where the OS allows (Windows
+ * refuses to shrink a file that is still mapped).
+ *
+ * Not thread safe; owned by the writer thread.
+ */
+public class TelemetryLogWriter {
+
+    private static final int FIRST_CHUNK = 64 * 1024;
+    private static final int MAX_CHUNK = 1024 * 1024;
+    private int chunk = FIRST_CHUNK;
+    private final String filePath;
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long records = 0;
+
+    public TelemetryLogWriter(String path) throws IOException {
+        filePath = path;
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, TelemetryLog.HEADER_SIZE);
+        TelemetryLog.putHeader(header, System.currentTimeMillis());
+        mapWindow(TelemetryLog.HEADER_SIZE);
+    }
+
+    private void mapWindow(long start) throws IOException {
+        if (window != null) {
+            window.force();
+        }
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_WRITE, start, chunk);
+        chunk = Math.min(chunk * 2, MAX_CHUNK);
+    }
+
+    private void ensureRoom() throws IOException {
+        if (window.remaining() < TelemetryLog.RECORD_SIZE) {
+            mapWindow(windowStart + window.position());
+        }
+    }
+
+    public void append(SmallPoint sp) throws IOException {
+        ensureRoom();
+        TelemetryLog.putPoint(window, sp);
+        records++;
+    }
+
+    //Appends a record already laid out in TelemetryLog format
+    public void appendRaw(double time, int LF, int RF, int LR, int RR, int turn, int speed, int booleans) throws IOException {
+        ensureRoom();
+        TelemetryLog.putPoint(window, time, LF, RF, LR, RR, turn, speed, booleans);
+        records++;
+    }
+
+    //Appends a LinkStats snapshot; see TelemetryLog.putLink
+    public void appendLink(double time, int packets, int lost, int rssi, int lqi, int corr, int jitter) throws IOException {
+        ensureRoom();
+        TelemetryLog.putLink(window, time, packets, lost, rssi, lqi, corr, jitter);
+        records++;
+    }
+
+    //Appends a drop marker; see TelemetryLog.putDrop
+    public void appendDrop(double time, int policy, int dropped) throws IOException {
+        ensureRoom();
+        TelemetryLog.putDrop(window, time, policy, dropped);
+        records++;
+    }
+
+    //Publishes the records appended so far; the OS writes the pages back on its own schedule
+    public void commit() {
+        header.putLong(TelemetryLog.COUNT_OFFSET, records);
+    }
+
+    public long getRecordCount() {
+        return records;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public void close() throws IOException {
+        commit();
+        window.force();
+        header.force();
+        window = null;
+        header = null;
+        try {
+            file.setLength(TelemetryLog.HEADER_SIZE + records * TelemetryLog.RECORD_SIZE);
+        } catch (IOException ex) {
+            // still mapped, leave the zeroed tail in place
+        }
+        channel.close();
+        file.close();
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded ring of SmallPoints between the radio receive threads and the
+ * writer thread.
+ *
+ * All slots are allocated up front and points are copied in and out, so the
+ * ring never allocates once it is built. Each slot carries a sequence number
+ * (the bounded queue layout described by Dmitry Vyukov), which lets one
+ * receive thread publish without a CAS and several receive threads share the
+ * ring when more than one port is open. The consumer parks while the ring is
+ * empty and producers unpark it after publishing, so nothing polls.
+ */
+public class TelemetryRing {
+
+    private static final long FULL_BACKOFF_NANOS = 100 * 1000L;
+    private final SmallPoint[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final boolean multiProducer;
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong highWater = new AtomicLong(0);
+    private final AtomicLong published = new AtomicLong(0);
+    private final AtomicLong fullWaits = new AtomicLong(0);
+    private volatile Thread waiter;
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     * @param multiProducer true if more than one thread will call put/offer
+     */
+    public TelemetryRing(int capacity, boolean multiProducer) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new SmallPoint[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new SmallPoint();
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        this.multiProducer = multiProducer;
+    }
+
+    /**
+     * Copies sp into the ring. Returns false without blocking if the ring is
+     * full.
+     */
+    public boolean offer(SmallPoint sp) {
+        long pos = tail.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (!multiProducer) {
+                    tail.set(pos + 1);
+                    break;
+                } else if (tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+        slots[index].copyFrom(sp);
+        sequences.set(index, pos + 1);
+        published.incrementAndGet();
+        updateHighWater(pos + 1 - head.get());
+
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+
+    /**
+     * Copies sp into the ring, waiting for the consumer to make room if the
+     * ring is full.
+     */
+    public void put(SmallPoint sp) {
+        if (offer(sp)) {
+            return;
+        }
+        fullWaits.incrementAndGet();
+        while (!offer(sp)) {
+            LockSupport.parkNanos(FULL_BACKOFF_NANOS);
+        }
+    }
+
+    /**
+     * Copies the oldest point into out. Returns false if the ring is empty.
+     */
+    public boolean poll(SmallPoint out) {
+        long pos = head.get();
+        int index;
+        while (true) {
+            index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = head.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = head.get();
+            }
+        }
+        out.copyFrom(slots[index]);
+        sequences.set(index, pos + mask + 1);
+        return true;
+    }
+
+    /**
+     * Copies the oldest point into out, parking the calling thread for up to
+     * timeoutMillis while the ring is empty. Returns false on timeout or
+     * interrupt. Only the single consumer thread may call this.
+     */
+    public boolean take(SmallPoint out, long timeoutMillis) {
+        if (poll(out)) {
+            return true;
+        }
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        setWaiter(Thread.currentThread());
+        try {
+            while (true) {
+                if (poll(out)) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.interrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(remaining);
+            }
+        } finally {
+            setWaiter(null);
+        }
+    }
+
+    //The thread to unpark after each publish; PortMerger registers itself on all of its rings
+    void setWaiter(Thread t) {
+        waiter = t;
+    }
+
+    private void updateHighWater(long occupancy) {
+        long current = highWater.get();
+        while (occupancy > current) {
+            if (highWater.compareAndSet(current, occupancy)) {
+                return;
+            }
+            current = highWater.get();
+        }
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int) Math.min(size, slots.length);
+    }
+
+    public long getHighWaterMark() {
+        return highWater.get();
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    //Number of times a producer found the ring full and had to wait
+    public long getFullWaitCount() {
+        return fullWaits.get();
+    }
+
+    public String statusReport() {
+        return "occupancy " + size() + "/" + capacity() + ", high water " + getHighWaterMark()
+                + ", published " + getPublishedCount() + ", full waits " + getFullWaitCount();
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * Extended Kalman filter for where the car is in the hallway, fusing the four
+ * IR readings with the commanded turn and speed. IRDaemon without it takes
+ * the angle and distance to each wall from one pair of sensors, averages the
+ * last few and clamps how fast theta may move, which lags and ignores how
+ * much each reading is worth. With setWallFilter the estimates come from here
+ * instead.
+ *
+ * State: offset, the distance from the left wall to the car's left sensors
+ * (cm); heading, positive turned right as IRDaemon's theta (radians); and
+ * width, the clear width between the walls and the two sensor lines, what
+ * IRDaemon's calcHall adds up (cm).
+ *
+ * predict() moves the state on from the turn and speed servo values, with the
+ * heading turning TURN_PER_CM at full lock for every cm driven; update()
+ * corrects it with each sensor in turn. A sensor
+ * at distance a along the car reads (offset + a sin(heading)) / cos(heading)
+ * on the left and (width - offset - a sin(heading)) / cos(heading) on the
+ * right. A reading's noise grows with the square of its IRDaemon confidence
+ * (reading / CONFIDENCE_DISTANCE, 5 once ruined), so far, skewed or ruined
+ * readings barely move the estimate. Readings past MAX_RANGE are skipped, and
+ * readings more than GATE standard deviations from the prediction (an alcove,
+ * a doorway, a passer-by) are rejected; after RESET_AFTER samples in a row
+ * with nothing accepted, or once the estimate leaves the hallway or turns
+ * past MAX_HEADING, the filter starts over from the next good reading.
+ *
+ * All state is in fields and arrays made by the constructor, so a control
+ * cycle allocates nothing. The car and the host carry identical copies.
+ */
+public class WallFilter {
+
+    public static final double SENSOR_DISTANCE = 31.0; // front to rear sensor, as IRDaemon
+    // Radians per cm at full lock; fitted to the recorded runs, where a full turn at speed 1300 gives about
+    // 0.32 rad/s, well under what the 25 degree steering of a 25 cm wheelbase would
+    public static final double TURN_PER_CM = 0.0027;
+    public static final double CM_PER_SECOND_PER_SERVO = 0.6; // speed 1300 is about 120 cm/s
+    public static final double DEFAULT_WIDTH = 181.0; // IRDaemon.DEFAULT_HALL_SIZE
+    public static final double MAX_RANGE = 150.0;
+    public static final double CONFIDENCE_DISTANCE = 80.0; // as IRDaemon
+    public static final double GATE = 3.0;
+    public static final int RESET_AFTER = 10;
+    public static final double MAX_STEP = 1.0; // s; longer gaps are predicted as this
+    public static final double MAX_HEADING = 1.0; // radians; past this the sensors no longer see the walls
+    // Measurement noise, one sigma in cm: BASE_NOISE * (1 + confidence^2)
+    private static final double BASE_NOISE = 4.0;
+    // Process noise, variance added per second
+    private static final double OFFSET_DRIFT = 25.0;
+    private static final double HEADING_DRIFT = 0.005;
+    private static final double WIDTH_DRIFT = 4.0;
+    private static final double TURN_NOISE = 0.5; // of each predicted heading change, one sigma
+    // Spread of a fresh estimate
+    private static final double START_OFFSET_VARIANCE = 100.0;
+    private static final double START_HEADING_VARIANCE = 0.1; // about 18 degrees
+    private static final double START_WIDTH_VARIANCE = 400.0;
+    private final double[] x = new double[3]; // offset, heading, width
+    private final double[] P = new double[9]; // covariance, row major
+    private final double[] H = new double[3]; // one measurement's Jacobian
+    private final double[] PH = new double[3];
+    private boolean initialized;
+    private int rejectedSamples;
+    private int accepted;
+    private int rejected;
+    private double turnPerCm = TURN_PER_CM;
+
+    public WallFilter() {
+        reset();
+    }
+
+    //Forgets the estimate; the next update with a usable reading starts a new one
+    public void reset() {
+        initialized = false;
+        rejectedSamples = 0;
+        for (int i = 0; i < 9; i++) {
+            P[i] = 0.0;
+        }
+    }
+
+    public boolean isInitialized() {
+        return initialized;
+    }
+
+    //Radians of heading per cm driven at full lock, TURN_PER_CM unless set
+    public void setTurnPerCm(double turnPerCm) {
+        this.turnPerCm = turnPerCm;
+    }
+
+    private static boolean usable(double reading) {
+        return reading > 0 && reading < MAX_RANGE;
+    }
+
+    //Starts from the side with two usable readings, heading 0 with a wide spread
+    private boolean initialize(double LF, double RF, double LR, double RR) {
+        boolean left = usable(LF) && usable(LR);
+        boolean right = usable(RF) && usable(RR);
+        if (!left && !right) {
+            return false;
+        }
+        double leftDistance = (LF + LR) / 2;
+        double rightDistance = (RF + RR) / 2;
+        x[1] = 0.0;
+        if (left && right) {
+            x[0] = leftDistance;
+            x[2] = leftDistance + rightDistance;
+        } else if (left) {
+            x[0] = leftDistance;
+            x[2] = Math.max(DEFAULT_WIDTH, leftDistance + MAX_RANGE);
+        } else {
+            x[2] = Math.max(DEFAULT_WIDTH, rightDistance + MAX_RANGE);
+            x[0] = x[2] - rightDistance;
+        }
+        for (int i = 0; i < 9; i++) {
+            P[i] = 0.0;
+        }
+        P[0] = START_OFFSET_VARIANCE;
+        P[4] = START_HEADING_VARIANCE;
+        P[8] = left && right ? START_OFFSET_VARIANCE : START_WIDTH_VARIANCE;
+        initialized = true;
+        rejectedSamples = 0;
+        return true;
+    }
+
+    /**
+     * Moves the estimate on by seconds with the turn and speed servo values the
+     * car drove with over that time (1500 straight / stopped).
+     */
+    public void predict(double seconds, int turn, int speed) {
+        if (!initialized || seconds <= 0) {
+            return;
+        }
+        if (seconds > MAX_STEP) {
+            seconds = MAX_STEP;
+        }
+        double v = (1500 - speed) * CM_PER_SECOND_PER_SERVO;
+        // IRDaemon.calcTurn mirrors the turn when reversing, so the steering angle is taken as the wheels see it
+        double steerRatio = (1500 - turn) / 500.0;
+        if (steerRatio > 1.0) {
+            steerRatio = 1.0;
+        } else if (steerRatio < -1.0) {
+            steerRatio = -1.0;
+        }
+        double cos = Math.cos(x[1]);
+        double sin = Math.sin(x[1]);
+        double turned = steerRatio * turnPerCm * v * seconds;
+        x[0] += v * sin * seconds;
+        x[1] += turned;
+        // F = [1 f 0; 0 1 0; 0 0 1]; P = F P F' + Q
+        double f = v * cos * seconds;
+        double p00 = P[0] + f * (P[3] + P[1]) + f * f * P[4];
+        double p01 = P[1] + f * P[4];
+        double p02 = P[2] + f * P[5];
+        P[0] = p00 + OFFSET_DRIFT * seconds;
+        P[1] = p01;
+        P[3] = p01;
+        P[2] = p02;
+        P[6] = p02;
+        P[4] += HEADING_DRIFT * seconds + TURN_NOISE * TURN_NOISE * turned * turned;
+        P[8] += WIDTH_DRIFT * seconds;
+    }
+
+    //One sensor: along is +SENSOR_DISTANCE / 2 for the front, - for the rear
+    private boolean correct(double reading, double confidence, boolean left, double along) {
+        if (!usable(reading)) {
+            return false;
+        }
+        double cos = Math.cos(x[1]);
+        double sin = Math.sin(x[1]);
+        double predicted;
+        double lateral;
+        if (left) {
+            lateral = x[0] + along * sin;
+            predicted = lateral / cos;
+            H[0] = 1 / cos;
+            H[1] = along + lateral * sin / (cos * cos);
+            H[2] = 0.0;
+        } else {
+            lateral = x[2] - x[0] - along * sin;
+            predicted = lateral / cos;
+            H[0] = -1 / cos;
+            H[1] = -along + lateral * sin / (cos * cos);
+            H[2] = 1 / cos;
+        }
+        double sigma = BASE_NOISE * (1 + confidence * confidence);
+        for (int i = 0; i < 3; i++) {
+            PH[i] = P[i * 3] * H[0] + P[i * 3 + 1] * H[1] + P[i * 3 + 2] * H[2];
+        }
+        double S = H[0] * PH[0] + H[1] * PH[1] + H[2] * PH[2] + sigma * sigma;
+        double innovation = reading - predicted;
+        if (innovation * innovation > GATE * GATE * S) {
+            rejected++;
+            return false;
+        }
+        // K = PH / S; x += K innovation; P -= K PH'
+        for (int i = 0; i < 3; i++) {
+            x[i] += PH[i] / S * innovation;
+        }
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                P[i * 3 + j] -= PH[i] * PH[j] / S;
+            }
+        }
+        accepted++;
+        return true;
+    }
+
+    /**
+     * Corrects the estimate with one sample of readings in cm and their
+     * IRDaemon confidences. Returns false if no reading was accepted.
+     */
+    public boolean update(double LF, double RF, double LR, double RR,
+            double confidenceLF, double confidenceRF, double confidenceLR, double confidenceRR) {
+        if (!initialized) {
+            return initialize(LF, RF, LR, RR);
+        }
+        double half = SENSOR_DISTANCE / 2;
+        boolean any = correct(LF, confidenceLF, true, half);
+        any |= correct(LR, confidenceLR, true, -half);
+        any |= correct(RF, confidenceRF, false, half);
+        any |= correct(RR, confidenceRR, false, -half);
+        if (any) {
+            rejectedSamples = 0;
+        } else if (++rejectedSamples >= RESET_AFTER) {
+            reset();
+        }
+        if (x[1] > MAX_HEADING || x[1] < -MAX_HEADING || x[0] < 0 || x[0] > x[2]) {
+            reset();
+            return false;
+        }
+        return any;
+    }
+
+    //Left wall to the left sensors, cm
+    public double getLeftDistance() {
+        return x[0];
+    }
+
+    //Right wall to the right sensors, cm
+    public double getRightDistance() {
+        return x[2] - x[0];
+    }
+
+    //Radians, positive turned right
+    public double getHeading() {
+        return x[1];
+    }
+
+    public double getWidth() {
+        return x[2];
+    }
+
+    //One standard deviation of the offset estimate, cm
+    public double getOffsetStDev() {
+        return Math.sqrt(P[0]);
+    }
+
+    public double getHeadingStDev() {
+        return Math.sqrt(P[4]);
+    }
+
+    //Readings accepted and rejected by the gate since the filter was made; unusable readings are in neither
+    public int getAccepted() {
+        return accepted;
+    }
+
+    public int getRejected() {
+        return rejected;
+    }
+}
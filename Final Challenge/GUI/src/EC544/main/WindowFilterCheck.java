@@ -0,0 +1,68 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * Checks that switching IRDaemon's wall filter keeps the smoothing window
+ * the "window" command set.
+ *
+ * <pre>
+ * WindowFilterCheck
+ * </pre>
+ *
+ * For window lengths of 1, SAMPLE_COUNT and a few more, the length is set,
+ * the filter switched on and off again, and the averages must be taken over
+ * that length once more; while the filter runs they hold one sample and
+ * getWindowLength() still reports the length set. A length set while the
+ * filter runs must only take effect when it is switched off. Differences
+ * are printed, and the exit status is 1 if there are any.
+ */
+public class WindowFilterCheck {
+
+    private static final int[] LENGTHS = {1, 2, 3, 5, 8, 20};
+    private static int cases = 0;
+    private static int differences = 0;
+
+    private static void expect(String label, int expected, int got) {
+        cases++;
+        if (expected != got) {
+            differences++;
+            System.out.println("  " + label + ": expected " + expected + ", got " + got);
+        }
+    }
+
+    //The length asked for, and what the windows hold
+    private static void expectWindow(String label, IRDaemon daemon, int length, int held) {
+        expect(label + " getWindowLength", length, daemon.getWindowLength());
+        expect(label + " window capacity", held, daemon.recentDists.capacity());
+    }
+
+    public static void main(String[] args) {
+        IRDaemon daemon = new IRDaemon(new ReplayClock());
+        daemon.setVerbose(false);
+        expectWindow("start", daemon, daemon.SAMPLE_COUNT, daemon.SAMPLE_COUNT);
+        daemon.setWallFilter(null);
+        expectWindow("filter off at start", daemon, daemon.SAMPLE_COUNT, daemon.SAMPLE_COUNT);
+        for (int i = 0; i < LENGTHS.length; i++) {
+            int length = LENGTHS[i];
+            daemon.setWindowLength(length);
+            expectWindow("window " + length, daemon, length, length);
+            daemon.setWallFilter(new WallFilter());
+            expectWindow("window " + length + ", filter on", daemon, length, 1);
+            daemon.setWallFilter(null);
+            expectWindow("window " + length + ", filter off", daemon, length, length);
+        }
+        daemon.setWindowLength(4);
+        daemon.setWallFilter(new WallFilter());
+        daemon.setWindowLength(7);
+        expectWindow("window 4, filter on, window 7", daemon, 7, 1);
+        daemon.setWallFilter(null);
+        expectWindow("window 4, filter on, window 7, filter off", daemon, 7, 7);
+        System.out.println(cases + " cases checked, " + differences + " differences");
+        if (differences > 0) {
+            System.exit(1);
+        }
+    }
+}
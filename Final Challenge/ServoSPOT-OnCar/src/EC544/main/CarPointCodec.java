@@ -0,0 +1,172 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * Compact radio encoding for CarPoint, the controller's full diagnostic
+ * state. Each field is quantized to the range it actually takes, so a frame
+ * is 40 bytes instead of the ~90 of the old "CarPoint" UTF tag, double and
+ * 19 floats. That is small enough to stream with every control sample.
+ * The car and the host carry identical copies.
+ *
+ * <pre>
+ *   0  TAG (0xA4)
+ *   1  flags: 0x01 startTurn, 0x02 stopTurn
+ *   2  time, ms since epoch (double)
+ *  10  LF, RF, LR, RR in cm (signed short each)
+ *  18  distRight, distLeft, distance, targetDist in cm (signed short each)
+ *  26  thetaRight, thetaLeft, theta, targetTheta in 0.1 degree (signed short each)
+ *  34  LT, RT in tenths (unsigned byte each)
+ *  36  turn, velocity servo values (unsigned short each)
+ * </pre>
+ *
+ * Angles are radians in CarPoint, as IRDaemon computes them, and come back
+ * as radians rounded to the nearest 0.1 degree. Values outside a field's
+ * range are clamped.
+ */
+public final class CarPointCodec {
+
+    public static final int TAG = 0xA4;
+    public static final int LENGTH = 40;
+    private static final int FLAG_START_TURN = 0x01;
+    private static final int FLAG_STOP_TURN = 0x02;
+    private static final double TENTHS_PER_RADIAN = 1800 / Math.PI;
+
+    private CarPointCodec() {
+    }
+
+    private static int clamp(long value, int min, int max) {
+        if (value > max) {
+            return max;
+        } else if (value < min) {
+            return min;
+        }
+        return (int) value;
+    }
+
+    //Nearest whole number, halves away from zero. CLDC has no Math.round.
+    private static long round(double value) {
+        return value < 0 ? -(long) (0.5 - value) : (long) (value + 0.5);
+    }
+
+    private static int centimeters(float distance) {
+        return clamp(round(distance), Short.MIN_VALUE, Short.MAX_VALUE);
+    }
+
+    private static int tenthsOfDegree(float radians) {
+        return clamp(round(radians * TENTHS_PER_RADIAN), Short.MIN_VALUE, Short.MAX_VALUE);
+    }
+
+    private static float radians(int tenths) {
+        return (float) (tenths / TENTHS_PER_RADIAN);
+    }
+
+    private static void putShort(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >> 8);
+        buf[offset + 1] = (byte) value;
+    }
+
+    private static int getShort(byte[] buf, int offset) {
+        return (short) (((buf[offset] & 0xFF) << 8) | (buf[offset + 1] & 0xFF));
+    }
+
+    //Writes cp at buf[offset]; returns the number of bytes written (LENGTH)
+    public static int encode(CarPoint cp, byte[] buf, int offset) {
+        int flags = 0;
+        if (cp.startTurn > 0.5f) {
+            flags |= FLAG_START_TURN;
+        }
+        if (cp.stopTurn > 0.5f) {
+            flags |= FLAG_STOP_TURN;
+        }
+        buf[offset] = (byte) TAG;
+        buf[offset + 1] = (byte) flags;
+        long bits = Double.doubleToLongBits(cp.time);
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + 2 + i] = (byte) bits;
+            bits >>>= 8;
+        }
+        putShort(buf, offset + 10, centimeters(cp.LF));
+        putShort(buf, offset + 12, centimeters(cp.RF));
+        putShort(buf, offset + 14, centimeters(cp.LR));
+        putShort(buf, offset + 16, centimeters(cp.RR));
+        putShort(buf, offset + 18, centimeters(cp.distRight));
+        putShort(buf, offset + 20, centimeters(cp.distLeft));
+        putShort(buf, offset + 22, centimeters(cp.distance));
+        putShort(buf, offset + 24, centimeters(cp.targetDist));
+        putShort(buf, offset + 26, tenthsOfDegree(cp.thetaRight));
+        putShort(buf, offset + 28, tenthsOfDegree(cp.thetaLeft));
+        putShort(buf, offset + 30, tenthsOfDegree(cp.theta));
+        putShort(buf, offset + 32, tenthsOfDegree(cp.targetTheta));
+        buf[offset + 34] = (byte) clamp(round(cp.LT * 10.0), 0, 255);
+        buf[offset + 35] = (byte) clamp(round(cp.RT * 10.0), 0, 255);
+        putShort(buf, offset + 36, clamp(round(cp.turn), 0, 0xFFFF));
+        putShort(buf, offset + 38, clamp(round(cp.velocity), 0, 0xFFFF));
+        return LENGTH;
+    }
+
+    //Fills cp from length bytes at buf[offset]. Returns false if they are not a CarPoint frame.
+    public static boolean decode(byte[] buf, int offset, int length, CarPoint cp) {
+        if (length < LENGTH || (buf[offset] & 0xFF) != TAG) {
+            return false;
+        }
+        int flags = buf[offset + 1];
+        cp.startTurn = (flags & FLAG_START_TURN) != 0 ? 1.0f : 0.0f;
+        cp.stopTurn = (flags & FLAG_STOP_TURN) != 0 ? 1.0f : 0.0f;
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (buf[offset + 2 + i] & 0xFF);
+        }
+        cp.time = Double.longBitsToDouble(bits);
+        cp.LF = getShort(buf, offset + 10);
+        cp.RF = getShort(buf, offset + 12);
+        cp.LR = getShort(buf, offset + 14);
+        cp.RR = getShort(buf, offset + 16);
+        cp.distRight = getShort(buf, offset + 18);
+        cp.distLeft = getShort(buf, offset + 20);
+        cp.distance = getShort(buf, offset + 22);
+        cp.targetDist = getShort(buf, offset + 24);
+        cp.thetaRight = radians(getShort(buf, offset + 26));
+        cp.thetaLeft = radians(getShort(buf, offset + 28));
+        cp.theta = radians(getShort(buf, offset + 30));
+        cp.targetTheta = radians(getShort(buf, offset + 32));
+        cp.LT = (buf[offset + 34] & 0xFF) / 10.0f;
+        cp.RT = (buf[offset + 35] & 0xFF) / 10.0f;
+        cp.turn = getShort(buf, offset + 36) & 0xFFFF;
+        cp.velocity = getShort(buf, offset + 38) & 0xFFFF;
+        return true;
+    }
+
+    //Reads the rest of a frame whose first byte has already been read from in; false if first is not TAG
+    public static boolean decode(int first, DataInput in, CarPoint cp) throws IOException {
+        if ((first & 0xFF) != TAG) {
+            return false;
+        }
+        int flags = in.readUnsignedByte();
+        cp.startTurn = (flags & FLAG_START_TURN) != 0 ? 1.0f : 0.0f;
+        cp.stopTurn = (flags & FLAG_STOP_TURN) != 0 ? 1.0f : 0.0f;
+        cp.time = in.readDouble();
+        cp.LF = in.readShort();
+        cp.RF = in.readShort();
+        cp.LR = in.readShort();
+        cp.RR = in.readShort();
+        cp.distRight = in.readShort();
+        cp.distLeft = in.readShort();
+        cp.distance = in.readShort();
+        cp.targetDist = in.readShort();
+        cp.thetaRight = radians(in.readShort());
+        cp.thetaLeft = radians(in.readShort());
+        cp.theta = radians(in.readShort());
+        cp.targetTheta = radians(in.readShort());
+        cp.LT = in.readUnsignedByte() / 10.0f;
+        cp.RT = in.readUnsignedByte() / 10.0f;
+        cp.turn = in.readUnsignedShort();
+        cp.velocity = in.readUnsignedShort();
+        return true;
+    }
+}
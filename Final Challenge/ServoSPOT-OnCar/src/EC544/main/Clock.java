@@ -0,0 +1,32 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * Where the control logic gets the time. IRDaemon's forward, reverse and
+ * corner timeouts and MainCarController's sample stamps and control period
+ * all go through one of these instead of System.currentTimeMillis and
+ * Thread.sleep, so the same code can run:
+ *
+ * <pre>
+ * SystemClock   on the car, in real time
+ * ReplayClock   over a recorded run, at the time of each recorded SmallPoint
+ * VirtualClock  in a simulation, where sleeping just moves the time on
+ * </pre>
+ *
+ * The last two never wait, so a recorded or simulated run goes through the
+ * real controller as fast as it can compute.
+ *
+ * The car and the host carry identical copies of Clock and the three
+ * clocks, for ReplayEngine and ParameterSweep.
+ */
+public interface Clock {
+
+    //ms since epoch, as System.currentTimeMillis
+    long currentTimeMillis();
+
+    //Waits millis ms of this clock's time
+    void sleep(long millis) throws InterruptedException;
+}
@@ -0,0 +1,114 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * The IRDaemon coefficients that were tuned by hand in the hallway, pulled
+ * out of the class so a run can be repeated with different values. The
+ * defaults are what the car last drove with.
+ *
+ * Angles are in degrees and times in ms, as the constants were written.
+ * The fields can also be read and set by index (NAMES order), which is how
+ * ParameterSweep (host) varies them. The car and the host carry identical
+ * copies.
+ */
+public class ControllerParams {
+
+    public static final String[] NAMES = {"idealDistance", "maxTurnAngle", "approachAngle", "maxThetaChange",
+        "cornerTimeout", "conf1", "conf2", "conf3"};
+    public static final int COUNT = 8;
+    public double idealDistance = 75.0; // cm from the tracked wall
+    public double maxTurnAngle = 25.0; // heading error that gives a full turn
+    public double approachAngle = 25.0; // heading aimed for when MAX_TURN_DISTANCE or more off target
+    public double maxThetaChange = 7.0; // 5; most the theta average moves toward a new reading per sample
+    public double cornerTimeout = 6500; // 3000
+    // A wall's trust is 3 below conf3 (reading under conf3 * CONFIDENCE_DISTANCE), 2 below conf2, 1 below conf1
+    public double conf1 = 2.0;
+    public double conf2 = 1.5;
+    public double conf3 = 1.0;
+
+    public ControllerParams copy() {
+        ControllerParams out = new ControllerParams();
+        for (int i = 0; i < COUNT; i++) {
+            out.set(i, get(i));
+        }
+        return out;
+    }
+
+    //The field NAMES[index]
+    public double get(int index) {
+        switch (index) {
+            case 0:
+                return idealDistance;
+            case 1:
+                return maxTurnAngle;
+            case 2:
+                return approachAngle;
+            case 3:
+                return maxThetaChange;
+            case 4:
+                return cornerTimeout;
+            case 5:
+                return conf1;
+            case 6:
+                return conf2;
+            default:
+                return conf3;
+        }
+    }
+
+    public void set(int index, double value) {
+        switch (index) {
+            case 0:
+                idealDistance = value;
+                break;
+            case 1:
+                maxTurnAngle = value;
+                break;
+            case 2:
+                approachAngle = value;
+                break;
+            case 3:
+                maxThetaChange = value;
+                break;
+            case 4:
+                cornerTimeout = value;
+                break;
+            case 5:
+                conf1 = value;
+                break;
+            case 6:
+                conf2 = value;
+                break;
+            default:
+                conf3 = value;
+        }
+    }
+
+    //Index of the field called name, -1 if there is none
+    public static int indexOf(String name) {
+        for (int i = 0; i < COUNT; i++) {
+            if (NAMES[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static String headerRow() {
+        return "idealDistance,maxTurnAngle,approachAngle,maxThetaChange,cornerTimeout,conf1,conf2,conf3";
+    }
+
+    public String toString() {
+        StringBuffer out = new StringBuffer();
+        for (int i = 0; i < COUNT; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(get(i));
+        }
+        return out.toString();
+    }
+}
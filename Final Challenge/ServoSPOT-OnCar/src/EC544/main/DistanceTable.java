@@ -0,0 +1,189 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+/**
+ * Volts -> centimeters for the Sharp IR sensors as a lookup table: the
+ * voltage range is split into evenly spaced bins and a reading is linearly
+ * interpolated between the distances at its bin's edges. That is an index
+ * computation, two array reads and one multiply-add, where the calibration
+ * polynomial took four MathUtils.pow calls per sensor per control cycle on
+ * the SPOT's soft-float ARM9.
+ *
+ * Built at startup from curve(), 256 bins over 0..5 V; linear interpolation
+ * stays within 0.1 cm of the polynomial there. A table can instead be built
+ * from a calibration CSV of measured volts,cm pairs: MainCarController loads
+ * CALIBRATION_RESOURCE from the suite if it is present.
+ *
+ * Readings outside the table's range fall back to curve() for a curve table
+ * and to the nearest end of the table for a calibration table.
+ * DistanceTableReport (host) prints the error against the polynomial and
+ * times the lookup. The car and the host carry identical copies.
+ */
+public class DistanceTable {
+
+    public static final double MIN_VOLTS = 0.0;
+    public static final double MAX_VOLTS = 5.0;
+    public static final int BINS = 256;
+    public static final String CALIBRATION_RESOURCE = "/ir-calibration.csv";
+    private final double minVolts;
+    private final double binsPerVolt;
+    private final int bins;
+    private final double[] cm; // bins + 1 entries, the distance at each bin edge
+    private final boolean fromCurve;
+
+    private DistanceTable(double minVolts, double maxVolts, double[] cm, boolean fromCurve) {
+        this.minVolts = minVolts;
+        this.bins = cm.length - 1;
+        this.binsPerVolt = bins / (maxVolts - minVolts);
+        this.cm = cm;
+        this.fromCurve = fromCurve;
+    }
+
+    //4th-order polynomial approximation of volts -> centimeter conversion for analog IR readings
+    // Contains magic numbers, don't go changin' them willy-nilly!
+    public static double curve(double volts) {
+        // 16.2537 v^4 - 129.893 v^3 + 382.268 v^2 - 512.611 v + 306.439, in Horner form
+        return (((16.2537 * volts - 129.893) * volts + 382.268) * volts - 512.611) * volts + 306.439;
+    }
+
+    public static DistanceTable fromCurve() {
+        return fromCurve(MIN_VOLTS, MAX_VOLTS, BINS);
+    }
+
+    public static DistanceTable fromCurve(double minVolts, double maxVolts, int bins) {
+        double[] cm = new double[bins + 1];
+        for (int i = 0; i <= bins; i++) {
+            cm[i] = curve(minVolts + (maxVolts - minVolts) * i / bins);
+        }
+        return new DistanceTable(minVolts, maxVolts, cm, true);
+    }
+
+    /**
+     * Table through measured points, resampled onto bins evenly spaced bins
+     * between the lowest and highest voltage. The points need not be sorted,
+     * and there must be at least two distinct voltages.
+     */
+    public static DistanceTable fromPoints(double[] volts, double[] cm, int count, int bins) {
+        if (count < 2) {
+            throw new IllegalArgumentException("need at least two calibration points, got " + count);
+        }
+        // insertion sort by volts; calibration files are a few dozen lines
+        double[] v = new double[count];
+        double[] d = new double[count];
+        for (int i = 0; i < count; i++) {
+            int j = i;
+            while (j > 0 && v[j - 1] > volts[i]) {
+                v[j] = v[j - 1];
+                d[j] = d[j - 1];
+                j--;
+            }
+            v[j] = volts[i];
+            d[j] = cm[i];
+        }
+        double min = v[0];
+        double max = v[count - 1];
+        if (max <= min) {
+            throw new IllegalArgumentException("calibration points span no voltage range");
+        }
+        double[] table = new double[bins + 1];
+        int k = 0;
+        for (int i = 0; i <= bins; i++) {
+            double x = min + (max - min) * i / bins;
+            while (k < count - 2 && v[k + 1] < x) {
+                k++;
+            }
+            double span = v[k + 1] - v[k];
+            double f = span > 0 ? (x - v[k]) / span : 0.0;
+            table[i] = d[k] + (d[k + 1] - d[k]) * f;
+        }
+        return new DistanceTable(min, max, table, false);
+    }
+
+    /**
+     * Reads volts,cm lines, e.g. "1.25,52.0". Lines that do not start with
+     * two numbers (headers, blank lines) are skipped.
+     */
+    public static DistanceTable fromCalibration(InputStream in) throws IOException {
+        Reader reader = new InputStreamReader(in);
+        double[] volts = new double[32];
+        double[] cm = new double[32];
+        int count = 0;
+        StringBuffer line = new StringBuffer();
+        boolean done = false;
+        while (!done) {
+            int c = reader.read();
+            if (c == -1) {
+                done = true;
+            } else if (c != '\n') {
+                line.append((char) c);
+                continue;
+            }
+            String text = line.toString().trim();
+            line.setLength(0);
+            int comma = text.indexOf(',');
+            if (comma < 0) {
+                continue;
+            }
+            int end = text.indexOf(',', comma + 1);
+            if (end < 0) {
+                end = text.length();
+            }
+            try {
+                double v = Double.parseDouble(text.substring(0, comma).trim());
+                double d = Double.parseDouble(text.substring(comma + 1, end).trim());
+                if (count == volts.length) {
+                    double[] moreVolts = new double[count * 2];
+                    double[] moreCm = new double[count * 2];
+                    System.arraycopy(volts, 0, moreVolts, 0, count);
+                    System.arraycopy(cm, 0, moreCm, 0, count);
+                    volts = moreVolts;
+                    cm = moreCm;
+                }
+                volts[count] = v;
+                cm[count] = d;
+                count++;
+            } catch (NumberFormatException ex) {
+                // header or comment
+            }
+        }
+        return fromPoints(volts, cm, count, BINS);
+    }
+
+    public double lookup(double volts) {
+        double x = (volts - minVolts) * binsPerVolt;
+        if (x >= 0 && x < bins) {
+            int i = (int) x;
+            double low = cm[i];
+            return low + (cm[i + 1] - low) * (x - i);
+        }
+        if (fromCurve) {
+            return curve(volts);
+        }
+        // a NaN reading stays NaN
+        return x < 0 ? cm[0] : (x >= bins ? cm[bins] : x);
+    }
+
+    public double getMinVolts() {
+        return minVolts;
+    }
+
+    public double getMaxVolts() {
+        return minVolts + bins / binsPerVolt;
+    }
+
+    public int getBins() {
+        return bins;
+    }
+
+    public boolean isFromCurve() {
+        return fromCurve;
+    }
+}
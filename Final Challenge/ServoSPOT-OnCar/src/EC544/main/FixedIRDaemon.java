@@ -0,0 +1,472 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * IRDaemon with the per-sample arithmetic in Q16.16 ints (value * 65536)
+ * instead of doubles. The SPOT's ARM920T has no FPU, so every double
+ * operation in IRDaemon is a software routine and atan2 and cos are long
+ * series; here the sensor angles come from an atan table, their cosines from
+ * a sine table, and the averages, clamps and turn ratios are int and long
+ * arithmetic. decide, the timeouts, the commands and the output
+ * methods are IRDaemon's own, so the car can use either class
+ * (MainCarController.FIXED_POINT_PROPERTY).
+ *
+ * Left to doubles: the voltage from the ADC is scaled to a table index with
+ * one multiply per sensor; the ControllerParams are converted once per sample;
+ * and the results are copied to IRDaemon's public double fields for the LEDs,
+ * SmallPoint and CarPoint. Volts -> cm is sampled from IRDaemon.getDistance
+ * when the daemon is made, so load a calibration before that. There is no
+ * WallFilter; DYNAMIC_HALLWAY_SIZE is off in IRDaemon, so the hall stays at
+ * DEFAULT_HALL_SIZE.
+ *
+ * The tables are good to about 1e-5 rad, so the turn can come out one servo
+ * unit apart from IRDaemon's where the double result truncates close to a
+ * whole number. FixedPointCheck (host) replays the recorded runs through
+ * both and reports where they differ and how fast each is. The car and the
+ * host carry identical copies.
+ */
+public class FixedIRDaemon extends IRDaemon {
+
+    public static final int ONE = 1 << 16;
+    private static final int HALF_PI = 102944; // pi / 2 * ONE
+    private static final int TABLE_BITS = 8;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    // atan over 0..1 and sin over 0..pi/2, TABLE_SIZE steps each, in Q16.16
+    private static final int[] ATAN = new int[TABLE_SIZE + 1];
+    private static final int[] SIN = new int[TABLE_SIZE + 1];
+    private static final long SIN_STEPS_PER_RADIAN = (long) (TABLE_SIZE / (Math.PI / 2) * ONE);
+    private static final double DEGREES_TO_FIXED_RADIANS = Math.PI / 180 * ONE;
+
+    static {
+        // atan(x) is the integral of 1 / (1 + t^2) from 0 to x; Simpson's rule on each step, as CLDC has no atan
+        double sum = 0.0;
+        int slices = 8;
+        double h = 1.0 / TABLE_SIZE / slices;
+        for (int i = 0; i <= TABLE_SIZE; i++) {
+            ATAN[i] = (int) (sum * ONE + 0.5);
+            for (int j = 0; j < slices; j++) {
+                double a = (double) (i * slices + j) / (TABLE_SIZE * slices);
+                double b = a + h;
+                double m = a + h / 2;
+                sum += h / 6 * (1 / (1 + a * a) + 4 / (1 + m * m) + 1 / (1 + b * b));
+            }
+            SIN[i] = (int) (Math.sin(Math.PI / 2 * i / TABLE_SIZE) * ONE + 0.5);
+        }
+    }
+    // Volts -> cm, IRDaemon.getDistance sampled at DistanceTable.BINS steps
+    private final int[] cm = new int[DistanceTable.BINS + 1];
+    private final double binsPerVolt = DistanceTable.BINS / (DistanceTable.MAX_VOLTS - DistanceTable.MIN_VOLTS) * ONE;
+    private final int sensorDistance = (int) SENSOR_DISTANCE;
+    private final int confidenceDistance = (int) CONFIDENCE_DISTANCE;
+    private final int maxTurnDistance = (int) MAX_TURN_DISTANCE;
+    private final int ruined = 5 * ONE;
+    private final int maxConfidenceAngle = degrees(MAX_CONFIDENCE_ANGLE);
+    private final int wayTooBigAngle = degrees(MAX_CONFIDENCE_ANGLE + 15);
+    private final int hall = (int) (DEFAULT_HALL_SIZE * ONE);
+    // ControllerParams in Q16.16, see loadParams
+    private int approachAngle;
+    private int maxTurnAngle;
+    private int maxThetaChange;
+    private int conf1;
+    private int conf2;
+    private int conf3;
+    // Q16.16 counterparts of IRDaemon's fields of the same names
+    private int fixedLF;
+    private int fixedRF;
+    private int fixedLR;
+    private int fixedRR;
+    private int fixedThetaLeft;
+    private int fixedThetaRight;
+    private int fixedAvgL;
+    private int fixedAvgR;
+    private int fixedConfidenceLF;
+    private int fixedConfidenceRF;
+    private int fixedConfidenceLR;
+    private int fixedConfidenceRR;
+    private FixedWindow thetas;
+    private FixedWindow dists;
+    private FixedWindow targets;
+    private boolean distsLeft;
+
+    /**
+     * RunningWindow for Q16.16 samples: a circular buffer and its sum, plus
+     * an offset for shift(). Only the mean is kept.
+     */
+    private static class FixedWindow {
+
+        private int[] samples;
+        private int next;
+        private int count;
+        private long sum;
+        private int offset;
+
+        FixedWindow(int capacity) {
+            samples = new int[Math.max(1, capacity)];
+        }
+
+        void add(int value) {
+            int x = value - offset;
+            if (count < samples.length) {
+                count++;
+            } else {
+                sum -= samples[next];
+            }
+            sum += x;
+            samples[next] = x;
+            next++;
+            if (next == samples.length) {
+                next = 0;
+            }
+        }
+
+        void shift(int delta) {
+            offset += delta;
+        }
+
+        int getMean() {
+            return count == 0 ? 0 : (int) (sum / count) + offset;
+        }
+
+        int capacity() {
+            return samples.length;
+        }
+
+        void resize(int capacity) {
+            capacity = Math.max(1, capacity);
+            int keep = Math.min(count, capacity);
+            int[] resized = new int[capacity];
+            sum = 0;
+            for (int i = 0; i < keep; i++) {
+                int slot = next - keep + i;
+                if (slot < 0) {
+                    slot += samples.length;
+                }
+                resized[i] = samples[slot] + offset;
+                sum += resized[i];
+            }
+            samples = resized;
+            count = keep;
+            next = keep == capacity ? 0 : keep;
+            offset = 0;
+        }
+    }
+
+    public FixedIRDaemon() {
+        this(SystemClock.INSTANCE);
+    }
+
+    public FixedIRDaemon(Clock clock) {
+        this(clock, new ControllerParams());
+    }
+
+    public FixedIRDaemon(Clock clock, ControllerParams params) {
+        super(clock, params);
+        for (int i = 0; i <= DistanceTable.BINS; i++) {
+            double volts = DistanceTable.MIN_VOLTS + (DistanceTable.MAX_VOLTS - DistanceTable.MIN_VOLTS) * i / DistanceTable.BINS;
+            cm[i] = (int) (getDistance(volts) * ONE);
+        }
+        int length = getWindowLength();
+        thetas = new FixedWindow(length);
+        dists = new FixedWindow(length);
+        targets = new FixedWindow(length);
+        initRecents();
+        loadParams();
+    }
+
+    /*---------------------*/
+    // Fixed-point helpers
+    /*---------------------*/
+    private static int degrees(double degrees) {
+        return (int) (degrees * DEGREES_TO_FIXED_RADIANS);
+    }
+
+    private static int multiply(int a, int b) {
+        return (int) (((long) a * b) >> 16);
+    }
+
+    private static double toDouble(int fixed) {
+        return fixed / (double) ONE;
+    }
+
+    //Interpolates a table of TABLE_SIZE steps at position, Q16.16 steps
+    private static int interpolate(int[] table, int position) {
+        int i = position >> 16;
+        if (i >= TABLE_SIZE) {
+            return table[TABLE_SIZE];
+        }
+        int fraction = position & (ONE - 1);
+        return table[i] + multiply(table[i + 1] - table[i], fraction);
+    }
+
+    //atan(y / x) for x > 0, as MathUtils.atan2 is used in calcAngle
+    static int atan(int y, int x) {
+        boolean negative = y < 0;
+        if (negative) {
+            y = -y;
+        }
+        int angle;
+        if (y <= x) {
+            angle = interpolate(ATAN, (int) (((long) y << (16 + TABLE_BITS)) / x));
+        } else {
+            angle = HALF_PI - interpolate(ATAN, (int) (((long) x << (16 + TABLE_BITS)) / y));
+        }
+        return negative ? -angle : angle;
+    }
+
+    static int cos(int angle) {
+        if (angle < 0) {
+            angle = -angle;
+        }
+        if (angle >= HALF_PI) {
+            return 0;
+        }
+        return interpolate(SIN, (int) (((long) (HALF_PI - angle) * SIN_STEPS_PER_RADIAN) >> 16));
+    }
+
+    //Volts -> cm in Q16.16; past the table's ends, the end
+    private int lookup(double volts) {
+        int position = (int) ((volts - DistanceTable.MIN_VOLTS) * binsPerVolt);
+        if (position <= 0) {
+            return cm[0];
+        }
+        int i = position >> 16;
+        if (i >= DistanceTable.BINS) {
+            return cm[DistanceTable.BINS];
+        }
+        return cm[i] + multiply(cm[i + 1] - cm[i], position & (ONE - 1));
+    }
+
+    //Takes up changes to the ControllerParams fields, once a sample
+    private void loadParams() {
+        ControllerParams params = getParams();
+        approachAngle = degrees(params.approachAngle);
+        maxTurnAngle = degrees(params.maxTurnAngle);
+        maxThetaChange = degrees(params.maxThetaChange);
+        conf1 = (int) (params.conf1 * ONE);
+        conf2 = (int) (params.conf2 * ONE);
+        conf3 = (int) (params.conf3 * ONE);
+    }
+
+    /*---------------------*/
+    // Input
+    /*---------------------*/
+    public void updateReads(double LF_volts, double RF_volts, double LR_volts, double RR_volts) {
+        fixedLF = lookup(LF_volts);
+        fixedRF = lookup(RF_volts);
+        fixedLR = lookup(LR_volts);
+        fixedRR = lookup(RR_volts);
+        update();
+    }
+
+    public void setReads(int newLF, int newRF, int newLR, int newRR) {
+        fixedLF = newLF << 16;
+        fixedRF = newRF << 16;
+        fixedLR = newLR << 16;
+        fixedRR = newRR << 16;
+        update();
+    }
+
+    //updateAngles, updateDistance and updateConfidence
+    private void update() {
+        loadParams();
+        fixedThetaRight = atan(fixedRR - fixedRF, sensorDistance << 16);
+        fixedThetaLeft = -atan(fixedLR - fixedLF, sensorDistance << 16);
+        int cosLeft = cos(fixedThetaLeft);
+        int cosRight = cos(fixedThetaRight);
+        fixedAvgL = (multiply(cosLeft, fixedLF) + multiply(cosLeft, fixedLR)) / 2;
+        fixedAvgR = (multiply(cosRight, fixedRF) + multiply(cosRight, fixedRR)) / 2;
+        fixedConfidenceLF = fixedLF / confidenceDistance;
+        fixedConfidenceLR = fixedLR / confidenceDistance;
+        fixedConfidenceRF = fixedRF / confidenceDistance;
+        fixedConfidenceRR = fixedRR / confidenceDistance;
+        if (isTooBig(fixedThetaLeft) && !isTooBig(fixedThetaRight) || isWayTooBig(fixedThetaLeft)) {
+            fixedConfidenceLF = ruined;
+            fixedConfidenceLR = ruined;
+        } else if (isTooBig(fixedThetaRight) && !isTooBig(fixedThetaLeft) || isWayTooBig(fixedThetaRight)) {
+            fixedConfidenceRF = ruined;
+            fixedConfidenceRR = ruined;
+        }
+
+        readingLF = toDouble(fixedLF);
+        readingRF = toDouble(fixedRF);
+        readingLR = toDouble(fixedLR);
+        readingRR = toDouble(fixedRR);
+        thetaLeft = toDouble(fixedThetaLeft);
+        thetaRight = toDouble(fixedThetaRight);
+        distanceLF = toDouble(multiply(cosLeft, fixedLF));
+        distanceLR = toDouble(multiply(cosLeft, fixedLR));
+        distanceRF = toDouble(multiply(cosRight, fixedRF));
+        distanceRR = toDouble(multiply(cosRight, fixedRR));
+        distanceAvgL = toDouble(fixedAvgL);
+        distanceAvgR = toDouble(fixedAvgR);
+        confidenceLF = toDouble(fixedConfidenceLF);
+        confidenceLR = toDouble(fixedConfidenceLR);
+        confidenceRF = toDouble(fixedConfidenceRF);
+        confidenceRR = toDouble(fixedConfidenceRR);
+        confidenceAvgL = (confidenceLF + confidenceLR) / 2;
+        confidenceAvgR = (confidenceRF + confidenceRR) / 2;
+    }
+
+    private boolean isTooBig(int theta) {
+        return theta > maxConfidenceAngle || theta < -maxConfidenceAngle;
+    }
+
+    private boolean isWayTooBig(int theta) {
+        return theta > wayTooBigAngle || theta < -wayTooBigAngle;
+    }
+
+    public void setWallFilter(WallFilter filter) {
+        if (filter != null) {
+            System.out.println("FixedIRDaemon has no wall filter");
+        }
+    }
+
+    /*---------------------*/
+    // Housekeeping
+    /*---------------------*/
+    public void initRecents() {
+        super.initRecents();
+        if (thetas == null) {
+            return; // called from IRDaemon's constructor, before the windows are made
+        }
+        for (int i = 0; i < thetas.capacity(); i++) {
+            storeTheta(0);
+            storeTarget(0);
+            storeDistance(0);
+        }
+    }
+
+    public void setWindowLength(int samples) {
+        super.setWindowLength(samples);
+        thetas.resize(samples);
+        dists.resize(samples);
+        targets.resize(samples);
+        publishAverages();
+    }
+
+    private void publishAverages() {
+        avgTheta = toDouble(thetas.getMean());
+        avgDist = toDouble(dists.getMean());
+        avgTarget = toDouble(targets.getMean());
+    }
+
+    private void storeTheta(int newTheta) {
+        int oldAvg = thetas.getMean();
+        if (newTheta >= oldAvg + maxThetaChange) {
+            newTheta = oldAvg + maxThetaChange;
+        } else if (newTheta <= oldAvg - maxThetaChange) {
+            newTheta = oldAvg - maxThetaChange;
+        }
+        thetas.add(newTheta);
+    }
+
+    private void storeTarget(int newTheta) {
+        targets.add(newTheta);
+    }
+
+    private void storeDistance(int newDist) {
+        boolean left = newDist < 0;
+        if (left != distsLeft) {
+            dists.shift(left ? -hall : hall);
+            distsLeft = left;
+        }
+        dists.add(newDist);
+    }
+
+    /*---------------------*/
+    // Internal Calculations
+    /*---------------------*/
+    private int calcIdealTheta(int setDistance, int currentDistance) {
+        int distanceRatio = (currentDistance - setDistance) / maxTurnDistance;
+        if (distanceRatio > ONE) {
+            distanceRatio = ONE;
+        } else if (distanceRatio < -ONE) {
+            distanceRatio = -ONE;
+        }
+        int theta = multiply(approachAngle, distanceRatio);
+        targetTheta = toDouble(theta);
+        return theta;
+    }
+
+    private int calcTurn(int setTheta, int currentTheta) {
+        int thetaRatio;
+        if (maxTurnAngle > 0) {
+            long ratio = (((long) setTheta - currentTheta) << 16) / maxTurnAngle;
+            thetaRatio = ratio > ONE ? ONE : (ratio < -ONE ? -ONE : (int) ratio);
+        } else {
+            thetaRatio = setTheta > currentTheta ? ONE : (setTheta < currentTheta ? -ONE : 0);
+        }
+        int turn = multiply(TURN_MAX << 16, thetaRatio);
+        // IRDaemon truncates with (int); the turn is always positive, so that is the floor
+        if (setSpeed <= 1500) {
+            return ((1500 << 16) - turn) >> 16;
+        } else {
+            return ((1500 << 16) + turn) >> 16;
+        }
+    }
+
+    //The target theta for the current distance, then the turn toward it
+    private void steer(int setDistance) {
+        storeTarget(calcIdealTheta(setDistance, dists.getMean()));
+        turnSuggest = calcTurn(targets.getMean(), thetas.getMean());
+        publishAverages();
+    }
+
+    private int calcTrust(int confFront, int confBack) {
+        int lesser = confFront <= confBack ? confFront : confBack;
+        if (lesser < conf3) {
+            return 3;
+        } else if (lesser < conf2) {
+            return 2;
+        } else if (lesser < conf1) {
+            return 1;
+        } else {
+            return 0;
+        }
+    }
+
+    protected int leftTrust() {
+        return calcTrust(fixedConfidenceLF, fixedConfidenceLR);
+    }
+
+    protected int rightTrust() {
+        return calcTrust(fixedConfidenceRF, fixedConfidenceRR);
+    }
+
+    public void leftTurn(double set_distance) {
+        storeTheta(fixedThetaLeft);
+        storeDistance(-fixedAvgL);
+        steer((int) (-set_distance * ONE));
+    }
+
+    public void rightTurn(double set_distance) {
+        storeTheta(fixedThetaRight);
+        storeDistance(fixedAvgR);
+        steer((int) (set_distance * ONE));
+    }
+
+    public void leftDrift(double set_distance) {
+        storeDistance(fixedAvgL);
+        steer((int) (-set_distance * ONE));
+    }
+
+    public void rightDrift(double set_distance) {
+        storeDistance(fixedAvgR);
+        steer((int) (set_distance * ONE));
+    }
+
+    public void leftCorner() {
+        storeDistance(fixedAvgL);
+        turnSuggest = setSpeed > 1500 ? TURN_RIGHT_MAX : TURN_LEFT_MAX;
+        publishAverages();
+    }
+
+    public void rightCorner() {
+        storeDistance(fixedAvgR);
+        turnSuggest = setSpeed > 1500 ? TURN_LEFT_MAX : TURN_RIGHT_MAX;
+        publishAverages();
+    }
+}
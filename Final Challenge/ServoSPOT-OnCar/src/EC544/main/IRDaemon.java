@@ -7,6 +7,9 @@ package EC544.main;
 import com.sun.squawk.util.MathUtils;
 
 /**
+ * The host carries a copy for ReplayEngine and ParameterSweep that uses
+ * Math.atan2 for MathUtils.atan2 and is otherwise the same; keep them in step.
+ * FixedIRDaemon does the same arithmetic in Q16.16 ints.
  *
  * @author Aaron Heuckroth
  */
@@ -23,20 +26,25 @@ public class IRDaemon {
     public boolean takeNextLeft = false;
     public boolean takeNextRight = false;
     public int setSpeed;
-    boolean corneringLeft = false;
-    boolean corneringRight = false;
+    public int setTurn = 1500; // the turn the car is driving with, for the WallFilter
+    int state = DriveState.FOLLOW; // of the driving state machine, see decide()
     final double FORWARD_TIMEOUT = 1000;
-    final double CORNER_TIMEOUT = 6500; // 3000
     final double REVERSE_TIMEOUT = 3000;
     double reverse_finish_time = 0;
     double corner_finish_time = 0;
     double forward_finish_time = 0;
+    private Clock clock;
+    // IDEAL_DISTANCE, MAX_TURN_ANGLE, APPROACH_ANGLE, MAX_THETA_CHANGE, CORNER_TIMEOUT and CONF_1..3
+    private ControllerParams params;
+    private boolean verbose = true; // print state changes in decide
+    private TransitionLog transitionLog; // null: transitions not kept
+    private WallFilter wallFilter; // null: theta and wall distances from each sensor pair, averaged
+    private long lastFilterTime;
     /*---------------------*/
     // Environmental coefficients
     /*---------------------*/
     final double NEAR_WALL_DISTANCE = 43.0; // 
     final double DEFAULT_HALL_SIZE = 181.0; //
-    final double IDEAL_DISTANCE = 75.0; //
     final double CLOSE_DISTANCE = 50.0; // 
     final double ALCOVE_DISTANCE = 110.0;
     /*---------------------*/
@@ -48,26 +56,22 @@ public class IRDaemon {
     final double SENSOR_DISTANCE = 31.0;// 31.0
     final double CORNER_DISTANCE = -100.0;
     final double MAX_TURN_DISTANCE = 90.0;
-    final double MAX_TURN_ANGLE = 25.0;
-    final double APPROACH_ANGLE = 25.0;
     final double MAX_TURN_FACTOR = 1.0;
     final double MAX_DISTANCE_FACTOR = 1.0;
     final double MAX_ANGLE_FACTOR = 1.0;
     final double MAX_HALL_CONFIDENCE = 1.25; // if new hall distance is > 1.25 of average, beware!
     final double MAX_CONFIDENCE_ANGLE = 35;
-    final double MAX_THETA_CHANGE = degToRadians(7); //5
     /*---------------------*/
     // Confidence calculation coefficients
     /*---------------------*/
     final double CONFIDENCE_DISTANCE = 80.0;
-    final double CONF_3 = 1.0;
-    final double CONF_2 = 1.5;
-    final double CONF_1 = 2.0;
     final int SAMPLE_COUNT = 3; // was 3 for last functional test
     /*---------------------*/
     // Control coefficients
     /*---------------------*/
     private final double STRAIGHT_TOLERANCE = 5.0; // 5.0 in IR units
+    // Volts -> cm for the IR sensors, DistanceTable.curve() unless a calibration file replaces it
+    private static DistanceTable distanceTable = DistanceTable.fromCurve();
     /*---------------------*/
     //Sampling data storage variables 
     /*---------------------*/
@@ -77,18 +81,20 @@ public class IRDaemon {
     public double readingRR;
     /*---------------------*/
     //Calculation data storage instance variables
-    public double[] recentDists = new double[SAMPLE_COUNT];
-    public double[] recentTargets = new double[SAMPLE_COUNT];
-    private double[] recentHalls = new double[SAMPLE_COUNT];
-    private double[] recentThetas = new double[SAMPLE_COUNT];
-    private double avgTheta;
+    public RunningWindow recentDists = new RunningWindow(SAMPLE_COUNT);
+    public RunningWindow recentTargets = new RunningWindow(SAMPLE_COUNT);
+    private RunningWindow recentHalls = new RunningWindow(SAMPLE_COUNT);
+    private RunningWindow recentThetas = new RunningWindow(SAMPLE_COUNT);
+    private int windowLength = SAMPLE_COUNT; // as set; the windows hold one sample while a wall filter runs
+    private boolean recentDistsLeft = false; // recentDists holds left-wall (negative) distances
+    protected double avgTheta;
     private double avgHall = DEFAULT_HALL_SIZE;
     private double sdHall = 0.0;
     private double middleDistance = DEFAULT_HALL_SIZE / 2;
     private boolean isLeftPreferred = true;
     private boolean isCoasting = false;
-    private double targetDistance = IDEAL_DISTANCE; // 20.0 in IR
-    private double targetTheta = 0.0;
+    private double targetDistance; // 20.0 in IR
+    protected double targetTheta = 0.0;
     public double avgTarget;
     public double avgDist;
     public double thetaLeft; // angle of car in radians
@@ -115,23 +121,102 @@ public class IRDaemon {
     // Constructors         
     /*---------------------*/
     public IRDaemon() { // for calculations only
+        this(SystemClock.INSTANCE);
+    }
+
+    //clock drives the forward, reverse and corner timeouts; see Clock
+    public IRDaemon(Clock clock) {
+        this(clock, new ControllerParams());
+    }
+
+    public IRDaemon(Clock clock, ControllerParams params) {
+        this.clock = clock;
+        this.params = params;
+        targetDistance = params.idealDistance;
         initRecents();
     }
 
+    public void setClock(Clock clock) {
+        this.clock = clock;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    //Takes effect from the next sample; params is used, not copied
+    public void setParams(ControllerParams params) {
+        this.params = params;
+    }
+
+    public ControllerParams getParams() {
+        return params;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    //Takes theta and the wall distances from filter, which replaces the averaging: the windows
+    //drop to one sample and theta is not clamped. null goes back to averaging over getWindowLength().
+    public void setWallFilter(WallFilter filter) {
+        wallFilter = filter;
+        if (filter != null) {
+            filter.reset();
+            resizeWindows(1);
+        } else {
+            resizeWindows(windowLength);
+        }
+    }
+
+    public WallFilter getWallFilter() {
+        return wallFilter;
+    }
+
+    //decide() adds each state change to log; null stops it
+    public void setTransitionLog(TransitionLog log) {
+        transitionLog = log;
+    }
+
+    public TransitionLog getTransitionLog() {
+        return transitionLog;
+    }
+
+    //The driving state, a DriveState state
+    public int getState() {
+        return state;
+    }
+
     /*---------------------*/
     // Pathing decisions
     /*---------------------*/
+    //The name of decide()'s decision, as this returned before the state machine; for printing
     public String pickDirection() {
-        if (forward_finish_time >= System.currentTimeMillis() && !isColliding) {
+        return DriveState.DECISION_NAMES[decide()];
+    }
+
+    /**
+     * One sample of the driving state machine (see DriveState): sets
+     * speedSuggest and turnSuggest and returns the decision, a DriveState code.
+     * The sample's event looks the next state up in DriveState.TRANSITIONS; on
+     * a change out of a corner its exit action runs, on one into a corner its
+     * entry action, and otherwise the state's action for the sample. The
+     * forward and reverse speed timers run beside it, as before.
+     */
+    public int decide() {
+        long now = clock.currentTimeMillis();
+        if (forward_finish_time >= now && !isColliding) {
             speedSuggest = 1300;
-        } else if (reverse_finish_time >= System.currentTimeMillis()) {
+        } else if (reverse_finish_time >= now) {
             speedSuggest = 1700;
         } else {
             if (isColliding) {
                 isColliding = false;
-                reverse_finish_time = System.currentTimeMillis() + REVERSE_TIMEOUT / 2;
+                reverse_finish_time = now + REVERSE_TIMEOUT / 2;
                 speedSuggest = 1700;
-                System.out.println("Colliding, going backwards!");
+                if (verbose) {
+                    System.out.println("Colliding, going backwards!");
+                }
             } else {
                 speedSuggest = 1300;
 
@@ -140,88 +225,104 @@ public class IRDaemon {
 
         int L = leftTrust();
         int R = rightTrust();
-
-        if (corneringLeft) {
-            System.out.println("Cornering left!");
-            if (System.currentTimeMillis() >= corner_finish_time) {
-                targetDistance = IDEAL_DISTANCE;
-                takeNextLeft = false;
-                corner_finish_time = 0;
-                corneringLeft = false;
-                leftTurn(targetDistance);
-                System.out.println("Finished left corner!");
-                return "left corner finish";
-            } else {
+        int event = DriveState.classify(state, now >= corner_finish_time, takeNextLeft, takeNextRight, L, R);
+        if (verbose) {
+            if (state == DriveState.CORNER_LEFT) {
+                System.out.println("Cornering left!");
+            } else if (state == DriveState.CORNER_RIGHT) {
+                System.out.println("Cornering right!");
+            } else if (event == DriveState.TAKE_LEFT || event == DriveState.LEFT_OPEN) {
+                System.out.println("IR: Taking next left...");
+            } else if (event == DriveState.TAKE_RIGHT || event == DriveState.RIGHT_OPEN) {
+                System.out.println("IR: Taking next right...");
+            }
+        }
+        int next = DriveState.TRANSITIONS[state][event];
+        if (next != state) {
+            int from = state;
+            state = next;
+            if (transitionLog != null) {
+                transitionLog.add(from, next, event, now);
+            }
+            if (DriveState.isCorner(from)) {
+                return exitCorner(from);
+            } else if (DriveState.isCorner(next)) {
+                return enterCorner(next, now);
+            }
+        }
+        switch (state) {
+            case DriveState.CORNER_LEFT:
                 if (L == 1) {
                     targetDistance = CLOSE_DISTANCE;
                     leftTurn(targetDistance);
                 }
                 targetDistance = CORNER_DISTANCE;
                 leftCorner();
-                return "cornering left";
-            }
-
-
-        } else if (corneringRight) {
-            System.out.println("Cornering right!");
-            if (System.currentTimeMillis() >= corner_finish_time) {
-                targetDistance = IDEAL_DISTANCE;
-                takeNextRight = false;
-                corner_finish_time = 0;
-                corneringRight = false;
-                System.out.println("Finished right corner!");
-                rightTurn(targetDistance);
-                return "right corner finish";
-            } else {
+                return DriveState.CORNERING_LEFT;
+            case DriveState.CORNER_RIGHT:
                 targetDistance = CORNER_DISTANCE;
                 rightCorner();
-                return "cornering right";
-            }
-
-        } else if (takeNextLeft) {
-            System.out.println("IR: Taking next left...");
-            isLeftPreferred = true;
-            if (L == 0) {
-                targetDistance = CORNER_DISTANCE;
-                corner_finish_time = System.currentTimeMillis() + CORNER_TIMEOUT;
-                reverse_finish_time = System.currentTimeMillis() + REVERSE_TIMEOUT;
-                forward_finish_time = System.currentTimeMillis() + FORWARD_TIMEOUT;
-                leftCorner();
-                corneringLeft = true;
-                return "left corner";
-            } else {
+                return DriveState.CORNERING_RIGHT;
+            case DriveState.APPROACH_LEFT:
+                isLeftPreferred = true;
                 targetDistance = CLOSE_DISTANCE;
                 if (L == 1) {
                     leftDrift(targetDistance);
-                    return "drift left";
-                } else {
-                    leftTurn(targetDistance);
-                    return "turn left";
+                    return DriveState.DRIFT_LEFT;
                 }
-            }
-        } else if (takeNextRight) {
-            isLeftPreferred = false;
-            System.out.println("IR: Taking next right...");
-            if (R == 0) {
-                targetDistance = CORNER_DISTANCE;
-                reverse_finish_time = System.currentTimeMillis() + REVERSE_TIMEOUT;
-                corner_finish_time = System.currentTimeMillis() + CORNER_TIMEOUT;
-                forward_finish_time = System.currentTimeMillis() + FORWARD_TIMEOUT;
-                rightCorner();
-                corneringRight = true;
-                return "right corner";
-            } else {
+                leftTurn(targetDistance);
+                return DriveState.TURN_LEFT;
+            case DriveState.APPROACH_RIGHT:
+                isLeftPreferred = false;
                 targetDistance = CLOSE_DISTANCE;
                 if (R == 1) {
                     rightDrift(targetDistance);
-                    return "drift right";
-                } else {
-                    rightTurn(targetDistance);
-                    return "turn right";
+                    return DriveState.DRIFT_RIGHT;
                 }
-            }
-        } else if (L == 0 && R == 0) {
-            return "unknown";
+                rightTurn(targetDistance);
+                return DriveState.TURN_RIGHT;
+            default:
+                return follow(L, R);
+        }
+    }
+
+    //Entry action of CORNER_LEFT or CORNER_RIGHT: full lock and the corner, reverse and forward timers
+    private int enterCorner(int corner, long now) {
+        targetDistance = CORNER_DISTANCE;
+        corner_finish_time = now + params.cornerTimeout;
+        reverse_finish_time = now + REVERSE_TIMEOUT;
+        forward_finish_time = now + FORWARD_TIMEOUT;
+        if (corner == DriveState.CORNER_LEFT) {
+            isLeftPreferred = true;
+            leftCorner();
+            return DriveState.LEFT_CORNER;
+        }
+        isLeftPreferred = false;
+        rightCorner();
+        return DriveState.RIGHT_CORNER;
+    }
+
+    //Exit action of CORNER_LEFT or CORNER_RIGHT: back to the ideal distance, the turn command spent
+    private int exitCorner(int corner) {
+        targetDistance = params.idealDistance;
+        corner_finish_time = 0;
+        if (verbose) {
+            System.out.println(corner == DriveState.CORNER_LEFT ? "Finished left corner!" : "Finished right corner!");
+        }
+        if (corner == DriveState.CORNER_LEFT) {
+            takeNextLeft = false;
+            leftTurn(targetDistance);
+            return DriveState.LEFT_CORNER_FINISH;
+        }
+        takeNextRight = false;
+        rightTurn(targetDistance);
+        return DriveState.RIGHT_CORNER_FINISH;
+    }
+
+    //FOLLOW's action: follow the wall trusted more, or the preferred one when they are even
+    private int follow(int L, int R) {
+        if (L == 0 && R == 0) {
+            return DriveState.UNKNOWN;
         } else if (L > R) {
             if (L == 1 && ALCOVES_SUCK) { //alcove on the right, close to right wall
                 if (DUCK_ALCOVES){
@@ -231,17 +332,17 @@ public class IRDaemon {
                     targetDistance = ALCOVE_DISTANCE;
                 }
                 leftDrift(targetDistance);
-                return "drift left";
+                return DriveState.DRIFT_LEFT;
             } else {
                 isLeftPreferred = true;
                 if (R == 0 && DUCK_ALCOVES) {
                     targetDistance = CLOSE_DISTANCE;
 
                 } else {
-                    targetDistance = IDEAL_DISTANCE;
+                    targetDistance = params.idealDistance;
                 }
                 leftTurn(targetDistance);
-                return "trust left";
+                return DriveState.TRUST_LEFT;
             }
         } else if (R > L) {
             //isLeftPreferred = false; // Changed for demo on 4th floor
@@ -253,19 +354,16 @@ public class IRDaemon {
                     targetDistance = ALCOVE_DISTANCE;
                 }
                 rightDrift(targetDistance);
-                return "drift right";
+                return DriveState.DRIFT_RIGHT;
             } else {
                 if (L == 0 && DUCK_ALCOVES) {
                     targetDistance = CLOSE_DISTANCE;
                 } else {
-                    targetDistance = IDEAL_DISTANCE;
+                    targetDistance = params.idealDistance;
                 }
                 rightTurn(targetDistance);
-                return "trust right";
+                return DriveState.TRUST_RIGHT;
             }
-        } else if (L == 0 && R
-                == 0) {
-            return "unknown";
         } else {
             if (L >= 2 && R >= 2) {
                 if (DYNAMIC_HALLWAY_SIZE) {
@@ -273,14 +371,14 @@ public class IRDaemon {
                 }
             }
             if (isLeftPreferred == true) {
-                targetDistance = IDEAL_DISTANCE;
+                targetDistance = params.idealDistance;
                 leftTurn(targetDistance);
-                return "left preferred";
+                return DriveState.LEFT_PREFERRED;
             } else {
-                targetDistance = IDEAL_DISTANCE;
+                targetDistance = params.idealDistance;
                 rightTurn(targetDistance);
             }
-            return "right preferred";
+            return DriveState.RIGHT_PREFERRED;
         }
     }
 
@@ -288,27 +386,46 @@ public class IRDaemon {
 // Housekeeping 
     /*---------------------*/
     public void initRecents() {
-        for (int i = 0; i < SAMPLE_COUNT; i++) {
+        for (int i = 0; i < recentThetas.capacity(); i++) {
             storeTheta(0);
             storeTarget(0);
             storeDistance(0);
         }
-        for (int i = 0; i < recentHalls.length; i++) {
+        for (int i = 0; i < recentHalls.capacity(); i++) {
             storeHall(DEFAULT_HALL_SIZE);
         }
 
     }
 
-    public void storeTarget(double new_theta) {
-        double[] tempTargets = recentTargets;
-        for (int i = 0; i < recentTargets.length; i++) {
-            if (i == 0) {
-                recentTargets[i] = new_theta;
-            } else {
-                recentTargets[i] = tempTargets[i - 1];
-            }
+    //Number of samples the theta, hall, distance and target averages are taken over (SAMPLE_COUNT to start).
+    //While a wall filter runs the length is kept for when it is switched off.
+    public void setWindowLength(int samples) {
+        windowLength = Math.max(1, samples);
+        if (wallFilter == null) {
+            resizeWindows(windowLength);
         }
-        avgTarget = average(recentTargets);
+    }
+
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    private void resizeWindows(int samples) {
+        recentThetas.resize(samples);
+        recentTargets.resize(samples);
+        recentHalls.resize(samples);
+        recentDists.resize(samples);
+        avgTheta = recentThetas.getMean();
+        avgTarget = recentTargets.getMean();
+        avgHall = recentHalls.getMean();
+        sdHall = recentHalls.getStDev();
+        avgDist = recentDists.getMean();
+        updateMiddle();
+    }
+
+    public void storeTarget(double new_theta) {
+        recentTargets.add(new_theta);
+        avgTarget = recentTargets.getMean();
 
     }
 
@@ -331,12 +448,14 @@ public class IRDaemon {
     }
 
     private void storeTheta(double new_theta) {
-        double[] tempThetas = recentThetas;
-        double oldAvg = average(tempThetas);
-        double maxTheta = oldAvg + MAX_THETA_CHANGE;
-        double minTheta = oldAvg - MAX_THETA_CHANGE;
-
-        if (new_theta >= maxTheta) {
+        double oldAvg = recentThetas.getMean();
+        double maxChange = degToRadians(params.maxThetaChange);
+        double maxTheta = oldAvg + maxChange;
+        double minTheta = oldAvg - maxChange;
+
+        if (wallFilter != null) {
+            // already filtered
+        } else if (new_theta >= maxTheta) {
             new_theta = maxTheta;
             //System.out.println("New theta too big!");
         } else if (new_theta <= minTheta) {
@@ -345,26 +464,14 @@ public class IRDaemon {
 
         }
 
-        for (int i = 0; i < recentThetas.length; i++) {
-            if (i == 0) {
-                recentThetas[i] = new_theta;
-            } else {
-                recentThetas[i] = tempThetas[i - 1];
-            }
-        }
-        avgTheta = average(recentThetas);
+        recentThetas.add(new_theta);
+        avgTheta = recentThetas.getMean();
     }
 
     private void storeHall(double new_hall) {
-        double[] tempHalls = recentHalls;
-        for (int i = 0; i < recentHalls.length; i++) {
-            if (i == 0) {
-                recentHalls[i] = new_hall;
-            } else {
-                recentHalls[i] = tempHalls[i - 1];
-            }
-        }
-        avgHall = average(recentHalls);
+        recentHalls.add(new_hall);
+        avgHall = recentHalls.getMean();
+        sdHall = recentHalls.getStDev();
         updateMiddle();
     }
 
@@ -412,6 +519,24 @@ public class IRDaemon {
         //}
     }
 
+    //With a WallFilter, replaces the per-pair angles and distances with its estimate. The
+    //control input is the turn and speed from the last updateState, what the car drove with since.
+    private void fuse() {
+        if (wallFilter == null) {
+            return;
+        }
+        long now = clock.currentTimeMillis();
+        wallFilter.predict((now - lastFilterTime) / 1000.0, setTurn, setSpeed);
+        lastFilterTime = now;
+        wallFilter.update(readingLF, readingRF, readingLR, readingRR, confidenceLF, confidenceRF, confidenceLR, confidenceRR);
+        if (wallFilter.isInitialized()) {
+            thetaLeft = wallFilter.getHeading();
+            thetaRight = thetaLeft;
+            distanceAvgL = wallFilter.getLeftDistance();
+            distanceAvgR = wallFilter.getRightDistance();
+        }
+    }
+
     /*---------------------*/
     // Input
     /*---------------------*/
@@ -424,13 +549,20 @@ public class IRDaemon {
         updateAngles();
         updateDistance();
         updateConfidence();
+        fuse();
     }
 
+    //Takes it that the car is driving with the last turnSuggest
     public void updateState(boolean collide, boolean leftTurn, boolean rightTurn, int speed) {
+        updateState(collide, leftTurn, rightTurn, speed, turnSuggest);
+    }
+
+    public void updateState(boolean collide, boolean leftTurn, boolean rightTurn, int speed, int turn) {
         isColliding = collide;
         takeNextLeft = leftTurn;
         takeNextRight = rightTurn;
         setSpeed = speed;
+        setTurn = turn;
     }
 
     /*---------------------*/
@@ -438,6 +570,12 @@ public class IRDaemon {
     /*---------------------*/
     public CarPoint getCarpoint(int turn, int setSpeed, boolean startTurn, boolean stopTurn, double time) {
         CarPoint cp = new CarPoint();
+        fillCarpoint(cp, turn, setSpeed, startTurn, stopTurn, time);
+        return cp;
+    }
+
+    //Same as getCarpoint, but overwrites cp instead of allocating a new point
+    public void fillCarpoint(CarPoint cp, int turn, int setSpeed, boolean startTurn, boolean stopTurn, double time) {
         cp.time = time;
         cp.LF = (float) readingLF;
         cp.RF = (float) readingRF;
@@ -465,19 +603,30 @@ public class IRDaemon {
             cp.stopTurn = 0.0f;
         }
         cp.targetTheta = (float) avgTarget;
+    }
 
-        return cp;
+    //Same as getSmallPoint, but overwrites out instead of allocating a new point.
+    //The booleans go by SmallPointCodec flag index, which the host's SmallPoint names differently.
+    public void fillSmallPoint(SmallPoint out, int turnSetting, int speedSetting, double time) {
+        out.leftFront = SmallPoint.readToInt(readingLF);
+        out.rightFront = SmallPoint.readToInt(readingRF);
+        out.leftRear = SmallPoint.readToInt(readingLR);
+        out.rightRear = SmallPoint.readToInt(readingRR);
+        out.setTurn = turnSetting;
+        out.setSpeed = speedSetting;
+        out.setFlag(0, isColliding);
+        out.setFlag(1, takeNextLeft);
+        out.setFlag(2, takeNextRight);
+        out.setFlag(3, state == DriveState.CORNER_LEFT);
+        out.setFlag(4, state == DriveState.CORNER_RIGHT);
+        out.setFlag(5, false);
+        out.time = time;
     }
 
     //Assumes all boolean smallPoint variables are false.
     public SmallPoint getSmallPoint(int turnSetting, int speedSetting, double time) {
-        SmallPoint out = new SmallPoint(readingLF, readingRF, readingLR, readingRR, turnSetting, speedSetting);
-        out.isColliding = isColliding;
-        out.takeNextLeft = takeNextLeft;
-        out.takeNextRight = takeNextRight;
-        out.corneringLeft = corneringLeft;
-        out.corneringRight = corneringRight;
-        out.time = time;
+        SmallPoint out = new SmallPoint();
+        fillSmallPoint(out, turnSetting, speedSetting, time);
         if (!out.isASmallPoint()) {
             System.out.println("Created an invalid SmallPoint!" + out.booleansToUnsignedInt());
         }
@@ -503,12 +652,10 @@ public class IRDaemon {
     // Static Calculations
     /*---------------------*/
     public static double stDev(double[] data) {
-        double diff = 0.0;
-        double sum = 0.0;
         double sdSum = 0.0;
         double avg = average(data);
         for (int i = 0; i < data.length; i++) {
-            diff += (data[i] - avg);
+            double diff = data[i] - avg;
             sdSum += (diff * diff);
         }
         return (Math.sqrt(sdSum / data.length));
@@ -531,16 +678,14 @@ public class IRDaemon {
         return (18.67 / old_distance_value) - 0.167;
     }
 
-    //3rd-order polynomial approximation of volts -> centimeter conversion for analog IR readings
-    // Contains magic numbers, don't go changin' them willy-nilly!
+    //Volts -> centimeters for analog IR readings, through distanceTable
     public static double getDistance(double volts) {
-        double oldVal = 18.67 / (volts + 0.167); // Old method!
-        double newVal = 16.2537 * MathUtils.pow(volts, 4)
-                - 129.893 * MathUtils.pow(volts, 3)
-                + 382.268 * MathUtils.pow(volts, 2)
-                - 512.611 * volts + 306.439;
-        //System.out.println("Old distance: " + oldVal + ", new distance: " + newVal);
-        return newVal; // convert to inches because we suck
+        return distanceTable.lookup(volts);
+    }
+
+    //Replaces the table getDistance uses, e.g. with one from a calibration file
+    public static void setDistanceTable(DistanceTable table) {
+        distanceTable = table;
     }
 
     private static double toDegrees(double thetaRad) {
@@ -558,14 +703,14 @@ public class IRDaemon {
         } else if (distanceRatio < -MAX_DISTANCE_FACTOR) {
             distanceRatio = -MAX_DISTANCE_FACTOR;
         }
-        double thetaMagnitude = degToRadians(APPROACH_ANGLE * distanceRatio); // convert to radians for consistency
+        double thetaMagnitude = degToRadians(params.approachAngle * distanceRatio); // convert to radians for consistency
         targetTheta = thetaMagnitude;
         return thetaMagnitude;
     }
 
     public int calcTurn(double set_theta_rad, double current_theta_rad) {
         double thetaDiff = toDegrees(set_theta_rad) - toDegrees(current_theta_rad);
-        double thetaRatio = thetaDiff / MAX_TURN_ANGLE;
+        double thetaRatio = thetaDiff / params.maxTurnAngle;
         if (thetaRatio > MAX_ANGLE_FACTOR) {
             thetaRatio = MAX_ANGLE_FACTOR;
         } else if (thetaRatio < -MAX_ANGLE_FACTOR) {
@@ -585,34 +730,16 @@ public class IRDaemon {
         return calcTurn(set_theta, current_theta);
     }
 
+    //recentDists holds distances from one wall, negative for the left. When the
+    //car switches walls the whole window is re-expressed from the new one.
     private void storeDistance(double new_dist) {
-        double[] tempDists = recentDists;
-        if (new_dist < 0) { // new dist is a left value
-            for (int i = 0; i < recentDists.length; i++) {
-                if (i == 0) {
-                    recentDists[i] = new_dist;
-                } else {
-                    if (tempDists[i - 1] < 0) { // old dist is a left value
-                        recentDists[i] = tempDists[i - 1]; // add as next element 
-                    } else {
-                        recentDists[i] = -(avgHall - tempDists[i - 1]);
-                    }
-                }
-            }
-        } else {
-            for (int i = 0; i < recentDists.length; i++) {
-                if (i == 0) {
-                    recentDists[i] = new_dist;
-                } else {
-                    if (tempDists[i - 1] < 0) {
-                        recentDists[i] = (avgHall + tempDists[i - 1]);
-                    } else {
-                        recentDists[i] = tempDists[i - 1];
-                    }
-                }
-            }
+        boolean left = new_dist < 0;
+        if (left != recentDistsLeft) {
+            recentDists.shift(left ? -avgHall : avgHall);
+            recentDistsLeft = left;
         }
-        avgDist = average(recentDists);
+        recentDists.add(new_dist);
+        avgDist = recentDists.getMean();
     }
 
     private double calcHall(double left_distance, double right_distance) {
@@ -646,7 +773,7 @@ public class IRDaemon {
         double angleDifference = Math.abs(currentAngle - desiredAngle);
         //       System.out.println("Angle Difference: " + angleDifference);
 
-        double turnRatio = (angleDifference / MAX_TURN_ANGLE);
+        double turnRatio = (angleDifference / params.maxTurnAngle);
         double turnFactor = turnRatio * turnRatio; // squared, so that larger difference == exponentially larger turn
 
         //System.out.println("Turn factor: " + turnFactor);
@@ -669,12 +796,12 @@ public class IRDaemon {
             lesser = confBack;
         }
 
-        if (lesser < CONF_3) {
+        if (lesser < params.conf3) {
             return 3;
-        } else if (lesser < CONF_2) {
+        } else if (lesser < params.conf2) {
             return 2;
         }
-        if (lesser < CONF_1) {
+        if (lesser < params.conf1) {
             return 1;
         } else {
             return 0;
@@ -682,14 +809,14 @@ public class IRDaemon {
 
     }
 
-    private int leftTrust() {
+    protected int leftTrust() {
         int trust = calcTrust(confidenceLF, confidenceLR);
         //System.out.println("Left trust:" + trust);
         return trust;
 
     }
 
-    private int rightTrust() {
+    protected int rightTrust() {
         int trust = calcTrust(confidenceRF, confidenceRR);
         //System.out.println("Right trust:" + trust);
         return trust;
@@ -730,9 +857,9 @@ public class IRDaemon {
     public void leftCorner() {
         storeDistance(distanceAvgL);
         if (setSpeed > 1500) {
-            turnSuggest = (int) (TURN_RIGHT_MAX);
+            turnSuggest = TURN_RIGHT_MAX;
         } else {
-            turnSuggest = (int) (TURN_LEFT_MAX);
+            turnSuggest = TURN_LEFT_MAX;
         }
 
     }
@@ -740,9 +867,9 @@ public class IRDaemon {
     public void rightCorner() {
         storeDistance(distanceAvgR);
         if (setSpeed > 1500) {
-            turnSuggest = (int) (TURN_LEFT_MAX);
+            turnSuggest = TURN_LEFT_MAX;
         } else {
-            turnSuggest = (int) (TURN_RIGHT_MAX);
+            turnSuggest = TURN_RIGHT_MAX;
         }
 
     }
@@ -840,16 +967,17 @@ public class IRDaemon {
         updateAngles();
         updateDistance();
         updateConfidence();
-
+        fuse();
     }
 
-    private boolean isTooDifferent(double currentValue, double[] recentValues) {
-        double sd = stDev(recentValues);
+    private boolean isTooDifferent(double currentValue, RunningWindow recentValues) {
+        double sd = recentValues.getStDev();
+        double avg = recentValues.getMean();
         if (sd == 0) {
-            sd = average(recentValues) / 4; // in case the arrays have dummy values!
+            sd = avg / 4; // in case the arrays have dummy values!
         }
 
-        if (currentValue > (average(recentValues) + sd * 2) || currentValue < (average(recentValues) - sd * 2)) {
+        if (currentValue > (avg + sd * 2) || currentValue < (avg - sd * 2)) {
             return true;
         } else {
             return false;
@@ -43,6 +43,7 @@ import com.sun.spot.sensorboard.peripheral.Servo;
 import com.sun.spot.service.BootloaderListenerService;
 import com.sun.spot.util.Utils;
 import java.io.IOException;
+import java.io.InputStream;
 import com.sun.squawk.util.MathUtils;
 import javax.microedition.midlet.MIDlet;
 import javax.microedition.midlet.MIDletStateChangeException;
@@ -84,6 +85,8 @@ public class MainCarController extends MIDlet implements ISwitchListener {
     private static final int SPEED_LOW_STEP = 30; //speeding step low
     private static final int HOST_PORT = 99;
     private static final int RECEIVE_PORT = 98;
+    // "true" in the suite manifest runs the controller as FixedIRDaemon (Q16.16 ints) instead of IRDaemon
+    private static final String FIXED_POINT_PROPERTY = "IRDaemon-FixedPoint";
     private static double MAX_TRACKING_ANGLE = 30.0;
     private static double CONFIDENCE_HIGH_CUTOFF = 1.00;
     private static double CONFIDENCE_CUTOFF_STEP = .25;
@@ -125,17 +128,54 @@ public class MainCarController extends MIDlet implements ISwitchListener {
     private static int setTurn = 1500;
     private static int slowSpeed = 1350;
     private final int SAMPLE_COUNT = 1; //used to average reads or skip broadcasting
-    private final int BROADCAST_SKIP = 4;
+    // The control samples telemetry picks are packed into frames that go out at least this often, and at once
+    // on a flag or speed change. The "telemetry" command sets its heartbeat in ms, 0 sends every sample;
+    // "deadband" sets how far, in cm, a reading moves before it is sent.
+    private final int BATCH_MILLIS = 250;
+    private final TelemetryPolicy telemetry = new TelemetryPolicy();
+    private int frameSequence = 0;
+    // Stage times of the control loop go out as a LoopProfile frame every PROFILE_CYCLES samples, about 5 s;
+    // the "profile" command changes the count, 0 stops the frames
+    private static final int PROFILE_CYCLES = 100;
+    private final LoopProfile profile = new LoopProfile(PROFILE_CYCLES);
+    private final byte[] profileBytes = new byte[LoopProfile.LENGTH];
+    private boolean profiling = true;
+    // The driving state machine's transitions go out after the telemetry frame they happened in
+    private final TransitionLog transitions = new TransitionLog();
+    private final byte[] transitionBytes = new byte[TransitionLog.MAX_LENGTH];
     private double[] ultra_samples = new double[SAMPLE_COUNT];
     private double[] LF_samples = new double[SAMPLE_COUNT];
     private double[] RF_samples = new double[SAMPLE_COUNT];
     private double[] LR_samples = new double[SAMPLE_COUNT];
     private double[] RR_samples = new double[SAMPLE_COUNT];
     private int stopCar = 0;
-    private final int BROADCAST_PORT_COUNT = 1;
+    private final int BROADCAST_PORT_COUNT = 1; // must match RECEIVE_PORT_COUNT (ec544.receivePorts) on the host
     RadiogramConnection[] broadcastConnections = new RadiogramConnection[BROADCAST_PORT_COUNT];
     Datagram[] broadcastDatagrams = new Datagram[BROADCAST_PORT_COUNT];
-    IRDaemon IR_DAEMON = new IRDaemon();
+    // Encoding buffer for SmallPointCodec, reused for every broadcast
+    private final byte[] pointBytes = new byte[SmallPointCodec.LENGTH];
+    // Telemetry frame being filled by sampleLoop; sized to the radiogram in initializeConn
+    private byte[] batchBytes;
+    private int batchLength = 0;
+    private double batchBase;
+    private final SmallPoint batchPoint = new SmallPoint();
+    // Full controller state, sent with every control sample while the "diagnostics" command is on
+    private volatile boolean streamDiagnostics = false;
+    private final CarPoint diagnosticPoint = new CarPoint();
+    private final byte[] carPointBytes = new byte[CarPointCodec.LENGTH];
+    // Sample stamps, the control period and IR_DAEMON's timeouts all read this; see Clock
+    private final Clock clock = SystemClock.INSTANCE;
+    IRDaemon IR_DAEMON = new IRDaemon(clock);
+    // Settings commands from the radio thread wait here until sampleLoop applies them between two cycles
+    // (applySettings), so neither IR_DAEMON, the loop profile nor the telemetry policy changes under a running cycle
+    private final Object settingsLock = new Object();
+    private volatile boolean settingsPending = false;
+    private int pendingWindow = 0; // samples, 0 for no change
+    private boolean filterPending = false;
+    private WallFilter pendingFilter; // null turns the filter off
+    private int pendingProfile = -1; // samples per profile frame, 0 for none, -1 for no change
+    private int pendingHeartbeat = -1; // ms, 0 for every sample, -1 for no change
+    private int pendingDeadband = -1; // cm, -1 for no change
     LEDaemon LED_DAEMON = new LEDaemon(myLEDs, REVERSE_LEDS, CONFIDENCE_HIGH_CUTOFF, CONFIDENCE_CUTOFF_STEP, MAX_TRACKING_ANGLE);
 
     //Initialize RadiogramConnections.
@@ -150,6 +190,7 @@ public class MainCarController extends MIDlet implements ISwitchListener {
                 broadcastConnections[i] = (RadiogramConnection) Connector.open("radiogram://broadcast:" + (HOST_PORT + i));
                 broadcastDatagrams[i] = broadcastConnections[i].newDatagram(broadcastConnections[i].getMaximumLength());
             }
+            batchBytes = new byte[broadcastConnections[0].getMaximumLength()];
             System.out.println("Set up xmitConn(s)...");
             System.out.println("Set up dg...");
         } catch (Exception e) {
@@ -201,6 +242,39 @@ public class MainCarController extends MIDlet implements ISwitchListener {
             setSpeed = 1500;
         } else if (command.equals("setDistance")) {
             setDistance = value;
+        } else if (command.equals("diagnostics")) {
+            streamDiagnostics = value != 0;
+        } else if (command.equals("filter")) {
+            WallFilter filter = value != 0 ? new WallFilter() : null;
+            synchronized (settingsLock) {
+                pendingFilter = filter;
+                filterPending = true;
+                settingsPending = true;
+            }
+        } else if (command.equals("window")) {
+            if (value > 0) {
+                synchronized (settingsLock) {
+                    pendingWindow = value;
+                    settingsPending = true;
+                }
+            } else {
+                System.out.println("Smoothing window is " + IR_DAEMON.getWindowLength());
+            }
+        } else if (command.equals("profile")) {
+            synchronized (settingsLock) {
+                pendingProfile = Math.max(0, value);
+                settingsPending = true;
+            }
+        } else if (command.equals("telemetry")) {
+            synchronized (settingsLock) {
+                pendingHeartbeat = Math.max(0, value);
+                settingsPending = true;
+            }
+        } else if (command.equals("deadband")) {
+            synchronized (settingsLock) {
+                pendingDeadband = Math.max(0, value);
+                settingsPending = true;
+            }
         }
         forceDaemon = true;
     }
@@ -267,6 +341,15 @@ public class MainCarController extends MIDlet implements ISwitchListener {
                                 int newValue = Integer.parseInt(rdg.readUTF());
                                 System.out.println("Command value: " + newValue);
                                 processCommand(newCommand, newValue);
+                            } else if (firstLine.equals("commands")) {
+                                // several commands packed by the host's CommandService: count, then command/value pairs
+                                int count = rdg.readUnsignedByte();
+                                for (int i = 0; i < count; i++) {
+                                    String newCommand = rdg.readUTF();
+                                    int newValue = Integer.parseInt(rdg.readUTF());
+                                    System.out.println("Command " + newCommand + ": " + newValue);
+                                    processCommand(newCommand, newValue);
+                                }
                             }
                         } catch (IOException ex) {
                             System.out.println("IOException in recvLoop, reading first line of packet!");
@@ -311,30 +394,12 @@ public class MainCarController extends MIDlet implements ISwitchListener {
         }
     }
 
-    //Write a CarPoint object to a datagram. 
+    //Write a CarPoint object to a datagram, quantized by CarPointCodec.
     private void writeToDatagram(CarPoint cp, Datagram dg) {
         try {
             dg.reset();
-            dg.writeUTF("CarPoint");
-            dg.writeDouble(cp.time);
-            dg.writeFloat(cp.LF);
-            dg.writeFloat(cp.RF);
-            dg.writeFloat(cp.LR);
-            dg.writeFloat(cp.RR);
-            dg.writeFloat(cp.distRight);
-            dg.writeFloat(cp.distLeft);
-            dg.writeFloat(cp.LT);
-            dg.writeFloat(cp.RT);
-            dg.writeFloat(cp.thetaRight);
-            dg.writeFloat(cp.thetaLeft);
-            dg.writeFloat(cp.theta);
-            dg.writeFloat(cp.distance);
-            dg.writeFloat(cp.turn);
-            dg.writeFloat(cp.velocity);
-            dg.writeFloat(cp.targetDist);
-            dg.writeFloat(cp.startTurn);
-            dg.writeFloat(cp.stopTurn);
-            dg.writeFloat(cp.targetTheta);
+            int length = CarPointCodec.encode(cp, carPointBytes, 0);
+            dg.write(carPointBytes, 0, length);
         } catch (IOException ex) {
             System.out.println("IOexception " + ex + "in writeToDatagram.");
         }
@@ -343,15 +408,8 @@ public class MainCarController extends MIDlet implements ISwitchListener {
     private void writeToDatagram(SmallPoint sp, Datagram dg) {
         try {
             dg.reset();
-            dg.writeByte(sp.booleansToUnsignedInt());
-            dg.writeByte(sp.toUnsignedInt(sp.leftFront));
-            dg.writeByte(sp.toUnsignedInt(sp.rightFront));
-            dg.writeByte(sp.toUnsignedInt(sp.leftRear));
-            dg.writeByte(sp.toUnsignedInt(sp.rightRear));
-            dg.writeByte(sp.servoValueToUnsignedInt(sp.setTurn));
-            dg.writeByte(sp.servoValueToUnsignedInt(sp.setSpeed));
-            dg.writeDouble(sp.time);
-
+            int length = SmallPointCodec.encode(sp, pointBytes, 0);
+            dg.write(pointBytes, 0, length);
         } catch (IOException ex) {
             System.out.println("IOexception " + ex + "in writeToDatagram.");
         }
@@ -360,7 +418,6 @@ public class MainCarController extends MIDlet implements ISwitchListener {
     //Write a CarPoint object into a datagram and send it over a connection.
     private void transmitCarPoint(CarPoint cp, RadiogramConnection rc, Datagram dg) {
         try {
-            dg = rc.newDatagram(rc.getMaximumLength());
             writeToDatagram(cp, dg);
 
             //System.out.println("Sending carpoint! Time: " + System.currentTimeMillis());
@@ -371,9 +428,9 @@ public class MainCarController extends MIDlet implements ISwitchListener {
         }
     }
 
+    //dg is the connection's preallocated broadcast datagram, reused for every point
     private void transmitSmallPoint(SmallPoint sp, RadiogramConnection rc, Datagram dg) {
         try {
-            dg = rc.newDatagram(rc.getMaximumLength());
             writeToDatagram(sp, dg);
             //sp.printPoint();
             //System.out.println("Sending carpoint! Time: " + System.currentTimeMillis());
@@ -400,11 +457,13 @@ public class MainCarController extends MIDlet implements ISwitchListener {
                 LR_samples[i] = irLeftRear.getVoltage();
                 RR_samples[i] = irRightRear.getVoltage();
                 ultra_samples[i] = IR_DAEMON.getDistance(front.getVoltage());
+                profile.lap(LoopProfile.SENSORS, clock.currentTimeMillis());
                 try {
-                    Thread.sleep(SAMPLE_TIME);
+                    clock.sleep(SAMPLE_TIME);
                 } catch (InterruptedException ex) {
                     System.out.println("Interrupted exception in sampleSensors()" + ex);
                 }
+                profile.skip(clock.currentTimeMillis());
             }
             double ultra_avg = calcAverage(ultra_samples);
             double LF_avg = calcAverage(LF_samples);
@@ -412,7 +471,9 @@ public class MainCarController extends MIDlet implements ISwitchListener {
             double LR_avg = calcAverage(LR_samples);
             double RR_avg = calcAverage(RR_samples);
             IR_DAEMON.updateReads(LF_avg, RF_avg, LR_avg, RR_avg);
+            profile.lap(LoopProfile.FILTER, clock.currentTimeMillis());
             LED_DAEMON.changeColors(IR_DAEMON.thetaRight, IR_DAEMON.thetaLeft, IR_DAEMON.confidenceRF, IR_DAEMON.confidenceLF, IR_DAEMON.confidenceRR, IR_DAEMON.confidenceLR);
+            profile.lap(LoopProfile.LEDS, clock.currentTimeMillis());
 
             if (ultra_avg <= 70 && !isColliding) {
                 isColliding = true;
@@ -459,13 +520,13 @@ public class MainCarController extends MIDlet implements ISwitchListener {
         while (stopCar != 1) { // Runs this loop until the program ends, currently mapped to sw2
 
             sampleSensors();
-            String command = IR_DAEMON.pickDirection(); // You MUST call pickDirection(); or IR_DAEMON will give you the wrong response for turnSuggest!
+            int decision = IR_DAEMON.decide(); // You MUST call decide() or IR_DAEMON will give you the wrong response for turnSuggest!
             if (!lockTurn) {
                 setTurn = IR_DAEMON.turnSuggest;
             }
 
             //If the IR_DAEMON can't tell you where to go, you should slow down...
-            if (command.equals("unknown")) {
+            if (decision == DriveState.UNKNOWN) {
                 driveSlow();
             } else {
                 drive();
@@ -474,7 +535,7 @@ public class MainCarController extends MIDlet implements ISwitchListener {
 
             //Used for transmitting to different ports, and skipping transmission of datapoints
             if (skipCounter == skipCount) {
-                SmallPoint sp = IR_DAEMON.getSmallPoint(setTurn, setSpeed, System.currentTimeMillis());
+                SmallPoint sp = IR_DAEMON.getSmallPoint(setTurn, setSpeed, clock.currentTimeMillis());
                 transmitSmallPoint(sp, broadcastConnections[broadcastCounter], broadcastDatagrams[broadcastCounter]);
                 if (broadcastCounter < BROADCAST_PORT_COUNT - 1) {
                     broadcastCounter++;
@@ -486,7 +547,10 @@ public class MainCarController extends MIDlet implements ISwitchListener {
                 skipCounter++;
             }
 
-            Utils.sleep(SAMPLE_TIME);
+            try {
+                clock.sleep(SAMPLE_TIME);
+            } catch (InterruptedException ex) {
+            }
             if (stopCar == 1) {
                 speedServo.setValue(1500);
             }
@@ -494,37 +558,187 @@ public class MainCarController extends MIDlet implements ISwitchListener {
     }
 
     private void sampleLoop() {
+        int broadcastCounter = 0; // round-robins telemetry over the BROADCAST_PORT_COUNT ports
         while (stopCar != 1) { // Runs this loop until the program ends, currently mapped to sw2
-            for (int i = 0; i < BROADCAST_SKIP; i++) {
-                sampleSensors(); // takes IR readings and updates IR_DAEMON\
-                IR_DAEMON.updateState(isColliding, takeNextLeft, takeNextRight, setSpeed);
-                forceDaemon = false;
-                String command = IR_DAEMON.pickDirection(); // You MUST call pickDirection() or IR_DAEMON will give you the wrong response for turnSuggest!
-                takeSuggestions();
-                if (takeNextLeft) {
-                    System.out.println("Taking next left!");
-                }
-                if (takeNextRight) {
-                    System.out.println("Taking next right!");
-                }
+            if (settingsPending) {
+                applySettings();
+            }
+            profile.start(clock.currentTimeMillis());
+            sampleSensors(); // takes IR readings and updates IR_DAEMON\
+            IR_DAEMON.updateState(isColliding, takeNextLeft, takeNextRight, setSpeed, setTurn);
+            forceDaemon = false;
+            int decision = IR_DAEMON.decide(); // You MUST call decide() or IR_DAEMON will give you the wrong response for turnSuggest!
+            takeSuggestions();
+            if (takeNextLeft) {
+                System.out.println("Taking next left!");
+            }
+            if (takeNextRight) {
+                System.out.println("Taking next right!");
+            }
+            profile.lap(LoopProfile.DECISION, clock.currentTimeMillis());
 
-                //If the IR_DAEMON can't tell you where to go, you should slow down...
-                if (command.equals("unknown") && setSpeed != 1500) {
-                    driveSlow();
-                } else {
-                    drive();
-                }
+            //If the IR_DAEMON can't tell you where to go, you should slow down...
+            if (decision == DriveState.UNKNOWN && setSpeed != 1500) {
+                driveSlow();
+            } else {
+                drive();
+            }
 
-                if (stopCar == 1) {
-                    speedServo.setValue(1500);
-                }
+            if (stopCar == 1) {
+                speedServo.setValue(1500);
+            }
 
-                turnHard();
+            turnHard();
+            profile.lap(LoopProfile.ACTUATION, clock.currentTimeMillis());
+
+            //The samples telemetry picks go into the frame, which is sent when full, BATCH_MILLIS old or on SEND_NOW
+            IR_DAEMON.fillSmallPoint(batchPoint, setTurn, setSpeed, clock.currentTimeMillis());
+            int send = telemetry.offer(batchPoint);
+            if (send != TelemetryPolicy.SKIP && !addToBatch(batchPoint)) {
+                sendBatch(broadcastConnections[broadcastCounter], broadcastDatagrams[broadcastCounter]);
+                broadcastCounter = (broadcastCounter + 1) % BROADCAST_PORT_COUNT;
+                addToBatch(batchPoint);
+            }
+            if (batchLength > 0 && (send == TelemetryPolicy.SEND_NOW || batchPoint.time - batchBase >= BATCH_MILLIS)) {
+                sendBatch(broadcastConnections[broadcastCounter], broadcastDatagrams[broadcastCounter]);
+                broadcastCounter = (broadcastCounter + 1) % BROADCAST_PORT_COUNT;
             }
-            SmallPoint sp = IR_DAEMON.getSmallPoint(setTurn, setSpeed, System.currentTimeMillis());
-            transmitSmallPoint(sp, broadcastConnections[0], broadcastDatagrams[0]);
+            if (batchLength == 0 && transitions.size() > 0) {
+                sendTransitions(broadcastConnections[broadcastCounter], broadcastDatagrams[broadcastCounter]);
+            }
+            if (streamDiagnostics) {
+                IR_DAEMON.fillCarpoint(diagnosticPoint, setTurn, setSpeed, false, false, batchPoint.time);
+                transmitCarPoint(diagnosticPoint, broadcastConnections[broadcastCounter], broadcastDatagrams[broadcastCounter]);
+            }
+            long now = clock.currentTimeMillis();
+            profile.lap(LoopProfile.TELEMETRY, now);
+            if (profile.endCycle(now) && profiling) {
+                sendProfile(broadcastConnections[broadcastCounter], broadcastDatagrams[broadcastCounter]);
+            }
+        }
+    }
 
+    //Runs on the control thread between cycles: applies the settings processCommand queued
+    private void applySettings() {
+        int window;
+        boolean swapFilter;
+        WallFilter filter;
+        int profileCycles;
+        int heartbeat;
+        int deadband;
+        synchronized (settingsLock) {
+            window = pendingWindow;
+            pendingWindow = 0;
+            swapFilter = filterPending;
+            filter = pendingFilter;
+            filterPending = false;
+            pendingFilter = null;
+            profileCycles = pendingProfile;
+            pendingProfile = -1;
+            heartbeat = pendingHeartbeat;
+            pendingHeartbeat = -1;
+            deadband = pendingDeadband;
+            pendingDeadband = -1;
+            settingsPending = false;
+        }
+        if (window > 0) {
+            IR_DAEMON.setWindowLength(window);
+            System.out.println("Smoothing window set to " + IR_DAEMON.getWindowLength());
+        }
+        if (swapFilter) {
+            IR_DAEMON.setWallFilter(filter);
+            System.out.println("Wall filter " + (IR_DAEMON.getWallFilter() != null ? "on" : "off"));
+        }
+        if (profileCycles >= 0) {
+            profiling = profileCycles > 0;
+            if (profiling) {
+                profile.setCapacity(profileCycles);
+            }
+            profile.clear();
+            System.out.println("Loop profile " + (profiling ? "every " + profile.getCapacity() + " samples" : "off"));
+        }
+        if (heartbeat >= 0) {
+            telemetry.setHeartbeat(heartbeat);
+            telemetry.reset();
+            System.out.println("Telemetry " + (heartbeat > 0 ? "on change, heartbeat " + heartbeat + " ms" : "every sample"));
+        }
+        if (deadband >= 0) {
+            telemetry.setDeadband(deadband);
+            System.out.println("Telemetry deadband " + telemetry.getDeadband() + " cm + "
+                    + telemetry.getDeadbandPercent() + "%");
+        }
+    }
+
+    private void sendProfile(RadiogramConnection rc, Datagram dg) {
+        try {
+            dg.reset();
+            dg.write(profileBytes, 0, profile.encode(profileBytes, 0));
+            rc.send(dg);
+        } catch (IOException ex) {
+            System.out.println(ex);
+            System.out.println("IO exception sending loop profile");
+        }
+    }
+
+    private void sendTransitions(RadiogramConnection rc, Datagram dg) {
+        try {
+            dg.reset();
+            dg.write(transitionBytes, 0, transitions.encode(transitionBytes, 0));
+            rc.send(dg);
+        } catch (IOException ex) {
+            System.out.println(ex);
+            System.out.println("IO exception sending state transitions");
+        }
+    }
 
+    //Adds sp to the pending telemetry frame, starting one if needed. Returns false if the frame is full.
+    private boolean addToBatch(SmallPoint sp) {
+        if (batchLength == 0) {
+            batchBase = sp.time;
+            batchLength = SmallPointCodec.startSparseBatch(batchBytes, batchBase, frameSequence);
+        }
+        int length = SmallPointCodec.addToBatch(batchBytes, batchLength, batchBytes.length, batchBase, sp);
+        if (length < 0) {
+            return false;
+        }
+        batchLength = length;
+        return true;
+    }
+
+    private void sendBatch(RadiogramConnection rc, Datagram dg) {
+        if (batchLength == 0) {
+            return;
+        }
+        try {
+            dg.reset();
+            dg.write(batchBytes, 0, batchLength);
+            rc.send(dg);
+        } catch (IOException ex) {
+            System.out.println(ex);
+            System.out.println("IO exception sending telemetry frame");
+        }
+        batchLength = 0;
+        frameSequence = (frameSequence + 1) & 0xFF;
+    }
+
+    //Uses the measured IR calibration in the suite, if there is one, instead of the built-in curve
+    private void loadCalibration() {
+        InputStream in = getClass().getResourceAsStream(DistanceTable.CALIBRATION_RESOURCE);
+        if (in == null) {
+            return;
+        }
+        try {
+            IRDaemon.setDistanceTable(DistanceTable.fromCalibration(in));
+            System.out.println("Loaded IR calibration " + DistanceTable.CALIBRATION_RESOURCE);
+        } catch (IOException ex) {
+            System.out.println("IOException " + ex + " reading IR calibration, using the built-in curve");
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Bad IR calibration (" + ex.getMessage() + "), using the built-in curve");
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ex) {
+            }
         }
     }
 
@@ -534,6 +748,12 @@ public class MainCarController extends MIDlet implements ISwitchListener {
     protected void startApp() throws MIDletStateChangeException {
         BootloaderListenerService.getInstance().start();
         initializeConn();
+        loadCalibration();
+        if ("true".equals(getAppProperty(FIXED_POINT_PROPERTY))) {
+            IR_DAEMON = new FixedIRDaemon(clock); // after loadCalibration, it samples the distance table
+            System.out.println("Using the fixed-point IRDaemon");
+        }
+        IR_DAEMON.setTransitionLog(transitions);
         System.out.println("Hello, world");
         sw1.addISwitchListener(this);
         sw2.addISwitchListener(this);
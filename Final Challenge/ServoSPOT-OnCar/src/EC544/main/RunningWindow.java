@@ -0,0 +1,131 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * The last capacity samples of a reading, kept in a circular buffer with
+ * their mean and variance updated as samples come and go (Welford's method),
+ * so add() costs the same however long the window is. IRDaemon smooths its
+ * theta, hallway, distance and target readings through these.
+ *
+ * Until the window is full every sample is kept; after that each add
+ * replaces the oldest. Rounding error in the running sums is cleared by
+ * recomputing them from the samples every RESYNC_INTERVAL adds.
+ * The car and the host carry identical copies.
+ */
+public class RunningWindow {
+
+    private static final int RESYNC_INTERVAL = 1024;
+    private double[] samples;
+    private int next; // slot the next sample goes in, the oldest once full
+    private int count;
+    private double offset; // added to every stored sample, see shift()
+    private double mean; // of the stored samples, without offset
+    private double squares; // sum of squared differences from mean
+    private int sinceResync;
+
+    public RunningWindow(int capacity) {
+        samples = new double[Math.max(1, capacity)];
+    }
+
+    public void add(double value) {
+        double x = value - offset;
+        if (count < samples.length) {
+            count++;
+            double delta = x - mean;
+            mean += delta / count;
+            squares += delta * (x - mean);
+        } else {
+            double old = samples[next];
+            double oldMean = mean;
+            mean += (x - old) / count;
+            squares += (x - old) * (x - mean + old - oldMean);
+            if (squares < 0) {
+                squares = 0;
+            }
+        }
+        samples[next] = x;
+        next++;
+        if (next == samples.length) {
+            next = 0;
+        }
+        sinceResync++;
+        if (sinceResync >= RESYNC_INTERVAL) {
+            resync();
+        }
+    }
+
+    //Recomputes the sums from the samples and folds offset into them
+    private void resync() {
+        sinceResync = 0;
+        double sum = 0.0;
+        for (int i = 0; i < count; i++) {
+            samples[i] += offset;
+            sum += samples[i];
+        }
+        offset = 0.0;
+        mean = count == 0 ? 0.0 : sum / count;
+        squares = 0.0;
+        for (int i = 0; i < count; i++) {
+            double diff = samples[i] - mean;
+            squares += diff * diff;
+        }
+    }
+
+    //Adds delta to every sample in the window, in O(1); the variance is unchanged
+    public void shift(double delta) {
+        offset += delta;
+    }
+
+    //Mean of the samples in the window, 0 if it is empty
+    public double getMean() {
+        return count == 0 ? 0.0 : mean + offset;
+    }
+
+    //Population variance of the samples in the window, as stDev computes it
+    public double getVariance() {
+        return count == 0 ? 0.0 : squares / count;
+    }
+
+    public double getStDev() {
+        return Math.sqrt(getVariance());
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int capacity() {
+        return samples.length;
+    }
+
+    public void clear() {
+        count = 0;
+        next = 0;
+        offset = 0.0;
+        mean = 0.0;
+        squares = 0.0;
+        sinceResync = 0;
+    }
+
+    //Changes the window length, keeping the newest samples that still fit. O(capacity), not for every cycle.
+    public void resize(int capacity) {
+        capacity = Math.max(1, capacity);
+        int keep = Math.min(count, capacity);
+        double[] resized = new double[capacity];
+        for (int i = 0; i < keep; i++) {
+            // newest last, the order add() would have written them in
+            int slot = next - keep + i;
+            if (slot < 0) {
+                slot += samples.length;
+            }
+            resized[i] = samples[slot];
+        }
+        samples = resized;
+        count = keep;
+        next = keep == capacity ? 0 : keep;
+        resync();
+    }
+}
@@ -9,10 +9,8 @@ package EC544.main;
  */
 public class SmallPoint {
 
-    /* To transmit SmallPoints as Datagrams, send booleansToUnsignedInt() first.
-     * then send leftFront, rightFront, leftRear, rightRear as unsigned ints
-     * using toUnsignedInt(). Next, send setTurn and setSpeed using servoValueToUnsignedInt().
-     * Last, send the timestamp as a double.
+    /* To transmit SmallPoints as Datagrams, use SmallPointCodec.encode; it
+     * also decodes them and defines the CSV "booleans" column.
      */
     //RF - LR are sensor readings IN CENTIMETERS
     static int SMALLPOINT_INT_BYTES = 6;
@@ -33,6 +31,10 @@ public class SmallPoint {
     public boolean bool5 = false;
     //timestamp, must be a double. :(
 
+    //Empty point, filled in place by IRDaemon.fillSmallPoint
+    public SmallPoint() {
+    }
+
     public SmallPoint(double LF, double RF, double LR, double RR, int turn, int speed) {
         leftFront = readToInt(LF);
         rightFront = readToInt(RF);
@@ -53,64 +55,53 @@ public class SmallPoint {
         setSpeed = speed;
     }
 
+    //True if unsigned is the first byte of a SmallPoint packet
     public static boolean checkBooleans(int unsigned) {
-        if ((unsigned / 128) > 0) {
-            if ((unsigned - 128 / 64) > 0) {
-                return true;
-            } else {
-                return false;
-            }
-        } else {
-            return false;
-        }
+        return SmallPointCodec.isSmallPoint(unsigned);
     }
 
-    public void setBooleans(int bools) {
-      int unsignedBooleans = bools - 128;
-        if (unsignedBooleans / 32 > 0) {
-            unsignedBooleans -= 32;
-            isColliding = false;
-        }
-        else {
-          isColliding = true;
-        }
-        
-        if (unsignedBooleans / 16 > 0) {
-            unsignedBooleans -= 16;
-           takeNextLeft = false;
-        }
-        else{
-          takeNextLeft = true;
-        }
-        if (unsignedBooleans / 8 > 0) {
-            unsignedBooleans -= 8;
-            takeNextRight = false;
-        }
-        else {
-          takeNextRight = true;
-        }
-        
-        if (unsignedBooleans / 4 > 0) {
-            unsignedBooleans -= 4;
-            corneringLeft = false;
-        }
-        else{
-          corneringLeft = true;
-        }
-        
-        if (unsignedBooleans / 2 > 0) {
-            unsignedBooleans -= 2;
-            corneringRight = false;
-        }
-        else{
-          corneringRight = true;
-        }
-        if (unsignedBooleans / 1 > 0) {
-            unsignedBooleans -= 1;            
-            bool5 = false;
+    //Sets the booleans from a CSV "booleans" column, see SmallPointCodec.setBooleansColumn
+    public void setBooleans(int booleans) {
+        SmallPointCodec.setBooleansColumn(this, booleans);
+    }
+
+    //The booleans by SmallPointCodec flag index
+    public boolean getFlag(int index) {
+        switch (index) {
+            case 0:
+                return isColliding;
+            case 1:
+                return takeNextLeft;
+            case 2:
+                return takeNextRight;
+            case 3:
+                return corneringLeft;
+            case 4:
+                return corneringRight;
+            default:
+                return bool5;
         }
-        else {
-          bool5 = true;
+    }
+
+    public void setFlag(int index, boolean value) {
+        switch (index) {
+            case 0:
+                isColliding = value;
+                break;
+            case 1:
+                takeNextLeft = value;
+                break;
+            case 2:
+                takeNextRight = value;
+                break;
+            case 3:
+                corneringLeft = value;
+                break;
+            case 4:
+                corneringRight = value;
+                break;
+            default:
+                bool5 = value;
         }
     }
     
@@ -119,20 +110,16 @@ public class SmallPoint {
     }
 
     public boolean isASmallPoint() { //checks to see if first two bits are '11'
-        int unsigned = convertUnsignedInt(booleansToUnsignedInt());
+        int unsigned = SmallPointCodec.booleansColumn(this);
         return checkBooleans(unsigned);
     }
     
+    //Undoes toUnsignedInt: a byte written as -64 reads back as 192
     public static int convertUnsignedInt(int unsigned){
-        int out;
         if (unsigned < 0){
-            out =  127 - unsigned;
+            return unsigned + 256;
         }
-        else {
-            out = unsigned;
-        }
-        //System.out.println("Converted unsigned ("+unsigned+"to signed ("+out+").");
-        return out;
+        return unsigned;
     }
 
     public static int servoValueToUnsignedInt(int setTurn) {
@@ -141,28 +128,9 @@ public class SmallPoint {
         return out;
     }
 
+    //The flags byte of a legacy SmallPoint packet, as a signed byte value
     public int booleansToUnsignedInt() {
-        int out = 0 + 128 + 64; // two bits of byte will be 1 and 1, for datagram recognition
-        if (isColliding == true) {
-            out += 1;
-        }
-        if (takeNextLeft == true) {
-            out += 2;
-        }
-
-        if (takeNextRight == true) {
-            out += 4;
-        }
-        if (corneringLeft == true) {
-            out += 8;
-        }
-        if (corneringRight == true) {
-            out += 16;
-        }
-        if (bool5 == true) {
-            out += 32;
-        }
-        return toUnsignedInt(out);
+        return toUnsignedInt(SmallPointCodec.booleansColumn(this));
     }
 
     public static int readToInt(double read) {
@@ -191,11 +159,11 @@ public class SmallPoint {
     }
 
     public String toString() {
-        String outputLine = time + "," + leftFront + "," + rightFront + "," + leftRear + "," + rightRear + "," + setTurn + "," + setSpeed + "," + convertUnsignedInt(booleansToUnsignedInt());
+        String outputLine = time + "," + leftFront + "," + rightFront + "," + leftRear + "," + rightRear + "," + setTurn + "," + setSpeed + "," + SmallPointCodec.booleansColumn(this);
         return outputLine;
     }
 
     public void printPoint() {
-        System.out.println("Time: " + time + ", RF: " + rightFront + ", LF:" + leftFront + ", RR: " + rightRear + ", LR: " + leftRear + ", setTurn: " + setTurn + ", setSpeed: " + setSpeed + ", Booleans: " + convertUnsignedInt(booleansToUnsignedInt()));
+        System.out.println("Time: " + time + ", RF: " + rightFront + ", LF:" + leftFront + ", RR: " + rightRear + ", LR: " + leftRear + ", setTurn: " + setTurn + ", setSpeed: " + setSpeed + ", Booleans: " + SmallPointCodec.booleansColumn(this));
     }
 }
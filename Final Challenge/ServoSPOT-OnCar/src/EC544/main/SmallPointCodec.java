@@ -0,0 +1,264 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The one place SmallPoint is turned into bytes and back. The host
+ * (CarDataReceiver) and csv_watcher5 carry a copy with the same layout; the
+ * host's also reads and writes ByteBuffers, which Squawk does not have.
+ *
+ * <pre>
+ * version 2, 16 bytes:
+ *   0  TAG_V2 (0xA2)
+ *   1  flags, one bit per SmallPoint boolean (FLAG_BITS)
+ *   2  LF, RF, LR, RR in cm (one unsigned byte each, clamped to 0..255)
+ *   6  setTurn / 10, setSpeed / 10 (one unsigned byte each)
+ *   8  time, ms since epoch (double)
+ *
+ * legacy (version 1), 15 bytes, still accepted from older cars:
+ *   0  0xC0 | flags
+ *   1  LF, RF, LR, RR, setTurn / 10, setSpeed / 10 as above
+ *   7  time (double)
+ *
+ * batch, 10 + 9n bytes, every control sample the car took since the last frame:
+ *   0  TAG_BATCH (0xA3)
+ *   1  n, samples in the frame (unsigned byte)
+ *   2  base time, ms since epoch (double)
+ *   10 n samples of: flags, LF, RF, LR, RR, setTurn / 10, setSpeed / 10
+ *      (one byte each as above), ms after base time (unsigned short)
+ *
+ * sparse batch, 11 + 9n bytes, only the samples the car chose to send
+ * (TelemetryPolicy), so gaps between them are not losses:
+ *   0  TAG_SPARSE (0xA7)
+ *   1  n, samples in the frame (unsigned byte)
+ *   2  frame sequence number, counting up from 0 and wrapping at 255
+ *   3  base time (double)
+ *   11 n samples as in a batch
+ * </pre>
+ *
+ * The tag is below 0xC0 so a version 2 packet can never be taken for a
+ * legacy one. Flags use the bits the car has always sent (isColliding in
+ * bit 0); the old host decoder read them in reverse.
+ *
+ * The CSV and TelemetryLog "booleans" column is 0xC0 | flags. Columns written
+ * before this codec hold 191 - flags and are still read correctly.
+ *
+ * Nothing here allocates, so encoding every broadcast creates no garbage.
+ */
+public final class SmallPointCodec {
+
+    public static final int TAG_V2 = 0xA2;
+    public static final int LEGACY_MARK = 0xC0;
+    public static final int LENGTH = 16;
+    public static final int LEGACY_LENGTH = 15;
+    public static final int TAG_BATCH = 0xA3;
+    public static final int BATCH_HEADER = 10;
+    public static final int BATCH_SAMPLE = 9;
+    public static final int TAG_SPARSE = 0xA7;
+    public static final int SPARSE_HEADER = 11;
+    private static final int MAX_BATCH_COUNT = 255;
+    private static final int MAX_BATCH_DELTA = 0xFFFF;
+    // Bit for each SmallPoint boolean, indexed as in SmallPoint.getFlag
+    private static final int[] FLAG_BITS = {0x01, 0x02, 0x04, 0x08, 0x10, 0x20};
+    public static final int FLAG_COUNT = FLAG_BITS.length;
+    private static final int FLAG_MASK = 0x3F;
+
+    private SmallPointCodec() {
+    }
+
+    public static int flags(SmallPoint sp) {
+        int flags = 0;
+        for (int i = 0; i < FLAG_COUNT; i++) {
+            if (sp.getFlag(i)) {
+                flags |= FLAG_BITS[i];
+            }
+        }
+        return flags;
+    }
+
+    public static void setFlags(SmallPoint sp, int flags) {
+        for (int i = 0; i < FLAG_COUNT; i++) {
+            sp.setFlag(i, (flags & FLAG_BITS[i]) != 0);
+        }
+    }
+
+    //True if firstByte starts a SmallPoint packet of any version, or a batch of them
+    public static boolean isSmallPoint(int firstByte) {
+        firstByte &= 0xFF;
+        return firstByte == TAG_V2 || firstByte == TAG_BATCH || firstByte == TAG_SPARSE
+                || (firstByte & LEGACY_MARK) == LEGACY_MARK;
+    }
+
+    //Value of the "booleans" column in CSV files and TelemetryLog records
+    public static int booleansColumn(SmallPoint sp) {
+        return LEGACY_MARK | flags(sp);
+    }
+
+    public static void setBooleansColumn(SmallPoint sp, int column) {
+        if (column >= LEGACY_MARK) {
+            setFlags(sp, column & FLAG_MASK);
+        } else if (column >= 128) {
+            // written through the old convertUnsignedInt, which mapped 0xC0 | flags to 191 - flags
+            setFlags(sp, (191 - column) & FLAG_MASK);
+        } else {
+            setFlags(sp, column & FLAG_MASK);
+        }
+    }
+
+    private static int toByte(int value) {
+        if (value > 255) {
+            return 255;
+        } else if (value < 0) {
+            return 0;
+        }
+        return value;
+    }
+
+    //Writes sp at buf[offset]; returns the number of bytes written (LENGTH)
+    public static int encode(SmallPoint sp, byte[] buf, int offset) {
+        buf[offset] = (byte) TAG_V2;
+        buf[offset + 1] = (byte) flags(sp);
+        buf[offset + 2] = (byte) toByte(sp.leftFront);
+        buf[offset + 3] = (byte) toByte(sp.rightFront);
+        buf[offset + 4] = (byte) toByte(sp.leftRear);
+        buf[offset + 5] = (byte) toByte(sp.rightRear);
+        buf[offset + 6] = (byte) toByte(sp.setTurn / 10);
+        buf[offset + 7] = (byte) toByte(sp.setSpeed / 10);
+        putDouble(buf, offset + 8, sp.time);
+        return LENGTH;
+    }
+
+    private static void putDouble(byte[] buf, int offset, double value) {
+        long bits = Double.doubleToLongBits(value);
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + i] = (byte) bits;
+            bits >>>= 8;
+        }
+    }
+
+    //Starts an empty batch frame in buf for points from baseTime on; returns its length
+    public static int startBatch(byte[] buf, double baseTime) {
+        buf[0] = (byte) TAG_BATCH;
+        buf[1] = 0;
+        putDouble(buf, 2, baseTime);
+        return BATCH_HEADER;
+    }
+
+    //Starts an empty sparse batch frame in buf, the sequence-th sent; returns its length
+    public static int startSparseBatch(byte[] buf, double baseTime, int sequence) {
+        buf[0] = (byte) TAG_SPARSE;
+        buf[1] = 0;
+        buf[2] = (byte) sequence;
+        putDouble(buf, 3, baseTime);
+        return SPARSE_HEADER;
+    }
+
+    /**
+     * Appends sp to the batch or sparse batch frame of the given length in buf. Returns the
+     * new length, or -1 if the frame would grow past max or sp is not within
+     * 65535 ms after baseTime; the frame should be sent and a new one started.
+     */
+    public static int addToBatch(byte[] buf, int length, int max, double baseTime, SmallPoint sp) {
+        int count = buf[1] & 0xFF;
+        long delta = (long) (sp.time - baseTime);
+        if (length + BATCH_SAMPLE > max || count == MAX_BATCH_COUNT || delta < 0 || delta > MAX_BATCH_DELTA) {
+            return -1;
+        }
+        buf[length] = (byte) flags(sp);
+        buf[length + 1] = (byte) toByte(sp.leftFront);
+        buf[length + 2] = (byte) toByte(sp.rightFront);
+        buf[length + 3] = (byte) toByte(sp.leftRear);
+        buf[length + 4] = (byte) toByte(sp.rightRear);
+        buf[length + 5] = (byte) toByte(sp.setTurn / 10);
+        buf[length + 6] = (byte) toByte(sp.setSpeed / 10);
+        buf[length + 7] = (byte) (delta >> 8);
+        buf[length + 8] = (byte) delta;
+        buf[1] = (byte) (count + 1);
+        return length + BATCH_SAMPLE;
+    }
+
+    //Reads the next sample of a batch frame whose header (up to and including the base time) has already been read from in
+    public static void decodeBatchSample(DataInput in, double baseTime, SmallPoint sp) throws IOException {
+        setFlags(sp, in.readUnsignedByte());
+        sp.leftFront = in.readUnsignedByte();
+        sp.rightFront = in.readUnsignedByte();
+        sp.leftRear = in.readUnsignedByte();
+        sp.rightRear = in.readUnsignedByte();
+        sp.setTurn = in.readUnsignedByte() * 10;
+        sp.setSpeed = in.readUnsignedByte() * 10;
+        sp.time = baseTime + in.readUnsignedShort();
+    }
+
+    //Same bytes as encode(sp, buf, offset), straight into a Datagram
+    public static void encode(SmallPoint sp, DataOutput out) throws IOException {
+        out.writeByte(TAG_V2);
+        out.writeByte(flags(sp));
+        out.writeByte(toByte(sp.leftFront));
+        out.writeByte(toByte(sp.rightFront));
+        out.writeByte(toByte(sp.leftRear));
+        out.writeByte(toByte(sp.rightRear));
+        out.writeByte(toByte(sp.setTurn / 10));
+        out.writeByte(toByte(sp.setSpeed / 10));
+        out.writeDouble(sp.time);
+    }
+
+    //Fills sp from length bytes at buf[offset]. Returns false if they are not a SmallPoint.
+    public static boolean decode(byte[] buf, int offset, int length, SmallPoint sp) {
+        if (length < 1) {
+            return false;
+        }
+        int first = buf[offset] & 0xFF;
+        int body;
+        if (first == TAG_V2 && length >= LENGTH) {
+            setFlags(sp, buf[offset + 1]);
+            body = offset + 2;
+        } else if ((first & LEGACY_MARK) == LEGACY_MARK && length >= LEGACY_LENGTH) {
+            setFlags(sp, first & FLAG_MASK);
+            body = offset + 1;
+        } else {
+            return false;
+        }
+        sp.leftFront = buf[body] & 0xFF;
+        sp.rightFront = buf[body + 1] & 0xFF;
+        sp.leftRear = buf[body + 2] & 0xFF;
+        sp.rightRear = buf[body + 3] & 0xFF;
+        sp.setTurn = (buf[body + 4] & 0xFF) * 10;
+        sp.setSpeed = (buf[body + 5] & 0xFF) * 10;
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (buf[body + 6 + i] & 0xFF);
+        }
+        sp.time = Double.longBitsToDouble(bits);
+        return true;
+    }
+
+    /**
+     * Reads the rest of a point whose first byte has already been read from
+     * in, as the receive loop does to tell packet types apart. Returns false
+     * if first does not start a SmallPoint; nothing more is read then.
+     */
+    public static boolean decode(int first, DataInput in, SmallPoint sp) throws IOException {
+        first &= 0xFF;
+        if (first == TAG_V2) {
+            setFlags(sp, in.readUnsignedByte());
+        } else if ((first & LEGACY_MARK) == LEGACY_MARK) {
+            setFlags(sp, first & FLAG_MASK);
+        } else {
+            return false;
+        }
+        sp.leftFront = in.readUnsignedByte();
+        sp.rightFront = in.readUnsignedByte();
+        sp.leftRear = in.readUnsignedByte();
+        sp.rightRear = in.readUnsignedByte();
+        sp.setTurn = in.readUnsignedByte() * 10;
+        sp.setSpeed = in.readUnsignedByte() * 10;
+        sp.time = in.readDouble();
+        return true;
+    }
+}
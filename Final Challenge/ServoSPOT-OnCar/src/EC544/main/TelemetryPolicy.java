@@ -0,0 +1,121 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * Decides which control samples MainCarController sends. A sample is sent if
+ * it differs from the last one sent: another flag (collision, a turn command,
+ * cornering), another setTurn or setSpeed at the 10 unit step the frames
+ * carry, or an IR reading further from the last one sent than deadband cm
+ * plus deadbandPercent of that reading; the sensors get noisier with
+ * distance, a few cm at 30 cm and tens of cm near their 150 cm limit, on
+ * the recorded runs with the car stopped. Otherwise a sample is sent
+ * only when heartbeat ms have passed since the last one, so an idle car sends
+ * a few samples a second and a car in a corner sends them all.
+ *
+ * A flag or speed change should reach the host now rather than with the next
+ * frame (SEND_NOW); a turn or reading change goes into the frame being filled
+ * (SEND). Steering moves by a step or more on most samples while the car
+ * follows a wall, so a turn change does not flush the frame.
+ *
+ * Compares with the last sample sent, not the last one taken, so slow drift
+ * is sent once it adds up to the deadband. Allocates nothing.
+ */
+public class TelemetryPolicy {
+
+    public static final int SKIP = 0;
+    public static final int SEND = 1;
+    public static final int SEND_NOW = 2;
+    public static final int DEFAULT_DEADBAND = 3; // cm
+    public static final int DEFAULT_DEADBAND_PERCENT = 10;
+    public static final int DEFAULT_HEARTBEAT = 500; // ms; under the host's 1 s gap warning (ec544.gapMillis)
+    private int deadband = DEFAULT_DEADBAND;
+    private int deadbandPercent = DEFAULT_DEADBAND_PERCENT;
+    private int heartbeat = DEFAULT_HEARTBEAT;
+    // The last sample sent
+    private boolean sentAny = false;
+    private int flags;
+    private int leftFront;
+    private int rightFront;
+    private int leftRear;
+    private int rightRear;
+    private int turnStep;
+    private int speedStep;
+    private double time;
+    private long offered;
+    private long sent;
+
+    //heartbeat 0 sends every sample
+    public void setHeartbeat(int millis) {
+        heartbeat = Math.max(0, millis);
+    }
+
+    public int getHeartbeat() {
+        return heartbeat;
+    }
+
+    public void setDeadband(int cm) {
+        deadband = Math.max(0, cm);
+    }
+
+    public int getDeadband() {
+        return deadband;
+    }
+
+    public void setDeadbandPercent(int percent) {
+        deadbandPercent = Math.max(0, percent);
+    }
+
+    public int getDeadbandPercent() {
+        return deadbandPercent;
+    }
+
+    //Sends the next sample whatever it holds, e.g. after the frames were stopped for a while
+    public void reset() {
+        sentAny = false;
+    }
+
+    /**
+     * SKIP, SEND or SEND_NOW for sp, the sample just taken. Anything but SKIP
+     * makes sp the sample the next ones are compared with.
+     */
+    public int offer(SmallPoint sp) {
+        offered++;
+        int spFlags = SmallPointCodec.flags(sp);
+        int decision;
+        if (!sentAny || spFlags != flags || sp.setSpeed / 10 != speedStep) {
+            decision = SEND_NOW;
+        } else if (heartbeat == 0 || sp.setTurn / 10 != turnStep || moved(sp.leftFront, leftFront)
+                || moved(sp.rightFront, rightFront) || moved(sp.leftRear, leftRear) || moved(sp.rightRear, rightRear)
+                || sp.time - time >= heartbeat) {
+            decision = SEND;
+        } else {
+            return SKIP;
+        }
+        sentAny = true;
+        flags = spFlags;
+        leftFront = sp.leftFront;
+        rightFront = sp.rightFront;
+        leftRear = sp.leftRear;
+        rightRear = sp.rightRear;
+        turnStep = sp.setTurn / 10;
+        speedStep = sp.setSpeed / 10;
+        time = sp.time;
+        sent++;
+        return decision;
+    }
+
+    private boolean moved(int read, int last) {
+        return Math.abs(read - last) > deadband + last * deadbandPercent / 100;
+    }
+
+    public long getOffered() {
+        return offered;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+}
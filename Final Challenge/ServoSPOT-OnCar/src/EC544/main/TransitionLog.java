@@ -0,0 +1,151 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * The driving state machine's transitions (see DriveState), as IRDaemon makes
+ * them. Each is kept as its from and to states, the event and the time, in a
+ * ring of CAPACITY; MainCarController sends what has gathered after each
+ * telemetry frame, and CarDataReceiver decodes the frame back into a
+ * TransitionLog. With the telemetry, a replay can be checked against the
+ * car's own sequence of states. The car and the host carry identical copies.
+ *
+ * <pre>
+ *   0  TAG (0xA6)
+ *   1  transitions in the frame (unsigned byte)
+ *   2  transitions lost since the last frame, ring full (unsigned short)
+ *   4  time of the first, ms since epoch (double)
+ *  12  per transition: from &lt;&lt; 4 | to, event (unsigned byte each),
+ *      ms after the first (unsigned short, capped)
+ * </pre>
+ *
+ * Adding and encoding allocate nothing.
+ */
+public class TransitionLog {
+
+    public static final int TAG = 0xA6;
+    public static final int CAPACITY = 32;
+    public static final int HEADER = 12;
+    public static final int ENTRY_LENGTH = 4;
+    public static final int MAX_LENGTH = HEADER + CAPACITY * ENTRY_LENGTH;
+    private final int[] from = new int[CAPACITY];
+    private final int[] to = new int[CAPACITY];
+    private final int[] event = new int[CAPACITY];
+    private final double[] time = new double[CAPACITY];
+    private int first; // oldest kept
+    private int count;
+    private int dropped;
+
+    //Keeps a transition; when the ring is full the oldest goes and is counted as dropped
+    public void add(int fromState, int toState, int cause, double now) {
+        if (count == CAPACITY) {
+            first = (first + 1) % CAPACITY;
+            count--;
+            dropped++;
+        }
+        int slot = (first + count) % CAPACITY;
+        from[slot] = fromState;
+        to[slot] = toState;
+        event[slot] = cause;
+        time[slot] = now;
+        count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getDropped() {
+        return dropped;
+    }
+
+    //i-th transition, oldest first
+    public int getFrom(int i) {
+        return from[(first + i) % CAPACITY];
+    }
+
+    public int getTo(int i) {
+        return to[(first + i) % CAPACITY];
+    }
+
+    public int getEvent(int i) {
+        return event[(first + i) % CAPACITY];
+    }
+
+    public double getTime(int i) {
+        return time[(first + i) % CAPACITY];
+    }
+
+    public void clear() {
+        first = 0;
+        count = 0;
+        dropped = 0;
+    }
+
+    //Writes the kept transitions at buf[offset] (room for MAX_LENGTH) and clears; returns the number of bytes written
+    public int encode(byte[] buf, int offset) {
+        double base = count == 0 ? 0.0 : getTime(0);
+        buf[offset] = (byte) TAG;
+        buf[offset + 1] = (byte) count;
+        int lost = dropped > 0xFFFF ? 0xFFFF : dropped;
+        buf[offset + 2] = (byte) (lost >> 8);
+        buf[offset + 3] = (byte) lost;
+        long bits = Double.doubleToLongBits(base);
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + 4 + i] = (byte) bits;
+            bits >>>= 8;
+        }
+        int at = offset + HEADER;
+        for (int i = 0; i < count; i++) {
+            double delta = getTime(i) - base;
+            int ms = delta > 0xFFFF ? 0xFFFF : (int) delta;
+            buf[at] = (byte) (getFrom(i) << 4 | getTo(i));
+            buf[at + 1] = (byte) getEvent(i);
+            buf[at + 2] = (byte) (ms >> 8);
+            buf[at + 3] = (byte) ms;
+            at += ENTRY_LENGTH;
+        }
+        clear();
+        return at - offset;
+    }
+
+    /**
+     * Reads the rest of a frame whose TAG has already been read from in,
+     * replacing what the log held. Times past the cap all read as the cap.
+     */
+    public void decode(DataInput in) throws IOException {
+        clear();
+        int n = in.readUnsignedByte();
+        int lost = in.readUnsignedShort();
+        double base = in.readDouble();
+        for (int i = 0; i < n; i++) {
+            int states = in.readUnsignedByte();
+            int cause = in.readUnsignedByte();
+            int ms = in.readUnsignedShort();
+            add(states >> 4, states & 0x0F, cause, base + ms);
+        }
+        dropped += lost;
+    }
+
+    public static String headerRow() {
+        return "time,from,to,event";
+    }
+
+    //The i-th transition's CSV row under headerRow()
+    public String toString(int i) {
+        StringBuffer out = new StringBuffer();
+        out.append((long) getTime(i)).append(',').append(name(DriveState.STATE_NAMES, getFrom(i))).append(',')
+                .append(name(DriveState.STATE_NAMES, getTo(i))).append(',')
+                .append(name(DriveState.EVENT_NAMES, getEvent(i)));
+        return out.toString();
+    }
+
+    private static String name(String[] names, int code) {
+        return code >= 0 && code < names.length ? names[code] : "" + code;
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package EC544.main;
+
+/**
+ * Simulated time that only moves when told to. sleep(ms) advances the clock
+ * by ms and returns at once, so a simulated control loop that sleeps its
+ * sample period between cycles runs as fast as the host can compute while
+ * seeing the same times the car would.
+ */
+public class VirtualClock implements Clock {
+
+    private long now;
+
+    public VirtualClock(long startMillis) {
+        now = startMillis;
+    }
+
+    public void advance(long millis) {
+        now += millis;
+    }
+
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    public void sleep(long millis) {
+        now += millis;
+    }
+}